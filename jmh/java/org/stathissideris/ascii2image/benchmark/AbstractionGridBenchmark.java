@@ -0,0 +1,61 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.stathissideris.ascii2image.text.AbstractionGrid;
+import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the construction of the AbstractionGrid of the boundaries of
+ * whole diagrams, the first step of finding their shapes.
+ */
+public class AbstractionGridBenchmark extends DiagramBenchmarkInputs {
+
+    private final List<TextGrid> workGrids = new ArrayList<TextGrid>();
+    private final List<CellSet> boundaries = new ArrayList<CellSet>();
+
+    @Setup
+    public void loadInputs() throws IOException {
+        workGrids.clear();
+        boundaries.clear();
+        //the same preparation of the grid as the one Diagram does
+        for (TextGrid grid : loadGrids()) {
+            TextGrid workGrid = new TextGrid(grid);
+            workGrid.replaceTypeOnLine();
+            workGrid.replacePointMarkersOnLine();
+            workGrids.add(workGrid);
+            boundaries.add(workGrid.getAllBoundaries());
+        }
+    }
+
+    @Benchmark
+    public void construct(Blackhole blackhole) {
+        for (int i = 0; i < workGrids.size(); i++) {
+            blackhole.consume(new AbstractionGrid(workGrids.get(i), boundaries.get(i)));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures the construction of Diagrams from TextGrids, which finds and
+ * classifies all the shapes and text.
+ */
+public class DiagramBenchmark extends DiagramBenchmarkInputs {
+
+    private List<TextGrid> grids;
+
+    @Setup
+    public void loadInputs() throws IOException {
+        grids = loadGrids();
+    }
+
+    @Benchmark
+    public void construct(Blackhole blackhole) {
+        //Diagram works on copies of the grid, so the grids can be reused
+        for (TextGrid grid : grids) blackhole.consume(new Diagram(grid, options));
+    }
+}
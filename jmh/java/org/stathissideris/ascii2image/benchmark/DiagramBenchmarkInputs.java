@@ -0,0 +1,106 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.benchmark;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.FileUtils;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The diagrams that the benchmarks convert. Every operation of a
+ * benchmark goes through all of them, so the scores of different inputs
+ * are not comparable with each other, only with the scores of the same
+ * input before and after a change.
+ *
+ * <p>The <code>input</code> parameter is one of</p>
+ * <ul>
+ * <li><code>corpus</code>: all the diagrams in the directory given by
+ * the <code>ditaa.corpus</code> system property, test-resources/text by
+ * default</li>
+ * <li><code>synthetic-N</code>: a generated grid of N by N boxes, see
+ * {@link SyntheticDiagrams}</li>
+ * <li>the name of a single file of the corpus</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class DiagramBenchmarkInputs {
+
+    @Param({"corpus", "synthetic-4", "synthetic-8", "synthetic-16"})
+    public String input;
+
+    protected final ConversionOptions options = new ConversionOptions();
+
+    /**
+     * @return the texts of the diagrams of <code>input</code>
+     * @throws IOException
+     */
+    protected List<String> loadTexts() throws IOException {
+        File corpus = new File(System.getProperty("ditaa.corpus", "test-resources/text"));
+        List<String> texts = new ArrayList<String>();
+        if (input.equals("corpus")) {
+            File[] files = corpus.listFiles((dir, name) -> name.endsWith(".txt"));
+            if (files == null) throw new IOException("Cannot find the corpus in " + corpus.getAbsolutePath());
+            Arrays.sort(files);
+            for (File file : files) texts.add(FileUtils.readFile(file, "UTF-8"));
+        } else if (input.startsWith("synthetic-")) {
+            texts.add(SyntheticDiagrams.generate(Integer.parseInt(input.substring("synthetic-".length()))));
+        } else {
+            texts.add(FileUtils.readFile(new File(corpus, input), "UTF-8"));
+        }
+        return texts;
+    }
+
+    protected List<TextGrid> loadGrids() throws IOException {
+        List<TextGrid> grids = new ArrayList<TextGrid>();
+        for (String text : loadTexts()) {
+            TextGrid grid = new TextGrid();
+            grid.initialiseWithText(text, options.processingOptions);
+            grids.add(grid);
+        }
+        return grids;
+    }
+
+    protected List<Diagram> loadDiagrams() throws IOException {
+        List<Diagram> diagrams = new ArrayList<Diagram>();
+        for (TextGrid grid : loadGrids()) diagrams.add(new Diagram(grid, options));
+        return diagrams;
+    }
+}
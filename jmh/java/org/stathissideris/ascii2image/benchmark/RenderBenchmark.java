@@ -0,0 +1,107 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGBuilder;
+import se.ngm.ditaaeps.EpsRenderer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Measures the rendering of Diagrams to each of the output formats. The
+ * encoded output is thrown away as it is produced, so the encoding of
+ * PNG images is not measured.
+ */
+public class RenderBenchmark extends DiagramBenchmarkInputs {
+
+    private List<Diagram> diagrams;
+
+    @Setup
+    public void loadInputs() throws IOException {
+        diagrams = loadDiagrams();
+    }
+
+    @Benchmark
+    public void bitmap(Blackhole blackhole) {
+        for (Diagram diagram : diagrams) {
+            BitmapRenderer renderer = new BitmapRenderer(null, options.renderingOptions);
+            blackhole.consume(renderer.renderToImage(diagram, options.renderingOptions));
+        }
+    }
+
+    @Benchmark
+    public void svg(Blackhole blackhole) throws IOException {
+        for (Diagram diagram : diagrams) {
+            new SVGBuilder(diagram, options.renderingOptions).build(new BlackholeWriter(blackhole));
+        }
+    }
+
+    @Benchmark
+    public void eps(Blackhole blackhole) {
+        for (Diagram diagram : diagrams) {
+            new EpsRenderer(null, options.renderingOptions).renderImage(diagram, new BlackholeOutputStream(blackhole));
+        }
+    }
+
+    private static class BlackholeWriter extends Writer {
+        private final Blackhole blackhole;
+
+        BlackholeWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        public void write(char[] buffer, int offset, int length) {
+            blackhole.consume(buffer);
+        }
+
+        public void write(String text) {
+            blackhole.consume(text);
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        public void write(byte[] buffer, int offset, int length) {
+            blackhole.consume(buffer);
+        }
+    }
+}
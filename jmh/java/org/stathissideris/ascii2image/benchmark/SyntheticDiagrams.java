@@ -0,0 +1,74 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.benchmark;
+
+/**
+ * Generates diagrams of any size, for measuring how the stages of the
+ * conversion scale.
+ */
+public class SyntheticDiagrams {
+
+    private static final String[] COLOR_CODES = {"cRED", "cBLU", "", "cGRE", "cPNK", "", "cYEL"};
+
+    private SyntheticDiagrams() {
+    }
+
+    /**
+     * Generates a square grid of <code>size</code> by <code>size</code>
+     * boxes, each one connected to the next one in its row and to the one
+     * below it by arrows. The boxes have a mix of colours, dashed sides,
+     * documents and storage shapes and text.
+     *
+     * @param size the number of boxes in each row and column
+     * @return the text of the diagram
+     */
+    public static String generate(int size) {
+        StringBuilder text = new StringBuilder();
+        for (int row = 0; row < size; row++) {
+            boolean lastRow = row == size - 1;
+            StringBuilder[] lines = new StringBuilder[lastRow ? 4 : 6];
+            for (int i = 0; i < lines.length; i++) lines[i] = new StringBuilder();
+
+            for (int column = 0; column < size; column++) {
+                int index = row * size + column;
+                String gap = column == size - 1 ? "" : "    ";
+                char side = index % 5 == 4 ? ':' : '|';
+                String tag = index % 7 == 3 ? "{d} " : index % 11 == 5 ? "{s} " : "";
+
+                lines[0].append("+----------+").append(gap);
+                lines[1].append(side).append(pad(" " + COLOR_CODES[index % COLOR_CODES.length]))
+                        .append(side).append(gap.isEmpty() ? "" : "--->");
+                lines[2].append(side).append(pad(" " + tag + index)).append(side).append(gap);
+                lines[3].append(lastRow ? "+----------+" : "+---+------+").append(gap);
+                if (!lastRow) {
+                    lines[4].append("    |       ").append(gap);
+                    lines[5].append("    v       ").append(gap);
+                }
+            }
+            for (StringBuilder line : lines) text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String pad(String content) {
+        StringBuilder result = new StringBuilder(content);
+        while (result.length() < 10) result.append(' ');
+        return result.toString();
+    }
+}
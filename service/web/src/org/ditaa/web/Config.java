@@ -14,6 +14,17 @@ public class Config {
     public static final String KEY_RENDER_EXTERNAL_PROCESS = "render_external";
     public static final String KEY_EXTERNAL_RENDER_CP = "external_render_classpath";
     public static final String KEY_JAVA_EXECUTABLE = "java_executable";
+    public static final String KEY_RENDER_CACHE_DIR = "render_cache_dir";
+    public static final String KEY_MAX_GRID_CELLS = "max_grid_cells";
+    public static final String KEY_MAX_DISTINCT_SHAPES = "max_distinct_shapes";
+    public static final String KEY_MAX_RENDER_MILLIS = "max_render_millis";
+    public static final String KEY_RENDER_WORKERS = "render_workers";
+    public static final String KEY_RENDER_QUEUE_SIZE = "render_queue_size";
+    public static final String KEY_RENDER_QUEUE_MAX_COST = "render_queue_max_cost";
+    public static final String KEY_RENDER_CHEAP_COST = "render_cheap_cost";
+    public static final String KEY_RENDER_RETRY_AFTER = "render_retry_after";
+    public static final String KEY_EXTERNAL_WORKER_MAX_REQUESTS = "external_worker_max_requests";
+    public static final String KEY_EXTERNAL_WORKER_MAX_HEAP_MB = "external_worker_max_heap_mb";
 
     /** Load all values from .properties files in WEB-INF into a single hash map. */
     public static HashMap<String,String> getAllProperties(ServletContext context) throws IOException {
@@ -24,7 +35,9 @@ public class Config {
         HashMap<String,String> result = new HashMap<String,String>();
         for (File propFile : propFiles) {
             Properties properties = new Properties();
-            properties.load(new FileInputStream(propFile));
+            try (FileInputStream in = new FileInputStream(propFile)) {
+                properties.load(in);
+            }
             for (Object k : properties.keySet()) {
                 String key = (String) k;
                 if (result.containsKey(key)) {
@@ -60,6 +73,72 @@ public class Config {
         return result;
     }
 
+    /** Where internally rendered images are cached on disk, or null to only cache them in memory. */
+    public static String getRenderCacheDir(ServletContext context) throws IOException {
+        return getAllProperties(context).get(KEY_RENDER_CACHE_DIR);
+    }
+
+    /** The largest number of cells of a diagram that is rendered internally, or 0 for no limit. */
+    public static long getMaxGridCells(ServletContext context) throws IOException {
+        return getLong(context, KEY_MAX_GRID_CELLS, 0);
+    }
+
+    /** The largest number of distinct shapes of a diagram that is rendered internally, or 0 for no limit. */
+    public static int getMaxDistinctShapes(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_MAX_DISTINCT_SHAPES, 0);
+    }
+
+    /** The number of diagrams rendered at the same time: 12 internally by default, 3 externally. */
+    public static int getRenderWorkers(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_RENDER_WORKERS, isRenderExternal(context) ? 3 : 12);
+    }
+
+    /** The longest time, in milliseconds, that the processing of a diagram rendered internally may take, or 0 for
+     *  no limit other than the timeout of the request. */
+    public static long getMaxRenderMillis(ServletContext context) throws IOException {
+        return getLong(context, KEY_MAX_RENDER_MILLIS, 0);
+    }
+
+    /** The number of diagrams that may wait to be rendered before new ones are turned away. */
+    public static int getRenderQueueSize(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_RENDER_QUEUE_SIZE, 64);
+    }
+
+    /** The total estimated cost of the expensive diagrams that may wait to be rendered. */
+    public static long getRenderQueueMaxCost(ServletContext context) throws IOException {
+        return getLong(context, KEY_RENDER_QUEUE_MAX_COST, 2000000);
+    }
+
+    /** The highest estimated cost of the diagrams that are rendered in the priority lane. */
+    public static long getRenderCheapCost(ServletContext context) throws IOException {
+        return getLong(context, KEY_RENDER_CHEAP_COST, 20000);
+    }
+
+    /** The seconds that rejected clients are told to wait before retrying. */
+    public static int getRenderRetryAfter(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_RENDER_RETRY_AFTER, 5);
+    }
+
+    /** The number of diagrams an external worker process renders before it is replaced, or 0 for no limit. */
+    public static int getExternalWorkerMaxRequests(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_EXTERNAL_WORKER_MAX_REQUESTS, 500);
+    }
+
+    /** The heap, in megabytes, above which an external worker process is replaced, or 0 for no limit. */
+    public static long getExternalWorkerMaxHeapMegabytes(ServletContext context) throws IOException {
+        return getLong(context, KEY_EXTERNAL_WORKER_MAX_HEAP_MB, 256);
+    }
+
+    private static long getLong(ServletContext context, String key, long defaultValue) throws IOException {
+        String value = getAllProperties(context).get(key);
+        if (value == null || value.trim().length() == 0) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad value for " + key + ": " + value);
+        }
+    }
+
     /** The classpath for rendering externally. */
     public static String getExternalRenderClasspath(ServletContext context) throws IOException {
         String dirName = getAllProperties(context).get(KEY_EXTERNAL_RENDER_CP);
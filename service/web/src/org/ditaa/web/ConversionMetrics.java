@@ -0,0 +1,72 @@
+package org.ditaa.web;
+
+import org.stathissideris.ascii2image.core.MetricsListener;
+import org.stathissideris.ascii2image.core.MetricsRecorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds up the time and allocations of each stage of the conversions made
+ * by the internal renderer, and exposes them through JMX. The external
+ * renderer converts in another process, so only its requests are counted.
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+    public static final String OBJECT_NAME = "org.ditaa.web:type=ConversionMetrics";
+
+    private static ConversionMetrics instance;
+
+    private final MetricsRecorder recorder = new MetricsRecorder();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestMillis = new AtomicLong();
+
+    /** @return the metrics of this web application, registered with the platform MBean server on first use */
+    public static synchronized ConversionMetrics instance() {
+        if (instance == null) {
+            instance = new ConversionMetrics();
+            JmxKit.register(instance, OBJECT_NAME);
+        }
+        return instance;
+    }
+
+    /** @return the listener to set on the options of the conversions */
+    public MetricsListener getListener() {
+        return recorder;
+    }
+
+    public void recordRequest(long millis) {
+        requests.incrementAndGet();
+        requestMillis.addAndGet(millis);
+    }
+
+    public long getRequests() { return requests.get(); }
+
+    public long getRequestMillis() { return requestMillis.get(); }
+
+    public Map<String, Double> getStageMillis() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<MetricsListener.Stage, Long> entry : recorder.getNanos().entrySet())
+            result.put(entry.getKey().getName(), entry.getValue() / 1e6);
+        return result;
+    }
+
+    public Map<String, Long> getStageAllocatedBytes() { return byName(recorder.getAllocatedBytes()); }
+
+    public Map<String, Long> getStageCounts() { return byName(recorder.getCounts()); }
+
+    public String getJson() { return recorder.toJSON(); }
+
+    public void reset() {
+        recorder.reset();
+        requests.set(0);
+        requestMillis.set(0);
+    }
+
+    private static Map<String, Long> byName(Map<MetricsListener.Stage, Long> values) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<MetricsListener.Stage, Long> entry : values.entrySet())
+            result.put(entry.getKey().getName(), entry.getValue());
+        return result;
+    }
+}
@@ -0,0 +1,29 @@
+package org.ditaa.web;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ConversionMetrics}, registered as
+ * <code>org.ditaa.web:type=ConversionMetrics</code>.
+ */
+public interface ConversionMetricsMXBean {
+    /** @return the number of images served, including those taken from the cache */
+    long getRequests();
+
+    /** @return the total time taken to serve the images, in milliseconds */
+    long getRequestMillis();
+
+    /** @return the total milliseconds of each stage of the conversions, by stage name */
+    Map<String, Double> getStageMillis();
+
+    /** @return the total bytes allocated by each stage of the conversions, by stage name */
+    Map<String, Long> getStageAllocatedBytes();
+
+    /** @return how many times each stage was reported, by stage name */
+    Map<String, Long> getStageCounts();
+
+    /** @return the stage totals in the format of the --metrics json command line option */
+    String getJson();
+
+    void reset();
+}
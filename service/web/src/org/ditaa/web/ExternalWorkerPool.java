@@ -0,0 +1,207 @@
+package org.ditaa.web;
+
+import org.stathissideris.ascii2image.core.RenderDaemon;
+import org.stathissideris.ascii2image.core.RenderWorker;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/** A pool of warm external render processes, each running ditaa with --worker.
+ *  Every worker renders one diagram at a time over its standard input & output; a worker that has
+ *  served too many requests or uses too much memory is retired, and one that runs out of time is
+ *  killed. Either way a replacement is started right away, so that it has warmed up by the time it is needed. */
+public class ExternalWorkerPool implements ExternalWorkerPoolMXBean {
+    public static final String OBJECT_NAME = "org.ditaa.web:type=ExternalWorkerPool";
+
+    private final List<String> command;
+    private final int size;
+    private final int maxRequestsPerWorker;
+    private final long maxHeapBytes;
+
+    private final ArrayDeque<Worker> idle = new ArrayDeque<Worker>();
+    private final ScheduledExecutorService killer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ditaa-worker-killer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean shutdown = false;
+
+    // -- statistics --
+    private long started, retiredForRequests, retiredForMemory, killed, crashed;
+
+    /** The result of a render: the status is one of the RenderDaemon.STATUS_ constants. */
+    public static class Result {
+        public final int status;
+        public final String message;
+        public final byte[] image;
+        Result(int status, String message, byte[] image) {
+            this.status = status;
+            this.message = message;
+            this.image = image;
+        }
+        public boolean succeeded() { return status == RenderDaemon.STATUS_OK; }
+    }
+
+    /**
+     * @param command the command that starts a worker, without the --worker option
+     * @param size the number of workers kept running
+     * @param maxRequestsPerWorker the requests after which a worker is replaced, or 0 for no limit
+     * @param maxHeapBytes the heap a worker may keep after garbage collection before it is replaced, or 0 for no
+     *                     limit
+     */
+    public ExternalWorkerPool(List<String> command, int size, int maxRequestsPerWorker, long maxHeapBytes)
+            throws IOException
+    {
+        if (size < 1) throw new IllegalArgumentException("size must be positive: " + size);
+        this.command = new ArrayList<String>(command);
+        this.command.add("--worker");
+        this.size = size;
+        this.maxRequestsPerWorker = maxRequestsPerWorker;
+        this.maxHeapBytes = maxHeapBytes;
+        synchronized (this) {
+            for (int i = 0; i < size; i++) idle.add(startWorker());
+        }
+    }
+
+    /** Renders a diagram on a pooled worker. If the worker does not respond within
+     *  <code>timeoutMillis</code>, it is killed and replaced.
+     *  @param args the command line options of the conversion
+     *  @param input the diagram, encoded as the options say */
+    public Result render(List<String> args, byte[] input, long timeoutMillis) throws IOException, TimeoutException {
+        Worker worker = acquire();
+        ScheduledFuture<?> kill = killer.schedule(worker.killTask(), timeoutMillis, TimeUnit.MILLISECONDS);
+        Result result;
+        try {
+            result = worker.render(args, input);
+        } catch (IOException e) {
+            kill.cancel(false);
+            discard(worker);
+            if (worker.killed) throw new TimeoutException("Render did not complete in " + timeoutMillis + " ms.");
+            synchronized (this) { crashed++; }
+            throw e;
+        }
+        kill.cancel(false);
+        if (worker.killed) { // raced with the deadline
+            discard(worker);
+            throw new TimeoutException("Render did not complete in " + timeoutMillis + " ms.");
+        }
+        release(worker);
+        return result;
+    }
+
+    private synchronized Worker acquire() throws IOException {
+        if (shutdown) throw new IllegalStateException("The pool has been shut down.");
+        Worker worker = idle.pollFirst();
+        // more callers than workers: don't make them wait, start one more (it is retired on release)
+        return worker == null ? startWorker() : worker;
+    }
+
+    private synchronized void release(Worker worker) throws IOException {
+        String reason = null;
+        if (maxRequestsPerWorker > 0 && worker.requests >= maxRequestsPerWorker) {
+            retiredForRequests++;
+            reason = "served " + worker.requests + " requests";
+        } else if (maxHeapBytes > 0 && worker.heapBytes > maxHeapBytes) {
+            retiredForMemory++;
+            reason = "keeps " + (worker.heapBytes >> 20) + " MB of heap after garbage collection";
+        }
+        if (reason != null) {
+            System.out.println("ExternalWorkerPool: retiring worker that " + reason);
+            worker.close();
+            replace();
+        } else if (shutdown || idle.size() >= size) {
+            worker.close();
+        } else {
+            idle.addFirst(worker); // the most recently used worker is the warmest
+        }
+    }
+
+    private synchronized void discard(Worker worker) throws IOException {
+        worker.kill();
+        replace();
+    }
+
+    private void replace() throws IOException {
+        if (!shutdown && idle.size() < size) idle.addLast(startWorker());
+    }
+
+    private Worker startWorker() throws IOException {
+        Process process = new ProcessBuilder(command).directory(new File("/tmp"))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        started++;
+        return new Worker(process);
+    }
+
+    /** Stops all idle workers; busy ones stop once they are done. */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (Worker worker : idle) worker.close();
+        idle.clear();
+        killer.shutdownNow();
+    }
+
+    public int getSize() { return size; }
+    public synchronized int getIdle() { return idle.size(); }
+    public synchronized long getStarted() { return started; }
+    public synchronized long getRetiredForRequests() { return retiredForRequests; }
+    public synchronized long getRetiredForMemory() { return retiredForMemory; }
+    public synchronized long getKilled() { return killed; }
+    public synchronized long getCrashed() { return crashed; }
+
+    private class Worker {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private int requests = 0;
+        private long heapBytes = 0;
+        private volatile boolean killed = false;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        Result render(List<String> args, byte[] input) throws IOException {
+            requests++;
+            out.writeInt(RenderWorker.PROTOCOL_VERSION);
+            out.writeInt(args.size());
+            for (String arg : args) out.writeUTF(arg);
+            out.writeUTF("-");
+            out.writeInt(input.length);
+            out.write(input);
+            out.flush();
+
+            int status = in.readInt();
+            String message = in.readUTF();
+            heapBytes = in.readLong();
+            byte[] image = new byte[in.readInt()];
+            in.readFully(image);
+            return new Result(status, message, image);
+        }
+
+        Runnable killTask() {
+            return new Runnable() {
+                public void run() {
+                    killed = true;
+                    synchronized (ExternalWorkerPool.this) { ExternalWorkerPool.this.killed++; }
+                    process.destroyForcibly(); // unblocks the read of the response
+                }
+            };
+        }
+
+        /** Lets the worker exit on its own, by closing its input. */
+        void close() {
+            IOKit.close(out);
+        }
+
+        void kill() {
+            process.destroyForcibly();
+        }
+    }
+}
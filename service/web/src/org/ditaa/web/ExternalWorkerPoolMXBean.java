@@ -0,0 +1,28 @@
+package org.ditaa.web;
+
+/**
+ * The management interface of {@link ExternalWorkerPool}, registered as
+ * <code>org.ditaa.web:type=ExternalWorkerPool</code>.
+ */
+public interface ExternalWorkerPoolMXBean {
+    /** @return the number of workers kept running */
+    int getSize();
+
+    /** @return the number of workers waiting for a request */
+    int getIdle();
+
+    /** @return the number of worker processes started so far */
+    long getStarted();
+
+    /** @return the number of workers replaced because they served their maximum number of requests */
+    long getRetiredForRequests();
+
+    /** @return the number of workers replaced because they used too much heap */
+    long getRetiredForMemory();
+
+    /** @return the number of workers killed because they ran out of time */
+    long getKilled();
+
+    /** @return the number of workers that stopped responding for another reason */
+    long getCrashed();
+}
@@ -2,9 +2,13 @@ package org.ditaa.web;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class IOKit {
     public static void close(InputStream i) {
         try { i.close(); } catch (IOException ignored) { }
     }
+    public static void close(OutputStream o) {
+        try { o.close(); } catch (IOException ignored) { }
+    }
 }
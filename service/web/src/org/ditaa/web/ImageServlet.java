@@ -1,20 +1,22 @@
 package org.ditaa.web;
 
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.CommandLineConverter;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
 import org.stathissideris.ascii2image.core.ConversionOptions;
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
-import org.stathissideris.ascii2image.graphics.Diagram;
-import org.stathissideris.ascii2image.text.TextGrid;
+import org.stathissideris.ascii2image.core.RenderCache;
 
-import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
-import java.awt.image.RenderedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
@@ -32,19 +34,19 @@ public class ImageServlet extends HttpServlet {
     // start the countdown to when we allow a restart
     static { RestartServlet.lastReset[0] = System.currentTimeMillis(); }
 
-    /** Internal renderer */
+    /** Renders both internally and externally go through the scheduler, which is configured in ditaa.properties. */
     private static final Object INTERNAL_SETUP_SYNC = new Object();
-    private static ExecutorService RENDER_EXECUTOR;
-    static {
-        // 12 workers -- setup on first use
-        // RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
-        // BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(32);
-        // RENDER_EXECUTOR = new ThreadPoolExecutor(1, 3, 60, TimeUnit.SECONDS, queue);
-    }
+    private static RenderScheduler RENDER_SCHEDULER;
+    private static ExternalWorkerPool EXTERNAL_WORKER_POOL;
+    private static RenderCache RENDER_CACHE;
+
+    /** Limits on a single internal render, read from ditaa.properties along with the scheduler's. */
+    private static long MAX_GRID_CELLS;
+    private static int MAX_DISTINCT_SHAPES;
+    private static long MAX_RENDER_MILLIS;
 
-    /** External renderer: use a semaphore -- max 3 simultaneous. */
-    // TODO: make this configurable
-    private static final Semaphore EXTERNAL_RENDERER_LOCK = new Semaphore(3);
+    /** Extra time given to the pool to kill an external worker once its time is up. */
+    private static final long EXTERNAL_GRACE_MILLIS = 2000;
 
     public void transmitImage(final HttpServletRequest request, final HttpServletResponse response)
             throws IOException, ServletException
@@ -52,6 +54,7 @@ public class ImageServlet extends HttpServlet {
         long start = System.currentTimeMillis();
         final ConversionOptions options = new ConversionOptions();
         options.processingOptions.setCharacterEncoding("UTF-8");
+        options.setMetricsListener(ConversionMetrics.instance().getListener());
 
         @SuppressWarnings({"unchecked"}) Map<String,String[]> paramMap = request.getParameterMap();
         boolean noAntiAlias = paramMap.containsKey("A") || paramMap.containsKey("no-antialias");
@@ -100,11 +103,18 @@ public class ImageServlet extends HttpServlet {
                 + request.getHeader("referer") + "  from " + request.getRemoteHost() + " - " + new Date() + ":");
         try {
             int timeoutSeconds = getTimeout(request);
+            long cost = RenderScheduler.estimateCost(gridText);
             if (Config.isRenderExternal(getServletContext()))
-                renderExternal(options, backgroundString, gridText, timeoutSeconds, response);
+                renderExternal(options, backgroundString, gridText, cost, timeoutSeconds, response);
             else
-                renderInternal(options, gridText, timeoutSeconds, response);
-            System.out.println("Completed in " + (System.currentTimeMillis() - start) + " ms");
+                renderInternal(options, gridText, cost, timeoutSeconds, response);
+            long elapsed = System.currentTimeMillis() - start;
+            ConversionMetrics.instance().recordRequest(elapsed);
+            System.out.println("Completed in " + elapsed + " ms");
+        } catch(RejectedExecutionException e) {
+            System.out.println("Rejected: " + e.getMessage());
+            response.setHeader("Retry-After", "" + Config.getRenderRetryAfter(getServletContext()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is busy, please retry later.");
         } catch(TimeoutException e) {
             String url = "timeout.jsp?" + HttpKit.adjustParameters(request, "timeout", "" + getTimeout(request));
             System.out.println("Timed out after " + (System.currentTimeMillis() - start) + " ms");
@@ -118,59 +128,110 @@ public class ImageServlet extends HttpServlet {
             System.out.println("ImageServlet: " + msg);
     }
 
-    private void renderExternal(final ConversionOptions options, String backgroundString,
-                                final String gridText, int timeoutSeconds, HttpServletResponse response)
+    /** The scheduler, set up on first use. */
+    private RenderScheduler getScheduler() throws IOException {
+        synchronized (INTERNAL_SETUP_SYNC) {
+            if (RENDER_SCHEDULER == null) {
+                RENDER_SCHEDULER = new RenderScheduler(Config.getRenderWorkers(getServletContext()),
+                        Config.getRenderQueueSize(getServletContext()),
+                        Config.getRenderQueueMaxCost(getServletContext()),
+                        Config.getRenderCheapCost(getServletContext()));
+                JmxKit.register(RENDER_SCHEDULER, RenderScheduler.OBJECT_NAME);
+                MAX_GRID_CELLS = Config.getMaxGridCells(getServletContext());
+                MAX_DISTINCT_SHAPES = Config.getMaxDistinctShapes(getServletContext());
+                MAX_RENDER_MILLIS = Config.getMaxRenderMillis(getServletContext());
+            }
+            return RENDER_SCHEDULER;
+        }
+    }
+
+    /** The pool of external workers, one for each render that may run at the same time, started on first use. */
+    private ExternalWorkerPool getWorkerPool() throws IOException {
+        synchronized (INTERNAL_SETUP_SYNC) {
+            if (EXTERNAL_WORKER_POOL == null) {
+                String classPath = Config.getExternalRenderClasspath(getServletContext());
+                if (classPath == null) throw new IOException
+                        ("Missing configuration: " + Config.KEY_EXTERNAL_RENDER_CP
+                                + " (should be written during build to automatic.properties).");
+                List<String> command = Arrays.asList(Config.getJavaExecutable(getServletContext()), "-cp", classPath,
+                        CommandLineConverter.class.getCanonicalName());
+                EXTERNAL_WORKER_POOL = new ExternalWorkerPool(command, Config.getRenderWorkers(getServletContext()),
+                        Config.getExternalWorkerMaxRequests(getServletContext()),
+                        Config.getExternalWorkerMaxHeapMegabytes(getServletContext()) << 20);
+                JmxKit.register(EXTERNAL_WORKER_POOL, ExternalWorkerPool.OBJECT_NAME);
+            }
+            return EXTERNAL_WORKER_POOL;
+        }
+    }
+
+    private void renderExternal(final ConversionOptions options, final String backgroundString,
+                                final String gridText, long cost, int timeoutSeconds, final HttpServletResponse response)
             throws IOException, TimeoutException
     {
-        long timeoutMillis = timeoutSeconds * 1000;
-        long start = System.currentTimeMillis();
-        boolean acquired = false;
-        try {
-            acquired = EXTERNAL_RENDERER_LOCK.tryAcquire(timeoutMillis, TimeUnit.SECONDS);
-            long elapsed = System.currentTimeMillis() - start;
-            if (acquired)
-                new ExternalRenderer(options, backgroundString, gridText, timeoutMillis - elapsed, getServletContext(), response).render();
-            else {
-                throw new TimeoutException("External still busy after "
-                        + elapsed + " millis (" + timeoutSeconds + " allowed).");
+        final long timeoutMillis = timeoutSeconds * 1000;
+        final long start = System.currentTimeMillis();
+        final ExternalWorkerPool pool = getWorkerPool();
+        // the time spent waiting for a worker counts towards the timeout
+        Future<ExternalWorkerPool.Result> future = getScheduler().submit(new Callable<ExternalWorkerPool.Result>() {
+            public ExternalWorkerPool.Result call() throws Exception {
+                long elapsed = System.currentTimeMillis() - start;
+                if (elapsed >= timeoutMillis)
+                    throw new TimeoutException("External still busy after "
+                            + elapsed + " millis (" + timeoutSeconds + " allowed).");
+                return new ExternalRenderer(options, backgroundString, gridText, timeoutMillis - elapsed, pool).render();
             }
+        }, cost);
+        try {
+            // the response is only written from the request thread, once the render is done
+            ExternalWorkerPool.Result result = future.get(timeoutMillis + EXTERNAL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            ExternalRenderer.write(result, response);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (acquired)
-                EXTERNAL_RENDERER_LOCK.release();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) throw (TimeoutException) e.getCause();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e);
         }
     }
 
-    private void renderInternal(final ConversionOptions options, final String gridText,
+    private void renderInternal(final ConversionOptions options, final String gridText, long cost,
                                 int timeoutSeconds, HttpServletResponse response)
             throws IOException, TimeoutException
     {
-        final TextGrid grid = new TextGrid();
-
-        // initialize thread pool on first use, to avoid unnecessary allocation
+        // initialize the cache on first use, to avoid unnecessary allocation
         synchronized (INTERNAL_SETUP_SYNC) {
-            if (RENDER_EXECUTOR == null)
-                RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
+            if (RENDER_CACHE == null) {
+                String cacheDir = Config.getRenderCacheDir(getServletContext());
+                RENDER_CACHE = new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES,
+                        cacheDir == null ? null : new File(cacheDir));
+            }
         }
 
-        Future<RenderedImage> future = RENDER_EXECUTOR.submit(new Callable<RenderedImage>() {
-            public RenderedImage call() throws Exception {
-                grid.initialiseWithText(gridText, options.processingOptions);
-                grid.printDebug();
+        // a conversion that times out is stopped, to free its worker
+        final CancellationToken token = new CancellationToken();
+        RenderScheduler scheduler = getScheduler();
+        options.processingOptions.setCancellationToken(token);
+        options.processingOptions.setMaxGridCells(MAX_GRID_CELLS);
+        options.processingOptions.setMaxDistinctShapes(MAX_DISTINCT_SHAPES);
+        options.processingOptions.setMaxMillis(MAX_RENDER_MILLIS);
 
-                Diagram diagram = new Diagram(grid, options);
-                return new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+        // same text and options --> same bytes, straight from the cache
+        Future<byte[]> future = scheduler.submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return RENDER_CACHE.render(gridText, options, "png");
             }
-        });
+        }, cost);
         try {
-            RenderedImage image = future.get(timeoutSeconds, TimeUnit.SECONDS);
+            byte[] image = future.get(timeoutSeconds, TimeUnit.SECONDS);
             response.setContentType("image/png");
             response.setDateHeader("Expires", System.currentTimeMillis() + 2*60*60*1000L);
             ServletOutputStream os = response.getOutputStream();
 
             // the simple way -- no metadata
-            ImageIO.write(image, "png", os);
+            os.write(image);
 
             // the fun way -- metadata!
             // cribbed from http://stackoverflow.com/questions/721918
@@ -188,9 +249,28 @@ public class ImageServlet extends HttpServlet {
 //            IIOImage iioImage = new IIOImage(image, null, meta);
 //            writer.write(null, iioImage, null);
 
+        } catch (TimeoutException e) {
+            token.cancel();
+            future.cancel(true);
+            throw e;
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConversionAbortedException) {
+                ConversionAbortedException aborted = (ConversionAbortedException) e.getCause();
+                switch (aborted.getReason()) {
+                    case TIMED_OUT:
+                        throw new TimeoutException(aborted.getMessage());
+                    case CANCELLED:
+                        System.out.println("Cancelled: " + aborted.getMessage());
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, aborted.getMessage());
+                        return;
+                    default:
+                        System.out.println("Rejected: " + aborted.getMessage());
+                        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, aborted.getMessage());
+                        return;
+                }
+            }
             throw new RuntimeException(e);
         }
     }
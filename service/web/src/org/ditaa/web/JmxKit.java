@@ -0,0 +1,22 @@
+package org.ditaa.web;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class JmxKit {
+    /** Register <tt>bean</tt> with the platform MBean server, replacing the bean of a previous deployment of
+     *  the application if it is still registered.  Failures are only logged, since monitoring is optional. */
+    public static void register(Object bean, String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(bean, name);
+        } catch (JMException e) {
+            System.err.println("Cannot register " + objectName + ": " + e.getMessage());
+        }
+    }
+}
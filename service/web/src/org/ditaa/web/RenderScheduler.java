@@ -0,0 +1,225 @@
+package org.ditaa.web;
+
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs renders on a fixed number of workers, from a bounded queue with two lanes. Each render has a cost,
+ * estimated from the size of its grid and the number of its boundary characters. Renders that cost up to
+ * the cheap cost go in the cheap lane, which is always served first. Unless there is only one worker, a
+ * quarter of the workers (at least one) only take cheap renders, and unless the queue has room for only
+ * one render, a quarter of its places (at least one) are kept for cheap renders, so that a few large
+ * diagrams cannot hold up the many small ones. The renders of the expensive lane are also limited by
+ * their total cost. Renders that do not fit are rejected straight away, so that the caller can be told
+ * to retry later instead of being left to time out.
+ */
+public class RenderScheduler implements RenderSchedulerMXBean {
+    public static final String OBJECT_NAME = "org.ditaa.web:type=RenderScheduler";
+
+    /** How much more a boundary character costs than a blank one: most of the work is done on boundaries. */
+    public static final int BOUNDARY_COST = 8;
+
+    private final int workers;
+    private final int maxExpensiveRunning;
+    private final int maxQueued;
+    private final int maxExpensiveQueued;
+    private final long maxQueuedCost;
+    private final long cheapCost;
+
+    private final ArrayDeque<Job<?>> cheapLane = new ArrayDeque<Job<?>>();
+    private final ArrayDeque<Job<?>> expensiveLane = new ArrayDeque<Job<?>>();
+    private long queuedCost = 0;
+    private int running = 0;
+    private int runningExpensive = 0;
+    private boolean shutdown = false;
+
+    private long admitted = 0;
+    private long rejected = 0;
+    private long started = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    /**
+     * @param workers       the number of renders that run at the same time
+     * @param maxQueued     the number of renders that may wait for a worker, of which a quarter may only be
+     *                      cheap ones
+     * @param maxQueuedCost the total cost of the renders that may wait in the expensive lane; a render that
+     *                      costs more than that on its own is only admitted when the lane is empty
+     * @param cheapCost     the highest cost of the renders of the cheap lane
+     */
+    public RenderScheduler(int workers, int maxQueued, long maxQueuedCost, long cheapCost) {
+        if (workers < 1) throw new IllegalArgumentException("There must be at least one worker");
+        this.workers = workers;
+        this.maxExpensiveRunning = workers == 1 ? 1 : workers - Math.max(1, workers / 4);
+        this.maxQueued = maxQueued;
+        this.maxExpensiveQueued = maxQueued <= 1 ? maxQueued : maxQueued - Math.max(1, maxQueued / 4);
+        this.maxQueuedCost = maxQueuedCost;
+        this.cheapCost = cheapCost;
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(this::work, "ditaa-render-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Estimate the cost of rendering <tt>gridText</tt> in a single pass over it, without parsing it. */
+    public static long estimateCost(String gridText) {
+        long width = 0, height = 0, boundaries = 0;
+        int lineLength = 0;
+        for (int i = 0; i < gridText.length(); i++) {
+            char c = gridText.charAt(i);
+            if (c == '\n') {
+                width = Math.max(width, lineLength);
+                height++;
+                lineLength = 0;
+            } else if (c != '\r') {
+                lineLength++;
+                if (c == '+' || TextGrid.isBoundary(c)) boundaries++;
+            }
+        }
+        if (lineLength > 0) {
+            width = Math.max(width, lineLength);
+            height++;
+        }
+        return width * height + BOUNDARY_COST * boundaries;
+    }
+
+    /**
+     * Queue <tt>task</tt> for a worker.
+     * @throws RejectedExecutionException if the queue is full, or too many renders or too much work is
+     *  queued in the lane of <tt>task</tt>
+     */
+    public synchronized <T> Future<T> submit(Callable<T> task, long cost) {
+        boolean expensive = cost > cheapCost;
+        int queued = cheapLane.size() + expensiveLane.size();
+        if (shutdown || queued >= maxQueued
+                || (expensive && expensiveLane.size() >= maxExpensiveQueued)
+                || (expensive && !expensiveLane.isEmpty() && queuedCost + cost > maxQueuedCost)) {
+            rejected++;
+            throw new RejectedExecutionException("Too many diagrams are waiting to be rendered ("
+                    + queued + " queued, costing " + queuedCost + " in the expensive lane)");
+        }
+        Job<T> job = new Job<T>(task, cost, expensive);
+        if (expensive) {
+            expensiveLane.add(job);
+            queuedCost += cost;
+        } else cheapLane.add(job);
+        admitted++;
+        notifyAll();
+        return job;
+    }
+
+    /** Stop the workers once they have finished their current render; the queued renders are dropped. */
+    public synchronized void shutdown() {
+        shutdown = true;
+        List<Job<?>> dropped = new ArrayList<Job<?>>(cheapLane);
+        dropped.addAll(expensiveLane);
+        for (Job<?> job : dropped) job.cancel(false);
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            Job<?> job;
+            synchronized (this) {
+                while ((job = next()) == null) {
+                    if (shutdown) return;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                job.run();
+            } finally {
+                synchronized (this) {
+                    running--;
+                    if (job.expensive) runningExpensive--;
+                    notifyAll();
+                }
+            }
+            // a render that was cancelled by interrupting it must not interrupt the next one
+            Thread.interrupted();
+        }
+    }
+
+    /** Take the next render off the queue, or null if there is none that may run now. */
+    private Job<?> next() {
+        Job<?> job = cheapLane.poll();
+        if (job == null && runningExpensive < maxExpensiveRunning) {
+            job = expensiveLane.poll();
+            if (job != null) {
+                queuedCost -= job.cost;
+                runningExpensive++;
+            }
+        }
+        if (job == null) return null;
+        running++;
+        long waited = System.currentTimeMillis() - job.queuedAt;
+        started++;
+        totalWaitMillis += waited;
+        maxWaitMillis = Math.max(maxWaitMillis, waited);
+        return job;
+    }
+
+    /** Take a cancelled render off the queue, if it has not been started. */
+    private synchronized void remove(Job<?> job) {
+        if (job.expensive) {
+            if (expensiveLane.remove(job)) queuedCost -= job.cost;
+        } else cheapLane.remove(job);
+    }
+
+    public int getWorkers() { return workers; }
+
+    public synchronized int getRunning() { return running; }
+
+    public synchronized int getQueueDepth() { return cheapLane.size() + expensiveLane.size(); }
+
+    public synchronized int getCheapQueueDepth() { return cheapLane.size(); }
+
+    public synchronized int getExpensiveQueueDepth() { return expensiveLane.size(); }
+
+    public synchronized long getQueuedCost() { return queuedCost; }
+
+    public synchronized long getAdmitted() { return admitted; }
+
+    public synchronized long getRejected() { return rejected; }
+
+    public synchronized long getStarted() { return started; }
+
+    public synchronized double getAverageWaitMillis() { return started == 0 ? 0 : (double) totalWaitMillis / started; }
+
+    public synchronized long getMaxWaitMillis() { return maxWaitMillis; }
+
+    public synchronized void resetStatistics() {
+        admitted = rejected = started = totalWaitMillis = maxWaitMillis = 0;
+    }
+
+    private class Job<T> extends FutureTask<T> {
+        final long cost;
+        final boolean expensive;
+        final long queuedAt = System.currentTimeMillis();
+
+        Job(Callable<T> task, long cost, boolean expensive) {
+            super(task);
+            this.cost = cost;
+            this.expensive = expensive;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) remove(this);
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.ditaa.web;
+
+/**
+ * The management interface of {@link RenderScheduler}, registered as
+ * <code>org.ditaa.web:type=RenderScheduler</code>.
+ */
+public interface RenderSchedulerMXBean {
+    int getWorkers();
+
+    /** @return the number of renders that are running */
+    int getRunning();
+
+    /** @return the number of renders waiting for a worker, in both lanes */
+    int getQueueDepth();
+
+    int getCheapQueueDepth();
+
+    int getExpensiveQueueDepth();
+
+    /** @return the estimated cost of the renders waiting in the expensive lane */
+    long getQueuedCost();
+
+    /** @return the number of renders admitted to the queue */
+    long getAdmitted();
+
+    /** @return the number of renders turned away because the queue was full */
+    long getRejected();
+
+    /** @return the number of renders that have been started by a worker */
+    long getStarted();
+
+    /** @return the average time the started renders waited in the queue, in milliseconds */
+    double getAverageWaitMillis();
+
+    /** @return the longest time a started render waited in the queue, in milliseconds */
+    long getMaxWaitMillis();
+
+    /** Reset the counters of admitted, rejected and started renders and the wait times. */
+    void resetStatistics();
+}
@@ -0,0 +1,69 @@
+package org.ditaa.web;
+
+import org.junit.After;
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.CommandLineConverter;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExternalWorkerPoolTest {
+    private static final byte[] DIAGRAM = "+----+\n|    |\n+----+\n".getBytes();
+    private static final List<String> ARGS = Arrays.asList("-e", "UTF-8");
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private ExternalWorkerPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    /** Starts workers from the classes of this test, with a small young generation so that they collect early. */
+    private static List<String> command() {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return Arrays.asList(java, "-Xmn4m", "-Djava.awt.headless=true", "-cp", System.getProperty("java.class.path"),
+                CommandLineConverter.class.getName());
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        pool = new ExternalWorkerPool(command(), 1, 0, 0);
+        ExternalWorkerPool.Result result = pool.render(ARGS, DIAGRAM, TIMEOUT_MILLIS);
+        assertTrue(result.message, result.succeeded());
+        assertEquals((byte) 0x89, result.image[0]);
+        assertEquals('P', result.image[1]);
+
+        result = pool.render(Arrays.asList("--scale", "x"), DIAGRAM, TIMEOUT_MILLIS);
+        assertFalse(result.succeeded());
+        assertEquals(1, pool.getStarted());
+    }
+
+    @Test
+    public void testWorkersAreRetiredAfterTheirRequests() throws Exception {
+        pool = new ExternalWorkerPool(command(), 1, 2, 0);
+        for (int i = 0; i < 5; i++) assertTrue(pool.render(ARGS, DIAGRAM, TIMEOUT_MILLIS).succeeded());
+        assertEquals(2, pool.getRetiredForRequests());
+        assertEquals(0, pool.getRetiredForMemory());
+        assertEquals(3, pool.getStarted());
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Test
+    public void testWorkersAreRetiredForMemory() throws Exception {
+        pool = new ExternalWorkerPool(command(), 1, 0, 1);
+        for (int i = 0; i < 2; i++) assertTrue(pool.render(ARGS, DIAGRAM, TIMEOUT_MILLIS).succeeded());
+        assertEquals(2, pool.getRetiredForMemory());
+        assertEquals(0, pool.getRetiredForRequests());
+        assertEquals(3, pool.getStarted());
+
+        pool.shutdown();
+        pool = new ExternalWorkerPool(command(), 1, 0, 1L << 40);
+        for (int i = 0; i < 2; i++) assertTrue(pool.render(ARGS, DIAGRAM, TIMEOUT_MILLIS).succeeded());
+        assertEquals(0, pool.getRetiredForMemory());
+        assertEquals(1, pool.getStarted());
+    }
+}
@@ -0,0 +1,124 @@
+package org.ditaa.web;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RenderSchedulerTest {
+    private static final long CHEAP = 10, EXPENSIVE = 100;
+
+    private CountDownLatch release = new CountDownLatch(1);
+    private RenderScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (scheduler != null) scheduler.shutdown();
+    }
+
+    @Test
+    public void testCheapLaneIsServedFirst() throws Exception {
+        scheduler = new RenderScheduler(1, 10, 1000, CHEAP);
+        occupyWorker(EXPENSIVE);
+        List<String> order = new CopyOnWriteArrayList<String>();
+        Future<?> expensive = scheduler.submit(record(order, "expensive"), EXPENSIVE);
+        Future<?> cheap = scheduler.submit(record(order, "cheap"), CHEAP);
+        release.countDown();
+        expensive.get(10, TimeUnit.SECONDS);
+        cheap.get(10, TimeUnit.SECONDS);
+        assertEquals("cheap", order.get(0));
+        assertEquals("expensive", order.get(1));
+    }
+
+    @Test
+    public void testCheapLaneHasAWorkerOfItsOwn() throws Exception {
+        scheduler = new RenderScheduler(2, 10, 1000, CHEAP);
+        occupyWorker(EXPENSIVE);
+        Future<?> expensive = scheduler.submit(record(new CopyOnWriteArrayList<String>(), "expensive"), EXPENSIVE);
+        // the second worker is kept for cheap renders, so this one does not wait for the first render
+        Future<?> cheap = scheduler.submit(record(new CopyOnWriteArrayList<String>(), "cheap"), CHEAP);
+        cheap.get(10, TimeUnit.SECONDS);
+        assertFalse(expensive.isDone());
+        assertEquals(1, scheduler.getExpensiveQueueDepth());
+    }
+
+    @Test
+    public void testExpensiveLaneIsLimitedByCost() throws Exception {
+        scheduler = new RenderScheduler(1, 10, 250, CHEAP);
+        occupyWorker(CHEAP);
+        // a render that costs more than the limit on its own is admitted into an empty lane
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "huge"), 1000);
+        assertRejected(EXPENSIVE);
+        release.countDown();
+        scheduler.shutdown();
+
+        release = new CountDownLatch(1);
+        scheduler = new RenderScheduler(1, 10, 250, CHEAP);
+        occupyWorker(CHEAP);
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "first"), EXPENSIVE);
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "second"), EXPENSIVE);
+        assertRejected(EXPENSIVE);
+        assertEquals(200, scheduler.getQueuedCost());
+        // cheap renders are not limited by cost
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "cheap"), CHEAP);
+        assertEquals(1, scheduler.getRejected());
+    }
+
+    @Test
+    public void testExpensiveLaneCannotFillTheQueue() throws Exception {
+        scheduler = new RenderScheduler(1, 8, Long.MAX_VALUE, CHEAP);
+        occupyWorker(CHEAP);
+        int admitted = 0;
+        try {
+            while (true) {
+                scheduler.submit(record(new CopyOnWriteArrayList<String>(), "expensive"), EXPENSIVE);
+                admitted++;
+            }
+        } catch (RejectedExecutionException expected) { }
+        assertEquals(6, admitted);
+
+        // the places kept for cheap renders are still free
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "cheap"), CHEAP);
+        scheduler.submit(record(new CopyOnWriteArrayList<String>(), "cheap"), CHEAP);
+        assertRejected(CHEAP);
+        assertEquals(8, scheduler.getQueueDepth());
+    }
+
+    /** Submit a render that holds a worker until the end of the test, and wait for it to start. */
+    private void occupyWorker(long cost) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }, cost);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    private Callable<Void> record(final List<String> order, final String name) {
+        return new Callable<Void>() {
+            public Void call() {
+                order.add(name);
+                return null;
+            }
+        };
+    }
+
+    private void assertRejected(long cost) {
+        try {
+            scheduler.submit(record(new CopyOnWriteArrayList<String>(), "rejected"), cost);
+            fail("A render costing " + cost + " was admitted");
+        } catch (RejectedExecutionException expected) { }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGRenderer;
+import org.stathissideris.ascii2image.text.TextGrid;
+import se.ngm.ditaaeps.EpsRenderer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts many diagrams in one process, on a pool of worker threads.
+ *
+ * <p>The inputs can be files, directories (every .txt file under them is
+ * converted), glob patterns such as <code>docs/**&#47;*.txt</code> or
+ * manifest files, given as <code>@manifest</code>, that list one input
+ * per line. Every image is written next to its diagram, and a line with
+ * the status and timing of every conversion is printed in the order of
+ * the inputs.</p>
+ */
+public class BatchConverter {
+
+    private final ConversionOptions options;
+    private final String format;
+    private final int workers;
+    private RenderCache cache = null;
+
+    /**
+     * @param options the options to convert all the diagrams with
+     * @param format "svg", "svgz", "eps" or the name of an image format
+     *               supported by ImageIO
+     * @param workers the number of diagrams to convert at the same time
+     */
+    public BatchConverter(ConversionOptions options, String format, int workers) {
+        if (workers < 1) throw new IllegalArgumentException("The number of workers must be at least 1");
+        this.options = options;
+        this.format = format;
+        this.workers = workers;
+    }
+
+    /**
+     * @param cache the cache to render through, or null to render every
+     *              diagram
+     */
+    public void setCache(RenderCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * The outcome of the conversion of one diagram
+     */
+    public static class Result {
+        private final File input;
+        private final String output;
+        private final long millis;
+        private final String error;
+
+        Result(File input, String output, long millis, String error) {
+            this.input = input;
+            this.output = output;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        /**
+         * @return the image that was written, or null if the conversion failed
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return why the conversion failed, or null if it succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean succeeded() {
+            return error == null;
+        }
+
+        public String toString() {
+            String time = String.format("%6d ms", millis);
+            if (succeeded()) return "OK     " + time + "  " + input + " -> " + output;
+            else return "FAILED " + time + "  " + input + ": " + error;
+        }
+    }
+
+    /**
+     * Finds the diagrams described by <code>specs</code>. A spec that
+     * matches nothing is kept as it is, so that it is reported as a
+     * failed conversion.
+     *
+     * @param specs files, directories, glob patterns or @manifest files
+     * @return the diagrams, without duplicates
+     * @throws IOException if a directory or a manifest cannot be read
+     */
+    public static List<File> collectInputs(List<String> specs) throws IOException {
+        LinkedHashSet<File> inputs = new LinkedHashSet<File>();
+        for (String spec : specs) collectInputs(spec, inputs);
+        return new ArrayList<File>(inputs);
+    }
+
+    private static void collectInputs(String spec, LinkedHashSet<File> inputs) throws IOException {
+        if (spec.startsWith("@")) {
+            File manifest = new File(spec.substring(1));
+            File baseDir = manifest.getAbsoluteFile().getParentFile();
+            for (String line : FileUtils.readFile(manifest).split("\r?\n")) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (!line.startsWith("@") && !new File(line).isAbsolute()) {
+                    line = new File(baseDir, line).getPath();
+                }
+                collectInputs(line, inputs);
+            }
+        } else if (new File(spec).isDirectory()) {
+            inputs.addAll(walk(Paths.get(spec), path -> path.toString().endsWith(".txt")));
+        } else if (isGlob(spec)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+            List<File> matches = walk(getGlobBase(spec), matcher::matches);
+            if (matches.isEmpty()) inputs.add(new File(spec));
+            else inputs.addAll(matches);
+        } else {
+            inputs.add(new File(spec));
+        }
+    }
+
+    private static List<File> walk(Path dir, PathMatcher matcher) throws IOException {
+        if (!Files.isDirectory(dir)) return Collections.emptyList();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths
+                    .filter(path -> Files.isRegularFile(path) && matcher.matches(path))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isGlob(String spec) {
+        for (char c : "*?[{".toCharArray()) {
+            if (spec.indexOf(c) != -1) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the longest leading directory of the pattern that does not
+     * contain any wildcards
+     */
+    private static Path getGlobBase(String pattern) {
+        String[] segments = pattern.split("/", -1);
+        StringBuilder base = new StringBuilder();
+        for (int i = 0; i < segments.length - 1 && !isGlob(segments[i]); i++) {
+            base.append(segments[i]).append('/');
+        }
+        if (base.length() == 0) return Paths.get("");
+        return Paths.get(base.toString());
+    }
+
+    /**
+     * Converts all the diagrams, and prints the status of each conversion
+     * to <code>report</code> as soon as it and all the ones before it
+     * have finished.
+     *
+     * @param inputs the diagrams
+     * @param report where to print the report, or null
+     * @return the results, in the order of the inputs
+     */
+    public List<Result> convert(List<File> inputs, PrintStream report) {
+        //the markup tags are shared by all grids, so they are set up
+        //before any worker starts reading them
+        if (options.processingOptions.getCustomShapes() != null) {
+            new TextGrid().addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (File input : inputs) futures.add(pool.submit(() -> convert(input)));
+
+            List<Result> results = new ArrayList<Result>();
+            for (int i = 0; i < futures.size(); i++) {
+                Result result;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    result = new Result(inputs.get(i), null, 0, e.getCause().toString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (report != null) report.println(result);
+                results.add(result);
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result convert(File input) {
+        long startTime = System.nanoTime();
+        String toFilename = null;
+        String error = null;
+        try {
+            String extension = format.equals("svg") || format.equals("svgz") || format.equals("eps") ? format : "png";
+            toFilename = FileUtils.makeTargetPathname(input.getPath(), extension, options.processingOptions.overwriteFiles());
+
+            if (cache != null) {
+                String text;
+                try (InputStream in = new FileInputStream(input)) {
+                    text = FileUtils.readFile(in, input.getPath(), options.processingOptions.getCharacterEncoding());
+                }
+                byte[] image = cache.render(text, options, format);
+                try (OutputStream out = new FileOutputStream(toFilename)) {
+                    out.write(image);
+                }
+            } else {
+                TextGrid grid = new TextGrid();
+                if (!grid.loadFrom(input.getPath(), options.processingOptions)) {
+                    throw new IOException("Cannot open file " + input + " for reading");
+                }
+                Diagram diagram = new Diagram(grid, options);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(toFilename))) {
+                    render(diagram, out);
+                }
+            }
+        } catch (Exception e) {
+            //the message of a FileNotFoundException names the file, which
+            //may be the output as well as the input
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        long millis = (System.nanoTime() - startTime) / 1000000;
+        return new Result(input, error == null ? toFilename : null, millis, error);
+    }
+
+    private void render(Diagram diagram, OutputStream out) throws IOException {
+        switch (format) {
+            case "svg":
+            case "svgz":
+                SVGRenderer svgRenderer = new SVGRenderer(null, options.renderingOptions);
+                svgRenderer.setCompressed(format.equals("svgz"));
+                svgRenderer.renderImage(diagram, out);
+                break;
+            case "eps":
+                new EpsRenderer(null, options.renderingOptions).renderImage(diagram, out);
+                break;
+            default:
+                new BitmapRenderer(null, options.renderingOptions).renderImage(diagram, out);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+/**
+ * Lets a conversion be stopped from another thread. The long loops of the
+ * processing of a diagram check the token of the conversion and throw a
+ * {@link ConversionAbortedException} once it is cancelled, or once its
+ * deadline has passed.
+ */
+public class CancellationToken {
+
+    /**
+     * Loops that do little work in each step only check their token once
+     * every 256 steps, when <code>(step &amp; CHECK_MASK) == 0</code>
+     */
+    public static final int CHECK_MASK = 0xff;
+
+    /**
+     * The token that is used when none is set, which is never cancelled
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            throw new UnsupportedOperationException("CancellationToken.NONE cannot be cancelled");
+        }
+    };
+
+    private final CancellationToken parent;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled = false;
+
+    public CancellationToken() {
+        this(null, 0, false);
+    }
+
+    private CancellationToken(CancellationToken parent, long deadline, boolean hasDeadline) {
+        this.parent = parent;
+        this.deadline = deadline;
+        this.hasDeadline = hasDeadline;
+    }
+
+    /**
+     * @param millis the time from now after which the returned token
+     *               times out, or 0 for no limit
+     * @return a token that is cancelled when this one is, and times out
+     * after <code>millis</code>
+     */
+    public CancellationToken withTimeout(long millis) {
+        if (millis <= 0) return this;
+        return new CancellationToken(this, System.nanoTime() + millis * 1000000L, true);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if this token or the one it was made from has been
+     * cancelled, regardless of their deadlines
+     */
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * @throws ConversionAbortedException if the token has been cancelled
+     *                                    or has timed out
+     */
+    public void check() {
+        if (this == NONE) return;
+        if (cancelled)
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.CANCELLED,
+                    "The conversion was cancelled");
+        if (hasDeadline && System.nanoTime() - deadline > 0)
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TIMED_OUT,
+                    "The conversion took too long");
+        if (parent != null) parent.check();
+    }
+}
@@ -28,9 +28,15 @@ import se.ngm.ditaaeps.EpsRenderer;
 
 import javax.imageio.ImageIO;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This is commandline converter using String notice and String methods
@@ -46,82 +52,8 @@ public class CommandLineConverter {
     public static void main(String[] args) {
         long startTime = System.currentTimeMillis();
 
-        Options cmdLnOptions = new Options();
-        cmdLnOptions.addOption(
-                Option.builder().longOpt("help")
-                        .desc("Prints usage help.")
-                        .build()
-        );
-
-        cmdLnOptions.addOption("v", "verbose", false, "Makes ditaa more verbose.");
-        cmdLnOptions.addOption("o", "overwrite", false, "If the filename of the destination image already exists, an alternative name is chosen. If the overwrite option is selected, the image file is instead overwriten.");
-        cmdLnOptions.addOption("S", "no-shadows", false, "Turns off the drop-shadow effect.");
-        cmdLnOptions.addOption("A", "no-antialias", false, "Turns anti-aliasing off.");
-        cmdLnOptions.addOption("W", "fixed-slope", false, "Makes sides of parallelograms and trapezoids fixed slope instead of fixed width.");
-        cmdLnOptions.addOption("d", "debug", false, "Renders the debug grid over the resulting image.");
-        cmdLnOptions.addOption("r", "round-corners", false, "Causes all corners to be rendered as round corners.");
-        cmdLnOptions.addOption("E", "no-separation", false, "Prevents the separation of common edges of shapes.");
-        cmdLnOptions.addOption("h", "html", false, "In this case the input is an HTML file. The contents of the <pre class=\"textdiagram\"> tags are rendered as diagrams and saved in the images directory and a new HTML file is produced with the appropriate <img> tags.");
-        cmdLnOptions.addOption("T", "transparent", false, "Causes the diagram to be rendered on a transparent background. Overrides --background.");
-
-        cmdLnOptions.addOption(
-                Option.builder("e").longOpt("encoding")
-                        .desc("The encoding of the input file.")
-                        .hasArg()
-                        .argName("ENCODING")
-                        .build()
-        );
-
-        cmdLnOptions.addOption(
-                Option.builder("s").longOpt("scale")
-                        .desc("A natural number that determines the size of the rendered image. The units are fractions of the default size (2.5 renders 1.5 times bigger than the default).")
-                        .hasArg()
-                        .argName("SCALE")
-                        .build()
-        );
-
-        cmdLnOptions.addOption(
-                Option.builder("t").longOpt("tabs")
-                        .desc("Tabs are normally interpreted as 8 spaces but it is possible to change that using this option. It is not advisable to use tabs in your diagrams.")
-                        .hasArg()
-                        .argName("TABS")
-                        .build()
-        );
-
-        cmdLnOptions.addOption(
-                Option.builder("b").longOpt("background")
-                        .desc("The background colour of the image. The format should be a six-digit hexadecimal number (as in HTML, FF0000 for red). Pass an eight-digit hex to define transparency. This is overridden by --transparent.")
-                        .hasArg()
-                        .argName("BACKGROUND")
-                        .build()
-        );
-
-        cmdLnOptions.addOption(
-                Option.builder().longOpt("svg")
-                        .desc("Write an SVG image as destination file.")
-                        .build()
-        );
-
-        cmdLnOptions.addOption(
-                Option.builder().longOpt("eps")
-                        .desc("Write an EPS image as destination file.")
-                        .build()
-        );
-        cmdLnOptions.addOption(
-                Option.builder().longOpt("svg-font-url")
-                        .desc("SVG font URL.")
-                        .hasArg()
-                        .argName("FONT")
-                        .build()
-        );
-
-//TODO: uncomment this for next version:
-//		cmdLnOptions.addOption(
-//				OptionBuilder.withLongOpt("config")
-//				.withDescription( "The shape configuration file." )
-//				.hasArg()
-//				.withArgName("CONFIG_FILE")
-//				.create('c') );
+        Options cmdLnOptions = createOptions();
+        String[] commandLineArgs = args;
 
         CommandLine cmdLine = null;
 
@@ -151,6 +83,16 @@ public class CommandLineConverter {
             System.exit(0);
         }
 
+        if (cmdLine.hasOption("server")) {
+            serve(cmdLine.getOptionValue("server"), cmdLine.getOptionValue("cache"));
+            return;
+        }
+
+        if (cmdLine.hasOption("worker")) {
+            work(cmdLine.getOptionValue("cache"));
+            return;
+        }
+
         if (cmdLine.hasOption("eps") && cmdLine.hasOption("svg")) {
             System.err.println("Invalid options --svg and --eps. Must select only one file format");
             System.exit(1);
@@ -168,6 +110,17 @@ public class CommandLineConverter {
             System.exit(2);
         }
 
+        MetricsRecorder metrics = null;
+        if (cmdLine.hasOption("metrics")) {
+            if (!"json".equals(cmdLine.getOptionValue("metrics"))) {
+                System.err.println("Error: Unsupported metrics format " + cmdLine.getOptionValue("metrics"));
+                new HelpFormatter().printHelp("java -jar ditaa.jar <INPFILE> [OUTFILE]", cmdLnOptions, true);
+                System.exit(2);
+            }
+            metrics = new MetricsRecorder();
+            options.setMetricsListener(metrics);
+        }
+
         args = cmdLine.getArgs();
 
         if (args.length == 0) {
@@ -176,6 +129,17 @@ public class CommandLineConverter {
             System.exit(2);
         }
 
+        if (cmdLine.hasOption("batch")) {
+            if (cmdLine.hasOption("html") || cmdLine.hasOption("client")) {
+                System.err.println("Invalid option --batch. It cannot be combined with --html or --client");
+                System.exit(2);
+            }
+            printRunInfo(cmdLine);
+            int status = convertBatch(cmdLine, options, args, startTime);
+            printMetrics(metrics);
+            System.exit(status);
+        }
+
         if (cmdLine.hasOption("html")) {
             /////// print options before running
             printRunInfo(cmdLine);
@@ -196,7 +160,15 @@ public class CommandLineConverter {
                 System.exit(0);
             }
 
-            new HTMLConverter().convertHTMLFile(filename, toFilename, "ditaa_diagram", "images", options);
+            int workers = parseWorkers(cmdLine);
+            if (workers < 1) System.exit(2);
+            HTMLConverter converter = new HTMLConverter();
+            converter.setWorkers(workers);
+            if (cmdLine.hasOption("cache")) {
+                converter.setCache(new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES, new File(cmdLine.getOptionValue("cache"))));
+            }
+            converter.convertHTMLFile(filename, toFilename, "ditaa_diagram", "images", options);
+            printMetrics(metrics);
             System.exit(0);
 
         } else { //simple mode
@@ -230,12 +202,25 @@ public class CommandLineConverter {
                 stdOut = "-".equals(toFilename);
             }
 
+            if (cmdLine.hasOption("client")) {
+                int port = parsePort(cmdLine.getOptionValue("client"));
+                System.exit(RenderDaemon.convertRemotely(port, commandLineArgs, fromFilename, toFilename));
+            }
+
             if (!stdOut) {
                 /////// print options before running
                 printRunInfo(cmdLine);
                 System.out.println("Reading " + (stdIn ? "standard input" : "file: " + fromFilename));
             }
 
+            if (cmdLine.hasOption("cache")) {
+                RenderCache cache = new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES, new File(cmdLine.getOptionValue("cache")));
+                int status = convertThroughCache(cache, options, fromFilename, toFilename,
+                        getFileFormat(cmdLine, toFilename), startTime);
+                printMetrics(metrics);
+                System.exit(status);
+            }
+
             try {
                 if (!grid.loadFrom(fromFilename, options.processingOptions)) {
                     System.err.println("Cannot open file " + fromFilename + " for reading");
@@ -256,29 +241,21 @@ public class CommandLineConverter {
                 grid.printDebug();
             }
 
-            Diagram diagram = new Diagram(grid, options);
+            Diagram diagram;
+            try {
+                diagram = new Diagram(grid, options);
+            } catch (ConversionAbortedException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
             if (!stdOut) System.out.println("Rendering to file: " + toFilename);
 
-            //Begin new file format inferrence
-            String fileFormat = "";
-            //SVG and EPS flags cannot be defined together
-            //intention is to deprecate this and prefer inferrence from extension
-            //but must retain this for compatibility
-            if (cmdLine.hasOption("svg")) {
-                fileFormat = "svg";
-            } else if (cmdLine.hasOption("eps")) {
-                fileFormat = "eps";
-            } else {
-                String fileExtension = FilenameUtils.getExtension(toFilename);
-                //check if the file extension is in the list of supported output formats
-                boolean extensionIsValid = fileExtension.equals("svg")
-                        || fileExtension.equals("eps")
-                        || (fileExtension.length() > 0 && ImageIO.getImageWritersBySuffix(fileExtension).hasNext());
-                fileFormat = extensionIsValid ? fileExtension : "png";
-            }
-            switch (fileFormat) {
+            switch (getFileFormat(cmdLine, toFilename)) {
                 case "svg":
+                case "svgz":
                     SVGRenderer svgRenderer = new SVGRenderer(toFilename, options.renderingOptions);
+                    svgRenderer.setCompressed(getFileFormat(cmdLine, toFilename).equals("svgz"));
                     svgRenderer.renderImage(diagram);
                     break;
                 case "eps":
@@ -295,6 +272,7 @@ public class CommandLineConverter {
             long endTime = System.currentTimeMillis();
             long totalTime = (endTime - startTime) / 1000;
             if (!stdOut) System.out.println("Done in " + totalTime + "sec");
+            printMetrics(metrics);
 
 //			try {
 //			Thread.sleep(Long.MAX_VALUE);
@@ -305,6 +283,356 @@ public class CommandLineConverter {
         }
     }
 
+    /**
+     * Creates the options accepted on the command line
+     * @return
+     */
+    static Options createOptions() {
+        Options cmdLnOptions = new Options();
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("help")
+                        .desc("Prints usage help.")
+                        .build()
+        );
+
+        cmdLnOptions.addOption("v", "verbose", false, "Makes ditaa more verbose.");
+        cmdLnOptions.addOption("o", "overwrite", false, "If the filename of the destination image already exists, an alternative name is chosen. If the overwrite option is selected, the image file is instead overwriten.");
+        cmdLnOptions.addOption("S", "no-shadows", false, "Turns off the drop-shadow effect.");
+        cmdLnOptions.addOption("A", "no-antialias", false, "Turns anti-aliasing off.");
+        cmdLnOptions.addOption("W", "fixed-slope", false, "Makes sides of parallelograms and trapezoids fixed slope instead of fixed width.");
+        cmdLnOptions.addOption("d", "debug", false, "Renders the debug grid over the resulting image.");
+        cmdLnOptions.addOption("r", "round-corners", false, "Causes all corners to be rendered as round corners.");
+        cmdLnOptions.addOption("E", "no-separation", false, "Prevents the separation of common edges of shapes.");
+        cmdLnOptions.addOption("h", "html", false, "In this case the input is an HTML file. The contents of the <pre class=\"textdiagram\"> tags are rendered as diagrams and saved in the images directory and a new HTML file is produced with the appropriate <img> tags.");
+        cmdLnOptions.addOption("T", "transparent", false, "Causes the diagram to be rendered on a transparent background. Overrides --background.");
+
+        cmdLnOptions.addOption(
+                Option.builder("e").longOpt("encoding")
+                        .desc("The encoding of the input file.")
+                        .hasArg()
+                        .argName("ENCODING")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder("s").longOpt("scale")
+                        .desc("A natural number that determines the size of the rendered image. The units are fractions of the default size (2.5 renders 1.5 times bigger than the default).")
+                        .hasArg()
+                        .argName("SCALE")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder("t").longOpt("tabs")
+                        .desc("Tabs are normally interpreted as 8 spaces but it is possible to change that using this option. It is not advisable to use tabs in your diagrams.")
+                        .hasArg()
+                        .argName("TABS")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder("b").longOpt("background")
+                        .desc("The background colour of the image. The format should be a six-digit hexadecimal number (as in HTML, FF0000 for red). Pass an eight-digit hex to define transparency. This is overridden by --transparent.")
+                        .hasArg()
+                        .argName("BACKGROUND")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("threads")
+                        .desc("Processes the shapes of each diagram in parallel, on this number of threads (0 for one thread per processor). The output is identical to the one of the default, sequential processing.")
+                        .hasArg()
+                        .argName("THREADS")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("tile-size")
+                        .desc("Renders PNG images in square tiles of SIZE pixels, on one thread per processor, and writes each row of tiles out as soon as it is ready, so that the whole image is never held in memory. Meant for very large images, which come out practically the same.")
+                        .hasArg()
+                        .argName("SIZE")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("max-millis")
+                        .desc("Gives up the processing of a diagram that takes longer than MILLIS milliseconds, and fails its conversion. Off by default.")
+                        .hasArg()
+                        .argName("MILLIS")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("metrics")
+                        .desc("Prints the time taken and the bytes allocated by each stage of the conversion to the standard error, once it is done. The only supported FORMAT is json. Not available with --client.")
+                        .hasArg()
+                        .argName("FORMAT")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("svg")
+                        .desc("Write an SVG image as destination file. If the name of the destination file ends with .svgz, the image is compressed with gzip.")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("eps")
+                        .desc("Write an EPS image as destination file.")
+                        .build()
+        );
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("svg-font-url")
+                        .desc("SVG font URL.")
+                        .hasArg()
+                        .argName("FONT")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("batch")
+                        .desc("Converts all the diagrams given as arguments, each to an image next to it. The arguments can be files, directories (all the .txt files under them are converted), glob patterns or @MANIFEST files that list one argument per line. A line with the status and time of every conversion is printed.")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("workers")
+                        .desc("The number of diagrams that --batch and --html convert at the same time (defaults to one per processor).")
+                        .hasArg()
+                        .argName("WORKERS")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("cache")
+                        .desc("Keeps the rendered images in DIR, and takes the image from there instead of rendering it again if the same diagram has already been rendered with the same options. The --server, --batch and --html modes also keep the most recently used images in memory.")
+                        .hasArg()
+                        .argName("DIR")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("server")
+                        .desc("Runs ditaa as a daemon that converts the diagrams sent to it by clients started with --client. The daemon listens on PORT of the loopback interface.")
+                        .hasArg()
+                        .argName("PORT")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("worker")
+                        .desc("Runs ditaa as a worker that converts the diagrams sent to it in frames over the standard input and writes the images to the standard output, until the standard input is closed. Used by the pool of external renderers of the web service.")
+                        .build()
+        );
+
+        cmdLnOptions.addOption(
+                Option.builder().longOpt("client")
+                        .desc("Has the daemon listening on PORT convert the diagram, instead of converting it in this process. All the other options are passed on to the daemon. HTML files are still converted by this process.")
+                        .hasArg()
+                        .argName("PORT")
+                        .build()
+        );
+
+//TODO: uncomment this for next version:
+//		cmdLnOptions.addOption(
+//				OptionBuilder.withLongOpt("config")
+//				.withDescription( "The shape configuration file." )
+//				.hasArg()
+//				.withArgName("CONFIG_FILE")
+//				.create('c') );
+
+        return cmdLnOptions;
+    }
+
+    /**
+     * Decides the format of the image from the command line options, or
+     * from the extension of the output file
+     * @param cmdLine
+     * @param toFilename
+     * @return "svg", "svgz", "eps" or the name of an image format
+     * supported by ImageIO
+     */
+    static String getFileFormat(CommandLine cmdLine, String toFilename) {
+        //SVG and EPS flags cannot be defined together
+        //intention is to deprecate this and prefer inferrence from extension
+        //but must retain this for compatibility
+        String fileExtension = FilenameUtils.getExtension(toFilename);
+        if (cmdLine.hasOption("svg")) {
+            return fileExtension.equals("svgz") ? "svgz" : "svg";
+        } else if (cmdLine.hasOption("eps")) {
+            return "eps";
+        } else {
+            //check if the file extension is in the list of supported output formats
+            boolean extensionIsValid = fileExtension.equals("svg")
+                    || fileExtension.equals("svgz")
+                    || fileExtension.equals("eps")
+                    || (fileExtension.length() > 0 && ImageIO.getImageWritersBySuffix(fileExtension).hasNext());
+            return extensionIsValid ? fileExtension : "png";
+        }
+    }
+
+    /**
+     * Prints the time and allocations of each stage of the conversion to
+     * the standard error, since the image may be written to the standard
+     * output
+     * @param metrics the recorded metrics, or null if none were asked for
+     */
+    private static void printMetrics(MetricsRecorder metrics) {
+        if (metrics != null) System.err.println(metrics.toJSON());
+    }
+
+    /**
+     * Converts a single diagram, taking the image from <code>cache</code>
+     * if it has already been rendered
+     * @return the exit status
+     */
+    private static int convertThroughCache(RenderCache cache, ConversionOptions options,
+                                           String fromFilename, String toFilename, String format, long startTime) {
+        boolean stdOut = "-".equals(toFilename);
+        byte[] image;
+        try {
+            String encoding = options.processingOptions.getCharacterEncoding();
+            String text;
+            if ("-".equals(fromFilename)) {
+                text = FileUtils.readFile(System.in, fromFilename, encoding);
+            } else {
+                try (InputStream in = new FileInputStream(fromFilename)) {
+                    text = FileUtils.readFile(in, fromFilename, encoding);
+                }
+            }
+            if (!stdOut) System.out.println("Rendering to file: " + toFilename);
+            image = cache.render(text, options, format);
+        } catch (FileNotFoundException e) {
+            System.err.println("Error: File " + fromFilename + " does not exist");
+            return 1;
+        } catch (IOException | ConversionAbortedException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+
+        try {
+            if (stdOut) {
+                System.out.write(image);
+                System.out.flush();
+            } else {
+                try (OutputStream out = new FileOutputStream(toFilename)) {
+                    out.write(image);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Cannot write to file " + toFilename);
+            return 1;
+        }
+
+        long totalTime = (System.currentTimeMillis() - startTime) / 1000;
+        if (!stdOut) System.out.println("Done in " + totalTime + "sec");
+        return 0;
+    }
+
+    /**
+     * Converts the diagrams described by <code>specs</code> in batch mode
+     * @param cmdLine
+     * @param options
+     * @param specs
+     * @param startTime
+     * @return the exit status
+     */
+    private static int convertBatch(CommandLine cmdLine, ConversionOptions options, String[] specs, long startTime) {
+        int workers = parseWorkers(cmdLine);
+        if (workers < 1) return 2;
+
+        List<File> inputs;
+        try {
+            inputs = BatchConverter.collectInputs(Arrays.asList(specs));
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+
+        String format = cmdLine.hasOption("svg") ? "svg" : cmdLine.hasOption("eps") ? "eps" : "png";
+        BatchConverter converter = new BatchConverter(options, format, workers);
+        if (cmdLine.hasOption("cache")) {
+            converter.setCache(new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES, new File(cmdLine.getOptionValue("cache"))));
+        }
+        List<BatchConverter.Result> results = converter.convert(inputs, System.out);
+
+        int failed = 0;
+        for (BatchConverter.Result result : results) {
+            if (!result.succeeded()) failed++;
+        }
+        long totalTime = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.println("Converted " + (results.size() - failed) + " of " + inputs.size()
+                + " diagrams, " + failed + " failed, in " + totalTime + "sec");
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Runs the rendering daemon until the process is killed
+     * @param portValue
+     * @param cacheDirectory
+     */
+    private static void serve(String portValue, String cacheDirectory) {
+        RenderCache cache = new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES,
+                cacheDirectory == null ? null : new File(cacheDirectory));
+        RenderDaemon daemon = null;
+        try {
+            daemon = new RenderDaemon(parsePort(portValue), cache);
+        } catch (IOException e) {
+            System.err.println("Error: Cannot listen on port " + portValue + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println(notice);
+        System.out.println("Listening on port " + daemon.getPort());
+        daemon.serve();
+    }
+
+    /**
+     * Runs a render worker on the standard streams until its input is closed
+     * @param cacheDirectory
+     */
+    private static void work(String cacheDirectory) {
+        RenderCache cache = cacheDirectory == null ? null
+                : new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES, new File(cacheDirectory));
+        try {
+            RenderWorker.serveStandardStreams(cache);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the number of workers of the --workers option, one per
+     * processor if it is not given, or 0 if it is invalid, in which case
+     * the error has been reported
+     */
+    private static int parseWorkers(CommandLine cmdLine) {
+        if (!cmdLine.hasOption("workers")) return Runtime.getRuntime().availableProcessors();
+        int workers;
+        try {
+            workers = Integer.parseInt(cmdLine.getOptionValue("workers"));
+        } catch (NumberFormatException e) {
+            workers = 0;
+        }
+        if (workers < 1) {
+            System.err.println("Error: Invalid number of workers " + cmdLine.getOptionValue("workers"));
+            return 0;
+        }
+        return workers;
+    }
+
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 65535) return port;
+        } catch (NumberFormatException e) {
+            //reported below
+        }
+        System.err.println("Error: Invalid port " + value);
+        System.exit(2);
+        return -1;
+    }
+
     /**
      * This is printRunInfo using commandLINE AND cmdLine
      * @param cmdLine
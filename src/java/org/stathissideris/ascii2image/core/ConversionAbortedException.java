@@ -0,0 +1,51 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+/**
+ * Thrown when the processing of a diagram is abandoned, because it was
+ * cancelled or because it went over one of the budgets of its
+ * {@link ProcessingOptions}.
+ */
+public class ConversionAbortedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /** The {@link CancellationToken} of the conversion was cancelled */
+        CANCELLED,
+        /** The conversion took longer than its maximum time */
+        TIMED_OUT,
+        /** The grid has more cells than allowed */
+        TOO_MANY_CELLS,
+        /** The diagram has more distinct shapes than allowed */
+        TOO_MANY_SHAPES
+    }
+
+    private final Reason reason;
+
+    public ConversionAbortedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -90,6 +90,20 @@ public class ConversionOptions {
             processingOptions.setTabSize(tabSizeValue);
         }
 
+        if (cmdLine.hasOption("threads")) {
+            int threads = Integer.parseInt(cmdLine.getOptionValue("threads"));
+            processingOptions.setParallelism(Math.max(threads, 0));
+        }
+
+        if (cmdLine.hasOption("max-millis")) {
+            processingOptions.setMaxMillis(Long.parseLong(cmdLine.getOptionValue("max-millis")));
+        }
+
+        if (cmdLine.hasOption("tile-size")) {
+            int tileSize = Integer.parseInt(cmdLine.getOptionValue("tile-size"));
+            renderingOptions.setTileSize(Math.max(tileSize, 0));
+        }
+
         String encoding = cmdLine.getOptionValue("encoding");
         if (encoding != null) {
             new String(new byte[2], encoding);
@@ -155,6 +169,16 @@ public class ConversionOptions {
         }
     }
 
+    /**
+     * Has the time and allocations of each stage of the conversions that
+     * use these options reported to <code>listener</code>.
+     * @param listener the listener, or null for none
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        processingOptions.setMetricsListener(listener);
+        renderingOptions.setMetricsListener(listener);
+    }
+
     /**
      * This is setDebug methods and paramater value is type boolean
      * @param value
@@ -19,14 +19,19 @@
 package org.stathissideris.ascii2image.core;
 
 import net.htmlparser.jericho.*;
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
-import org.stathissideris.ascii2image.graphics.Diagram;
-import org.stathissideris.ascii2image.graphics.SVGRenderer;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 import javax.swing.text.html.HTMLEditorKit;
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -37,12 +42,30 @@ import java.util.HashMap;
 
 /**
  * This class name is HTMLConverter and extends class HTMLEditorKit
+ *
+ * <p>The diagrams of a document are rendered on a pool of worker
+ * threads. Diagrams with the same text are rendered once: the ones
+ * without an id share the same image, and the ones with an id get a copy
+ * of it. The hash of the text and options of every image is kept in the
+ * images directory, so that the images whose diagrams have not changed
+ * since the last run are not rendered again.</p>
  */
 public class HTMLConverter extends HTMLEditorKit {
 
     private static final String TAG_CLASS = "textdiagram";
     private static final String testDir = "tests/html-converter/";
 
+    /**
+     * The file of the images directory that holds the hash of every image
+     */
+    public static final String HASHES_FILENAME = ".ditaa-hashes";
+
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private RenderCache cache = null;
+
+    private int renderedCount = 0;
+    private int skippedCount = 0;
+
     /**
      * This is main method
      * @param args
@@ -56,6 +79,38 @@ public class HTMLConverter extends HTMLEditorKit {
                 null);
     }
 
+    /**
+     * @param workers the number of diagrams to render at the same time
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("The number of workers must be at least 1");
+        this.workers = workers;
+    }
+
+    /**
+     * @param cache the cache to render through, or null to render every
+     *              diagram
+     */
+    public void setCache(RenderCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the number of distinct diagrams rendered by the last
+     * conversion
+     */
+    public int getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * @return the number of images that the last conversion left as they
+     * were, because their diagrams had not changed
+     */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
     /**
      * This is convertHTMLFile and returns boolean value
      * @param filename
@@ -75,36 +130,45 @@ public class HTMLConverter extends HTMLEditorKit {
         if (options == null) {
             options = new ConversionOptions();
         }
+        renderedCount = 0;
+        skippedCount = 0;
 
-        BufferedReader in = null;
+        BufferedReader reader = null;
         try {
-            in = new BufferedReader(new FileReader(filename));
+            reader = new BufferedReader(new FileReader(filename));
         } catch (FileNotFoundException e) {
             //e.printStackTrace();
             System.err.println("Error: cannot read file " + filename);
             return false;
         }
 
-        String htmlText = "";
+        StringBuilder htmlBuffer = new StringBuilder();
 
         try {
-            while (in.ready()) {
-                htmlText += in.readLine() + "\n";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                htmlBuffer.append(line).append('\n');
             }
-            in.close();
+            reader.close();
         } catch (IOException e1) {
             //e1.printStackTrace();
             System.err.println("Error while reading file " + filename);
             return false;
         }
 
+        String htmlText = htmlBuffer.toString();
+
         System.out.print("Converting HTML file (" + filename + " -> " + targetFilename + ")... ");
 
         Source source = new Source(htmlText);
         OutputDocument outputDocument = new OutputDocument(source);
 
+        boolean svg = options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG;
+        String ext = svg ? ".svg" : ".png";
+
         int index = 1;
-        HashMap<String, String> diagramList = new HashMap<String, String>();
+        //the URLs of the images of every distinct diagram, in the order of the document
+        LinkedHashMap<String, List<String>> diagramList = new LinkedHashMap<String, List<String>>();
         for (Element element : source.getAllElements("pre")) {
             StartTag tag = element.getStartTag();
             Attribute classAttr = tag.getAttributes().get("class");
@@ -112,23 +176,27 @@ public class HTMLConverter extends HTMLEditorKit {
                     && classAttr.hasValue()
                     && classAttr.getValue().equals(TAG_CLASS)) {
 
-                String baseFilename = imageBaseFilename;
-
-                String ext = options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG ? ".svg" : ".png";
+                String text = element.getContent().toString();
+                List<String> URLs = diagramList.get(text);
 
                 String URL;
                 Attribute nameAttr = tag.getAttributes().get("id");
                 if (nameAttr != null
                         && nameAttr.hasValue()) {
-                    baseFilename = makeFilenameFromTagName(nameAttr.getValue());
-                    URL = imageDirName + "/" + baseFilename + ext;
+                    URL = imageDirName + "/" + makeFilenameFromTagName(nameAttr.getValue()) + ext;
+                } else if (URLs != null) {
+                    URL = URLs.get(0);
                 } else {
-                    URL = imageDirName + "/" + baseFilename + "_" + index + ext;
+                    URL = imageDirName + "/" + imageBaseFilename + "_" + index + ext;
                     index++;
                 }
 
                 outputDocument.replace(element, "<img src=\"" + URL + "\" />");
-                diagramList.put(URL, element.getContent().toString());
+                if (URLs == null) {
+                    URLs = new ArrayList<String>();
+                    diagramList.put(text, URLs);
+                }
+                if (!URLs.contains(URL)) URLs.add(URL);
             }
         }
 
@@ -140,12 +208,8 @@ public class HTMLConverter extends HTMLEditorKit {
             System.exit(0);
         }
 
-        FileWriter out;
-        try {
-            out = new FileWriter(targetFilename);
+        try (Writer out = new FileWriter(targetFilename)) {
             outputDocument.writeTo(out);
-            //out.flush();
-            //out.close();
         } catch (IOException e2) {
             System.err.println("Error while writing to file " + targetFilename);
             return false;
@@ -157,7 +221,8 @@ public class HTMLConverter extends HTMLEditorKit {
 
         System.out.println("Generating diagrams... ");
 
-        File imageDir = new File(new File(targetFilename).getParent() + File.separator + imageDirName);
+        String targetDir = new File(targetFilename).getAbsoluteFile().getParent();
+        File imageDir = new File(targetDir + File.separator + imageDirName);
         if (!imageDir.exists()) {
             if (!imageDir.mkdir()) {
                 System.err.println("Could not create directory " + imageDirName);
@@ -165,41 +230,98 @@ public class HTMLConverter extends HTMLEditorKit {
             }
         }
 
-        for (String URL : diagramList.keySet()) {
-            String text = diagramList.get(URL);
-            String imageFilename = new File(targetFilename).getParent() + File.separator + URL;
-            if (new File(imageFilename).exists() && !options.processingOptions.overwriteFiles()) {
-                System.out.println("Error: Cannot overwrite file " + URL + ", file already exists." +
-                        " Use the --overwrite option if you would like to allow file overwrite.");
-                continue;
-            }
-
-            TextGrid grid = new TextGrid();
-            grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
-
-            try {
-                grid.initialiseWithText(text, options.processingOptions);
-            } catch (UnsupportedEncodingException e1) {
-                System.err.println("Error: " + e1.getMessage());
-                System.exit(1);
+        File hashesFile = new File(imageDir, HASHES_FILENAME);
+        Properties hashes = new Properties();
+        if (hashesFile.exists()) {
+            try (InputStream in = new FileInputStream(hashesFile)) {
+                hashes.load(in);
+            } catch (IOException e) {
+                System.err.println("Warning: cannot read " + hashesFile + ", rendering all diagrams");
             }
+        }
 
-            Diagram diagram = new Diagram(grid, options);
+        //the markup tags are shared by all grids, so they are set up
+        //before any worker starts reading them
+        if (options.processingOptions.getCustomShapes() != null) {
+            new TextGrid().addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+        }
 
-            if (options.renderingOptions.getImageType() == RenderingOptions.ImageType.SVG) {
+        final ConversionOptions renderOptions = options;
+        final String format = svg ? "svg" : "png";
+        boolean succeeded = true;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            LinkedHashMap<String, Future<byte[]>> renders = new LinkedHashMap<String, Future<byte[]>>();
+            for (Map.Entry<String, List<String>> entry : diagramList.entrySet()) {
+                String text = entry.getKey();
+                String hash = RenderCache.keyFor(text, options, format);
+
+                List<String> targets = new ArrayList<String>();
+                for (String URL : entry.getValue()) {
+                    File imageFile = new File(targetDir + File.separator + URL);
+                    if (imageFile.exists() && hash.equals(hashes.getProperty(URL))) {
+                        skippedCount++;
+                    } else if (imageFile.exists() && !options.processingOptions.overwriteFiles()) {
+                        System.out.println("Error: Cannot overwrite file " + URL + ", file already exists." +
+                                " Use the --overwrite option if you would like to allow file overwrite.");
+                    } else {
+                        targets.add(URL);
+                    }
+                }
+                if (targets.isEmpty()) continue;
 
-                new SVGRenderer(imageFilename, options.renderingOptions).renderImage(diagram);
+                renders.put(text, pool.submit(() -> cache == null
+                        ? RenderCache.renderToBytes(text, renderOptions, format)
+                        : cache.render(text, renderOptions, format)));
+                entry.setValue(targets);
+            }
 
-            } else {
-                new BitmapRenderer(imageFilename, options.renderingOptions).renderImage(diagram);
+            for (Map.Entry<String, Future<byte[]>> render : renders.entrySet()) {
+                String text = render.getKey();
+                byte[] image;
+                try {
+                    image = render.getValue().get();
+                } catch (ExecutionException e) {
+                    System.err.println("Error: cannot render diagram " + diagramList.get(text).get(0)
+                            + ": " + e.getCause());
+                    succeeded = false;
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                renderedCount++;
+
+                String hash = RenderCache.keyFor(text, options, format);
+                for (String URL : diagramList.get(text)) {
+                    String imageFilename = targetDir + File.separator + URL;
+                    try (OutputStream out = new FileOutputStream(imageFilename)) {
+                        out.write(image);
+                    } catch (IOException e) {
+                        System.err.println("Error while writing to file " + imageFilename);
+                        succeeded = false;
+                        continue;
+                    }
+                    hashes.setProperty(URL, hash);
+                    System.out.println("\t" + imageFilename);
+                }
             }
+        } finally {
+            pool.shutdownNow();
+        }
 
-            System.out.println("\t" + imageFilename);
+        try (OutputStream out = new FileOutputStream(hashesFile)) {
+            hashes.store(out, "ditaa: the hash of the diagram of every image");
+        } catch (IOException e) {
+            System.err.println("Warning: cannot write " + hashesFile);
         }
 
+        if (skippedCount > 0) {
+            System.out.println(skippedCount + " unchanged " + (skippedCount == 1 ? "image was" : "images were") + " skipped");
+        }
         System.out.println("\n...done");
 
-        return true;
+        return succeeded;
     }
 	
 	/*
@@ -0,0 +1,74 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+/**
+ * Is told how long each stage of a conversion took and how much it
+ * allocated. Set one with {@link ConversionOptions#setMetricsListener}.
+ *
+ * <p>A stage may be reported more than once for the same diagram, when
+ * its work is split in several places of the pipeline; listeners should
+ * add the reports up. Listeners may be called from several threads at
+ * once, when several diagrams are converted at the same time.</p>
+ */
+public interface MetricsListener {
+
+    /**
+     * The listener that is used when none is set, which ignores the
+     * reports. The stages are not even timed when it is used.
+     */
+    MetricsListener NONE = (stage, nanos, allocatedBytes) -> {
+    };
+
+    /**
+     * @param stage          the stage that was completed
+     * @param nanos          the time it took, in nanoseconds
+     * @param allocatedBytes the bytes allocated during it by the thread
+     *                       that ran it, or -1 if the JVM cannot measure
+     *                       them
+     */
+    void stageCompleted(Stage stage, long nanos, long allocatedBytes);
+
+    enum Stage {
+        GRID_LOAD("grid-load"),
+        TAB_FIXING("tab-fixing"),
+        MARKUP_EXTRACTION("markup-extraction"),
+        ABSTRACTION("abstraction"),
+        BOUNDARY_DISCOVERY("boundary-discovery"),
+        OPENNESS_CLASSIFICATION("openness-classification"),
+        SHAPE_BUILDING("shape-building"),
+        EDGE_SEPARATION("edge-separation"),
+        TEXT_LAYOUT("text-layout"),
+        RENDERING("rendering"),
+        ENCODING("encoding");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of the stage in reports
+         */
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link MetricsListener} that adds up the time and allocations of each
+ * stage over all the conversions it is used for.
+ */
+public class MetricsRecorder implements MetricsListener {
+
+    private final EnumMap<Stage, long[]> totals = new EnumMap<Stage, long[]>(Stage.class);
+
+    @Override
+    public synchronized void stageCompleted(Stage stage, long nanos, long allocatedBytes) {
+        long[] total = totals.get(stage);
+        if (total == null) {
+            total = new long[]{0, 0, 0};
+            totals.put(stage, total);
+        }
+        total[0] += nanos;
+        //once a stage could not be measured its total is unknown
+        total[1] = (total[1] < 0 || allocatedBytes < 0) ? -1 : total[1] + allocatedBytes;
+        total[2]++;
+    }
+
+    /**
+     * @return the total nanoseconds of each stage that was reported
+     */
+    public synchronized Map<Stage, Long> getNanos() {
+        return column(0);
+    }
+
+    /**
+     * @return the total allocated bytes of each stage that was reported,
+     * -1 for the stages that could not be measured
+     */
+    public synchronized Map<Stage, Long> getAllocatedBytes() {
+        return column(1);
+    }
+
+    /**
+     * @return how many times each stage was reported
+     */
+    public synchronized Map<Stage, Long> getCounts() {
+        return column(2);
+    }
+
+    public synchronized void reset() {
+        totals.clear();
+    }
+
+    /**
+     * @return the totals as a JSON object on a single line, with the
+     * milliseconds and allocated bytes of each stage and of all of them
+     */
+    public synchronized String toJSON() {
+        StringBuilder json = new StringBuilder("{\"stages\":{");
+        long nanos = 0;
+        long bytes = 0;
+        boolean first = true;
+        for (Map.Entry<Stage, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            if (!first) json.append(',');
+            first = false;
+            json.append('"').append(entry.getKey().getName()).append("\":");
+            appendTotals(json, total[0], total[1]);
+            nanos += total[0];
+            bytes = (bytes < 0 || total[1] < 0) ? -1 : bytes + total[1];
+        }
+        json.append("},\"total\":");
+        appendTotals(json, nanos, bytes);
+        return json.append('}').toString();
+    }
+
+    private Map<Stage, Long> column(int index) {
+        EnumMap<Stage, Long> result = new EnumMap<Stage, Long>(Stage.class);
+        for (Map.Entry<Stage, long[]> entry : totals.entrySet())
+            result.put(entry.getKey(), entry.getValue()[index]);
+        return result;
+    }
+
+    private static void appendTotals(StringBuilder json, long nanos, long bytes) {
+        json.append("{\"millis\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6))
+                .append(",\"allocatedBytes\":").append(bytes).append('}');
+    }
+}
@@ -52,6 +52,14 @@ public class ProcessingOptions {
     private int colorCodesProcessingMode = USE_COLOR_CODES;
     private int exportFormat = FORMAT_PNG;
     private int tabSize = DEFAULT_TAB_SIZE;
+    private int parallelism = 1;
+
+    private MetricsListener metricsListener = MetricsListener.NONE;
+
+    private CancellationToken cancellationToken = CancellationToken.NONE;
+    private long maxGridCells = 0;
+    private int maxDistinctShapes = 0;
+    private long maxMillis = 0;
 
     private String inputFilename;
     private String outputFilename;
@@ -221,6 +229,94 @@ public class ProcessingOptions {
         tabSize = i;
     }
 
+    /**
+     * This is getParallelism method
+     * @return the number of threads used to process the distinct shapes
+     * of a diagram, 1 for sequential processing or 0 for as many threads
+     * as there are processors
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * This is setParallelism method
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 0) throw new IllegalArgumentException("Parallelism cannot be negative: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the listener that the stages of processing are reported to
+     */
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * @param metricsListener the listener that the stages of processing
+     *                        are reported to, or null for none
+     */
+    public void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener == null ? MetricsListener.NONE : metricsListener;
+    }
+
+    /**
+     * @return the token that stops the processing once it is cancelled
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * @param cancellationToken the token that stops the processing once it
+     *                          is cancelled, or null for none
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken == null ? CancellationToken.NONE : cancellationToken;
+    }
+
+    /**
+     * @return the largest number of cells (including the blank border
+     * added around the text) of a grid that is processed, or 0 for no limit
+     */
+    public long getMaxGridCells() {
+        return maxGridCells;
+    }
+
+    public void setMaxGridCells(long maxGridCells) {
+        if (maxGridCells < 0) throw new IllegalArgumentException("The maximum number of cells cannot be negative");
+        this.maxGridCells = maxGridCells;
+    }
+
+    /**
+     * @return the largest number of distinct shapes of a diagram that is
+     * processed, or 0 for no limit
+     */
+    public int getMaxDistinctShapes() {
+        return maxDistinctShapes;
+    }
+
+    public void setMaxDistinctShapes(int maxDistinctShapes) {
+        if (maxDistinctShapes < 0) throw new IllegalArgumentException("The maximum number of shapes cannot be negative");
+        this.maxDistinctShapes = maxDistinctShapes;
+    }
+
+    /**
+     * @return the longest time the processing of a diagram may take, in
+     * milliseconds, or 0 for no limit
+     */
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public void setMaxMillis(long maxMillis) {
+        if (maxMillis < 0) throw new IllegalArgumentException("The maximum time cannot be negative");
+        this.maxMillis = maxMillis;
+    }
+
     /**
      * This is getCharacterEncoding method
      * @return characterEncoding;
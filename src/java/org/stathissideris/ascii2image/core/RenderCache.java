@@ -0,0 +1,305 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGRenderer;
+import org.stathissideris.ascii2image.text.StringUtils;
+import org.stathissideris.ascii2image.text.TextGrid;
+import se.ngm.ditaaeps.EpsRenderer;
+
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A cache of rendered diagrams, keyed by a hash of the text of the
+ * diagram, of all the options that affect its rendering and of the
+ * format of the image.
+ *
+ * <p>The encoded images are kept in memory, up to a maximum number of
+ * bytes after which the least recently used ones are dropped, and
+ * optionally in a directory, which is never pruned by the cache and can
+ * be shared by several processes.</p>
+ */
+public class RenderCache {
+
+    public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Fields of the options that have no effect on the image
+     */
+    private static final HashSet<String> ignoredFields = new HashSet<String>(Arrays.asList(
+            "beVerbose", "printDebugOutput", "overwriteFiles", "inputFilename", "outputFilename", "parallelism",
+            "metricsListener", "cancellationToken", "maxGridCells", "maxDistinctShapes", "maxMillis"));
+
+    private final long maxMemoryBytes;
+    private final File directory;
+
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxMemoryBytes how many bytes of images to keep in memory
+     * @param directory where to keep the images on disk, or null for no
+     *                  disk tier. It is created if it does not exist.
+     */
+    public RenderCache(long maxMemoryBytes, File directory) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the image of <code>gridText</code> from the cache, rendering
+     * and caching it first if it is not there.
+     *
+     * @param gridText the text of the diagram
+     * @param options
+     * @param format "svg", "svgz", "eps" or "png"
+     * @return the encoded image, which is shared with the cache and must
+     * not be modified
+     * @throws IOException
+     */
+    public byte[] render(String gridText, ConversionOptions options, String format) throws IOException {
+        String key = keyFor(gridText, options, format);
+        byte[] image = get(key, format);
+        if (image == null) {
+            image = renderToBytes(gridText, options, format);
+            put(key, format, image);
+        }
+        return image;
+    }
+
+    /**
+     * Renders <code>gridText</code> without going through any cache.
+     *
+     * @param gridText the text of the diagram
+     * @param options
+     * @param format "svg", "svgz", "eps" or "png"
+     * @return the encoded image
+     * @throws IOException
+     */
+    public static byte[] renderToBytes(String gridText, ConversionOptions options, String format) throws IOException {
+        TextGrid grid = new TextGrid();
+        if (options.processingOptions.getCustomShapes() != null) {
+            grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+        }
+        grid.initialiseWithText(gridText, options.processingOptions);
+        Diagram diagram = new Diagram(grid, options);
+
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        switch (format) {
+            case "svg":
+            case "svgz":
+                SVGRenderer svgRenderer = new SVGRenderer(null, options.renderingOptions);
+                svgRenderer.setCompressed(format.equals("svgz"));
+                svgRenderer.renderImage(diagram, image);
+                break;
+            case "eps":
+                new EpsRenderer(null, options.renderingOptions).renderImage(diagram, image);
+                break;
+            default:
+                new BitmapRenderer(null, options.renderingOptions).renderImage(diagram, image);
+        }
+        return image.toByteArray();
+    }
+
+    private byte[] get(String key, String format) throws IOException {
+        synchronized (this) {
+            byte[] image = memory.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+        }
+        if (directory != null) {
+            File file = new File(directory, key + "." + format);
+            if (file.isFile()) {
+                byte[] image = Files.readAllBytes(file.toPath());
+                synchronized (this) {
+                    hits++;
+                    putInMemory(key, image);
+                }
+                return image;
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+
+    private void put(String key, String format, byte[] image) throws IOException {
+        synchronized (this) {
+            putInMemory(key, image);
+        }
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Cannot create cache directory " + directory);
+            }
+            //write to a temporary file first, so that other processes never
+            //read a partially written image
+            File temp = File.createTempFile(key, ".tmp", directory);
+            try {
+                Files.write(temp.toPath(), image);
+                Files.move(temp.toPath(), new File(directory, key + "." + format).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                temp.delete();
+            }
+        }
+    }
+
+    private void putInMemory(String key, byte[] image) {
+        if (image.length > maxMemoryBytes) return;
+        byte[] previous = memory.put(key, image);
+        if (previous != null) memoryBytes -= previous.length;
+        memoryBytes += image.length;
+
+        Iterator<byte[]> it = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of bytes of images kept in memory
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Computes the key of the image of <code>gridText</code>. Texts that
+     * result in the same TextGrid, such as texts that differ only in their
+     * line endings or in blank lines at the bottom, have the same key.
+     *
+     * @param gridText
+     * @param options
+     * @param format
+     * @return a hex string
+     */
+    public static String keyFor(String gridText, ConversionOptions options, String format) {
+        StringBuilder description = new StringBuilder();
+        description.append(format).append('\n');
+        describe(options.processingOptions, description);
+        description.append('\n');
+        describe(options.renderingOptions, description);
+        description.append('\n');
+        description.append(normalise(gridText));
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(description.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Drops the blank lines at the bottom of the text and makes all line
+     * endings the same, like TextGrid does
+     */
+    private static String normalise(String gridText) {
+        String[] lines = gridText.split("(\r)?\n");
+        int last = lines.length - 1;
+        while (last > 0 && StringUtils.isBlank(lines[last])) last--;
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i <= last; i++) result.append(lines[i]).append('\n');
+        return result.toString();
+    }
+
+    /**
+     * Appends the value of every field of <code>value</code>. The fields
+     * are found by reflection, so that options that are added later are
+     * part of the key without anyone having to remember to add them.
+     */
+    private static void describe(Object value, StringBuilder result) {
+        if (value == null) {
+            result.append("null");
+        } else if (value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Enum) {
+            result.append(value);
+        } else if (value instanceof Color) {
+            result.append(Integer.toHexString(((Color) value).getRGB()));
+        } else if (value instanceof Map) {
+            result.append('{');
+            for (Map.Entry<?, ?> entry : new TreeMap<Object, Object>((Map<?, ?>) value).entrySet()) {
+                result.append(entry.getKey()).append('=');
+                describe(entry.getValue(), result);
+                result.append(',');
+            }
+            result.append('}');
+        } else {
+            result.append('[');
+            Field[] fields = value.getClass().getDeclaredFields();
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+            for (Field field : fields) {
+                if (Modifier.isStatic(field.getModifiers()) || ignoredFields.contains(field.getName())) continue;
+                field.setAccessible(true);
+                result.append(field.getName()).append('=');
+                try {
+                    describe(field.get(value), result);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                result.append(';');
+            }
+            if (value instanceof CustomShapeDefinition && ((CustomShapeDefinition) value).getFilename() != null) {
+                //the image of the shape may change without its definition changing
+                File file = new File(((CustomShapeDefinition) value).getFilename());
+                result.append(file.lastModified()).append(';').append(file.length()).append(';');
+            }
+            result.append(']');
+        }
+    }
+}
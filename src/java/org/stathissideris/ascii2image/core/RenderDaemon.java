@@ -0,0 +1,266 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * A long-lived process that converts diagrams for clients on the same
+ * machine, so that they don't have to pay for the startup of the JVM
+ * and the initialisation of the renderers every time.
+ *
+ * <p>The daemon listens on a port of the loopback interface. A client
+ * sends the command line arguments it was started with, the name of
+ * the file it is going to write and the contents of the input file.
+ * The daemon interprets the arguments exactly like
+ * CommandLineConverter does, and sends back the rendered image.
+ * Requests are served one at a time.</p>
+ */
+public class RenderDaemon {
+
+    private static final int PROTOCOL_VERSION = 1;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_USAGE = 2;
+
+    /**
+     * How long to wait for a client that has connected to send its
+     * request, before moving on to the next one
+     */
+    private static final int CLIENT_TIMEOUT_MILLIS = 60 * 1000;
+
+    /** The most command line arguments that a request may have */
+    private static final int MAX_ARGUMENTS = 1024;
+
+    /** The largest input file that a request may send */
+    private static final int MAX_INPUT_BYTES = 64 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final RenderCache cache;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException
+     */
+    public RenderDaemon(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @param cache the cache that the images are rendered through, or null
+     * @throws IOException
+     */
+    public RenderDaemon(int port, RenderCache cache) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.cache = cache;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Serves requests until the daemon is closed.
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(CLIENT_TIMEOUT_MILLIS);
+                handle(socket);
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) break;
+                System.err.println("Error: " + e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        int version = in.readInt();
+        if (version != PROTOCOL_VERSION) {
+            writeResponse(out, STATUS_ERROR, "Unsupported protocol version " + version, new byte[0]);
+            return;
+        }
+        int argCount = in.readInt();
+        if (argCount < 0 || argCount > MAX_ARGUMENTS) {
+            writeResponse(out, STATUS_ERROR, "Invalid number of arguments " + argCount, new byte[0]);
+            return;
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+        String toFilename = in.readUTF();
+        int inputLength = in.readInt();
+        if (inputLength < 0 || inputLength > MAX_INPUT_BYTES) {
+            writeResponse(out, STATUS_ERROR, "Invalid input length " + inputLength, new byte[0]);
+            return;
+        }
+        byte[] input = new byte[inputLength];
+        in.readFully(input);
+
+        int status = STATUS_OK;
+        String message = "";
+        byte[] image = new byte[0];
+        try {
+            image = convert(args, toFilename, input, cache);
+        } catch (ParseException | IllegalArgumentException e) {
+            status = STATUS_USAGE;
+            message = e.getMessage();
+        } catch (Exception e) {
+            status = STATUS_ERROR;
+            message = e.toString();
+        }
+        writeResponse(out, status, message, image);
+    }
+
+    private static void writeResponse(DataOutputStream out, int status, String message, byte[] image) throws IOException {
+        out.writeInt(status);
+        out.writeUTF(message == null ? "" : message);
+        out.writeInt(image.length);
+        out.write(image);
+        out.flush();
+    }
+
+    /**
+     * Converts <code>input</code> the way that the command line would
+     * convert a file with the same contents.
+     *
+     * @param args the command line arguments
+     * @param toFilename the file that the image is for, used to infer the
+     *                   format if it is not specified in the arguments
+     * @param input the contents of the input file
+     * @param cache the cache to render through, or null
+     * @return the image
+     * @throws ParseException if the arguments are invalid
+     * @throws IOException
+     */
+    public static byte[] convert(String[] args, String toFilename, byte[] input, RenderCache cache)
+            throws ParseException, IOException {
+        CommandLine cmdLine = new PosixParser().parse(CommandLineConverter.createOptions(), args);
+        if (cmdLine.hasOption("eps") && cmdLine.hasOption("svg"))
+            throw new IllegalArgumentException("Invalid options --svg and --eps. Must select only one file format");
+        ConversionOptions options = new ConversionOptions(cmdLine);
+
+        String text = FileUtils.readFile(new ByteArrayInputStream(input), toFilename,
+                options.processingOptions.getCharacterEncoding());
+        String format = CommandLineConverter.getFileFormat(cmdLine, toFilename);
+        if (cache == null) return RenderCache.renderToBytes(text, options, format);
+        return cache.render(text, options, format);
+    }
+
+    /**
+     * Has the daemon listening on <code>port</code> convert
+     * <code>fromFilename</code> to <code>toFilename</code>. "-" stands
+     * for the standard input and output, as on the command line.
+     *
+     * @return the exit status of the conversion
+     */
+    public static int convertRemotely(int port, String[] args, String fromFilename, String toFilename) {
+        byte[] input;
+        try {
+            input = readFully("-".equals(fromFilename) ? System.in : new FileInputStream(fromFilename));
+        } catch (IOException e) {
+            System.err.println("Error: Cannot open file " + fromFilename + " for reading");
+            return STATUS_ERROR;
+        }
+
+        int status;
+        String message;
+        byte[] image;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(PROTOCOL_VERSION);
+            out.writeInt(args.length);
+            for (String arg : args) out.writeUTF(arg);
+            out.writeUTF(toFilename);
+            out.writeInt(input.length);
+            out.write(input);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            status = in.readInt();
+            message = in.readUTF();
+            image = new byte[in.readInt()];
+            in.readFully(image);
+        } catch (IOException e) {
+            System.err.println("Error: Cannot get a conversion from the ditaa daemon on port " + port + ": " + e.getMessage());
+            return STATUS_ERROR;
+        }
+
+        if (status != STATUS_OK) {
+            System.err.println("Error: " + message);
+            return status;
+        }
+
+        try {
+            if ("-".equals(toFilename)) {
+                System.out.write(image);
+                System.out.flush();
+            } else {
+                try (OutputStream out = new FileOutputStream(new File(toFilename))) {
+                    out.write(image);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Cannot write to file " + toFilename);
+            return STATUS_ERROR;
+        }
+        return STATUS_OK;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        } finally {
+            if (in != System.in) in.close();
+        }
+    }
+}
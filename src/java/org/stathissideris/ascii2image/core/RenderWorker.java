@@ -0,0 +1,152 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * A long-lived process that converts diagrams sent to it over its
+ * standard input, for a parent process that keeps a pool of them. Each
+ * request is converted in the same warmed-up JVM, while a worker that
+ * leaks memory or never finishes can still be killed by its parent
+ * without harm to the others.
+ *
+ * <p>Requests and responses are frames of the same format as those of
+ * {@link RenderDaemon}. A request holds the protocol version, the command
+ * line arguments, the name of the file the image is for and the contents
+ * of the input file. A response holds the status, an error message, the
+ * bytes of heap that the worker kept after its last garbage collection
+ * and the image.
+ * The worker stops when its standard input is closed.</p>
+ */
+public class RenderWorker {
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    /** Converted once at startup, to load the classes that every conversion needs */
+    private static final String WARM_UP_DIAGRAM = "+-----+\n| cBLU|--->\n+-----+\n";
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final RenderCache cache;
+
+    /**
+     * @param in where the requests are read from
+     * @param out where the responses are written to
+     * @param cache the cache that the images are rendered through, or null
+     */
+    public RenderWorker(InputStream in, OutputStream out, RenderCache cache) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.cache = cache;
+    }
+
+    /**
+     * Serves requests until the input is closed.
+     *
+     * @throws IOException if the requests cannot be read or the responses
+     *                     cannot be written
+     */
+    public void serve() throws IOException {
+        while (true) {
+            int version;
+            try {
+                version = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (version != PROTOCOL_VERSION)
+                throw new IOException("Unsupported protocol version " + version);
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+            String toFilename = in.readUTF();
+            byte[] input = new byte[in.readInt()];
+            in.readFully(input);
+
+            int status = RenderDaemon.STATUS_OK;
+            String message = "";
+            byte[] image = new byte[0];
+            try {
+                image = RenderDaemon.convert(args, toFilename, input, cache);
+            } catch (ParseException | IllegalArgumentException e) {
+                status = RenderDaemon.STATUS_USAGE;
+                message = e.getMessage();
+            } catch (Exception | OutOfMemoryError e) {
+                status = RenderDaemon.STATUS_ERROR;
+                message = e.toString();
+            }
+            out.writeInt(status);
+            out.writeUTF(message == null ? "" : message);
+            out.writeLong(getHeapUsedAfterCollection());
+            out.writeInt(image.length);
+            out.write(image);
+            out.flush();
+        }
+    }
+
+    /**
+     * The bytes of heap that were still in use after the last garbage
+     * collection of each heap pool. Unlike the heap in use right now, this
+     * does not count garbage that has not been collected yet, so it
+     * measures what the worker keeps rather than when the collector last
+     * ran. It is 0 before the first collection.
+     *
+     * @return the bytes of heap in use after collection
+     */
+    public static long getHeapUsedAfterCollection() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) used += usage.getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Serves requests on the standard input and output of this process.
+     * Anything else that the conversion prints goes to the standard
+     * error, so that it doesn't get mixed up with the responses. The
+     * worker warms up with a conversion of its own before it reads the
+     * first request.
+     *
+     * @param cache the cache that the images are rendered through, or null
+     * @throws IOException
+     */
+    public static void serveStandardStreams(RenderCache cache) throws IOException {
+        PrintStream responses = System.out;
+        System.setOut(System.err);
+        RenderCache.renderToBytes(WARM_UP_DIAGRAM, new ConversionOptions(), "png");
+        new RenderWorker(System.in, responses, cache).serve();
+    }
+}
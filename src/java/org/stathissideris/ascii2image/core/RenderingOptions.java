@@ -45,6 +45,10 @@ public class RenderingOptions {
 
     private float scale = 1;
 
+    private int tileSize = 0;
+
+    private MetricsListener metricsListener = MetricsListener.NONE;
+
     private Color backgroundColor = Color.white;
     private ImageType imageType = ImageType.PNG;
     private String fontFamily = "Courier";
@@ -215,5 +219,40 @@ public class RenderingOptions {
         this.fixedSlope = b;
     }
 
+    /**
+     * @return the width and height of the tiles that bitmaps are rendered
+     * in, or 0 if they are rendered as a whole
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Has bitmaps rendered in tiles, in parallel, and encoded as the tiles
+     * are rendered, instead of rendered as a whole. This needs much less
+     * memory for very large images, and gives practically the same image.
+     * @param tileSize the width and height of the tiles, or 0 to render
+     *                 bitmaps as a whole
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 0) throw new IllegalArgumentException("The size of the tiles cannot be negative");
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @return the listener that the stages of rendering are reported to
+     */
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * @param metricsListener the listener that the stages of rendering are
+     *                        reported to, or null for none
+     */
+    public void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener == null ? MetricsListener.NONE : metricsListener;
+    }
+
     public enum ImageType {PNG, SVG}
 }
@@ -0,0 +1,87 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures consecutive stages of a conversion and reports them to a
+ * {@link MetricsListener}. Each stage lasts from the previous report (or
+ * the creation of the timer) to its own report.
+ *
+ * <p>The allocated bytes are those of the thread that uses the timer, so
+ * the allocations of stages that are processed by several threads are
+ * only partly counted.</p>
+ */
+public class StageTimer {
+
+    private static final com.sun.management.ThreadMXBean THREADS = getThreadMXBean();
+
+    private final MetricsListener listener;
+    private long startNanos;
+    private long startBytes;
+
+    public StageTimer(MetricsListener listener) {
+        this.listener = listener == null ? MetricsListener.NONE : listener;
+        restart();
+    }
+
+    /**
+     * Starts the next stage without reporting the time since the last one.
+     */
+    public void restart() {
+        if (listener == MetricsListener.NONE) return;
+        startBytes = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Reports the stage that ends now and starts the next one.
+     *
+     * @param stage the stage that ends
+     */
+    public void report(MetricsListener.Stage stage) {
+        if (listener == MetricsListener.NONE) return;
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = allocatedBytes();
+        listener.stageCompleted(stage, nanos, bytes < 0 ? -1 : bytes - startBytes);
+        restart();
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS == null) return -1;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            //com.sun.management is not available on this JVM
+        }
+        return null;
+    }
+}
@@ -3,6 +3,8 @@ package org.stathissideris.ascii2image.graphics;
 import org.stathissideris.ascii2image.core.RenderingOptions;
 
 import java.awt.*;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public abstract class AbstractRenderer {
     private static final boolean DEBUG = false;
@@ -34,6 +36,16 @@ public abstract class AbstractRenderer {
     }
 
     abstract public void renderImage(Diagram d);
+
+    /**
+     * Renders <code>d</code> to <code>out</code> instead of the output
+     * file. The stream is flushed but not closed.
+     *
+     * @param d
+     * @param out
+     * @throws IOException
+     */
+    abstract public void renderImage(Diagram d, OutputStream out) throws IOException;
     private void render() {
 
     }
@@ -19,9 +19,11 @@
 package org.stathissideris.ascii2image.graphics;
 
 import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.MetricsListener;
 import org.stathissideris.ascii2image.core.RenderingOptions;
 import org.stathissideris.ascii2image.core.Shape3DOrderingComparator;
 import org.stathissideris.ascii2image.core.ShapeAreaComparator;
+import org.stathissideris.ascii2image.core.StageTimer;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 import javax.imageio.ImageIO;
@@ -29,13 +31,15 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.RenderedImage;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +52,13 @@ public class BitmapRenderer extends ImageRenderer {
 
     private static final String IDREGEX = "^.+_vfill$";
 
+    /**
+     * The width and height of the box that the shadows are blurred with
+     */
+    private static final int SHADOW_BLUR_SIZE = 6;
+
+    private static final Color SHADOW_COLOR = new Color(150, 150, 150);
+
     public BitmapRenderer(String file, RenderingOptions options) {
         super(file, options);
     }
@@ -86,8 +97,10 @@ public class BitmapRenderer extends ImageRenderer {
         RenderedImage image = renderToImage(diagram, options);
 
         try {
+            StageTimer timer = new StageTimer(options.getMetricsListener());
             File file = new File(filename);
             ImageIO.write(image, "png", file);
+            timer.report(MetricsListener.Stage.ENCODING);
         } catch (IOException e) {
             //e.printStackTrace();
             System.err.println("Error: Cannot write to file " + filename);
@@ -104,20 +117,73 @@ public class BitmapRenderer extends ImageRenderer {
      * @return RenderedImage object
      */
     public RenderedImage renderToImage(Diagram diagram, RenderingOptions options) {
-        BufferedImage image;
-        if (options.needsTransparency()) {
-            image = new BufferedImage(
-                    diagram.getWidth(),
-                    diagram.getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
-        } else {
-            image = new BufferedImage(
-                    diagram.getWidth(),
-                    diagram.getHeight(),
-                    BufferedImage.TYPE_INT_RGB);
+        StageTimer timer = new StageTimer(options.getMetricsListener());
+        BufferedImage image = new BufferedImage(diagram.getWidth(), diagram.getHeight(), getImageType(options));
+        Rectangle canvas = new Rectangle(0, 0, diagram.getWidth(), diagram.getHeight());
+        List<GeneralPath> shadows = options.dropShadows() ? makeShadowPaths(diagram) : new ArrayList<GeneralPath>();
+        render(diagram, image, canvas, shadows, options, shape -> true, text -> true);
+        timer.report(MetricsListener.Stage.RENDERING);
+        return image;
+    }
+
+    /**
+     * Renders <code>diagram</code> to an image that is rendered in tiles, on
+     * one thread per processor, as its pixels are read. Each tile only
+     * draws the shapes and text that overlap it. The image is the same as
+     * the one of {@link #renderToImage(Diagram, RenderingOptions)}, except
+     * that the edges of curves that cross the edges of tiles may be a
+     * little different, since Java2D clips them at the edges of the tile.
+     *
+     * @param diagram
+     * @param options
+     * @param tileSize the width and height of the tiles
+     * @return the image, which has to be closed once it has been read
+     */
+    public TiledImage renderToTiledImage(Diagram diagram, RenderingOptions options, int tileSize) {
+        Rectangle canvas = new Rectangle(0, 0, diagram.getWidth(), diagram.getHeight());
+        List<GeneralPath> shadows = options.dropShadows() ? makeShadowPaths(diagram) : new ArrayList<GeneralPath>();
+
+        //the strokes, the anti-aliasing and the outlines of text reach a
+        //little beyond the outlines of the shapes and text
+        int strokeMargin = (int) Math.ceil(diagram.getMinimumOfCellDimension() / 10) + 2;
+        int textMargin = Math.max(diagram.getCellWidth(), diagram.getCellHeight());
+        IdentityHashMap<DiagramShape, Rectangle> shapeBounds = new IdentityHashMap<DiagramShape, Rectangle>();
+        for (DiagramShape shape : diagram.getAllDiagramShapes()) {
+            if (shape.getPoints().isEmpty()) continue;
+            //point markers have a single point, which makes no outline
+            Rectangle bounds = shape.getPoints().size() > 1 ? shape.getBounds() : null;
+            GeneralPath path = shape.makeIntoRenderPath(diagram, options);
+            if (path != null) {
+                if (bounds == null) bounds = path.getBounds();
+                else bounds.add(path.getBounds());
+            }
+            //shapes that have no outline at all are drawn on every tile
+            if (bounds == null) continue;
+            bounds.grow(strokeMargin, strokeMargin);
+            shapeBounds.put(shape, bounds);
+        }
+        IdentityHashMap<DiagramText, Rectangle> textBounds = new IdentityHashMap<DiagramText, Rectangle>();
+        for (DiagramText text : diagram.getTextObjects()) {
+            Rectangle bounds = text.getBounds().getBounds();
+            bounds.grow(textMargin, textMargin);
+            textBounds.put(text, bounds);
         }
 
-        return render(diagram, image, options);
+        int imageType = getImageType(options);
+        return new TiledImage(canvas.width, canvas.height, imageType, tileSize,
+                Runtime.getRuntime().availableProcessors(),
+                area -> {
+                    BufferedImage tile = new BufferedImage(area.width, area.height, imageType);
+                    //every tile gets its own renderer, since the strokes are
+                    //kept in its fields while rendering
+                    return new BitmapRenderer(getOutFile(), options).render(diagram, tile, area, shadows, options,
+                            shape -> !shapeBounds.containsKey(shape) || shapeBounds.get(shape).intersects(area),
+                            text -> textBounds.get(text).intersects(area));
+                });
+    }
+
+    private static int getImageType(RenderingOptions options) {
+        return options.needsTransparency() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
     }
 
     /**
@@ -127,11 +193,16 @@ public class BitmapRenderer extends ImageRenderer {
      *
      * @param diagram
      * @param image
+     * @param area the part of the diagram that <code>image</code> shows
+     * @param shadows the outlines of all the shadows of the diagram
      * @param options
+     * @param drawShape
+     * @param drawText
      * @return
      */
-    private RenderedImage render(Diagram diagram, BufferedImage image, RenderingOptions options) {
-        RenderedImage renderedImage = image;
+    private BufferedImage render(Diagram diagram, BufferedImage image, Rectangle area, List<GeneralPath> shadows,
+                                 RenderingOptions options,
+                                 Predicate<DiagramShape> drawShape, Predicate<DiagramText> drawText) {
         Graphics2D g2 = image.createGraphics();
 
         Object antialiasSetting = (options.performAntialias() ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
@@ -140,55 +211,122 @@ public class BitmapRenderer extends ImageRenderer {
 
         g2.setColor(options.getBackgroundColor());
         g2.fillRect(0, 0, image.getWidth() + 10, image.getHeight() + 10);
+        g2.translate(-area.x, -area.y);
 
         g2.setStroke(new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND));
 
         if (DEBUG) System.out.println("Rendering " + diagram.getAllDiagramShapes().size() + " shapes (groups flattened)");
 
-        if (options.dropShadows()) {
-            //render shadows
-            renderShadows(diagram, g2);
-
-            //blur shadows
-            int blurRadius = 6;
-            int blurRadius2 = blurRadius * blurRadius;
-            float blurRadius2F = blurRadius2;
-            float weight = 1.0f / blurRadius2F;
-            float[] elements = new float[blurRadius2];
-            for (int k = 0; k < blurRadius2; k++)
-                elements[k] = weight;
-            Kernel myKernel = new Kernel(blurRadius, blurRadius, elements);
-
-            //if EDGE_NO_OP is not selected, EDGE_ZERO_FILL is the default which creates a black border
-            ConvolveOp simpleBlur =
-                    new ConvolveOp(myKernel, ConvolveOp.EDGE_NO_OP, null);
-
-            BufferedImage destination =
-                    new BufferedImage(
-                            image.getWidth(),
-                            image.getHeight(),
-                            image.getType());
-
-            simpleBlur.filter(image, destination);
-
-            //destination = destination.getSubimage(blurRadius/2, blurRadius/2, image.getWidth(), image.getHeight());
-            g2 = (Graphics2D) destination.getGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
-            renderedImage = destination;
+        if (!shadows.isEmpty()) {
+            Rectangle canvas = new Rectangle(0, 0, diagram.getWidth(), diagram.getHeight());
+            renderBlurredShadows(shadows, image, area, canvas, antialiasSetting);
         }
 
-        renderObjects(diagram, g2);
+        renderObjects(diagram, g2, drawShape, drawText);
         g2.dispose();
 
-        return renderedImage;
+        return image;
+    }
+
+    /**
+     * Draws <code>shadows</code> on <code>image</code>, which must be of
+     * TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * <p>The shadows are drawn into a mask that covers only their bounds,
+     * the mask is blurred and then used as the alpha of the shadow colour
+     * over the image. This gives the same result as blurring the whole
+     * image after drawing the shadows on it, since the rest of the image
+     * is only background at this point.</p>
+     *
+     * <p>When the image is a tile of the diagram, the mask also covers a
+     * margin around the tile, so that the edges of the tile are blurred
+     * exactly like the same pixels of the whole image.</p>
+     *
+     * @param shadows
+     * @param image
+     * @param area the part of the diagram that <code>image</code> shows
+     * @param canvas the whole of the diagram
+     * @param antialiasSetting
+     */
+    private void renderBlurredShadows(List<GeneralPath> shadows, BufferedImage image, Rectangle area, Rectangle canvas,
+                                      Object antialiasSetting) {
+        //no pixel of the image is affected by the parts of the mask that
+        //are further than a box from it
+        Rectangle reach = new Rectangle(area);
+        reach.grow(SHADOW_BLUR_SIZE, SHADOW_BLUR_SIZE);
+
+        //the mask extends one box beyond the shadows, so that its edges,
+        //which the blur leaves as they are, are blank
+        Rectangle bounds = null;
+        List<GeneralPath> visibleShadows = new ArrayList<GeneralPath>();
+        for (GeneralPath shadow : shadows) {
+            Rectangle shadowBounds = shadow.getBounds();
+            if (!shadowBounds.intersects(reach)) continue;
+            visibleShadows.add(shadow);
+            if (bounds == null) bounds = shadowBounds;
+            else bounds.add(shadowBounds);
+        }
+        if (bounds == null) return;
+        bounds.grow(SHADOW_BLUR_SIZE, SHADOW_BLUR_SIZE);
+        bounds = bounds.intersection(reach).intersection(canvas);
+        if (bounds.isEmpty()) return;
+
+        BufferedImage mask = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D maskGraphics = mask.createGraphics();
+        maskGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
+        maskGraphics.translate(-bounds.x, -bounds.y);
+        maskGraphics.setColor(Color.white);
+        for (GeneralPath shadow : visibleShadows) maskGraphics.fill(shadow);
+        maskGraphics.dispose();
+
+        byte[] alphas = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+        BoxBlur.blur(alphas, bounds.width, bounds.height, SHADOW_BLUR_SIZE);
+
+        Rectangle target = bounds.intersection(area);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        int shadowRGB = SHADOW_COLOR.getRGB();
+        for (int y = target.y; y < target.y + target.height; y++) {
+            int maskRow = (y - bounds.y) * bounds.width - bounds.x;
+            int imageRow = (y - area.y) * image.getWidth() - area.x;
+            for (int x = target.x; x < target.x + target.width; x++) {
+                int alpha = alphas[maskRow + x] & 0xff;
+                if (alpha != 0) {
+                    int i = imageRow + x;
+                    pixels[i] = hasAlpha ? blendOverARGB(shadowRGB, alpha, pixels[i]) : blendOverRGB(shadowRGB, alpha, pixels[i]);
+                }
+            }
+        }
+    }
+
+    private static int blendOverRGB(int rgb, int alpha, int background) {
+        int result = 0xff000000;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int c = (rgb >> shift) & 0xff;
+            int b = (background >> shift) & 0xff;
+            result |= ((c * alpha + b * (255 - alpha) + 127) / 255) << shift;
+        }
+        return result;
+    }
+
+    private static int blendOverARGB(int rgb, int alpha, int background) {
+        int backgroundAlpha = background >>> 24;
+        //the alpha of the result, times 255
+        int resultAlpha = alpha * 255 + backgroundAlpha * (255 - alpha);
+        int result = ((resultAlpha + 127) / 255) << 24;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int c = (rgb >> shift) & 0xff;
+            int b = (background >> shift) & 0xff;
+            result |= ((c * alpha * 255 + b * backgroundAlpha * (255 - alpha) + resultAlpha / 2) / resultAlpha) << shift;
+        }
+        return result;
     }
 
     @Override
     public void renderImage(Diagram d) {
-        RenderedImage image = renderToImage(d, getOptions());
         try {
             OutputStream stream = ("-".equals(super.getOutFile())) ? System.out : new PrintStream(new FileOutputStream(super.getOutFile()));
-            ImageIO.write(image, "png", stream);
+            writePNG(d, stream);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             System.err.println("Error: Cannot write to file " + getOutFile() + " -- skipping");
@@ -199,6 +337,32 @@ public class BitmapRenderer extends ImageRenderer {
 
     }
 
+    @Override
+    public void renderImage(Diagram d, OutputStream out) throws IOException {
+        writePNG(d, out);
+        out.flush();
+    }
+
+    /**
+     * Renders <code>d</code> in tiles if the options ask for it, or else
+     * as a whole, and encodes it as a PNG image.
+     */
+    private void writePNG(Diagram d, OutputStream out) throws IOException {
+        if (getOptions().getTileSize() > 0) {
+            StageTimer timer = new StageTimer(getOptions().getMetricsListener());
+            try (TiledImage image = renderToTiledImage(d, getOptions(), getOptions().getTileSize())) {
+                ImageIO.write(image, "png", out);
+            }
+            //the tiles are rendered as the image is encoded
+            timer.report(MetricsListener.Stage.RENDERING);
+        } else {
+            RenderedImage image = renderToImage(d, getOptions());
+            StageTimer timer = new StageTimer(getOptions().getMetricsListener());
+            ImageIO.write(image, "png", out);
+            timer.report(MetricsListener.Stage.ENCODING);
+        }
+    }
+
     /**
      * @param shape
      * @param g2
@@ -0,0 +1,90 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.graphics;
+
+/**
+ * A box blur of single channel 8-bit images, done as two passes of a
+ * running sum so that its cost does not depend on the size of the box.
+ *
+ * <p>It gives the same results as a ConvolveOp with a square kernel of
+ * equal weights and EDGE_NO_OP, except that the averages are rounded
+ * rather than truncated: the box is placed around every pixel the same
+ * way and the same band of pixels along the edges is left unchanged.</p>
+ */
+public final class BoxBlur {
+
+    private BoxBlur() {
+    }
+
+    /**
+     * Blurs <code>pixels</code> in place.
+     *
+     * @param pixels the unsigned values of the pixels, row by row
+     * @param width
+     * @param height
+     * @param size the width and height of the box
+     */
+    public static void blur(byte[] pixels, int width, int height, int size) {
+        if (size < 1) throw new IllegalArgumentException("The size of the box must be at least 1");
+        if (pixels.length < width * height)
+            throw new IllegalArgumentException("There are fewer than " + width + "x" + height + " pixels");
+
+        //the pixel at x, y gets the average of the box from x - before,
+        //y - before to x + after, y + after, and only the pixels at least
+        //before pixels away from every edge are blurred
+        int before = size / 2;
+        int after = size - 1 - before;
+        int firstX = before;
+        int lastX = width - 1 - before;
+        int lastY = height - 1 - before;
+        if (firstX > lastX || before > lastY) return;
+        int area = size * size;
+
+        //horizontal pass: the sum of the box's row at every pixel
+        int[] rowSums = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int sum = 0;
+            for (int x = firstX - before; x <= firstX + after; x++) sum += pixels[row + x] & 0xff;
+            rowSums[row + firstX] = sum;
+            for (int x = firstX + 1; x <= lastX; x++) {
+                sum += (pixels[row + x + after] & 0xff) - (pixels[row + x - before - 1] & 0xff);
+                rowSums[row + x] = sum;
+            }
+        }
+
+        //vertical pass, row by row: columnSums holds the sums of the rows
+        //of the box of the current row
+        int[] columnSums = new int[width];
+        for (int y = 0; y < size - 1; y++) {
+            int row = y * width;
+            for (int x = firstX; x <= lastX; x++) columnSums[x] += rowSums[row + x];
+        }
+        for (int y = before; y <= lastY; y++) {
+            int entering = (y + after) * width;
+            int row = y * width;
+            for (int x = firstX; x <= lastX; x++) {
+                columnSums[x] += rowSums[entering + x];
+                pixels[row + x] = (byte) ((columnSums[x] + area / 2) / area);
+            }
+            int leaving = (y - before) * width;
+            for (int x = firstX; x <= lastX; x++) columnSums[x] -= rowSums[leaving + x];
+        }
+    }
+}
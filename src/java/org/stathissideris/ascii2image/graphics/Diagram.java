@@ -18,10 +18,14 @@
  */
 package org.stathissideris.ascii2image.graphics;
 
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
 import org.stathissideris.ascii2image.core.ConversionOptions;
-import org.stathissideris.ascii2image.core.Pair;
+import org.stathissideris.ascii2image.core.MetricsListener;
+import org.stathissideris.ascii2image.core.StageTimer;
 import org.stathissideris.ascii2image.text.AbstractionGrid;
 import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.GridTokens;
 import org.stathissideris.ascii2image.text.TextGrid;
 import org.stathissideris.ascii2image.text.TextGrid.Cell;
 import org.stathissideris.ascii2image.text.TextGrid.CellColorPair;
@@ -31,7 +35,18 @@ import org.stathissideris.ascii2image.text.TextGrid.CellTagPair;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 /**
  *
@@ -43,6 +58,15 @@ public class Diagram {
     private static final boolean DEBUG_VERBOSE = false;
     private static final boolean DEBUG_MAKE_SHAPES = false;
 
+    /**
+     * The width and height, in cells, of the buckets of the index used to
+     * find the shapes that colour codes, tags and text are in
+     */
+    private static final int SHAPE_INDEX_BUCKET_CELLS = 8;
+
+    private static final ConcurrentHashMap<Integer, ForkJoinPool> pools =
+            new ConcurrentHashMap<Integer, ForkJoinPool>();
+
     private ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
     private ArrayList<CompositeDiagramShape> compositeShapes = new ArrayList<CompositeDiagramShape>();
     private ArrayList<DiagramText> textObjects = new ArrayList<DiagramText>();
@@ -50,6 +74,15 @@ public class Diagram {
     private int width, height;
     private int cellWidth, cellHeight;
 
+    /**
+     * The boundary sets found for each distinct shape, and the text
+     * objects made from each group of text, kept so that a diagram of an
+     * edited version of the grid can reuse the ones that were not affected
+     * by the edit. See {@link #Diagram(TextGrid, ConversionOptions, TextGrid, Diagram)}.
+     */
+    private final HashMap<CellSet, ArrayList<CellSet>> boundarySetsOfShapes = new HashMap<CellSet, ArrayList<CellSet>>();
+    private final HashMap<CellSet, ArrayList<DiagramText>> textObjectsOfGroups = new HashMap<CellSet, ArrayList<DiagramText>>();
+
 
     /**
      *
@@ -108,6 +141,44 @@ public class Diagram {
      * @param options
      */
     public Diagram(TextGrid grid, ConversionOptions options) {
+        this(grid, options, null, null);
+    }
+
+    /**
+     * Creates the diagram of <code>grid</code>, which is an edited version
+     * of <code>previousGrid</code>, reusing the work that went into
+     * <code>previous</code> (the diagram of <code>previousGrid</code>)
+     * wherever the edit cannot have changed its result.
+     *
+     * <p>The cells that differ between the two grids make up the dirty
+     * region. The boundaries of the distinct shapes that are the same in
+     * both grids and whose neighbourhood is outside the dirty region are
+     * taken from <code>previous</code>, and so are the text objects of
+     * the groups of text that are outside the dirty region. Everything else
+     * is processed as usual, so the result is the same as the one of
+     * {@link #Diagram(TextGrid, ConversionOptions)}.</p>
+     *
+     * @param grid
+     * @param options
+     * @param previousGrid the grid <code>previous</code> was made from, or
+     *                     null to process the whole grid
+     * @param previous
+     * @throws ConversionAbortedException if the cancellation token of the
+     *                                    options is cancelled, or the grid
+     *                                    goes over one of their budgets
+     */
+    public Diagram(TextGrid grid, ConversionOptions options, TextGrid previousGrid, Diagram previous) {
+
+        StageTimer timer = new StageTimer(options.processingOptions.getMetricsListener());
+        CancellationToken token = options.processingOptions.getCancellationToken()
+                .withTimeout(options.processingOptions.getMaxMillis());
+
+        long maxGridCells = options.processingOptions.getMaxGridCells();
+        if (maxGridCells > 0 && (long) grid.getWidth() * grid.getHeight() > maxGridCells) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TOO_MANY_CELLS,
+                    "The grid has " + (long) grid.getWidth() * grid.getHeight()
+                            + " cells, more than the maximum of " + maxGridCells);
+        }
 
         this.cellWidth = options.renderingOptions.getCellWidth();
         this.cellHeight = options.renderingOptions.getCellHeight();
@@ -115,18 +186,38 @@ public class Diagram {
         width = grid.getWidth() * cellWidth;
         height = grid.getHeight() * cellHeight;
 
-        TextGrid workGrid = new TextGrid(grid);
-        workGrid.replaceTypeOnLine();
-        workGrid.replacePointMarkersOnLine();
+        //the colour codes, tags, arrowheads and point markers of the grid
+        GridTokens tokens = new GridTokens(grid);
+
+        TextGrid workGrid = makeShapesWorkGrid(grid, tokens);
         if (DEBUG) workGrid.printDebug();
 
-        int width = grid.getWidth();
-        int height = grid.getHeight();
+        //the cells the edit has affected, if this is an incremental update
+        DirtyRegion dirtyShapeCells = null;
+        DirtyRegion dirtyTextCells = null;
+        if (previousGrid != null && previous != null) {
+            GridTokens previousTokens = new GridTokens(previousGrid);
+            dirtyShapeCells = new DirtyRegion(makeShapesWorkGrid(previousGrid, previousTokens), workGrid);
+            if (previous.cellWidth == cellWidth && previous.cellHeight == cellHeight) {
+                dirtyTextCells = new DirtyRegion(makeTextWorkGrid(previousGrid, previousTokens),
+                        makeTextWorkGrid(grid, tokens));
+            }
+        }
 
+        //null if the shapes are to be processed sequentially
+        ForkJoinPool pool = getPool(options.processingOptions.getParallelism());
 
         //split distinct shapes using AbstractionGrid
         AbstractionGrid temp = new AbstractionGrid(workGrid, workGrid.getAllBoundaries());
-        ArrayList<CellSet> boundarySetsStep1 = temp.getDistinctShapes();
+        ArrayList<CellSet> boundarySetsStep1 = temp.getDistinctShapes(token);
+
+        int maxDistinctShapes = options.processingOptions.getMaxDistinctShapes();
+        if (maxDistinctShapes > 0 && boundarySetsStep1.size() > maxDistinctShapes) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TOO_MANY_SHAPES,
+                    "The diagram has " + boundarySetsStep1.size()
+                            + " distinct shapes, more than the maximum of " + maxDistinctShapes);
+        }
+        timer.report(MetricsListener.Stage.ABSTRACTION);
 
         if (DEBUG) {
             System.out.println("******* Distinct shapes found using AbstractionGrid *******");
@@ -139,41 +230,35 @@ public class Diagram {
         }
 
 
-        //Find all the boundaries by using the special version of the filling method
-        //(fills in a different buffer than the buffer it reads from)
+        //Find all the boundaries of the areas of each shape, by labelling
+        //the areas of the shape's abstraction buffer in a single pass
+        ArrayList<ArrayList<CellSet>> boundarySetsOfAllShapes = new ArrayList<ArrayList<CellSet>>();
+        ArrayList<CellSet> shapesToProcess = new ArrayList<CellSet>();
+        for (CellSet shape : boundarySetsStep1) {
+            ArrayList<CellSet> reused = null;
+            if (dirtyShapeCells != null && !dirtyShapeCells.touches(shape, 1)) {
+                reused = previous.boundarySetsOfShapes.get(shape);
+            }
+            boundarySetsOfAllShapes.add(reused);
+            if (reused == null) shapesToProcess.add(shape);
+        }
+        Iterator<ArrayList<CellSet>> found =
+                findBoundarySetsOfShapes(pool, token, workGrid, shapesToProcess).iterator();
+        for (int i = 0; i < boundarySetsStep1.size(); i++) {
+            if (boundarySetsOfAllShapes.get(i) == null) boundarySetsOfAllShapes.set(i, found.next());
+            boundarySetsOfShapes.put(boundarySetsStep1.get(i), boundarySetsOfAllShapes.get(i));
+        }
+
         ArrayList<CellSet> boundarySetsStep2 = new ArrayList<CellSet>();
-        for (CellSet set : boundarySetsStep1) {
-            //the fill buffer keeps track of which cells have been
-            //filled already
-            TextGrid fillBuffer = new TextGrid(width * 3, height * 3);
-
-            for (int yi = 0; yi < height * 3; yi++) {
-                for (int xi = 0; xi < width * 3; xi++) {
-                    if (fillBuffer.isBlank(xi, yi)) {
-
-                        TextGrid copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-
-                        CellSet boundaries =
-                                copyGrid
-                                        .findBoundariesExpandingFrom(copyGrid.new Cell(xi, yi));
-                        if (boundaries.size() == 0) continue; //i'm not sure why these occur
-                        boundarySetsStep2.add(boundaries.makeScaledOneThirdEquivalent());
-
-                        copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-                        CellSet filled =
-                                copyGrid
-                                        .fillContinuousArea(copyGrid.new Cell(xi, yi), '*');
-                        fillBuffer.fillCellsWith(filled, '*');
-                        fillBuffer.fillCellsWith(boundaries, '-');
-
-                        if (DEBUG) {
-                            //System.out.println("Fill buffer:");
-                            //fillBuffer.printDebug();
-                            boundaries.makeScaledOneThirdEquivalent().printAsGrid();
-                            System.out.println("-----------------------------------");
-                        }
+        for (ArrayList<CellSet> boundarySets : boundarySetsOfAllShapes) {
+            for (CellSet boundaries : boundarySets) {
+                //the sets are modified further down, the kept ones must not be
+                boundaries = new CellSet(boundaries);
+                boundarySetsStep2.add(boundaries);
 
-                    }
+                if (DEBUG) {
+                    boundaries.printAsGrid();
+                    System.out.println("-----------------------------------");
                 }
             }
         }
@@ -181,6 +266,7 @@ public class Diagram {
         if (DEBUG)
             System.out.println("******* Removed duplicates *******");
 
+        int originalSize = boundarySetsStep2.size();
         boundarySetsStep2 = CellSet.removeDuplicateSets(boundarySetsStep2);
 
         if (DEBUG) {
@@ -191,8 +277,6 @@ public class Diagram {
             }
         }
 
-        int originalSize = boundarySetsStep2.size();
-        boundarySetsStep2 = CellSet.removeDuplicateSets(boundarySetsStep2);
         if (DEBUG) {
             System.out.println(
                     "******* Removed duplicates: there were "
@@ -200,6 +284,7 @@ public class Diagram {
                             + " shapes and now there are "
                             + boundarySetsStep2.size());
         }
+        timer.report(MetricsListener.Stage.BOUNDARY_DISCOVERY);
 
 
         //split boundaries to open, closed and mixed
@@ -211,10 +296,11 @@ public class Diagram {
         ArrayList<CellSet> closed = new ArrayList<CellSet>();
         ArrayList<CellSet> mixed = new ArrayList<CellSet>();
 
+        computeTypes(pool, token, workGrid, boundarySetsStep2);
         Iterator<CellSet> sets = boundarySetsStep2.iterator();
         while (sets.hasNext()) {
             CellSet set = sets.next();
-            int type = set.getType(workGrid);
+            int type = set.getType(workGrid, token);
             if (type == CellSet.TYPE_CLOSED) closed.add(set);
             else if (type == CellSet.TYPE_OPEN) open.add(set);
             else if (type == CellSet.TYPE_MIXED) mixed.add(set);
@@ -248,9 +334,9 @@ public class Diagram {
                 // this is necessary because some mixed sets produce
                 // several distinct open sets after you subtract the
                 // closed sets from them
-                if (set.getType(workGrid) == CellSet.TYPE_OPEN) {
+                if (set.getType(workGrid, token) == CellSet.TYPE_OPEN) {
                     boundarySetsStep2.remove(set);
-                    boundarySetsStep2.addAll(set.breakIntoDistinctBoundaries(workGrid));
+                    boundarySetsStep2.addAll(set.breakIntoDistinctBoundaries(workGrid, token));
                 }
             }
 
@@ -273,7 +359,7 @@ public class Diagram {
             while (sets.hasNext()) {
                 CellSet set = sets.next();
                 boundarySetsStep2.remove(set);
-                boundarySetsStep2.addAll(set.breakTrulyMixedBoundaries(workGrid));
+                boundarySetsStep2.addAll(set.breakTrulyMixedBoundaries(workGrid, token));
             }
 
         } else {
@@ -291,10 +377,11 @@ public class Diagram {
             closed = new ArrayList<CellSet>();
             mixed = new ArrayList<CellSet>();
 
+            computeTypes(pool, token, workGrid, boundarySetsStep2);
             sets = boundarySetsStep2.iterator();
             while (sets.hasNext()) {
                 CellSet set = sets.next();
-                int type = set.getType(workGrid);
+                int type = set.getType(workGrid, token);
                 if (type == CellSet.TYPE_CLOSED) closed.add(set);
                 else if (type == CellSet.TYPE_OPEN) open.add(set);
                 else if (type == CellSet.TYPE_MIXED) mixed.add(set);
@@ -307,7 +394,8 @@ public class Diagram {
             }
         }
 
-        boolean removedAnyObsolete = removeObsoleteShapes(workGrid, closed);
+        boolean removedAnyObsolete = removeObsoleteShapes(workGrid, closed, token);
+        timer.report(MetricsListener.Stage.OPENNESS_CLASSIFICATION);
 
         boolean allCornersRound = false;
         if (options.processingOptions.areAllCornersRound()) allCornersRound = true;
@@ -319,32 +407,35 @@ public class Diagram {
             System.out.println("***** CLOSED: *****");
         }
 
-        ArrayList<DiagramComponent> closedShapes = new ArrayList<DiagramComponent>();
-        sets = closed.iterator();
-        while (sets.hasNext()) {
-            CellSet set = sets.next();
-
+        ArrayList<DiagramShape> closedShapes = new ArrayList<DiagramShape>();
+        ArrayList<DiagramComponent> closedComponents =
+                createClosedComponents(pool, token, workGrid, closed, allCornersRound);
+        for (int i = 0; i < closed.size(); i++) {
             if (DEBUG_MAKE_SHAPES) {
-                set.printAsGrid();
+                closed.get(i).printAsGrid();
             }
 
-            DiagramComponent shape = DiagramComponent.createClosedFromBoundaryCells(workGrid, set, cellWidth, cellHeight, allCornersRound);
+            DiagramComponent shape = closedComponents.get(i);
             if (shape != null) {
                 if (shape instanceof DiagramShape) {
                     addToShapes((DiagramShape) shape);
-                    closedShapes.add(shape);
+                    closedShapes.add((DiagramShape) shape);
                 } else if (shape instanceof CompositeDiagramShape)
                     addToCompositeShapes((CompositeDiagramShape) shape);
             }
         }
 
+        timer.report(MetricsListener.Stage.SHAPE_BUILDING);
+
         if (options.processingOptions.performSeparationOfCommonEdges())
-            separateCommonEdges(closedShapes);
+            separateCommonEdges(closedShapes, token);
+        timer.report(MetricsListener.Stage.EDGE_SEPARATION);
 
         //make open shapes
-        sets = open.iterator();
-        while (sets.hasNext()) {
-            CellSet set = sets.next();
+        ArrayList<DiagramComponent> openComponents =
+                createOpenComponents(pool, token, workGrid, open, allCornersRound);
+        for (int i = 0; i < open.size(); i++) {
+            CellSet set = open.get(i);
             if (set.size() == 1) { //single cell "shape"
                 TextGrid.Cell cell = set.getFirst();
                 if (!grid.cellContainsDashedLineChar(cell)) {
@@ -358,10 +449,7 @@ public class Diagram {
                 if (DEBUG)
                     System.out.println(set.getCellsAsString());
 
-                DiagramComponent shape =
-                        CompositeDiagramShape
-                                .createOpenFromBoundaryCells(
-                                        workGrid, set, cellWidth, cellHeight, allCornersRound);
+                DiagramComponent shape = openComponents.get(i);
 
                 if (shape != null) {
                     if (shape instanceof CompositeDiagramShape) {
@@ -377,24 +465,29 @@ public class Diagram {
             }
         }
 
+        timer.report(MetricsListener.Stage.SHAPE_BUILDING);
+
+        //the shapes the colour codes and tags are assigned to
+        ShapeIndex shapeIndex = makeShapeIndex();
+
         //assign color codes to shapes
         //TODO: text on line should not change its color
 
-        Iterator<CellColorPair> cellColorPairs = grid.findColorCodes().iterator();
+        Iterator<CellColorPair> cellColorPairs = tokens.getColorCodes().iterator();
         while (cellColorPairs.hasNext()) {
             TextGrid.CellColorPair pair =
                     cellColorPairs.next();
 
             ShapePoint point =
                     new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
-            DiagramShape containingShape = findSmallestShapeContaining(point);
+            DiagramShape containingShape = shapeIndex.findSmallestContaining(point);
 
             if (containingShape != null)
                 containingShape.setFillColor(pair.color);
         }
 
         //assign markup to shapes
-        Iterator<CellTagPair> cellTagPairs = grid.findMarkupTags().iterator();
+        Iterator<CellTagPair> cellTagPairs = tokens.getMarkupTags().iterator();
         while (cellTagPairs.hasNext()) {
             TextGrid.CellTagPair pair =
                     cellTagPairs.next();
@@ -402,7 +495,7 @@ public class Diagram {
             ShapePoint point =
                     new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
 
-            DiagramShape containingShape = findSmallestShapeContaining(point);
+            DiagramShape containingShape = shapeIndex.findSmallestContaining(point);
 
             //this tag is not within a shape, skip
             if (containingShape == null) continue;
@@ -479,8 +572,10 @@ public class Diagram {
             }
         }
 
+        timer.report(MetricsListener.Stage.MARKUP_EXTRACTION);
+
         //make arrowheads
-        Iterator<Cell> arrowheadCells = workGrid.findArrowheads().iterator();
+        Iterator<Cell> arrowheadCells = workGrid.findArrowheads(tokens).iterator();
         while (arrowheadCells.hasNext()) {
             TextGrid.Cell cell = arrowheadCells.next();
             DiagramShape arrowhead = DiagramShape.createArrowhead(workGrid, cell, cellWidth, cellHeight);
@@ -489,7 +584,7 @@ public class Diagram {
         }
 
         //make point markers
-        Iterator<TextGrid.Cell> markersIt = grid.getPointMarkersOnLine().iterator();
+        Iterator<TextGrid.Cell> markersIt = tokens.getPointMarkersOnLine().iterator();
         while (markersIt.hasNext()) {
             TextGrid.Cell cell = markersIt.next();
 
@@ -504,13 +599,13 @@ public class Diagram {
         }
 
         removeDuplicateShapes();
+        timer.report(MetricsListener.Stage.SHAPE_BUILDING);
 
         if (DEBUG) System.out.println("Shape count: " + shapes.size());
         if (DEBUG) System.out.println("Composite shape count: " + compositeShapes.size());
 
         //copy again
-        workGrid = new TextGrid(grid);
-        workGrid.removeNonText();
+        workGrid = makeTextWorkGrid(grid, tokens);
 
 
         // ****** handle text *******
@@ -520,59 +615,28 @@ public class Diagram {
         //kludge
         textGroupGrid.fillCellsWith(gaps, '|');
         CellSet nonBlank = textGroupGrid.getAllNonBlank();
-        ArrayList<CellSet> textGroups = nonBlank.breakIntoDistinctBoundaries();
+        ArrayList<CellSet> textGroups = nonBlank.breakIntoDistinctBoundaries(token);
         if (DEBUG) System.out.println(textGroups.size() + " text groups found");
 
-        Font font = FontMeasurer.instance().getFontFor(cellHeight);
+        Font font = null;
 
         Iterator<CellSet> textGroupIt = textGroups.iterator();
         while (textGroupIt.hasNext()) {
+            token.check();
             CellSet textGroupCellSet = textGroupIt.next();
 
-            TextGrid isolationGrid = new TextGrid(width, height);
-            workGrid.copyCellsTo(textGroupCellSet, isolationGrid);
-
-            ArrayList<CellStringPair> strings = isolationGrid.findStrings();
-            Iterator<CellStringPair> it = strings.iterator();
-            while (it.hasNext()) {
-                TextGrid.CellStringPair pair = it.next();
-                TextGrid.Cell cell = pair.cell;
-                String string = pair.string;
-                if (DEBUG)
-                    System.out.println("Found string " + string);
-                TextGrid.Cell lastCell = isolationGrid.new Cell(cell.x + string.length() - 1, cell.y);
-
-                int minX = getCellMinX(cell);
-                int y = getCellMaxY(cell);
-                int maxX = getCellMaxX(lastCell);
-
-                DiagramText textObject;
-                if (FontMeasurer.instance().getWidthFor(string, font) > maxX - minX) { //does not fit horizontally
-                    Font lessWideFont = FontMeasurer.instance().getFontFor(maxX - minX, string);
-                    textObject = new DiagramText(minX, y, string, lessWideFont);
-                } else textObject = new DiagramText(minX, y, string, font);
-
-                textObject.centerVerticallyBetween(getCellMinY(cell), getCellMaxY(cell));
-
-                //TODO: if the strings start with bullets they should be aligned to the left
-
-                //position text correctly
-                int otherStart = isolationGrid.otherStringsStartInTheSameColumn(cell);
-                int otherEnd = isolationGrid.otherStringsEndInTheSameColumn(lastCell);
-                if (0 == otherStart && 0 == otherEnd) {
-                    textObject.centerHorizontallyBetween(minX, maxX);
-                } else if (otherEnd > 0 && otherStart == 0) {
-                    textObject.alignRightEdgeTo(maxX);
-                } else if (otherEnd > 0 && otherStart > 0) {
-                    if (otherEnd > otherStart) {
-                        textObject.alignRightEdgeTo(maxX);
-                    } else if (otherEnd == otherStart) {
-                        textObject.centerHorizontallyBetween(minX, maxX);
-                    }
-                }
-
-                addToTextObjects(textObject);
+            ArrayList<DiagramText> groupTextObjects = null;
+            if (dirtyTextCells != null && !dirtyTextCells.touches(textGroupCellSet, 0)) {
+                groupTextObjects = previous.textObjectsOfGroups.get(textGroupCellSet);
             }
+            if (groupTextObjects == null) {
+                if (font == null) font = FontMeasurer.instance().getFontFor(cellHeight);
+                groupTextObjects = makeTextObjects(workGrid, textGroupCellSet, font);
+            }
+            textObjectsOfGroups.put(textGroupCellSet, groupTextObjects);
+
+            //the text objects are modified further down, the kept ones must not be
+            for (DiagramText textObject : groupTextObjects) addToTextObjects(new DiagramText(textObject));
         }
 
         if (DEBUG)
@@ -580,8 +644,9 @@ public class Diagram {
 
         //correct the color of the text objects according
         //to the underlying color
+        shapeIndex = makeShapeIndex();
         for (DiagramText textObject : getTextObjects()) {
-            DiagramShape shape = findSmallestShapeIntersecting(textObject.getBounds());
+            DiagramShape shape = shapeIndex.findSmallestIntersecting(textObject.getBounds());
             if (shape != null
                     && shape.getFillColor() != null
                     && BitmapRenderer.isColorDark(shape.getFillColor())) {
@@ -606,6 +671,136 @@ public class Diagram {
         if (DEBUG)
             System.out.println("Corrected color of text according to underlying color");
 
+        timer.report(MetricsListener.Stage.TEXT_LAYOUT);
+    }
+
+    /**
+     * @return a copy of <code>grid</code> with the text on lines and the
+     * point markers replaced, for finding the shapes in
+     */
+    private static TextGrid makeShapesWorkGrid(TextGrid grid, GridTokens tokens) {
+        TextGrid workGrid = new TextGrid(grid);
+        workGrid.replaceTypeOnLine();
+        workGrid.replacePointMarkersOnLine(tokens);
+        return workGrid;
+    }
+
+    /**
+     * @return a copy of <code>grid</code> with only the text left, for
+     * finding the text in
+     */
+    private static TextGrid makeTextWorkGrid(TextGrid grid, GridTokens tokens) {
+        TextGrid workGrid = new TextGrid(grid);
+        workGrid.removeNonText(tokens);
+        return workGrid;
+    }
+
+    /**
+     * Makes the text objects of the strings in one group of text. The
+     * result only depends on the characters of the cells of the group.
+     */
+    private ArrayList<DiagramText> makeTextObjects(TextGrid workGrid, CellSet textGroupCellSet, Font font) {
+        ArrayList<DiagramText> result = new ArrayList<DiagramText>();
+
+        TextGrid isolationGrid = new TextGrid(workGrid.getWidth(), workGrid.getHeight());
+        workGrid.copyCellsTo(textGroupCellSet, isolationGrid);
+
+        ArrayList<CellStringPair> strings = isolationGrid.findStrings();
+        Iterator<CellStringPair> it = strings.iterator();
+        while (it.hasNext()) {
+            TextGrid.CellStringPair pair = it.next();
+            TextGrid.Cell cell = pair.cell;
+            String string = pair.string;
+            if (DEBUG)
+                System.out.println("Found string " + string);
+            TextGrid.Cell lastCell = isolationGrid.new Cell(cell.x + string.length() - 1, cell.y);
+
+            int minX = getCellMinX(cell);
+            int y = getCellMaxY(cell);
+            int maxX = getCellMaxX(lastCell);
+
+            DiagramText textObject;
+            if (FontMeasurer.instance().getWidthFor(string, font) > maxX - minX) { //does not fit horizontally
+                Font lessWideFont = FontMeasurer.instance().getFontFor(maxX - minX, string);
+                textObject = new DiagramText(minX, y, string, lessWideFont);
+            } else textObject = new DiagramText(minX, y, string, font);
+
+            textObject.centerVerticallyBetween(getCellMinY(cell), getCellMaxY(cell));
+
+            //TODO: if the strings start with bullets they should be aligned to the left
+
+            //position text correctly
+            int otherStart = isolationGrid.otherStringsStartInTheSameColumn(cell);
+            int otherEnd = isolationGrid.otherStringsEndInTheSameColumn(lastCell);
+            if (0 == otherStart && 0 == otherEnd) {
+                textObject.centerHorizontallyBetween(minX, maxX);
+            } else if (otherEnd > 0 && otherStart == 0) {
+                textObject.alignRightEdgeTo(maxX);
+            } else if (otherEnd > 0 && otherStart > 0) {
+                if (otherEnd > otherStart) {
+                    textObject.alignRightEdgeTo(maxX);
+                } else if (otherEnd == otherStart) {
+                    textObject.centerHorizontallyBetween(minX, maxX);
+                }
+            }
+
+            result.add(textObject);
+        }
+        return result;
+    }
+
+    /**
+     * The cells that differ between two versions of a grid, indexed so
+     * that asking whether a rectangle contains any of them takes constant
+     * time
+     */
+    private static class DirtyRegion {
+        private final int width, height;
+        private final boolean sameSize;
+        /**
+         * counts[y][x] is the number of changed cells above and to the left
+         * of x, y (exclusive)
+         */
+        private final int[][] counts;
+
+        DirtyRegion(TextGrid before, TextGrid after) {
+            width = Math.max(before.getWidth(), after.getWidth());
+            height = Math.max(before.getHeight(), after.getHeight());
+            sameSize = before.getWidth() == after.getWidth() && before.getHeight() == after.getHeight();
+            counts = new int[height + 1][width + 1];
+            for (int y = 0; y < height; y++) {
+                int rowCount = 0;
+                for (int x = 0; x < width; x++) {
+                    if (before.get(x, y) != after.get(x, y)) rowCount++;
+                    counts[y + 1][x + 1] = counts[y][x + 1] + rowCount;
+                }
+            }
+        }
+
+        /**
+         * @param margin how many cells around <code>set</code> the result
+         *               of processing it depends on
+         * @return true if the edit may have changed the result of processing
+         * <code>set</code>
+         */
+        boolean touches(CellSet set, int margin) {
+            int minX = set.getMinX() - margin;
+            int minY = set.getMinY() - margin;
+            int maxX = set.getMaxX() + margin;
+            int maxY = set.getMaxY() + margin;
+            //a shape that reaches the edge of a grid that has been resized
+            //may divide the area around it differently
+            if (!sameSize && (minX <= 0 || minY <= 0 || maxX >= width - 1 || maxY >= height - 1)) return true;
+
+            minX = Math.max(minX, 0);
+            minY = Math.max(minY, 0);
+            maxX = Math.min(maxX, width - 1);
+            maxY = Math.min(maxY, height - 1);
+            if (minX > maxX || minY > maxY) return false;
+            int changed = counts[maxY + 1][maxX + 1] - counts[minY][maxX + 1]
+                    - counts[maxY + 1][minX] + counts[minY][minX];
+            return changed > 0;
+        }
     }
 
     public static int getCellMinX(TextGrid.Cell cell, int cellXSize) {
@@ -655,12 +850,10 @@ public class Diagram {
      * @return true if it removed any obsolete.
      *
      */
-    private boolean removeObsoleteShapes(TextGrid grid, ArrayList<CellSet> sets) {
+    private boolean removeObsoleteShapes(TextGrid grid, ArrayList<CellSet> sets, CancellationToken token) {
         if (DEBUG)
             System.out.println("******* Removing obsolete shapes *******");
 
-        boolean removedAny = false;
-
         ArrayList<CellSet> filledSets = new ArrayList<CellSet>();
 
         Iterator it;
@@ -678,40 +871,43 @@ public class Diagram {
         it = sets.iterator();
         while (it.hasNext()) {
             CellSet set = (CellSet) it.next();
-            set = set.getFilledEquivalent(grid);
+            set = set.getFilledEquivalent(grid, token);
             if (set == null) {
                 return false;
             } else filledSets.add(set);
         }
 
-        ArrayList<Integer> toBeRemovedIndices = new ArrayList<Integer>();
-        it = filledSets.iterator();
-        while (it.hasNext()) {
-            CellSet set = (CellSet) it.next();
+        //the index of the first of the filled sets that are equal to each other
+        HashMap<CellSet, Integer> firstIndices = new HashMap<CellSet, Integer>();
+        for (int i = 0; i < filledSets.size(); i++) {
+            firstIndices.putIfAbsent(filledSets.get(i), i);
+        }
+
+        int[][] overlapping = findOverlappingSets(filledSets);
+
+        boolean[] toBeRemoved = new boolean[sets.size()];
+        for (int i = 0; i < filledSets.size(); i++) {
+            token.check();
+            CellSet set = filledSets.get(i);
 
             if (DEBUG_VERBOSE) {
                 System.out.println("*** Deciding if the following should be removed:");
                 set.printAsGrid();
             }
 
-            //find the other sets that have common cells with set
+            //the other sets that have common cells with set
             ArrayList<CellSet> common = new ArrayList<CellSet>();
             common.add(set);
-            Iterator it2 = filledSets.iterator();
-            while (it2.hasNext()) {
-                CellSet set2 = (CellSet) it2.next();
-                if (set != set2 && set.hasCommonCells(set2)) {
-                    common.add(set2);
-                }
-            }
+            for (int j : overlapping[i]) common.add(filledSets.get(j));
+
             //it only makes sense for more than 2 sets
             if (common.size() == 2) continue;
 
             //find largest set
             CellSet largest = set;
-            it2 = common.iterator();
+            Iterator<CellSet> it2 = common.iterator();
             while (it2.hasNext()) {
-                CellSet set2 = (CellSet) it2.next();
+                CellSet set2 = it2.next();
                 if (set2.size() > largest.size()) {
                     largest = set2;
                 }
@@ -725,53 +921,40 @@ public class Diagram {
             //see if largest is sum of others
             common.remove(largest);
 
-            //make the sum set of the small sets on a grid
-            TextGrid gridOfSmalls = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
+            //make the sum set of the small sets
             CellSet sumOfSmall = new CellSet();
             it2 = common.iterator();
             while (it2.hasNext()) {
-                CellSet set2 = (CellSet) it2.next();
+                CellSet set2 = it2.next();
                 if (DEBUG_VERBOSE) {
                     System.out.println("One of smalls:");
                     set2.printAsGrid();
                 }
-                gridOfSmalls.fillCellsWith(set2, '*');
+                sumOfSmall.addSet(set2);
             }
             if (DEBUG_VERBOSE) {
                 System.out.println("Sum of smalls:");
-                gridOfSmalls.printDebug();
+                sumOfSmall.printAsGrid();
             }
-            TextGrid gridLargest = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-            gridLargest.fillCellsWith(largest, '*');
 
-            int index = filledSets.indexOf(largest);
-            if (gridLargest.equals(gridOfSmalls)
-                    && !toBeRemovedIndices.contains(new Integer(index))) {
-                toBeRemovedIndices.add(new Integer(index));
+            int index = firstIndices.get(largest);
+            if (!toBeRemoved[index] && isSumOfSmalls(largest, sumOfSmall)) {
+                toBeRemoved[index] = true;
                 if (DEBUG) {
                     System.out.println("Decided to remove set:");
                     largest.printAsGrid();
                 }
-            } /*else if (DEBUG){
-				System.out.println("This set WILL NOT be removed:");
-				largest.printAsGrid();
-			}*/
-            //if(gridLargest.equals(gridOfSmalls)) toBeRemovedIndices.add(new Integer(index));
-        }
-
-        ArrayList<CellSet> setsToBeRemoved = new ArrayList<CellSet>();
-        it = toBeRemovedIndices.iterator();
-        while (it.hasNext()) {
-            int i = ((Integer) it.next()).intValue();
-            setsToBeRemoved.add(sets.get(i));
+            }
         }
 
-        it = setsToBeRemoved.iterator();
-        while (it.hasNext()) {
-            CellSet set = (CellSet) it.next();
-            removedAny = true;
-            sets.remove(set);
+        boolean removedAny = false;
+        ArrayList<CellSet> remaining = new ArrayList<CellSet>();
+        for (int i = 0; i < sets.size(); i++) {
+            if (toBeRemoved[i]) removedAny = true;
+            else remaining.add(sets.get(i));
         }
+        sets.clear();
+        sets.addAll(remaining);
 
         if (DEBUG_VERBOSE) {
             System.out.println("******* Sets after *******");
@@ -786,61 +969,283 @@ public class Diagram {
     }
 
     /**
-     * @return minimum value between height and width dimensions of a cell
+     * Finds the sets that have common cells with each one of
+     * <code>sets</code>, by indexing the sets by the cells they cover
+     * instead of comparing every pair of sets.
+     *
+     * @return for each set, the indices of the other sets that have common
+     * cells with it, in ascending order
      */
-    public float getMinimumOfCellDimension() {
-        return Math.min(getCellWidth(), getCellHeight());
+    private static int[][] findOverlappingSets(ArrayList<CellSet> sets) {
+        int width = 0;
+        int height = 0;
+        for (CellSet set : sets) {
+            if (set.size() == 0) continue;
+            width = Math.max(width, set.getMaxX() + 1);
+            height = Math.max(height, set.getMaxY() + 1);
+        }
+
+        //owners[ownersStart[c] .. ownersStart[c + 1]) are the sets that cover cell c
+        int[] ownersStart = new int[width * height + 1];
+        for (CellSet set : sets) {
+            for (Cell cell : set) ownersStart[cell.y * width + cell.x + 1]++;
+        }
+        for (int c = 0; c < width * height; c++) ownersStart[c + 1] += ownersStart[c];
+        int[] owners = new int[ownersStart[width * height]];
+        int[] next = Arrays.copyOf(ownersStart, width * height);
+        for (int i = 0; i < sets.size(); i++) {
+            for (Cell cell : sets.get(i)) owners[next[cell.y * width + cell.x]++] = i;
+        }
+
+        int[][] result = new int[sets.size()][];
+        int[] lastSeenBy = new int[sets.size()];
+        Arrays.fill(lastSeenBy, -1);
+        int[] found = new int[sets.size()];
+        for (int i = 0; i < sets.size(); i++) {
+            int count = 0;
+            for (Cell cell : sets.get(i)) {
+                int c = cell.y * width + cell.x;
+                for (int k = ownersStart[c]; k < ownersStart[c + 1]; k++) {
+                    int j = owners[k];
+                    if (j == i || lastSeenBy[j] == i) continue;
+                    lastSeenBy[j] = i;
+                    found[count++] = j;
+                }
+            }
+            result[i] = Arrays.copyOf(found, count);
+            Arrays.sort(result[i]);
+        }
+        return result;
     }
 
-    private void separateCommonEdges(ArrayList shapes) {
+    /**
+     * Equivalent to plotting <code>largest</code> and
+     * <code>sumOfSmall</code> on two grids that are just big enough for
+     * <code>largest</code>, and comparing them.
+     */
+    private static boolean isSumOfSmalls(CellSet largest, CellSet sumOfSmall) {
+        CellSet missing = new CellSet(largest);
+        missing.subtractSet(sumOfSmall);
+        if (missing.size() > 0) return false;
+
+        int width = largest.getMaxX() + 2;
+        int height = largest.getMaxY() + 2;
+        CellSet extra = new CellSet(sumOfSmall);
+        extra.subtractSet(largest);
+        for (Cell cell : extra) {
+            if (cell.x < width && cell.y < height) return false;
+        }
+        return true;
+    }
 
-        float offset = getMinimumOfCellDimension() / 5;
+    /**
+     * Returns the pool that processes the shapes of diagrams with the
+     * given parallelism, or null if they are to be processed sequentially.
+     * The pools are shared by all the diagrams.
+     */
+    private static ForkJoinPool getPool(int parallelism) {
+        if (parallelism == 1) return null;
+        if (parallelism == 0) parallelism = Runtime.getRuntime().availableProcessors();
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
 
-        ArrayList<ShapeEdge> edges = new ArrayList<ShapeEdge>();
+    /**
+     * Applies <code>function</code> to all the <code>items</code> on
+     * <code>pool</code> (or on the current thread if <code>pool</code> is
+     * null) and returns the results in the order of the items, so that
+     * the result does not depend on how the work was scheduled. The
+     * items that have not been started when <code>token</code> is
+     * cancelled are skipped.
+     */
+    private static <T, R> ArrayList<R> mapInOrder(ForkJoinPool pool, CancellationToken token,
+                                                  ArrayList<T> items, Function<T, R> function) {
+        ArrayList<R> results = new ArrayList<R>(items.size());
+        if (pool == null || items.size() < 2) {
+            for (T item : items) {
+                token.check();
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+        ArrayList<Callable<R>> tasks = new ArrayList<Callable<R>>(items.size());
+        for (T item : items) tasks.add(() -> {
+            token.check();
+            return function.apply(item);
+        });
+        try {
+            for (Future<R> future : pool.invokeAll(tasks)) results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing shapes", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
 
-        //get all adges
-        Iterator it = shapes.iterator();
-        while (it.hasNext()) {
-            DiagramShape shape = (DiagramShape) it.next();
-            edges.addAll(shape.getEdges());
+    /**
+     * Finds the boundaries of all the areas of each of the distinct
+     * shapes. The shapes are independent of each other, each one is
+     * processed on its own abstraction buffer.
+     *
+     * @return the boundary sets of each shape, in the order of the shapes
+     */
+    private static ArrayList<ArrayList<CellSet>> findBoundarySetsOfShapes(
+            ForkJoinPool pool, CancellationToken token, TextGrid workGrid, ArrayList<CellSet> distinctShapes) {
+        return mapInOrder(pool, token, distinctShapes, set -> {
+            TextGrid abstractionBuffer = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
+            ArrayList<CellSet> result = new ArrayList<CellSet>();
+            for (CellSet boundaries : abstractionBuffer.findBoundariesOfAllAreas(token)) {
+                result.add(boundaries.makeScaledOneThirdEquivalent());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Evaluates the type of each of <code>sets</code>, so that the calls
+     * to CellSet.getType() that follow return the cached types.
+     */
+    private static void computeTypes(ForkJoinPool pool, CancellationToken token,
+                                     TextGrid workGrid, ArrayList<CellSet> sets) {
+        if (pool == null) return;
+        //each set must be evaluated by a single task
+        ArrayList<CellSet> distinctSets = new ArrayList<CellSet>();
+        IdentityHashMap<CellSet, Boolean> seen = new IdentityHashMap<CellSet, Boolean>();
+        for (CellSet set : sets) {
+            if (seen.put(set, Boolean.TRUE) == null) distinctSets.add(set);
         }
+        mapInOrder(pool, token, distinctSets, set -> set.getType(workGrid, token));
+    }
 
-        //group edges into pairs of touching edges
-        ArrayList<Pair<ShapeEdge, ShapeEdge>> listOfPairs = new ArrayList<Pair<ShapeEdge, ShapeEdge>>();
-        it = edges.iterator();
+    private ArrayList<DiagramComponent> createClosedComponents(
+            ForkJoinPool pool, CancellationToken token, TextGrid workGrid, ArrayList<CellSet> sets,
+            boolean allCornersRound) {
+        return mapInOrder(pool, token, sets, set -> DiagramComponent.createClosedFromBoundaryCells(
+                workGrid, set, cellWidth, cellHeight, allCornersRound));
+    }
 
-        //all-against-all touching test for the edges
-        int startIndex = 1; //skip some to avoid duplicate comparisons and self-to-self comparisons
+    /**
+     * @return the components made from the sets of more than one cell, and
+     * null for the rest
+     */
+    private ArrayList<DiagramComponent> createOpenComponents(
+            ForkJoinPool pool, CancellationToken token, TextGrid workGrid, ArrayList<CellSet> sets,
+            boolean allCornersRound) {
+        return mapInOrder(pool, token, sets, set -> {
+            if (set.size() == 1) return null;
+            return CompositeDiagramShape.createOpenFromBoundaryCells(
+                    workGrid, set, cellWidth, cellHeight, allCornersRound);
+        });
+    }
 
-        while (it.hasNext()) {
-            ShapeEdge edge1 = (ShapeEdge) it.next();
+    /**
+     * @return minimum value between height and width dimensions of a cell
+     */
+    public float getMinimumOfCellDimension() {
+        return Math.min(getCellWidth(), getCellHeight());
+    }
 
-            for (int k = startIndex; k < edges.size(); k++) {
-                ShapeEdge edge2 = edges.get(k);
+    private void separateCommonEdges(List<DiagramShape> shapes, CancellationToken token) {
+        separateCommonEdges(shapes, getMinimumOfCellDimension() / 5, token);
+    }
+
+    /**
+     * Moves inwards by <code>offset</code> the edges of <code>shapes</code>
+     * that touch another edge.
+     *
+     * <p>Only edges on the same line can touch, so the edges are grouped
+     * by orientation and by the position of their line, and every group
+     * is swept in the order in which its edges start: an edge is tested
+     * only against the edges that start before it ends. The touching pairs
+     * are then processed in the order in which testing every edge against
+     * every later edge would find them, so that the edges are moved
+     * exactly as they would be by that test.</p>
+     *
+     * @param shapes the closed shapes whose edges are separated
+     * @param offset how far the edges are moved
+     * @param token checked while the touching edges are looked for
+     */
+    public static void separateCommonEdges(List<DiagramShape> shapes, float offset, CancellationToken token) {
+        final ArrayList<ShapeEdge> edges = new ArrayList<ShapeEdge>();
 
-                if (edge1.touchesWith(edge2)) {
-                    listOfPairs.add(new Pair<ShapeEdge, ShapeEdge>(edge1, edge2));
+        //get all adges
+        for (DiagramShape shape : shapes) {
+            for (Object edge : shape.getEdges()) edges.add((ShapeEdge) edge);
+        }
+        int count = edges.size();
+
+        //the line of every edge (x for vertical edges and points, y for
+        //horizontal ones), and where along its line it starts and ends
+        final boolean[] sloped = new boolean[count];
+        final boolean[] vertical = new boolean[count];
+        final float[] line = new float[count];
+        final float[] from = new float[count];
+        float[] to = new float[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ShapeEdge edge = edges.get(i);
+            ShapePoint start = edge.getStartPoint();
+            ShapePoint end = edge.getEndPoint();
+            vertical[i] = edge.isVertical();
+            sloped[i] = !vertical[i] && !edge.isHorizontal();
+            line[i] = (vertical[i] ? start.x : start.y) + 0.0f; //no negative zero
+            from[i] = vertical[i] ? Math.min(start.y, end.y) : Math.min(start.x, end.x);
+            to[i] = vertical[i] ? Math.max(start.y, end.y) : Math.max(start.x, end.x);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (sloped[a] != sloped[b]) return sloped[a] ? 1 : -1;
+                if (vertical[a] != vertical[b]) return vertical[a] ? 1 : -1;
+                int result = Float.compare(line[a], line[b]);
+                if (result != 0) return result;
+                return Float.compare(from[a], from[b]);
+            }
+        });
+
+        //find the touching pairs, encoded as first * count + second
+        long[] pairs = new long[16];
+        int pairCount = 0;
+        for (int a = 0; a < count; a++) {
+            if ((a & CancellationToken.CHECK_MASK) == 0) token.check();
+            int i = order[a];
+            //sloped edges have no line, they come last and are tested
+            //against all other edges (for touchesWith() to reject them)
+            for (int b = sloped[i] ? 0 : a + 1; b < count; b++) {
+                int j = order[b];
+                if (sloped[i]) {
+                    if (b <= a && sloped[j]) continue;
+                } else if (sloped[j] || vertical[j] != vertical[i] || line[j] != line[i] || from[j] > to[i]) {
+                    break;
+                }
+                int first = Math.min(i, j);
+                int second = Math.max(i, j);
+                if (edges.get(first).touchesWith(edges.get(second))) {
+                    if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    pairs[pairCount++] = (long) first * count + second;
                 }
             }
-            startIndex++;
         }
-
-        ArrayList<ShapeEdge> movedEdges = new ArrayList<ShapeEdge>();
+        Arrays.sort(pairs, 0, pairCount);
 
         //move equivalent edges inwards
-        it = listOfPairs.iterator();
-        while (it.hasNext()) {
-            Pair<ShapeEdge, ShapeEdge> pair = (Pair<ShapeEdge, ShapeEdge>) it.next();
-            if (!movedEdges.contains(pair.first)) {
-                pair.first.moveInwardsBy(offset);
-                movedEdges.add(pair.first);
+        ArrayList<ShapeEdge> movedEdges = new ArrayList<ShapeEdge>();
+        for (int p = 0; p < pairCount; p++) {
+            ShapeEdge first = edges.get((int) (pairs[p] / count));
+            ShapeEdge second = edges.get((int) (pairs[p] % count));
+            if (!movedEdges.contains(first)) {
+                first.moveInwardsBy(offset);
+                movedEdges.add(first);
             }
-            if (!movedEdges.contains(pair.second)) {
-                pair.second.moveInwardsBy(offset);
-                movedEdges.add(pair.second);
+            if (!movedEdges.contains(second)) {
+                second.moveInwardsBy(offset);
+                movedEdges.add(second);
             }
         }
-
     }
 
     //TODO: removes more than it should
@@ -865,40 +1270,12 @@ public class Diagram {
         shapes.addAll(originalShapes);
     }
 
-    private DiagramShape findSmallestShapeContaining(ShapePoint point) {
-        DiagramShape containingShape = null;
-        Iterator<DiagramShape> shapes = getShapes().iterator();
-        while (shapes.hasNext()) {
-            DiagramShape shape = shapes.next();
-            if (shape.contains(point)) {
-                if (containingShape == null) {
-                    containingShape = shape;
-                } else {
-                    if (shape.isSmallerThan(containingShape)) {
-                        containingShape = shape;
-                    }
-                }
-            }
-        }
-        return containingShape;
-    }
-
-    private DiagramShape findSmallestShapeIntersecting(Rectangle2D rect) {
-        DiagramShape intersectingShape = null;
-        Iterator<DiagramShape> shapes = getShapes().iterator();
-        while (shapes.hasNext()) {
-            DiagramShape shape = shapes.next();
-            if (shape.intersects(rect)) {
-                if (intersectingShape == null) {
-                    intersectingShape = shape;
-                } else {
-                    if (shape.isSmallerThan(intersectingShape)) {
-                        intersectingShape = shape;
-                    }
-                }
-            }
-        }
-        return intersectingShape;
+    /**
+     * @return an index of the shapes as they are now, with buckets of
+     * SHAPE_INDEX_BUCKET_CELLS by SHAPE_INDEX_BUCKET_CELLS cells
+     */
+    private ShapeIndex makeShapeIndex() {
+        return new ShapeIndex(getShapes(), SHAPE_INDEX_BUCKET_CELLS * Math.max(cellWidth, cellHeight));
     }
 
     private void addToTextObjects(DiagramText shape) {
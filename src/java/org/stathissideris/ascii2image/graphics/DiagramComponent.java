@@ -108,26 +108,27 @@ public abstract class DiagramComponent {
         TextGrid.Cell start = cells.getFirst();
         if (workGrid.isCorner(start))
             shape.addToPoints(makePointForCell(start, workGrid, cellWidth, cellHeight, allRound));
-        TextGrid.Cell previous = start;
-        TextGrid.Cell cell = null;
-        CellSet nextCells = workGrid.followCell(previous);
-        if (nextCells.size() == 0) return null;
-        cell = nextCells.getFirst();
-        if (workGrid.isCorner(cell))
-            shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
+        long startCell = TextGrid.packCell(start.x, start.y);
+        long[] next = new long[4];
+        long previous = startCell;
+        int count = workGrid.followCell(previous, TextGrid.NO_CELL, next);
+        if (count == 0) return null;
+        long cell = next[0];
+        if (workGrid.isCorner(TextGrid.cellX(cell), TextGrid.cellY(cell)))
+            shape.addToPoints(makePointForCell(toCell(workGrid, cell), workGrid, cellWidth, cellHeight, allRound));
 
-        while (!cell.equals(start)) {
-            nextCells = workGrid.followCell(cell, previous);
-            if (nextCells.size() == 1) {
+        while (cell != startCell) {
+            count = workGrid.followCell(cell, previous, next);
+            if (count == 1) {
                 previous = cell;
-                cell = nextCells.getFirst();
-                if (!cell.equals(start) && workGrid.isCorner(cell))
-                    shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
-            } else if (nextCells.size() > 1) {
+                cell = next[0];
+                if (cell != startCell && workGrid.isCorner(TextGrid.cellX(cell), TextGrid.cellY(cell)))
+                    shape.addToPoints(makePointForCell(toCell(workGrid, cell), workGrid, cellWidth, cellHeight, allRound));
+            } else if (count > 1) {
                 return null;
             } else {
                 throw new RuntimeException("cannot create closed shape from boundary cells, nowhere to go from "
-                        + cell + " coming from " + previous + " in grid:\n" + grid
+                        + toCell(workGrid, cell) + " coming from " + toCell(workGrid, previous) + " in grid:\n" + grid
                         + "\nmaybe you have an edge pointing nowhere?");
             }
         }
@@ -135,4 +136,8 @@ public abstract class DiagramComponent {
         return shape;
 
     }
+
+    private static TextGrid.Cell toCell(TextGrid grid, long cell) {
+        return grid.new Cell(TextGrid.cellX(cell), TextGrid.cellY(cell));
+    }
 }
@@ -54,6 +54,21 @@ public class DiagramText extends DiagramComponent {
         this.font = font;
     }
 
+    /**
+     * Initialize DiagramText as a copy of <code>other</code>
+     * @param other
+     */
+    public DiagramText(DiagramText other) {
+        this.xPos = other.xPos;
+        this.yPos = other.yPos;
+        this.text = other.text;
+        this.font = other.font;
+        this.color = other.color;
+        this.isTextOnLine = other.isTextOnLine;
+        this.hasOutline = other.hasOutline;
+        this.outlineColor = other.outlineColor;
+    }
+
     public void centerInBounds(Rectangle2D bounds) {
         centerHorizontallyBetween((int) bounds.getMinX(), (int) bounds.getMaxX());
         centerVerticallyBetween((int) bounds.getMinY(), (int) bounds.getMaxY());
@@ -22,9 +22,19 @@ import java.awt.*;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
 
 /**
+ * Measures text and finds the fonts that fit text in a given space.
+ *
+ * <p>The fonts found for every height are kept for as long as the
+ * measurer lives, and the fonts found for the most recently used strings
+ * and widths are kept up to a fixed number. All methods can be called
+ * from several threads at the same time.</p>
  *
  * @author Efstathios Sideris
  */
@@ -35,6 +45,11 @@ public class FontMeasurer {
 
     private static final boolean DEBUG = false;
 
+    /**
+     * How many fonts for strings that do not fit their width are kept
+     */
+    private static final int MAX_FITTED_FONTS = 4096;
+
     private static final FontMeasurer instance = new FontMeasurer();
     FontRenderContext fakeRenderContext;
     Graphics2D fakeGraphics;
@@ -48,6 +63,15 @@ public class FontMeasurer {
         fakeRenderContext = fakeGraphics.getFontRenderContext();
     }
 
+    private final ConcurrentHashMap<SizeKey, Font> fontsForHeight = new ConcurrentHashMap<SizeKey, Font>();
+
+    //fonts can be null, so a missing value is told apart with containsKey()
+    private final LinkedHashMap<FitKey, Font> fontsForWidth = new LinkedHashMap<FitKey, Font>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<FitKey, Font> eldest) {
+            return size() > MAX_FITTED_FONTS;
+        }
+    };
+
 
     public FontMeasurer() {
     }
@@ -130,12 +154,10 @@ public class FontMeasurer {
     }
 
     public Font getFontFor(int pixelHeight) {
-        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2 = image.createGraphics();
         return getFontFor(pixelHeight, fakeRenderContext);
     }
 
-    public int getAscent(Font font) {
+    public synchronized int getAscent(Font font) {
         fakeGraphics.setFont(font);
         FontMetrics metrics = fakeGraphics.getFontMetrics();
         if (DEBUG) System.out.println("Ascent: " + metrics.getAscent());
@@ -148,38 +170,24 @@ public class FontMeasurer {
         return height;
     }
 
+    /**
+     * The largest font, in steps of a point, that <code>string</code>
+     * is narrower than <code>maxWidth</code> in, or null if there is none.
+     *
+     * @param maxWidth
+     * @param string
+     * @return
+     */
     public Font getFontFor(int maxWidth, String string) {
-        float size = 12;
-        Font currentFont = new Font(fontFamilyName, Font.BOLD, (int) size);
-        //ascent is the distance between the baseline and the tallest character
-        int width = getWidthFor(string, currentFont);
-
-        int direction; //direction of size change (towards smaller or bigger)
-        if (width > maxWidth) {
-            currentFont = currentFont.deriveFont(size - 1);
-            size--;
-            direction = -1;
-        } else {
-            currentFont = currentFont.deriveFont(size + 1);
-            size++;
-            direction = 1;
+        FitKey key = new FitKey(string, maxWidth);
+        synchronized (fontsForWidth) {
+            if (fontsForWidth.containsKey(key)) return fontsForWidth.get(key);
         }
-        while (size > 0) {
-            currentFont = currentFont.deriveFont(size);
-            //rectangle = currentFont.getStringBounds(testString, frc);
-            width = getWidthFor(string, currentFont);
-            if (direction == 1) {
-                if (width > maxWidth) {
-                    size = size - 1;
-                    return currentFont.deriveFont(size);
-                } else size = size + 1;
-            } else {
-                if (width < maxWidth)
-                    return currentFont;
-                else size = size - 1;
-            }
+        Font font = findLargestFont(currentFont -> getWidthFor(string, currentFont), maxWidth, 1);
+        synchronized (fontsForWidth) {
+            fontsForWidth.put(key, font);
         }
-        return null;
+        return font;
     }
 
     /**
@@ -189,38 +197,116 @@ public class FontMeasurer {
      * @return
      */
     public Font getFontFor(int pixelHeight, FontRenderContext frc) {
+        SizeKey key = new SizeKey(fontFamilyName, Font.BOLD, pixelHeight);
+        Font font = fontsForHeight.get(key);
+        if (font == null) {
+            //ascent is the distance between the baseline and the tallest character
+            font = findLargestFont(this::getAscent, pixelHeight, 0.5f);
+            if (font != null) fontsForHeight.putIfAbsent(key, font);
+        }
+        return font;
+    }
+
+    /**
+     * Finds the largest size of the default font, in steps of
+     * <code>step</code>, that measures less than <code>limit</code>.
+     *
+     * <p>The sizes tried are those of a search that starts at 12 points
+     * and moves a whole point before taking steps. If 12 points measure
+     * more than the limit, the result is the first size from 11 down that
+     * measures less. Otherwise it is the size one step before the first
+     * size from 13 up that measures more. Measurements grow with size, so
+     * the sizes are searched in halves rather than one by one.</p>
+     *
+     * @param measure
+     * @param limit
+     * @param step
+     * @return the font, or null if even the smallest size measures more
+     * than the limit
+     */
+    private Font findLargestFont(ToIntFunction<Font> measure, int limit, float step) {
         float size = 12;
-        Font currentFont = new Font(fontFamilyName, Font.BOLD, (int) size);
-//		Font currentFont = new Font("Times", Font.BOLD, (int) size);
-        if (DEBUG) System.out.println(currentFont.getFontName());
-        //ascent is the distance between the baseline and the tallest character
-        int ascent = getAscent(currentFont);
-
-        int direction; //direction of size change (towards smaller or bigger)
-        if (ascent > pixelHeight) {
-            currentFont = currentFont.deriveFont(size - 1);
-            size--;
-            direction = -1;
+        Font baseFont = new Font(fontFamilyName, Font.BOLD, (int) size);
+        if (DEBUG) System.out.println(baseFont.getFontName());
+
+        if (measure.applyAsInt(baseFont) > limit) {
+            //the smallest k for which size - 1 - k * step measures less,
+            //among the positive sizes
+            float first = size - 1;
+            int low = 0;
+            int high = (int) Math.ceil(first / step) - 1;
+            if (high < low || !(measure.applyAsInt(baseFont.deriveFont(first - high * step)) < limit)) {
+                return null;
+            }
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (measure.applyAsInt(baseFont.deriveFont(first - middle * step)) < limit) high = middle;
+                else low = middle + 1;
+            }
+            return baseFont.deriveFont(first - low * step);
         } else {
-            currentFont = currentFont.deriveFont(size + 1);
-            size++;
-            direction = 1;
-        }
-        while (size > 0) {
-            currentFont = currentFont.deriveFont(size);
-            //rectangle = currentFont.getStringBounds(testString, frc);
-            ascent = getAscent(currentFont);
-            if (direction == 1) {
-                if (ascent > pixelHeight) {
-                    size = size - 0.5f;
-                    return currentFont.deriveFont(size);
-                } else size = size + 0.5f;
-            } else {
-                if (ascent < pixelHeight)
-                    return currentFont;
-                else size = size - 0.5f;
+            //the smallest k for which size + 1 + k * step measures more
+            float first = size + 1;
+            int low = -1;
+            int high = 0;
+            while (!(measure.applyAsInt(baseFont.deriveFont(first + high * step)) > limit)) {
+                low = high;
+                high = high * 2 + 1;
+            }
+            while (low + 1 < high) {
+                int middle = (low + high) >>> 1;
+                if (measure.applyAsInt(baseFont.deriveFont(first + middle * step)) > limit) high = middle;
+                else low = middle;
             }
+            return baseFont.deriveFont(first + high * step - step);
+        }
+    }
+
+    /**
+     * The key of the fonts found for a height
+     */
+    private static final class SizeKey {
+        private final String family;
+        private final int style;
+        private final int pixelHeight;
+
+        SizeKey(String family, int style, int pixelHeight) {
+            this.family = family;
+            this.style = style;
+            this.pixelHeight = pixelHeight;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof SizeKey)) return false;
+            SizeKey other = (SizeKey) o;
+            return family.equals(other.family) && style == other.style && pixelHeight == other.pixelHeight;
+        }
+
+        public int hashCode() {
+            return (family.hashCode() * 31 + style) * 31 + pixelHeight;
+        }
+    }
+
+    /**
+     * The key of the fonts found for a string and a width
+     */
+    private static final class FitKey {
+        private final String string;
+        private final int maxWidth;
+
+        FitKey(String string, int maxWidth) {
+            this.string = string;
+            this.maxWidth = maxWidth;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof FitKey)) return false;
+            FitKey other = (FitKey) o;
+            return string.equals(other.string) && maxWidth == other.maxWidth;
+        }
+
+        public int hashCode() {
+            return string.hashCode() * 31 + maxWidth;
         }
-        return null;
     }
 }
@@ -19,6 +19,7 @@
 package org.stathissideris.ascii2image.graphics;
 
 import org.stathissideris.ascii2image.core.FileUtils;
+import org.w3c.dom.svg.SVGDocument;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -28,7 +29,19 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Loads the images of custom shapes.
+ *
+ * <p>SVG images are kept at three levels, since the same shape is
+ * usually drawn many times in a diagram and in many diagrams: the parsed
+ * document of every file, the graphics built from it for every fill
+ * colour, and the rendered image for every size. The entries of a file
+ * are not used anymore once the file is modified.</p>
+ */
 public class ImageHandler {
 
     private static final MediaTracker tracker = new MediaTracker(new JLabel());
@@ -36,6 +49,26 @@ public class ImageHandler {
             new OffScreenSVGRenderer();
     private static ImageHandler instance = new ImageHandler();
 
+    private static final int MAX_DOCUMENTS = 64;
+    private static final int MAX_TREES = 256;
+    private static final long MAX_IMAGE_BYTES = 32L * 1024 * 1024;
+
+    private final LinkedHashMap<String, SVGDocument> documents = new LinkedHashMap<String, SVGDocument>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, SVGDocument> eldest) {
+            return size() > MAX_DOCUMENTS;
+        }
+    };
+
+    private final LinkedHashMap<String, OffScreenSVGRenderer.GraphicsTree> trees =
+            new LinkedHashMap<String, OffScreenSVGRenderer.GraphicsTree>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, OffScreenSVGRenderer.GraphicsTree> eldest) {
+                    return size() > MAX_TREES;
+                }
+            };
+
+    private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    private long imageBytes = 0;
+
     /**
      * @return static instance of the class for rendering
      */
@@ -116,13 +149,11 @@ public class ImageHandler {
      * @param width
      * @param height
      * @param stretch
-     * @return
+     * @return the image, which is shared and must not be modified
      * @throws IOException
      */
     public BufferedImage renderSVG(String filename, int width, int height, boolean stretch) throws IOException {
-        File file = new File(filename);
-        URI uri = file.toURI();
-        return svgRenderer.renderToImage(uri.toString(), width, height, stretch, null, null);
+        return renderSVG(filename, width, height, stretch, null, null);
     }
 
     /**
@@ -133,12 +164,79 @@ public class ImageHandler {
      * @param stretch
      * @param idRegex
      * @param color
-     * @return
+     * @return the image, which is shared and must not be modified
      * @throws IOException
      */
     public BufferedImage renderSVG(String filename, int width, int height, boolean stretch, String idRegex, Color color) throws IOException {
         File file = new File(filename);
         URI uri = file.toURI();
-        return svgRenderer.renderToImage(uri.toString(), width, height, stretch, idRegex, color);
+        if (idRegex == null || color == null) {
+            idRegex = null;
+            color = null;
+        }
+
+        //the version of the file is part of every key, so that the entries
+        //of an older version are never used and eventually dropped
+        String documentKey = uri + "\n" + file.lastModified() + "\n" + file.length();
+        String treeKey = documentKey + "\n" + idRegex + "\n" + (color == null ? "" : Integer.toHexString(color.getRGB()));
+        String imageKey = treeKey + "\n" + width + "x" + height + "\n" + stretch;
+
+        synchronized (this) {
+            BufferedImage image = images.get(imageKey);
+            if (image != null) return image;
+        }
+
+        OffScreenSVGRenderer.GraphicsTree tree = getTree(uri.toString(), documentKey, treeKey, idRegex, color);
+        BufferedImage image;
+        synchronized (tree) {
+            image = svgRenderer.renderToImage(tree, width, height, stretch);
+        }
+        synchronized (this) {
+            putImage(imageKey, image);
+        }
+        return image;
+    }
+
+    private OffScreenSVGRenderer.GraphicsTree getTree(String uri, String documentKey, String treeKey, String idRegex, Color color) throws IOException {
+        OffScreenSVGRenderer.GraphicsTree tree;
+        SVGDocument document;
+        synchronized (this) {
+            tree = trees.get(treeKey);
+            if (tree != null) return tree;
+            document = documents.get(documentKey);
+        }
+        if (document == null) {
+            document = svgRenderer.loadDocument(uri);
+            synchronized (this) {
+                documents.put(documentKey, document);
+            }
+        }
+
+        //the cached document is never modified: the fill is replaced in a copy
+        SVGDocument copy;
+        synchronized (document) {
+            copy = (SVGDocument) document.cloneNode(true);
+        }
+        if (idRegex != null) svgRenderer.replaceFill(copy, idRegex, color);
+        tree = svgRenderer.buildTree(copy);
+        synchronized (this) {
+            trees.put(treeKey, tree);
+        }
+        return tree;
+    }
+
+    private void putImage(String key, BufferedImage image) {
+        long bytes = 4L * image.getWidth() * image.getHeight();
+        if (bytes > MAX_IMAGE_BYTES) return;
+        BufferedImage previous = images.put(key, image);
+        if (previous != null) imageBytes -= 4L * previous.getWidth() * previous.getHeight();
+        imageBytes += bytes;
+
+        Iterator<BufferedImage> it = images.values().iterator();
+        while (imageBytes > MAX_IMAGE_BYTES && it.hasNext()) {
+            BufferedImage eldest = it.next();
+            imageBytes -= 4L * eldest.getWidth() * eldest.getHeight();
+            it.remove();
+        }
     }
 }
@@ -9,6 +9,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public abstract class ImageRenderer extends AbstractRenderer{
@@ -26,6 +27,19 @@ public abstract class ImageRenderer extends AbstractRenderer{
 
     protected abstract void renderText(List<DiagramText> textObjects, Graphics2D g2);
     protected void renderShadows(Diagram diagram, Graphics2D g2) {
+        for (GeneralPath shadow : makeShadowPaths(diagram)) {
+            g2.setColor(new Color(150, 150, 150));
+            g2.fill(shadow);
+        }
+    }
+
+    /**
+     * @param diagram
+     * @return the outlines of the shadows of all the shapes of
+     * <code>diagram</code> that drop one, in the order they are drawn
+     */
+    protected List<GeneralPath> makeShadowPaths(Diagram diagram) {
+        List<GeneralPath> shadows = new ArrayList<GeneralPath>();
         for (DiagramShape shape: diagram.getAllDiagramShapes()) {
             if (shape.getPoints().isEmpty()) continue;
             GeneralPath path = shape.makeIntoRenderPath(diagram, options);
@@ -37,14 +51,32 @@ public abstract class ImageRenderer extends AbstractRenderer{
                 AffineTransform translate = new AffineTransform();
                 translate.setToTranslation(offset, offset);
                 shadow.transform(translate);
-                g2.setColor(new Color(150, 150, 150));
-                g2.fill(shadow);
+                shadows.add(shadow);
             }
         }
+        return shadows;
     }
 
     protected void renderObjects(Diagram diagram, Graphics2D g2){
-        ArrayList<DiagramShape> shapes = diagram.getAllDiagramShapes();
+        renderObjects(diagram, g2, shape -> true, text -> true);
+    }
+
+    /**
+     * Renders only the shapes and text of <code>diagram</code> that pass
+     * the given filters, in the same order as if all of them were rendered.
+     *
+     * @param diagram
+     * @param g2
+     * @param drawShape
+     * @param drawText
+     */
+    protected void renderObjects(Diagram diagram, Graphics2D g2,
+                                 Predicate<DiagramShape> drawShape, Predicate<DiagramText> drawText){
+        //the sorts below are stable, so filtering before them keeps the
+        //shapes in the same order relative to each other
+        List<DiagramShape> shapes = diagram.getAllDiagramShapes().stream()
+                .filter(drawShape)
+                .collect(Collectors.toList());
         float dashInterval = Math.min(diagram.getCellWidth(), diagram.getCellHeight()) / 2;
         //Stroke normalStroke = g2.getStroke();
 
@@ -138,7 +170,7 @@ public abstract class ImageRenderer extends AbstractRenderer{
         }
 
         //handle text
-        renderText(diagram.getTextObjects(), g2);
+        renderText(diagram.getTextObjects().stream().filter(drawText).collect(Collectors.toList()), g2);
 
         if (options.renderDebugLines() || DEBUG) {
             Stroke debugStroke =
@@ -26,6 +26,7 @@ import org.apache.batik.gvt.GraphicsNode;
 import org.apache.batik.gvt.renderer.ConcreteImageRendererFactory;
 import org.apache.batik.gvt.renderer.ImageRenderer;
 import org.apache.batik.gvt.renderer.ImageRendererFactory;
+import org.apache.batik.util.XMLResourceDescriptor;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.svg.SVGDocument;
 import org.w3c.dom.svg.SVGElement;
@@ -50,7 +51,7 @@ public class OffScreenSVGRenderer {
 
         String uri = "file:/fake.svg";
 
-        SAXSVGDocumentFactory df = new SAXSVGDocumentFactory("org.apache.xerces.parsers.SAXParser");
+        SAXSVGDocumentFactory df = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
         SVGDocument document = df.createSVGDocument(uri, new StringReader(xmlContent));
         if (idRegex != null && replacementColor != null)
             replaceFill(document, idRegex, replacementColor);
@@ -73,13 +74,23 @@ public class OffScreenSVGRenderer {
      * @throws IOException
      */
     public BufferedImage renderToImage(String uri, int width, int height, boolean stretch, String idRegex, Color replacementColor) throws IOException {
-        SAXSVGDocumentFactory df = new SAXSVGDocumentFactory("org.apache.xerces.parsers.SAXParser");
-        SVGDocument document = df.createSVGDocument(uri);
+        SVGDocument document = loadDocument(uri);
         if (idRegex != null && replacementColor != null)
             replaceFill(document, idRegex, replacementColor);
         return renderToImage(document, width, height, stretch);
     }
 
+    /**
+     * Parses the SVG document at <code>uri</code>
+     * @param uri
+     * @return
+     * @throws IOException
+     */
+    public SVGDocument loadDocument(String uri) throws IOException {
+        SAXSVGDocumentFactory df = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
+        return df.createSVGDocument(uri);
+    }
+
     public BufferedImage renderToImage(SVGDocument document, int width, int height) {
         return renderToImage(document, width, height, false);
     }
@@ -111,20 +122,55 @@ public class OffScreenSVGRenderer {
     }
 
     public BufferedImage renderToImage(SVGDocument document, int width, int height, boolean stretch) {
+        return renderToImage(buildTree(document), width, height, stretch);
+    }
 
-        ImageRendererFactory rendererFactory;
-        rendererFactory = new ConcreteImageRendererFactory();
-        ImageRenderer renderer = rendererFactory.createStaticImageRenderer();
+    /**
+     * The graphics of an SVG document, ready to be rendered at any size.
+     * A tree must not be rendered by two threads at the same time.
+     */
+    public static class GraphicsTree {
+        private final GraphicsNode rootNode;
+        private final float docWidth;
+        private final float docHeight;
+
+        GraphicsTree(GraphicsNode rootNode, float docWidth, float docHeight) {
+            this.rootNode = rootNode;
+            this.docWidth = docWidth;
+            this.docHeight = docHeight;
+        }
+    }
 
+    /**
+     * Builds the graphics of <code>document</code>, with the styles it
+     * has at the moment.
+     * @param document
+     * @return
+     */
+    public GraphicsTree buildTree(SVGDocument document) {
         GVTBuilder builder = new GVTBuilder();
         BridgeContext ctx = new BridgeContext(new UserAgentAdapter());
         ctx.setDynamicState(BridgeContext.STATIC);
         GraphicsNode rootNode = builder.build(ctx, document);
 
+        return new GraphicsTree(
+                rootNode,
+                (float) ctx.getDocumentSize().getWidth(),
+                (float) ctx.getDocumentSize().getHeight());
+    }
+
+    public BufferedImage renderToImage(GraphicsTree tree, int width, int height, boolean stretch) {
+
+        ImageRendererFactory rendererFactory;
+        rendererFactory = new ConcreteImageRendererFactory();
+        ImageRenderer renderer = rendererFactory.createStaticImageRenderer();
+
+        GraphicsNode rootNode = tree.rootNode;
+
         renderer.setTree(rootNode);
 
-        float docWidth = (float) ctx.getDocumentSize().getWidth();
-        float docHeight = (float) ctx.getDocumentSize().getHeight();
+        float docWidth = tree.docWidth;
+        float docHeight = tree.docHeight;
 
         float xscale = width / docWidth;
         float yscale = height / docHeight;
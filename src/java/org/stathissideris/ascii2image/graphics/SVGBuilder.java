@@ -7,6 +7,9 @@ import org.stathissideris.ascii2image.core.ShapeAreaComparator;
 import java.awt.*;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.PathIterator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -18,14 +21,29 @@ public class SVGBuilder {
 
     private final Diagram diagram;
     private final RenderingOptions options;
-    private final StringBuilder layer0 = new StringBuilder();
-    private final StringBuilder layer1 = new StringBuilder();
-    private final StringBuilder layer2 = new StringBuilder();
-    private final StringBuilder layer3 = new StringBuilder();
+
+    /**
+     * How many characters of shapes are kept in memory, while their
+     * shadows are being written, before the rest go to a temporary file
+     */
+    private static final int MAX_SPOOLED_CHARS = 1024 * 1024;
+
+    /**
+     * Where the background, the shadows and the text are written
+     */
+    private Writer out;
+    /**
+     * Where the shapes are kept until all the shadows have been written
+     */
+    private SpoolWriter shapeLayer;
     private final String normalStroke;
     private final String dashStroke;
 
-    SVGBuilder(Diagram diagram, RenderingOptions options) {
+    /**
+     * @param diagram
+     * @param options
+     */
+    public SVGBuilder(Diagram diagram, RenderingOptions options) {
 
         this.diagram = diagram;
         this.options = options;
@@ -59,7 +77,41 @@ public class SVGBuilder {
 
     public String build() {
 
-        return openSVGTag() + definitions() + render() + "</svg>";
+        StringWriter writer = new StringWriter();
+        try {
+            build(writer);
+        } catch (IOException e) {
+            //a StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+
+    }
+
+    /**
+     * Writes the document to <code>writer</code> as it is built. The
+     * layers are written in order: the background, the shadows, the shapes
+     * and the text. Only the shapes, which are built together with their
+     * shadows, are kept until the shadows have been written.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void build(Writer writer) throws IOException {
+
+        for (DiagramShape shape : diagram.getAllDiagramShapes()) {
+            if (shape.getType() == DiagramShape.TYPE_CUSTOM) throw new RuntimeException("Not yet implemented");
+        }
+
+        out = writer;
+        try {
+            out.write(openSVGTag());
+            out.write(definitions());
+            render();
+            out.write("</svg>");
+        } finally {
+            out = null;
+        }
 
     }
 
@@ -110,21 +162,22 @@ public class SVGBuilder {
 
     }
 
-    private String render() {
+    private void render() throws IOException {
+        out.write("  <g stroke-width='1' stroke-linecap='square' stroke-linejoin='round'>\n");
         backgroundLayer();
-        renderShapes();
+        try (SpoolWriter shapes = new SpoolWriter(MAX_SPOOLED_CHARS)) {
+            shapeLayer = shapes;
+            renderShapes();
+            shapes.writeTo(out);
+        } finally {
+            shapeLayer = null;
+        }
         renderTexts();
-
-        return "  <g stroke-width='1' stroke-linecap='square' stroke-linejoin='round'>\n" +
-                layer0.toString() +
-                layer1.toString() +
-                layer2.toString() +
-                layer3.toString() +
-                "  </g>\n";
+        out.write("  </g>\n");
 
     }
 
-    private void renderStorageShapes(List<DiagramShape> storageShapes) {
+    private void renderStorageShapes(List<DiagramShape> storageShapes) throws IOException {
         storageShapes.sort(new Shape3DOrderingComparator());
         for (DiagramShape shape : storageShapes) {
             GeneralPath path = shape.makeIntoRenderPath(diagram, options);
@@ -143,7 +196,7 @@ public class SVGBuilder {
         }
     }
 
-    private void renderShapes() {
+    private void renderShapes() throws IOException {
 
         ArrayList<DiagramShape> shapes = diagram.getAllDiagramShapes();
         //ArrayList<DiagramShape> pointMarkers = new ArrayList<>();
@@ -156,9 +209,6 @@ public class SVGBuilder {
         List<DiagramShape> pointMarkers = shapes.stream()
                 .filter(shape -> shape.getType() == DiagramShape.TYPE_POINT_MARKER)
                 .collect(Collectors.toList());
-        List<DiagramShape> customShapes = shapes.stream()
-                .filter(shape -> shape.getType() == DiagramShape.TYPE_CUSTOM)
-                .collect(Collectors.toList());
         List<DiagramShape> otherShapes = shapes.stream()
                 .filter(shape -> shape.getType() != DiagramShape.TYPE_CUSTOM
                         && shape.getType() != DiagramShape.TYPE_STORAGE
@@ -166,7 +216,6 @@ public class SVGBuilder {
                         && !shape.getPoints().isEmpty())
                 .collect(Collectors.toList());
 
-        if (!customShapes.isEmpty()) throw new RuntimeException("Not yet implemented");
         for (DiagramShape shape : otherShapes) {
             GeneralPath path = shape.makeIntoRenderPath(diagram, options);
             SVGCommands commands = new SVGCommands(path);
@@ -176,7 +225,7 @@ public class SVGBuilder {
         renderPointMarkers(pointMarkers);
     }
 
-    private void renderPath(DiagramShape shape, SVGCommands commands) {
+    private void renderPath(DiagramShape shape, SVGCommands commands) throws IOException {
 
         String fill = "none";
 
@@ -207,7 +256,7 @@ public class SVGBuilder {
 
     }
 
-    private void renderPath(DiagramShape shape, SVGCommands commands, String stroke, String fill) {
+    private void renderPath(DiagramShape shape, SVGCommands commands, String stroke, String fill) throws IOException {
 
         String path = "    <path stroke='" + stroke + "' ";
 
@@ -218,21 +267,21 @@ public class SVGBuilder {
 
         path += "fill='" + fill + "' d='" + commands.svgPath + "' />\n";
 
-        layer2.append(path);
+        shapeLayer.write(path);
 
     }
 
-    private void renderShadow(SVGCommands commands) {
+    private void renderShadow(SVGCommands commands) throws IOException {
 
         if (!options.dropShadows()) return;
 
         String path = "    <path stroke='gray' fill='gray' filter='url(#f2)' d='" + commands.svgPath + "' />\n";
 
-        layer1.append(path);
+        out.write(path);
 
     }
 
-    private void renderPointMarkers(List<DiagramShape> pointMarkers) {
+    private void renderPointMarkers(List<DiagramShape> pointMarkers) throws IOException {
         for (DiagramShape shape : pointMarkers) {
             GeneralPath path = shape.makeIntoRenderPath(diagram, options);
             String fill = "white";
@@ -247,10 +296,10 @@ public class SVGBuilder {
         return String.format("shape-rendering='%s'", rendering);
     }
 
-    private void backgroundLayer() {
+    private void backgroundLayer() throws IOException {
         Color color = options.getBackgroundColor();
         if (color.getAlpha() == 0) return;
-        layer0.append(
+        out.write(
                 String.format("    <rect x='0' y='0' width='%d' height='%d' style='fill: %s'/>\n",
                         diagram.getWidth(),
                         diagram.getHeight(),
@@ -259,7 +308,7 @@ public class SVGBuilder {
         );
     }
 
-    private void renderTexts() {
+    private void renderTexts() throws IOException {
         for (DiagramText diagramText : diagram.getTextObjects()) {
             Font font = diagramText.getFont();
             String text = diagramText.getText();
@@ -282,7 +331,7 @@ public class SVGBuilder {
 
     }
 
-    private void renderText(String text, int xPos, int yPos, Font font, Color color) {
+    private void renderText(String text, int xPos, int yPos, Font font, Color color) throws IOException {
 
         String TEXT_ELEMENT = "    <text x='%d' y='%d' font-family='%s' font-size='%d' stroke='none' fill='%s' >" +
                 "<![CDATA[%s]]></text>\n";
@@ -293,7 +342,7 @@ public class SVGBuilder {
         }
         */
 
-        layer3.append(
+        out.write(
                 String.format(TEXT_ELEMENT,
                         xPos,
                         yPos,
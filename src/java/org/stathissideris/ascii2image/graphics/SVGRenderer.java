@@ -1,18 +1,45 @@
 package org.stathissideris.ascii2image.graphics;
 
+import org.stathissideris.ascii2image.core.MetricsListener;
 import org.stathissideris.ascii2image.core.RenderingOptions;
+import org.stathissideris.ascii2image.core.StageTimer;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by Jean Lazarou.
  */
 public class SVGRenderer extends AbstractRenderer {
 
+    private boolean compressed;
+
+    /**
+     * @param toFilename the file to write to. If it ends with .svgz, the
+     *                   output is compressed.
+     * @param options
+     */
     public SVGRenderer(String toFilename, RenderingOptions options) {
         super(toFilename, options);
+        compressed = toFilename != null && toFilename.endsWith(".svgz");
+    }
+
+    /**
+     * @param compressed whether to compress the output with gzip, as in
+     *                   .svgz files
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
     }
 
     /**
@@ -23,14 +50,35 @@ public class SVGRenderer extends AbstractRenderer {
      */
     @Override
     public void renderImage(Diagram diagram) {
-        SVGBuilder builder = new SVGBuilder(diagram, getOptions());
-        PrintStream stream = null;
+        boolean stdOut = "-".equals(super.getOutFile());
         try {
-            stream = ("-".equals(super.getOutFile())) ? System.out : new PrintStream(new FileOutputStream(super.getOutFile()));
-            String content = builder.build();
-            stream.print(content);
-        } catch (FileNotFoundException e) {
+            OutputStream stream = stdOut ? System.out : new FileOutputStream(super.getOutFile());
+            try {
+                renderImage(diagram, stream);
+            } finally {
+                if (!stdOut) stream.close();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
+            System.err.println("Error: Cannot write to file " + getOutFile());
         }
     }
+
+    /**
+     * Writes the document as it is built, so that it is never held in
+     * memory as a whole
+     */
+    @Override
+    public void renderImage(Diagram diagram, OutputStream out) throws IOException {
+        StageTimer timer = new StageTimer(getOptions().getMetricsListener());
+        GZIPOutputStream gzip = compressed ? new GZIPOutputStream(out, 8192) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                gzip != null ? gzip : out, StandardCharsets.UTF_8));
+        new SVGBuilder(diagram, getOptions()).build(writer);
+        writer.flush();
+        if (gzip != null) gzip.finish();
+        out.flush();
+        //the document is encoded as it is built
+        timer.report(MetricsListener.Stage.RENDERING);
+    }
 }
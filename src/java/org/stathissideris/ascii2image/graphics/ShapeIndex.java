@@ -0,0 +1,192 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.Rectangle;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A uniform grid of buckets over the bounding boxes of a list of shapes,
+ * for finding the smallest shape that contains a point or intersects a
+ * rectangle without testing every shape.
+ *
+ * <p>The shapes are ranked by the area of their bounding box, and shapes
+ * of equal area by their position in the list. Every bucket lists the
+ * shapes whose bounding box overlaps it in the order of their rank, so a
+ * query tests the shapes of the buckets it touches from the smallest up
+ * and stops at the first match. The result is the same as scanning the
+ * list and keeping the shape that is {@link DiagramShape#isSmallerThan(DiagramShape) smaller}
+ * than all the matching shapes before it.</p>
+ *
+ * <p>The index describes the shapes as they were when it was built: it
+ * has to be built again if shapes are added or their points change.</p>
+ */
+public class ShapeIndex {
+
+    private final DiagramShape[] shapes;
+    private final GeneralPath[] paths;
+    //the bounding boxes of the shapes, edges included
+    private final int[] minX, minY, maxX, maxY;
+
+    private final int bucketSize;
+    private final int originX, originY;
+    private final int columns, rows;
+    /**
+     * The shapes of bucket b are bucketShapes[bucketStart[b]] to
+     * bucketShapes[bucketStart[b + 1] - 1], by rank
+     */
+    private final int[] bucketStart;
+    private final int[] bucketShapes;
+
+    /**
+     * @param shapes     the shapes to index, shapes with fewer than 2
+     *                   points are left out as they contain nothing
+     * @param bucketSize the width and height of the buckets
+     */
+    public ShapeIndex(List<DiagramShape> shapes, int bucketSize) {
+        if (bucketSize < 1) throw new IllegalArgumentException("The size of the buckets must be at least 1");
+        this.bucketSize = bucketSize;
+
+        ArrayList<DiagramShape> indexed = new ArrayList<DiagramShape>(shapes.size());
+        ArrayList<GeneralPath> indexedPaths = new ArrayList<GeneralPath>(shapes.size());
+        for (DiagramShape shape : shapes) {
+            GeneralPath path = shape.makeIntoPath();
+            if (path == null) continue;
+            indexed.add(shape);
+            indexedPaths.add(path);
+        }
+        int count = indexed.size();
+
+        //rank the shapes by area, then by position
+        final int[] areas = new int[count];
+        Rectangle[] bounds = new Rectangle[count];
+        Integer[] byRank = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = indexedPaths.get(i).getBounds();
+            areas[i] = bounds[i].width * bounds[i].height;
+            byRank[i] = i;
+        }
+        Arrays.sort(byRank, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (areas[a] != areas[b]) return areas[a] < areas[b] ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+
+        this.shapes = new DiagramShape[count];
+        paths = new GeneralPath[count];
+        minX = new int[count];
+        minY = new int[count];
+        maxX = new int[count];
+        maxY = new int[count];
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+        for (int rank = 0; rank < count; rank++) {
+            int i = byRank[rank];
+            this.shapes[rank] = indexed.get(i);
+            paths[rank] = indexedPaths.get(i);
+            minX[rank] = bounds[i].x;
+            minY[rank] = bounds[i].y;
+            maxX[rank] = bounds[i].x + bounds[i].width;
+            maxY[rank] = bounds[i].y + bounds[i].height;
+            left = Math.min(left, minX[rank]);
+            top = Math.min(top, minY[rank]);
+            right = Math.max(right, maxX[rank]);
+            bottom = Math.max(bottom, maxY[rank]);
+        }
+
+        originX = count == 0 ? 0 : left;
+        originY = count == 0 ? 0 : top;
+        columns = count == 0 ? 1 : (right - left) / bucketSize + 1;
+        rows = count == 0 ? 1 : (bottom - top) / bucketSize + 1;
+
+        //count the shapes of every bucket, then fill them in order of rank
+        bucketStart = new int[columns * rows + 1];
+        for (int rank = 0; rank < count; rank++) {
+            for (int row = rowOf(minY[rank]); row <= rowOf(maxY[rank]); row++)
+                for (int column = columnOf(minX[rank]); column <= columnOf(maxX[rank]); column++)
+                    bucketStart[row * columns + column + 1]++;
+        }
+        for (int b = 0; b < columns * rows; b++) bucketStart[b + 1] += bucketStart[b];
+        bucketShapes = new int[bucketStart[columns * rows]];
+        int[] filled = Arrays.copyOf(bucketStart, columns * rows);
+        for (int rank = 0; rank < count; rank++) {
+            for (int row = rowOf(minY[rank]); row <= rowOf(maxY[rank]); row++)
+                for (int column = columnOf(minX[rank]); column <= columnOf(maxX[rank]); column++)
+                    bucketShapes[filled[row * columns + column]++] = rank;
+        }
+    }
+
+    private int columnOf(double x) {
+        return clamp((int) Math.floor((x - originX) / bucketSize), columns);
+    }
+
+    private int rowOf(double y) {
+        return clamp((int) Math.floor((y - originY) / bucketSize), rows);
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(value, count - 1));
+    }
+
+    /**
+     * @return the smallest shape that contains <code>point</code>, or
+     * null if there is none
+     */
+    public DiagramShape findSmallestContaining(ShapePoint point) {
+        int bucket = rowOf(point.y) * columns + columnOf(point.x);
+        for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; i++) {
+            int rank = bucketShapes[i];
+            if (point.x < minX[rank] || point.x > maxX[rank] || point.y < minY[rank] || point.y > maxY[rank])
+                continue;
+            if (paths[rank].contains(point)) return shapes[rank];
+        }
+        return null;
+    }
+
+    /**
+     * @return the smallest shape that intersects <code>rect</code>, or
+     * null if there is none
+     */
+    public DiagramShape findSmallestIntersecting(Rectangle2D rect) {
+        int best = shapes.length;
+        for (int row = rowOf(rect.getMinY()); row <= rowOf(rect.getMaxY()); row++) {
+            for (int column = columnOf(rect.getMinX()); column <= columnOf(rect.getMaxX()); column++) {
+                int bucket = row * columns + column;
+                for (int i = bucketStart[bucket]; i < bucketStart[bucket + 1]; i++) {
+                    int rank = bucketShapes[i];
+                    if (rank >= best) break;
+                    if (rect.getMaxX() < minX[rank] || rect.getMinX() > maxX[rank]
+                            || rect.getMaxY() < minY[rank] || rect.getMinY() > maxY[rank])
+                        continue;
+                    if (paths[rank].intersects(rect)) {
+                        best = rank;
+                        break;
+                    }
+                }
+            }
+        }
+        return best < shapes.length ? shapes[best] : null;
+    }
+}
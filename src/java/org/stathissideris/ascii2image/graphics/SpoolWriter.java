@@ -0,0 +1,132 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer that keeps everything written to it, so that it can be copied
+ * to another Writer later. Up to a given number of characters are kept in
+ * memory; after that, everything is moved to a temporary file, which is
+ * deleted when the spool is closed.
+ */
+public class SpoolWriter extends Writer {
+
+    private final int maxMemoryChars;
+    private final StringBuilder memory = new StringBuilder();
+    private File file = null;
+    private Writer fileWriter = null;
+
+    /**
+     * @param maxMemoryChars how many characters to keep in memory before
+     *                       moving to a temporary file
+     */
+    public SpoolWriter(int maxMemoryChars) {
+        this.maxMemoryChars = maxMemoryChars;
+    }
+
+    /**
+     * @return true if the contents have been moved to a temporary file
+     */
+    public boolean isSpilled() {
+        return fileWriter != null;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        if (fileWriter == null && memory.length() + length <= maxMemoryChars) {
+            memory.append(chars, offset, length);
+        } else {
+            spill();
+            fileWriter.write(chars, offset, length);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        if (fileWriter == null && memory.length() + length <= maxMemoryChars) {
+            memory.append(string, offset, offset + length);
+        } else {
+            spill();
+            fileWriter.write(string, offset, length);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (fileWriter != null) return;
+        file = File.createTempFile("ditaa", ".spool");
+        fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        writeMemoryTo(fileWriter);
+        memory.setLength(0);
+        memory.trimToSize();
+    }
+
+    /**
+     * Writes everything that has been written to the spool to <code>out</code>
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        if (fileWriter == null) {
+            writeMemoryTo(out);
+            return;
+        }
+        fileWriter.flush();
+        char[] buffer = new char[8192];
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+        }
+    }
+
+    private void writeMemoryTo(Writer out) throws IOException {
+        char[] buffer = new char[8192];
+        for (int start = 0; start < memory.length(); start += buffer.length) {
+            int end = Math.min(start + buffer.length, memory.length());
+            memory.getChars(start, end, buffer, 0);
+            out.write(buffer, 0, end - start);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileWriter != null) fileWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileWriter != null) {
+            try {
+                fileWriter.close();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
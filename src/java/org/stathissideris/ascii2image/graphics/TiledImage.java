@@ -0,0 +1,244 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * An image that is rendered in square tiles, on a pool of threads, only
+ * when its pixels are asked for.
+ *
+ * <p>The tiles are rendered a row at a time, and the rows above the last
+ * one that was asked for are dropped. While a row is being read, the rows
+ * below it are already being rendered, so that all the threads are kept
+ * busy. An encoder that reads the image from top to bottom, like the PNG
+ * writer of ImageIO, never has more than a few rows of tiles in memory.
+ * Reading the image in any other order works too, but rows that have been
+ * dropped are rendered again.</p>
+ *
+ * <p>The image has to be closed once it has been read, to stop its
+ * threads.</p>
+ */
+public class TiledImage implements RenderedImage, AutoCloseable {
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    private final Function<Rectangle, BufferedImage> tileRenderer;
+
+    private final ForkJoinPool pool;
+    /**
+     * How many rows of tiles below the one being read are rendered ahead
+     */
+    private final int rowsAhead;
+
+    /**
+     * The rows of tiles that are rendered or being rendered, by index
+     */
+    private final TreeMap<Integer, List<Future<BufferedImage>>> rows =
+            new TreeMap<Integer, List<Future<BufferedImage>>>();
+
+    /**
+     * @param width
+     * @param height
+     * @param imageType the type of the BufferedImageS of the tiles
+     * @param tileSize the width and height of the tiles
+     * @param threads the number of tiles to render at the same time
+     * @param tileRenderer renders the given area of the image to a new
+     *                     image of the size of the area and of type
+     *                     <code>imageType</code>. It is called from many
+     *                     threads at the same time.
+     */
+    public TiledImage(int width, int height, int imageType, int tileSize, int threads,
+                      Function<Rectangle, BufferedImage> tileRenderer) {
+        if (width < 1 || height < 1) throw new IllegalArgumentException("The image must not be empty");
+        if (tileSize < 1) throw new IllegalArgumentException("The size of the tiles must be at least 1");
+        if (threads < 1) throw new IllegalArgumentException("The number of threads must be at least 1");
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tileRenderer = tileRenderer;
+
+        BufferedImage prototype = new BufferedImage(1, 1, imageType);
+        colorModel = prototype.getColorModel();
+        sampleModel = prototype.getSampleModel().createCompatibleSampleModel(tileSize, tileSize);
+
+        pool = new ForkJoinPool(threads);
+        rowsAhead = (threads + getNumXTiles() - 1) / getNumXTiles();
+    }
+
+    /**
+     * Stops the threads that render the tiles, and drops the tiles that
+     * have been rendered.
+     */
+    public void close() {
+        pool.shutdownNow();
+        synchronized (rows) {
+            rows.clear();
+        }
+    }
+
+    private List<Future<BufferedImage>> getRowOfTiles(int tileY) {
+        synchronized (rows) {
+            rows.headMap(tileY).clear();
+            for (int y = tileY; y <= Math.min(tileY + rowsAhead, getNumYTiles() - 1); y++) {
+                if (rows.containsKey(y)) continue;
+                List<Future<BufferedImage>> row = new ArrayList<Future<BufferedImage>>();
+                for (int x = 0; x < getNumXTiles(); x++) {
+                    Rectangle area = getTileBounds(x, y);
+                    row.add(pool.submit(() -> tileRenderer.apply(area)));
+                }
+                rows.put(y, row);
+            }
+            return rows.get(tileY);
+        }
+    }
+
+    private Rectangle getTileBounds(int tileX, int tileY) {
+        int x = tileX * tileSize;
+        int y = tileY * tileSize;
+        return new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+    }
+
+    public Raster getTile(int tileX, int tileY) {
+        if (tileX < 0 || tileX >= getNumXTiles() || tileY < 0 || tileY >= getNumYTiles())
+            throw new IllegalArgumentException("There is no tile at " + tileX + ", " + tileY);
+        Future<BufferedImage> tile = getRowOfTiles(tileY).get(tileX);
+        try {
+            return tile.get().getRaster().createTranslatedChild(tileX * tileSize, tileY * tileSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering tiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    public Raster getData(Rectangle rect) {
+        WritableRaster raster = Raster.createWritableRaster(
+                sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+        return copyData(raster);
+    }
+
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) raster = colorModel.createCompatibleWritableRaster(width, height);
+        Rectangle area = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) return raster;
+        for (int tileY = area.y / tileSize; tileY <= (area.y + area.height - 1) / tileSize; tileY++) {
+            for (int tileX = area.x / tileSize; tileX <= (area.x + area.width - 1) / tileSize; tileX++) {
+                Raster tile = getTile(tileX, tileY);
+                Rectangle overlap = tile.getBounds().intersection(area);
+                Object data = tile.getDataElements(overlap.x, overlap.y, overlap.width, overlap.height, null);
+                raster.setDataElements(overlap.x, overlap.y, overlap.width, overlap.height, data);
+            }
+        }
+        return raster;
+    }
+
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    public SampleModel getSampleModel() {
+        return sampleModel;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMinX() {
+        return 0;
+    }
+
+    public int getMinY() {
+        return 0;
+    }
+
+    public int getNumXTiles() {
+        return (width + tileSize - 1) / tileSize;
+    }
+
+    public int getNumYTiles() {
+        return (height + tileSize - 1) / tileSize;
+    }
+
+    public int getMinTileX() {
+        return 0;
+    }
+
+    public int getMinTileY() {
+        return 0;
+    }
+
+    public int getTileWidth() {
+        return tileSize;
+    }
+
+    public int getTileHeight() {
+        return tileSize;
+    }
+
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    public int getTileGridYOffset() {
+        return 0;
+    }
+}
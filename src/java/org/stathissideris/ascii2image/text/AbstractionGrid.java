@@ -18,6 +18,9 @@
  */
 package org.stathissideris.ascii2image.text;
 
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -56,31 +59,33 @@ public class AbstractionGrid {
         while (it.hasNext()) {
             TextGrid.Cell cell = (TextGrid.Cell) it.next();
             if (textGrid.isBlank(cell)) continue;
-            if (textGrid.isCross(cell)) {
+            //classify the neighbourhood once and test all the criteria against it
+            long signature = GridPatternClassifier.classify(textGrid, cell.x, cell.y);
+            if (GridPatternClassifier.matches(signature, GridPatternGroup.crossCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCross());
-            } else if (textGrid.isT(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.TCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeT());
-            } else if (textGrid.isK(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.KCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeK());
-            } else if (textGrid.isInverseT(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.inverseTCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeInverseT());
-            } else if (textGrid.isInverseK(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.inverseKCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeInverseK());
-            } else if (textGrid.isCorner1(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.corner1Criteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCorner1());
-            } else if (textGrid.isCorner2(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.corner2Criteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCorner2());
-            } else if (textGrid.isCorner3(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.corner3Criteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCorner3());
-            } else if (textGrid.isCorner4(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.corner4Criteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCorner4());
             } else if (textGrid.isHorizontalLine(cell)) {
                 set(cell.x, cell.y, AbstractCell.makeHorizontalLine());
             } else if (textGrid.isVerticalLine(cell)) {
                 set(cell.x, cell.y, AbstractCell.makeVerticalLine());
-            } else if (textGrid.isCrossOnLine(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.crossOnLineCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeCross());
-            } else if (textGrid.isStarOnLine(cell)) {
+            } else if (GridPatternClassifier.matches(signature, GridPatternGroup.starOnLineCriteria)) {
                 set(cell.x, cell.y, AbstractCell.makeStar());
             }
         }
@@ -147,13 +152,22 @@ public class AbstractionGrid {
     }
 
     public ArrayList<CellSet> getDistinctShapes() {
+        return getDistinctShapes(CancellationToken.NONE);
+    }
+
+    /**
+     * @throws ConversionAbortedException if <code>token</code> is
+     *                                    cancelled while looking for the shapes
+     */
+    public ArrayList<CellSet> getDistinctShapes(CancellationToken token) {
         ArrayList<CellSet> result = new ArrayList<CellSet>();
 
         CellSet nonBlank = grid.getAllNonBlank();
-        ArrayList<CellSet> distinct = nonBlank.breakIntoDistinctBoundaries();
+        ArrayList<CellSet> distinct = nonBlank.breakIntoDistinctBoundaries(token);
 
         Iterator<CellSet> it = distinct.iterator();
         while (it.hasNext()) {
+            token.check();
             CellSet set = it.next();
             AbstractionGrid temp = new AbstractionGrid(this.getWidth(), this.getHeight());
             temp.fillCells(set);
@@ -18,12 +18,28 @@
  */
 package org.stathissideris.ascii2image.text;
 
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
+
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.NoSuchElementException;
 
 /**
+ * A set of cells, stored as a bitmap of 64-bit words (one bit per cell,
+ * row by row) that grows as needed to cover the cells that are added.
+ *
+ * <p>The set does not keep the Cell instances that are added to it: the
+ * cells returned by the iterator and by the find methods are new
+ * instances.</p>
+ *
+ * <p>The iterator returns the cells in the order of the HashSet that used
+ * to back this class, because the shapes are traced from the first cells
+ * found and the order of the shapes and of their points shows in the
+ * output. That order follows from the order in which the cells were
+ * added, so the set records it.</p>
  *
  * @author Efstathios Sideris
  */
@@ -36,8 +52,70 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     public static final int TYPE_UNDETERMINED = 4;
     private static final boolean DEBUG = false;
     private static final boolean VERBOSE_DEBUG = false;
-    private static final Object FAKE = new Object();
-    Set<TextGrid.Cell> internalSet = new HashSet<TextGrid.Cell>();
+
+    private static final int INITIAL_ROWS = 16;
+
+    /**
+     * The initial number of buckets of a HashSet, which doubles when the
+     * set grows beyond three quarters of it
+     */
+    private static final int INITIAL_BUCKETS = 16;
+
+    /**
+     * A HashSet turns a bucket that grows beyond this many cells into a
+     * tree, if it has at least MIN_TREEIFY_BUCKETS buckets, or else it
+     * doubles its buckets
+     */
+    private static final int TREEIFY_THRESHOLD = 8;
+    private static final int MIN_TREEIFY_BUCKETS = 64;
+
+    /**
+     * Used to create the cells returned by the set
+     */
+    private static final TextGrid cellFactory = new TextGrid();
+
+    /**
+     * words[(y - originY) * wordsPerRow + (x >> 6) - originWord] holds
+     * the cell at x, y in bit (x & 63)
+     */
+    private long[] words = null;
+    private int originWord = 0;
+    private int originY = 0;
+    private int wordsPerRow = 0;
+    private int rowCount = 0;
+
+    private int size = 0;
+    private int modCount = 0;
+
+    /**
+     * The cells in the order in which they were added, packed with
+     * {@link TextGrid#packCell(int, int)}. Removed cells are only dropped
+     * when the order is next needed, so until then it may also hold cells
+     * that are no longer in the set, and cells that were added again.
+     */
+    private long[] added = null;
+    private int addedCount = 0;
+
+    /**
+     * The number of buckets the HashSet would at least have, which grows
+     * with the size of the set and never shrinks
+     */
+    private int buckets = 0;
+
+    //the cells in the order of the iterator, valid while orderModCount == modCount
+    private long[] order = null;
+    private int orderModCount = -1;
+
+    /**
+     * The sum of the hashes of all the cells, maintained as cells are
+     * added and removed, see {@link #getFingerprint()}
+     */
+    private long fingerprint = 0;
+
+    //the bounding box of the cells, valid only if boundsValid is true
+    private int minX, minY, maxX, maxY;
+    private boolean boundsValid = true;
+
     private int type = TYPE_UNDETERMINED;
     private boolean typeIsValid = false;
 
@@ -46,7 +124,25 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     }
 
     public CellSet(CellSet other) {
-        addAll(other);
+        if (other.size > 0) {
+            added = other.order().clone();
+            addedCount = other.size;
+            buckets = bucketsFor(other.size, 0);
+        }
+        if (other.words != null) {
+            words = other.words.clone();
+            originWord = other.originWord;
+            originY = other.originY;
+            wordsPerRow = other.wordsPerRow;
+            rowCount = other.rowCount;
+        }
+        size = other.size;
+        fingerprint = other.fingerprint;
+        minX = other.minX;
+        minY = other.minY;
+        maxX = other.maxX;
+        maxY = other.maxY;
+        boundsValid = other.boundsValid;
     }
 
     /**
@@ -56,60 +152,123 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      * @return
      */
     public static CellSet copyCellSet(CellSet set) {
-        TextGrid grid = new TextGrid();
-        CellSet newSet = new CellSet();
-
-        Iterator<TextGrid.Cell> it = set.iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            TextGrid.Cell newCell = grid.new Cell(cell);
-            newSet.add(newCell);
-        }
-        return newSet;
+        return new CellSet(set);
     }
 
+    /**
+     * Returns the sets of <code>list</code> without the duplicates, keeping
+     * the first of equal sets. The sets are hashed by their fingerprints,
+     * so they are only compared cell by cell when the fingerprints match.
+     *
+     * @param list
+     * @return
+     */
     public static ArrayList<CellSet> removeDuplicateSets(ArrayList<CellSet> list) {
         ArrayList<CellSet> uniqueSets = new ArrayList<CellSet>();
+        HashSet<CellSet> seen = new HashSet<CellSet>();
 
         Iterator<CellSet> it = list.iterator();
         while (it.hasNext()) {
             CellSet set = it.next();
-            boolean isOriginal = true;
-            Iterator<CellSet> uniquesIt = uniqueSets.iterator();
-            while (uniquesIt.hasNext()) {
-                CellSet uniqueSet = uniquesIt.next();
-                if (set.equals(uniqueSet)) {
-                    isOriginal = false;
-                }
-            }
-            if (isOriginal) uniqueSets.add(set);
+            if (seen.add(set)) uniqueSets.add(set);
         }
         return uniqueSets;
     }
 
     public Iterator<TextGrid.Cell> iterator() {
-        return internalSet.iterator();
+        return new CellIterator();
     }
 
     public Object add(TextGrid.Cell cell) {
-        return internalSet.add(cell);
+        return add(cell.x, cell.y);
+    }
+
+    public boolean add(int x, int y) {
+        ensureCapacity(x, y);
+        int index = indexOf(x, y);
+        long bit = 1L << x;
+        if ((words[index] & bit) != 0) return false;
+        words[index] |= bit;
+        fingerprint += hashOf(x, y);
+        append(TextGrid.packCell(x, y));
+        if (size == 0) {
+            minX = maxX = x;
+            minY = maxY = y;
+            boundsValid = true;
+        } else if (boundsValid) {
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        size++;
+        modCount++;
+        buckets = bucketsFor(size, buckets);
+        if (addedCount > 2 * size + INITIAL_BUCKETS) compactAdded();
+        return true;
     }
 
     public void addAll(CellSet set) {
-        internalSet.addAll(set.internalSet);
+        if (set.size == 0) return;
+        //the cells that are new to this set keep the order of the other set
+        for (long cell : set.order()) {
+            if (!contains(TextGrid.cellX(cell), TextGrid.cellY(cell))) append(cell);
+        }
+        set.validateBounds();
+        ensureCapacity(set.minX, set.minY);
+        ensureCapacity(set.maxX, set.maxY);
+        int fromWord = set.minX >> 6;
+        int toWord = set.maxX >> 6;
+        int added = 0;
+        for (int y = set.minY; y <= set.maxY; y++) {
+            for (int w = fromWord; w <= toWord; w++) {
+                long other = set.getWord(w, y);
+                if (other == 0) continue;
+                int index = (y - originY) * wordsPerRow + w - originWord;
+                long addedBits = other & ~words[index];
+                if (addedBits == 0) continue;
+                added += Long.bitCount(addedBits);
+                fingerprint += sumOfHashes(w, y, addedBits);
+                words[index] |= other;
+            }
+        }
+        if (added == 0) return;
+        if (size == 0) {
+            minX = set.minX;
+            maxX = set.maxX;
+            minY = set.minY;
+            maxY = set.maxY;
+            boundsValid = true;
+        } else if (boundsValid) {
+            minX = Math.min(minX, set.minX);
+            maxX = Math.max(maxX, set.maxX);
+            minY = Math.min(minY, set.minY);
+            maxY = Math.max(maxY, set.maxY);
+        }
+        size += added;
+        modCount++;
+        buckets = bucketsFor(size, buckets);
+        if (addedCount > 2 * size + INITIAL_BUCKETS) compactAdded();
     }
 
     void clear() {
-        internalSet.clear();
+        words = null;
+        wordsPerRow = rowCount = 0;
+        added = null;
+        addedCount = 0;
+        size = 0;
+        fingerprint = 0;
+        boundsValid = true;
+        modCount++;
     }
 
     public int size() {
-        return internalSet.size();
+        return size;
     }
 
     public TextGrid.Cell getFirst() {
-        //return internalSet.get(0);
-        return internalSet.iterator().next();
+        if (size == 0) throw new NoSuchElementException();
+        return toCell(order()[0]);
     }
 
     public void printAsGrid() {
@@ -153,82 +312,83 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     }
 
     public int getType(TextGrid grid) {
+        return getType(grid, CancellationToken.NONE);
+    }
+
+    /**
+     * @throws ConversionAbortedException if <code>token</code> is
+     *                                    cancelled while evaluating the type
+     */
+    public int getType(TextGrid grid, CancellationToken token) {
         if (typeIsValid) return type;
+        //only cached once it is known, an aborted evaluation is started over
+        type = evaluateType(grid, token);
         typeIsValid = true;
-        if (size() == 1) {
-            type = TYPE_OPEN;
-            return TYPE_OPEN;
-        }
-        int typeTrace = getTypeAccordingToTraceMethod(grid);
+        return type;
+    }
+
+    private int evaluateType(TextGrid grid, CancellationToken token) {
+        if (size() == 1) return TYPE_OPEN;
+        int typeTrace = getTypeAccordingToTraceMethod(grid, token);
 
         if (DEBUG) {
             System.out.println("trace: " + typeTrace);
         }
 
-        if (typeTrace == TYPE_OPEN) {
-            type = TYPE_OPEN;
-            return TYPE_OPEN;
-        }
-        if (typeTrace == TYPE_CLOSED) {
-            type = TYPE_CLOSED;
-            return TYPE_CLOSED;
-        }
+        if (typeTrace == TYPE_OPEN) return TYPE_OPEN;
+        if (typeTrace == TYPE_CLOSED) return TYPE_CLOSED;
 
         if (typeTrace == TYPE_UNDETERMINED) {
-            int typeFill = getTypeAccordingToFillMethod(grid);
-            if (typeFill == TYPE_HAS_CLOSED_AREA) {
-                type = TYPE_MIXED;
-                return TYPE_MIXED;
-            } else if (typeFill == TYPE_OPEN) {
-                type = TYPE_OPEN;
-                return TYPE_OPEN;
-            }
+            int typeFill = getTypeAccordingToFillMethod(grid, token);
+            if (typeFill == TYPE_HAS_CLOSED_AREA) return TYPE_MIXED;
+            else if (typeFill == TYPE_OPEN) return TYPE_OPEN;
         }
 
         //in the case that both return undetermined:
-        type = TYPE_UNDETERMINED;
         return TYPE_UNDETERMINED;
     }
 
-    private int getTypeAccordingToTraceMethod(TextGrid grid) {
+    private int getTypeAccordingToTraceMethod(TextGrid grid, CancellationToken token) {
         if (size() < 2) return TYPE_OPEN;
 
         TextGrid workGrid = TextGrid.makeSameSizeAs(grid);
         grid.copyCellsTo(this, workGrid);
 
         //start with a line end if it exists or with a "random" cell if not
-        TextGrid.Cell start = null;
-        for (TextGrid.Cell cell : this)
-            if (workGrid.isLinesEnd(cell))
+        long[] cells = getPackedCells();
+        long start = cells[0];
+        for (long cell : cells)
+            if (workGrid.isLinesEnd(TextGrid.cellX(cell), TextGrid.cellY(cell)))
                 start = cell;
-        if (start == null) start = getFirst();
 
         if (DEBUG)
-            System.out.println("Tracing:\nStarting at " + start + " (" + grid.getCellTypeAsString(start) + ")");
-        TextGrid.Cell previous = start;
-        TextGrid.Cell cell = null;
-        CellSet nextCells = workGrid.followCell(previous);
-        if (nextCells.size() == 0) return TYPE_OPEN;
-        cell = nextCells.getFirst();
+            System.out.println("Tracing:\nStarting at " + toCell(start) + " (" + grid.getCellTypeAsString(toCell(start)) + ")");
+        long[] next = new long[4];
+        long previous = start;
+        int count = workGrid.followCell(previous, TextGrid.NO_CELL, next);
+        if (count == 0) return TYPE_OPEN;
+        long cell = next[0];
         if (DEBUG)
-            System.out.println("\tat cell " + cell + " (" + grid.getCellTypeAsString(cell) + ")");
+            System.out.println("\tat cell " + toCell(cell) + " (" + grid.getCellTypeAsString(toCell(cell)) + ")");
 
 
-        while (!cell.equals(start)) {
-            nextCells = workGrid.followCell(cell, previous);
-            if (nextCells.size() == 0) {
+        int steps = 0;
+        while (cell != start) {
+            if ((++steps & CancellationToken.CHECK_MASK) == 0) token.check();
+            count = workGrid.followCell(cell, previous, next);
+            if (count == 0) {
                 if (DEBUG)
                     System.out.println("-> Found dead-end, shape is open");
                 return TYPE_OPEN;
             }
-            if (nextCells.size() == 1) {
+            if (count == 1) {
                 previous = cell;
-                cell = nextCells.getFirst();
+                cell = next[0];
                 if (DEBUG)
-                    System.out.println("\tat cell " + cell + " (" + grid.getCellTypeAsString(cell) + ")");
-            } else if (nextCells.size() > 1) {
+                    System.out.println("\tat cell " + toCell(cell) + " (" + grid.getCellTypeAsString(toCell(cell)) + ")");
+            } else {
                 if (DEBUG)
-                    System.out.println("-> Found intersection at cell " + cell);
+                    System.out.println("-> Found intersection at cell " + toCell(cell));
                 return TYPE_UNDETERMINED;
             }
         }
@@ -265,7 +425,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 //		else return TYPE_OPEN;
     }
 
-    private int getTypeAccordingToFillMethod(TextGrid grid) {
+    private int getTypeAccordingToFillMethod(TextGrid grid, CancellationToken token) {
         if (size() == 0) return TYPE_OPEN;
 
         CellSet tempSet = copyCellSet(this);
@@ -293,7 +453,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
             return TYPE_UNDETERMINED;
         }
 
-        temp.fillContinuousArea(fillCell, '*');
+        temp.fillContinuousArea(fillCell, '*', token);
         if (VERBOSE_DEBUG) {
             System.out.println("Buffer after filling:");
             temp.printDebug();
@@ -305,35 +465,37 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
     public void translate(int dx, int dy) {
         typeIsValid = false;
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cCell = it.next();
-            cCell.x += dx;
-            cCell.y += dy;
-        }
+        if (size == 0) return;
+        CellSet translated = new CellSet();
+        for (TextGrid.Cell cell : this) translated.add(cell.x + dx, cell.y + dy);
+        added = translated.added;
+        addedCount = translated.addedCount;
+        words = translated.words;
+        originWord = translated.originWord;
+        originY = translated.originY;
+        wordsPerRow = translated.wordsPerRow;
+        rowCount = translated.rowCount;
+        minX = translated.minX;
+        minY = translated.minY;
+        maxX = translated.maxX;
+        maxY = translated.maxY;
+        boundsValid = translated.boundsValid;
+        fingerprint = translated.fingerprint;
+        modCount++;
     }
 
     public TextGrid.Cell find(TextGrid.Cell cell) {
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cCell = it.next();
-            if (cCell.equals(cell)) return cCell;
-        }
-        return null;
+        if (cell == null) return null;
+        return find(cell.x, cell.y);
     }
 
-//	public boolean contains(TextGrid.Cell cell){
-//		Iterator<TextGrid.Cell> it = iterator();
-//		while(it.hasNext()){
-//			TextGrid.Cell cCell = it.next();
-//			if(cCell.equals(cell)) return true;
-//		}
-//		return false;		
-//	}
-
     public boolean contains(TextGrid.Cell cell) {
         if (cell == null) return false;
-        return internalSet.contains(cell);
+        return contains(cell.x, cell.y);
+    }
+
+    public boolean contains(int x, int y) {
+        return (getWord(x >> 6, y) & (1L << x)) != 0;
     }
 
     public void addSet(CellSet set) {
@@ -342,25 +504,32 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     }
 
     public boolean hasCommonCells(CellSet otherSet) {
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (otherSet.contains(cell)) return true;
+        if (size == 0 || otherSet.size == 0) return false;
+        validateBounds();
+        otherSet.validateBounds();
+        int fromY = Math.max(minY, otherSet.minY);
+        int toY = Math.min(maxY, otherSet.maxY);
+        int fromWord = Math.max(minX, otherSet.minX) >> 6;
+        int toWord = Math.min(maxX, otherSet.maxX) >> 6;
+        for (int y = fromY; y <= toY; y++) {
+            for (int w = fromWord; w <= toWord; w++) {
+                if ((getWord(w, y) & otherSet.getWord(w, y)) != 0) return true;
+            }
         }
         return false;
     }
 
     public TextGrid.Cell find(int x, int y) {
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cCell = it.next();
-            if (cCell.x == x && cCell.y == y) return cCell;
-        }
-        return null;
+        if (!contains(x, y)) return null;
+        return cellFactory.new Cell(x, y);
     }
 
     public CellSet getFilledEquivalent(TextGrid textGrid) {
-        if (this.getType(textGrid) == CellSet.TYPE_OPEN) return new CellSet(this);
+        return getFilledEquivalent(textGrid, CancellationToken.NONE);
+    }
+
+    public CellSet getFilledEquivalent(TextGrid textGrid, CancellationToken token) {
+        if (this.getType(textGrid, token) == CellSet.TYPE_OPEN) return new CellSet(this);
         TextGrid grid = new TextGrid(getMaxX() + 2, getMaxY() + 2);
         grid.fillCellsWith(this, '*');
 
@@ -380,13 +549,14 @@ public class CellSet implements Iterable<TextGrid.Cell> {
         if (cell != null) {
             cell = cell.getEast();
             if (grid.isOutOfBounds(cell)) return new CellSet(this);
-            grid.fillContinuousArea(cell, '*');
+            grid.fillContinuousArea(cell, '*', token);
             return grid.getAllNonBlank();
         }
         System.err.println("Unexpected error, cannot find the filled equivalent of CellSet");
         return null;
     }
 
+
     /**
      * Returns the first cell that is found to be next to <code>cell</code>.
      *
@@ -394,12 +564,9 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      * @return
      */
     public TextGrid.Cell findCellNextTo(TextGrid.Cell cell) {
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cCell = it.next();
-            if (cCell.isNextTo(cell)) return cCell;
-        }
-        return null;
+        CellSet set = findCellsNextTo(cell);
+        if (set.size == 0) return null;
+        return set.getFirst();
     }
 
     /**
@@ -410,32 +577,53 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      */
     public CellSet findCellsNextTo(TextGrid.Cell cell) {
         if (cell == null) throw new IllegalArgumentException("cell cannot be null");
+        int count = 0;
+        if (contains(cell.x, cell.y - 1)) count++;
+        if (contains(cell.x - 1, cell.y)) count++;
+        if (contains(cell.x + 1, cell.y)) count++;
+        if (contains(cell.x, cell.y + 1)) count++;
+        //added in the order of the iterator
         CellSet set = new CellSet();
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cCell = it.next();
-            if (cCell.isNextTo(cell)) set.add(cCell);
+        for (long next : order()) {
+            if (set.size == count) break;
+            int x = TextGrid.cellX(next);
+            int y = TextGrid.cellY(next);
+            if (Math.abs(x - cell.x) + Math.abs(y - cell.y) == 1) set.add(x, y);
         }
         return set;
     }
 
     public void appendSet(CellSet set) {
         typeIsValid = false;
-        Iterator<TextGrid.Cell> it = set.iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (find(cell) == null) add(cell);
-        }
+        addAll(set);
     }
 
     public void subtractSet(CellSet set) {
         typeIsValid = false;
-        Iterator<TextGrid.Cell> it = set.iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            TextGrid.Cell thisCell = find(cell);
-            if (thisCell != null) remove(thisCell);
+        if (size == 0 || set.size == 0) return;
+        validateBounds();
+        set.validateBounds();
+        int fromY = Math.max(minY, set.minY);
+        int toY = Math.min(maxY, set.maxY);
+        int fromWord = Math.max(minX, set.minX) >> 6;
+        int toWord = Math.min(maxX, set.maxX) >> 6;
+        int removed = 0;
+        for (int y = fromY; y <= toY; y++) {
+            for (int w = fromWord; w <= toWord; w++) {
+                long other = set.getWord(w, y);
+                if (other == 0) continue;
+                int index = (y - originY) * wordsPerRow + w - originWord;
+                long removedBits = words[index] & other;
+                if (removedBits == 0) continue;
+                removed += Long.bitCount(removedBits);
+                fingerprint -= sumOfHashes(w, y, removedBits);
+                words[index] &= ~other;
+            }
         }
+        if (removed == 0) return;
+        size -= removed;
+        boundsValid = false;
+        modCount++;
     }
 
     public int getWidth() {
@@ -447,55 +635,382 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     }
 
     public int getMaxX() {
-        int result = 0;
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (cell.x > result) result = cell.x;
-        }
-        return result;
+        if (size == 0) return 0;
+        validateBounds();
+        return Math.max(0, maxX);
     }
 
     public int getMinX() {
-        int result = Integer.MAX_VALUE;
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (cell.x < result) result = cell.x;
-        }
-        return result;
+        if (size == 0) return Integer.MAX_VALUE;
+        validateBounds();
+        return minX;
     }
 
     public int getMaxY() {
-        int result = 0;
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (cell.y > result) result = cell.y;
-        }
-        return result;
+        if (size == 0) return 0;
+        validateBounds();
+        return Math.max(0, maxY);
     }
 
     public int getMinY() {
-        int result = Integer.MAX_VALUE;
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell cell = it.next();
-            if (cell.y < result) result = cell.y;
-        }
-        return result;
+        if (size == 0) return Integer.MAX_VALUE;
+        validateBounds();
+        return minY;
     }
 
     public Object remove(TextGrid.Cell cell) {
+        if (!remove(cell.x, cell.y)) return null;
+        return Boolean.TRUE;
+    }
+
+    public boolean remove(int x, int y) {
         typeIsValid = false;
-        cell = find(cell);
-        if (cell != null) return internalSet.remove(cell);
-        else return null;
+        if (!contains(x, y)) return false;
+        words[indexOf(x, y)] &= ~(1L << x);
+        fingerprint -= hashOf(x, y);
+        size--;
+        if (boundsValid && (x == minX || x == maxX || y == minY || y == maxY))
+            boundsValid = false;
+        modCount++;
+        return true;
     }
 
     public boolean equals(Object o) {
         CellSet otherSet = (CellSet) o;
-        return internalSet.equals(otherSet.internalSet);
+        if (size != otherSet.size || fingerprint != otherSet.fingerprint) return false;
+        if (size == 0) return true;
+        validateBounds();
+        int fromWord = minX >> 6;
+        int toWord = maxX >> 6;
+        for (int y = minY; y <= maxY; y++) {
+            for (int w = fromWord; w <= toWord; w++) {
+                long word = getWord(w, y);
+                if ((word & ~otherSet.getWord(w, y)) != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    /**
+     * Returns a 64-bit hash of the contents of the set, which does not
+     * depend on the order in which the cells were added. It is kept up
+     * to date as the set changes, so it costs nothing to call. Equal sets
+     * have equal fingerprints, and different sets almost never do.
+     *
+     * @return
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * A well mixed 64-bit hash of a cell, so that the sum of the hashes
+     * of the cells of a set rarely collides with another set's
+     */
+    private static long hashOf(int x, int y) {
+        long h = ((long) x << 32) ^ (y & 0xffffffffL);
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * @return the sum of the hashes of the cells of word w of row y that
+     * are set in <code>bits</code>
+     */
+    private static long sumOfHashes(int w, int y, long bits) {
+        long sum = 0;
+        while (bits != 0) {
+            sum += hashOf((w << 6) + Long.numberOfTrailingZeros(bits), y);
+            bits &= bits - 1;
+        }
+        return sum;
+    }
+
+    private int indexOf(int x, int y) {
+        return (y - originY) * wordsPerRow + (x >> 6) - originWord;
+    }
+
+    /**
+     * @return the word that holds the cells from (w * 64, y) to
+     * (w * 64 + 63, y), or 0 if it is outside the bitmap
+     */
+    private long getWord(int w, int y) {
+        int row = y - originY;
+        int column = w - originWord;
+        if (row < 0 || row >= rowCount || column < 0 || column >= wordsPerRow) return 0;
+        return words[row * wordsPerRow + column];
+    }
+
+    /**
+     * Grows the bitmap so that it covers x, y. Each dimension at least
+     * doubles when it grows, so adding cells one by one is linear.
+     */
+    private void ensureCapacity(int x, int y) {
+        int w = x >> 6;
+        if (words == null) {
+            originWord = w;
+            originY = y;
+            wordsPerRow = 1;
+            rowCount = INITIAL_ROWS;
+            words = new long[wordsPerRow * rowCount];
+            return;
+        }
+        int row = y - originY;
+        int column = w - originWord;
+        if (row >= 0 && row < rowCount && column >= 0 && column < wordsPerRow) return;
+
+        int newOriginY = originY;
+        int newRowCount = rowCount;
+        if (row < 0) {
+            newOriginY = Math.min(y, originY - rowCount);
+            newRowCount = rowCount + originY - newOriginY;
+        } else if (row >= rowCount) {
+            newRowCount = Math.max(row + 1, rowCount * 2);
+        }
+        int newOriginWord = originWord;
+        int newWordsPerRow = wordsPerRow;
+        if (column < 0) {
+            newOriginWord = Math.min(w, originWord - wordsPerRow);
+            newWordsPerRow = wordsPerRow + originWord - newOriginWord;
+        } else if (column >= wordsPerRow) {
+            newWordsPerRow = Math.max(column + 1, wordsPerRow * 2);
+        }
+
+        long[] newWords = new long[newWordsPerRow * newRowCount];
+        int rowOffset = originY - newOriginY;
+        int columnOffset = originWord - newOriginWord;
+        for (int r = 0; r < rowCount; r++) {
+            System.arraycopy(words, r * wordsPerRow,
+                    newWords, (r + rowOffset) * newWordsPerRow + columnOffset, wordsPerRow);
+        }
+        words = newWords;
+        originY = newOriginY;
+        rowCount = newRowCount;
+        originWord = newOriginWord;
+        wordsPerRow = newWordsPerRow;
+    }
+
+    /**
+     * Records that a cell has been added to the set
+     */
+    private void append(long cell) {
+        if (added == null) {
+            added = new long[INITIAL_BUCKETS];
+        } else if (addedCount == added.length) {
+            long[] grown = new long[added.length * 2];
+            System.arraycopy(added, 0, grown, 0, addedCount);
+            added = grown;
+        }
+        added[addedCount++] = cell;
+    }
+
+    /**
+     * Drops the cells that have been removed from the set from the record
+     * of the added cells, keeping the last time each cell was added
+     */
+    private void compactAdded() {
+        if (addedCount == size) return;
+        if (size == 0) {
+            added = null;
+            addedCount = 0;
+            return;
+        }
+        long[] remaining = words.clone();
+        long[] compacted = new long[Math.max(INITIAL_BUCKETS, size * 2)];
+        int count = size;
+        for (int i = addedCount - 1; i >= 0 && count > 0; i--) {
+            int x = TextGrid.cellX(added[i]);
+            int index = indexOf(x, TextGrid.cellY(added[i]));
+            long bit = 1L << x;
+            if ((remaining[index] & bit) == 0) continue;
+            remaining[index] &= ~bit;
+            compacted[--count] = added[i];
+        }
+        added = compacted;
+        addedCount = size;
+    }
+
+    /**
+     * The cells of a set that had cells removed are ordered as if they had
+     * been added in the order they were last added, which is how a HashSet
+     * orders them unless it turned a bucket into a tree.
+     *
+     * @return the cells in the order of the iterator, which must not be
+     * modified by the caller
+     */
+    private long[] order() {
+        if (order != null && orderModCount == modCount) return order;
+        compactAdded();
+        int tableSize = getHashTableSize();
+        if (tableSize < 0) {
+            order = replayOrder();
+        } else {
+            //sorted by bucket, in the order they were added within a bucket
+            tableSize = Math.max(tableSize, buckets);
+            int[] starts = new int[tableSize + 1];
+            for (int i = 0; i < size; i++) starts[bucketOf(added[i], tableSize) + 1]++;
+            for (int b = 0; b < tableSize; b++) starts[b + 1] += starts[b];
+            order = new long[size];
+            for (int i = 0; i < size; i++) order[starts[bucketOf(added[i], tableSize)]++] = added[i];
+        }
+        orderModCount = modCount;
+        return order;
+    }
+
+    /**
+     * Follows the buckets of a HashSet as the cells are added to it.
+     *
+     * @return the number of buckets it ends up with, or -1 if it turns a
+     * bucket into a tree, which it iterates in a different order
+     */
+    private int getHashTableSize() {
+        int tableSize = INITIAL_BUCKETS;
+        int[] counts = new int[tableSize];
+        for (int i = 0; i < size; i++) {
+            boolean grow = i + 1 > tableSize / 4 * 3;
+            if (++counts[bucketOf(added[i], tableSize)] > TREEIFY_THRESHOLD) {
+                if (tableSize >= MIN_TREEIFY_BUCKETS) return -1;
+                grow = true;
+            }
+            if (grow) {
+                tableSize *= 2;
+                if (i + 1 > tableSize / 4 * 3) tableSize *= 2;
+                counts = new int[tableSize];
+                for (int j = 0; j <= i; j++) counts[bucketOf(added[j], tableSize)]++;
+            }
+        }
+        return tableSize;
+    }
+
+    /**
+     * @return the cells in the order of a HashSet that they are added to,
+     * for when it does not keep them simply by bucket
+     */
+    private long[] replayOrder() {
+        HashSet<HashedCell> set = new HashSet<HashedCell>();
+        for (int i = 0; i < size; i++) set.add(new HashedCell(added[i]));
+        long[] result = new long[size];
+        int i = 0;
+        for (HashedCell cell : set) result[i++] = cell.packed;
+        return result;
+    }
+
+    /**
+     * @return the bucket that a cell would be in in a HashSet with
+     * <code>buckets</code> buckets, from the hash code of {@link TextGrid.Cell}
+     */
+    private static int bucketOf(long cell, int buckets) {
+        int h = (TextGrid.cellX(cell) << 16) | TextGrid.cellY(cell);
+        return (h ^ (h >>> 16)) & (buckets - 1);
+    }
+
+    /**
+     * Sorts the first <code>count</code> cells of <code>cells</code> into
+     * the order of the iterator of a set they are added to in that order.
+     * It is meant for a few cells, such as the neighbours of a cell.
+     */
+    static void sortInIterationOrder(long[] cells, int count) {
+        for (int i = 1; i < count; i++) {
+            long cell = cells[i];
+            int bucket = bucketOf(cell, INITIAL_BUCKETS);
+            int j = i;
+            for (; j > 0 && bucketOf(cells[j - 1], INITIAL_BUCKETS) > bucket; j--) cells[j] = cells[j - 1];
+            cells[j] = cell;
+        }
+    }
+
+    /**
+     * @return the number of buckets of a HashSet of <code>size</code>
+     * cells that had <code>buckets</code> buckets before
+     */
+    private static int bucketsFor(int size, int buckets) {
+        if (buckets == 0) buckets = INITIAL_BUCKETS;
+        while (size > buckets / 4 * 3) buckets *= 2;
+        return buckets;
+    }
+
+    /**
+     * Recomputes the bounding box after cells have been removed
+     */
+    private void validateBounds() {
+        if (boundsValid || size == 0) return;
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < wordsPerRow; c++) {
+                long word = words[r * wordsPerRow + c];
+                if (word == 0) continue;
+                int x = (originWord + c) << 6;
+                minX = Math.min(minX, x + Long.numberOfTrailingZeros(word));
+                maxX = Math.max(maxX, x + 63 - Long.numberOfLeadingZeros(word));
+                minY = Math.min(minY, originY + r);
+                maxY = originY + r;
+            }
+        }
+        boundsValid = true;
+    }
+
+    /**
+     * @return the cells of the set packed with {@link TextGrid#packCell(int, int)},
+     * in the order of the iterator
+     */
+    public long[] getPackedCells() {
+        if (size == 0) return new long[0];
+        return order().clone();
+    }
+
+    /**
+     * A packed cell with the hash code of {@link TextGrid.Cell}
+     */
+    private static final class HashedCell {
+        private final long packed;
+
+        HashedCell(long packed) {
+            this.packed = packed;
+        }
+
+        public int hashCode() {
+            return (TextGrid.cellX(packed) << 16) | TextGrid.cellY(packed);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof HashedCell && ((HashedCell) o).packed == packed;
+        }
+    }
+
+    private static TextGrid.Cell toCell(long cell) {
+        return cellFactory.new Cell(TextGrid.cellX(cell), TextGrid.cellY(cell));
+    }
+
+    private class CellIterator implements Iterator<TextGrid.Cell> {
+        private final long[] cells = size == 0 ? new long[0] : order();
+        private int index = 0;
+        private int expectedModCount = modCount;
+        private TextGrid.Cell last = null;
+
+        public boolean hasNext() {
+            return index < cells.length;
+        }
+
+        public TextGrid.Cell next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            last = toCell(cells[index++]);
+            return last;
+        }
+
+        public void remove() {
+            if (last == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            CellSet.this.remove(last.x, last.y);
+            expectedModCount = modCount;
+            last = null;
+        }
     }
 
     /**
@@ -504,10 +1019,14 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      * @return ArrayList of distinct BoundarySetS
      */
     public ArrayList<CellSet> breakIntoDistinctBoundaries(TextGrid grid) {
+        return breakIntoDistinctBoundaries(grid, CancellationToken.NONE);
+    }
+
+    public ArrayList<CellSet> breakIntoDistinctBoundaries(TextGrid grid, CancellationToken token) {
         ArrayList<CellSet> result;
 
         AbstractionGrid temp = new AbstractionGrid(grid, this);
-        result = temp.getDistinctShapes();
+        result = temp.getDistinctShapes(token);
 
         return result;
     }
@@ -518,6 +1037,10 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      * @return ArrayList of distinct BoundarySetS
      */
     public ArrayList<CellSet> breakIntoDistinctBoundaries() {
+        return breakIntoDistinctBoundaries(CancellationToken.NONE);
+    }
+
+    public ArrayList<CellSet> breakIntoDistinctBoundaries(CancellationToken token) {
         ArrayList<CellSet> result = new ArrayList<CellSet>();
 
         //CellSet tempSet = copyCellSet(this);
@@ -534,7 +1057,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
         while (it.hasNext()) {
             TextGrid.Cell cell = it.next();
             if (boundaryGrid.isBlank(cell.x, cell.y)) continue;
-            CellSet boundarySet = boundaryGrid.fillContinuousArea(cell.x, cell.y, ' ');
+            CellSet boundarySet = boundaryGrid.fillContinuousArea(boundaryGrid.new Cell(cell.x, cell.y), ' ', token);
             //boundarySet.translate( this.getMinX() - 1, this.getMinY() - 1);
             result.add(boundarySet);
         }
@@ -571,6 +1094,10 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      * and they are equivalent to the <code>this</code>
      */
     public ArrayList<CellSet> breakTrulyMixedBoundaries(TextGrid grid) {
+        return breakTrulyMixedBoundaries(grid, CancellationToken.NONE);
+    }
+
+    public ArrayList<CellSet> breakTrulyMixedBoundaries(TextGrid grid, CancellationToken token) {
         ArrayList<CellSet> result = new ArrayList<CellSet>();
         CellSet visitedEnds = new CellSet();
 
@@ -582,47 +1109,49 @@ public class CellSet implements Iterable<TextGrid.Cell> {
             workGrid.printDebug();
         }
 
-        Iterator<TextGrid.Cell> it = iterator();
-        while (it.hasNext()) {
-            TextGrid.Cell start = it.next();
-            if (workGrid.isLinesEnd(start) && !visitedEnds.contains(start)) {
+        long[] next = new long[4];
+        for (long start : getPackedCells()) {
+            int startX = TextGrid.cellX(start);
+            int startY = TextGrid.cellY(start);
+            if (workGrid.isLinesEnd(startX, startY) && !visitedEnds.contains(startX, startY)) {
 
                 if (DEBUG)
                     System.out.println("Starting new subshape:");
 
                 CellSet set = new CellSet();
-                set.add(start);
-                if (DEBUG) System.out.println("Added boundary " + start);
+                set.add(startX, startY);
+                if (DEBUG) System.out.println("Added boundary " + toCell(start));
 
-                TextGrid.Cell previous = start;
-                TextGrid.Cell cell = null;
-                CellSet nextCells = workGrid.followCell(previous);
-                if (nextCells.size() == 0)
+                long previous = start;
+                int count = workGrid.followCell(previous, TextGrid.NO_CELL, next);
+                if (count == 0)
                     throw new IllegalArgumentException("This shape is either open but multipart or has only one cell, and cannot be processed by this method");
-                cell = nextCells.getFirst();
-                set.add(cell);
-                if (DEBUG) System.out.println("Added boundary " + cell);
+                long cell = next[0];
+                set.add(TextGrid.cellX(cell), TextGrid.cellY(cell));
+                if (DEBUG) System.out.println("Added boundary " + toCell(cell));
 
                 boolean finished = false;
-                if (workGrid.isLinesEnd(cell)) {
-                    visitedEnds.add(cell);
+                if (workGrid.isLinesEnd(TextGrid.cellX(cell), TextGrid.cellY(cell))) {
+                    visitedEnds.add(TextGrid.cellX(cell), TextGrid.cellY(cell));
                     finished = true;
                 }
 
+                int steps = 0;
                 while (!finished) {
-                    nextCells = workGrid.followCell(cell, previous);
-                    if (nextCells.size() == 1) {
-                        set.add(cell);
-                        if (DEBUG) System.out.println("Added boundary " + cell);
+                    if ((++steps & CancellationToken.CHECK_MASK) == 0) token.check();
+                    count = workGrid.followCell(cell, previous, next);
+                    if (count == 1) {
+                        set.add(TextGrid.cellX(cell), TextGrid.cellY(cell));
+                        if (DEBUG) System.out.println("Added boundary " + toCell(cell));
                         previous = cell;
-                        cell = nextCells.getFirst();
+                        cell = next[0];
                         //if(!cell.equals(start) && grid.isPointCell(cell))
                         //	s.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
-                        if (workGrid.isLinesEnd(cell)) {
-                            visitedEnds.add(cell);
+                        if (workGrid.isLinesEnd(TextGrid.cellX(cell), TextGrid.cellY(cell))) {
+                            visitedEnds.add(TextGrid.cellX(cell), TextGrid.cellY(cell));
                             finished = true;
                         }
-                    } else if (nextCells.size() > 1) {
+                    } else if (count > 1) {
                         finished = true;
                     }
                 }
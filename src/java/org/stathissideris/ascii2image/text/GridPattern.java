@@ -19,7 +19,6 @@
 package org.stathissideris.ascii2image.text;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.regex.Pattern;
 
 /**
@@ -79,6 +78,11 @@ public class GridPattern extends TextGrid {
     private ArrayList<Pattern> regExps = new ArrayList<Pattern>(); //TODO optimise: store as PatternS
     private boolean regExpsAreValid = false;
     private boolean usesStandardSyntax = false;
+    /**
+     * The rows given to {@link #setTo}, which may be longer than the grid
+     * holds, or null if it was never called
+     */
+    private String[] patternRows = null;
 
     public GridPattern() {
         super(3, 3);
@@ -208,26 +212,55 @@ public class GridPattern extends TextGrid {
         if (DEBUG)
             System.out.println("Trying to match:");
         if (!usesStandardSyntax) {
-            Iterator<StringBuilder> it = getRows().iterator();
-            while (it.hasNext()) {
-                String row = it.next().toString();
+            for (int i = 0; i < getHeight(); i++) {
+                String row = getPatternRow(i);
                 regExps.add(Pattern.compile(makeRegExp(row)));
                 if (DEBUG)
                     System.out.println(row + " becomes " + makeRegExp(row));
             }
         } else {
-            Iterator<StringBuilder> it = getRows().iterator();
-            while (it.hasNext()) {
-                String row = it.next().toString();
-                regExps.add(Pattern.compile(row));
+            for (int i = 0; i < getHeight(); i++) {
+                regExps.add(Pattern.compile(getPatternRow(i)));
             }
         }
     }
 
+    /**
+     * Splits every row of this pattern into the single-character regular
+     * expressions its cells stand for. Only available for patterns that
+     * use the custom syntax, since standard regular expressions cannot
+     * be split per cell.
+     *
+     * @return one array of cell expressions per row
+     */
+    String[][] getCellRegExps() {
+        if (usesStandardSyntax)
+            throw new IllegalStateException("Cannot split a pattern that uses standard syntax into cells");
+        String[][] result = new String[getHeight()][];
+        for (int i = 0; i < getHeight(); i++) {
+            ArrayList<String> cells = makeCellRegExps(getPatternRow(i));
+            result[i] = cells.toArray(new String[cells.size()]);
+        }
+        return result;
+    }
+
+    private String getPatternRow(int i) {
+        return patternRows == null ? getRow(i).toString() : patternRows[i];
+    }
+
     private String makeRegExp(String pattern) {
         StringBuilder result = new StringBuilder();
+        for (String cellRegExp : makeCellRegExps(pattern)) {
+            result.append(cellRegExp);
+        }
+        return result.toString();
+    }
+
+    private ArrayList<String> makeCellRegExps(String pattern) {
+        ArrayList<String> cells = new ArrayList<String>();
         int tokensHandled = 0;
         for (int i = 0; i < pattern.length() && tokensHandled < 3; i++) {
+            StringBuilder result = new StringBuilder();
             char c = pattern.charAt(i);
             if (c == '[') {
                 result.append("[^|:]");
@@ -313,8 +346,15 @@ public class GridPattern extends TextGrid {
                     result.append("[^-=+\\/\\\\]");
                 }
             } else result.append(String.valueOf(c));
+            cells.add(result.toString());
             tokensHandled++;
         }
+        return cells;
+    }
+
+    private String padRow(String row) {
+        StringBuilder result = new StringBuilder(row);
+        while (result.length() < getWidth()) result.append(' ');
         return result.toString();
     }
 
@@ -326,5 +366,6 @@ public class GridPattern extends TextGrid {
         writeStringTo(0, 1, row2);
         writeStringTo(0, 2, row3);
         //don't use setRow() here!
+        patternRows = new String[]{padRow(row1), padRow(row2), padRow(row3)};
     }
 }
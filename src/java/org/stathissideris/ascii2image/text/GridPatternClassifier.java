@@ -0,0 +1,176 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.IdentityHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled form of the GridPatternS used by the criteria of
+ * GridPatternGroup.
+ *
+ * <p>Every character that can appear in a 3x3 neighbourhood is first
+ * reduced to one of a few character classes (the characters the custom
+ * pattern syntax can tell apart). For every one of the 9 positions and
+ * every class we precompute a bit mask of the patterns that accept that
+ * class at that position, so matching a neighbourhood against a whole
+ * GridPatternGroup is an AND of 9 table lookups with the group's mask,
+ * with no sub-grids, strings or regular expressions involved.</p>
+ *
+ * <p>The tables are derived from the same single-cell regular expressions
+ * that GridPattern uses, so the two cannot go out of sync.</p>
+ */
+public class GridPatternClassifier {
+
+    /**
+     * One representative character for each character class. Any
+     * character not listed here (including the 0 returned for cells
+     * that are out of bounds) behaves like the first one.
+     */
+    private static final char[] classRepresentatives =
+            {'x', '-', '=', '/', '\\', '+', '|', ':', '*', '\n'};
+
+    private static final int CLASS_OTHER = 0;
+    private static final int CLASS_LINE_TERMINATOR = classRepresentatives.length - 1;
+
+    private static final byte[] asciiClasses = new byte[128];
+
+    static {
+        for (int i = 1; i < classRepresentatives.length; i++)
+            asciiClasses[classRepresentatives[i]] = (byte) i;
+        asciiClasses['\r'] = (byte) CLASS_LINE_TERMINATOR;
+    }
+
+    /**
+     * acceptedBy[position][class] has bit i set if the i-th compiled
+     * pattern accepts a character of that class at that position
+     * (positions are numbered row by row).
+     */
+    private static final long[][] acceptedBy = new long[9][classRepresentatives.length];
+
+    private static final IdentityHashMap<GridPattern, Long> patternBits =
+            new IdentityHashMap<GridPattern, Long>();
+
+    private GridPatternClassifier() {
+    }
+
+    /**
+     * Compiles all the patterns of <code>groups</code> into the lookup
+     * tables and marks the groups as compiled. The patterns must be 3x3
+     * and use the custom syntax. Groups should not be modified after
+     * they have been compiled.
+     *
+     * @param groups
+     */
+    public static synchronized void compile(GridPatternGroup... groups) {
+        for (GridPatternGroup group : groups) {
+            long mask = 0;
+            for (GridPattern pattern : group) {
+                Long bit = patternBits.get(pattern);
+                if (bit == null) bit = addPattern(pattern);
+                mask |= bit;
+            }
+            group.setCompiledMask(mask);
+        }
+    }
+
+    private static long addPattern(GridPattern pattern) {
+        if (patternBits.size() == Long.SIZE)
+            throw new IllegalStateException("Cannot compile more than " + Long.SIZE + " patterns");
+        long bit = 1L << patternBits.size();
+
+        String[][] cells = pattern.getCellRegExps();
+        if (cells.length != 3)
+            throw new IllegalArgumentException("Only 3x3 patterns can be compiled");
+        for (int row = 0; row < 3; row++) {
+            if (cells[row].length != 3)
+                throw new IllegalArgumentException("Only 3x3 patterns can be compiled");
+            for (int column = 0; column < 3; column++) {
+                if (cells[row][column].length() == 0)
+                    throw new IllegalArgumentException("Invalid pattern cell at " + column + ", " + row);
+                Pattern regexp = Pattern.compile(cells[row][column]);
+                for (int c = 0; c < classRepresentatives.length; c++) {
+                    String s = String.valueOf(classRepresentatives[c]);
+                    if (regexp.matcher(s).matches())
+                        acceptedBy[row * 3 + column][c] |= bit;
+                }
+            }
+        }
+        patternBits.put(pattern, bit);
+        return bit;
+    }
+
+    private static int classOf(char c) {
+        if (c < asciiClasses.length) return asciiClasses[c];
+        //the other characters that regular expressions consider line terminators
+        if (c == '\u0085' || c == (char) 0x2028 || c == (char) 0x2029) return CLASS_LINE_TERMINATOR;
+        return CLASS_OTHER;
+    }
+
+    /**
+     * @param grid
+     * @param x
+     * @param y
+     * @return the bit mask of all the compiled patterns that match the
+     * neighbourhood of the cell at x, y
+     */
+    public static long classify(TextGrid grid, int x, int y) {
+        return matchMask(grid, x, y, -1L);
+    }
+
+    /**
+     * @param signature the result of {@link #classify(TextGrid, int, int)}
+     * @param criteria a compiled GridPatternGroup
+     * @return true if any of the patterns of <code>criteria</code> is
+     * part of <code>signature</code>
+     */
+    public static boolean matches(long signature, GridPatternGroup criteria) {
+        return (signature & criteria.getCompiledMask()) != 0;
+    }
+
+    /**
+     * Equivalent to matching the 3x3 sub-grid around x, y against
+     * <code>criteria</code>, which must have been compiled.
+     *
+     * @param grid
+     * @param x
+     * @param y
+     * @param criteria
+     * @return
+     */
+    public static boolean matchesAny(TextGrid grid, int x, int y, GridPatternGroup criteria) {
+        return matchMask(grid, x, y, criteria.getCompiledMask()) != 0;
+    }
+
+    private static long matchMask(TextGrid grid, int x, int y, long mask) {
+        //the centre is checked first, since it rules out most patterns
+        mask &= acceptedBy[4][classOf(grid.get(x, y))];
+        if (mask == 0) return 0;
+        mask &= acceptedBy[1][classOf(grid.get(x, y - 1))];
+        mask &= acceptedBy[3][classOf(grid.get(x - 1, y))];
+        mask &= acceptedBy[5][classOf(grid.get(x + 1, y))];
+        mask &= acceptedBy[7][classOf(grid.get(x, y + 1))];
+        if (mask == 0) return 0;
+        mask &= acceptedBy[0][classOf(grid.get(x - 1, y - 1))];
+        mask &= acceptedBy[2][classOf(grid.get(x + 1, y - 1))];
+        mask &= acceptedBy[6][classOf(grid.get(x - 1, y + 1))];
+        mask &= acceptedBy[8][classOf(grid.get(x + 1, y + 1))];
+        return mask;
+    }
+}
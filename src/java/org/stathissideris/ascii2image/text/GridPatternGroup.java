@@ -397,6 +397,40 @@ public class GridPatternGroup extends ArrayList<GridPattern> {
 
     }
 
+    static {
+        GridPatternClassifier.compile(
+                cornerCriteria, normalCornerCriteria, roundCornerCriteria,
+                corner1Criteria, corner2Criteria, corner3Criteria, corner4Criteria,
+                normalCorner1Criteria, normalCorner2Criteria, normalCorner3Criteria, normalCorner4Criteria,
+                roundCorner1Criteria, roundCorner2Criteria, roundCorner3Criteria, roundCorner4Criteria,
+                intersectionCriteria, TCriteria, inverseTCriteria, KCriteria, inverseKCriteria, crossCriteria,
+                stubCriteria, verticalLinesEndCriteria, horizontalLinesEndCriteria, linesEndCriteria,
+                crossOnLineCriteria, horizontalCrossOnLineCriteria, verticalCrossOnLineCriteria,
+                starOnLineCriteria, horizontalStarOnLineCriteria, verticalStarOnLineCriteria,
+                loneDiagonalCriteria);
+    }
+
+    /**
+     * The patterns of this group in GridPatternClassifier, 0 if the group
+     * has not been compiled.
+     */
+    private long compiledMask = 0;
+
+    /**
+     * @return true if this group can be matched using GridPatternClassifier
+     */
+    public boolean isCompiled() {
+        return compiledMask != 0;
+    }
+
+    long getCompiledMask() {
+        return compiledMask;
+    }
+
+    void setCompiledMask(long mask) {
+        compiledMask = mask;
+    }
+
     public boolean areAllMatchedBy(TextGrid grid) {
         Iterator<GridPattern> it = iterator();
         while (it.hasNext()) {
@@ -0,0 +1,162 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An index of the tokens of a TextGrid that the conversion looks for:
+ * colour codes, markup tags, arrowheads and point markers. The grid is
+ * lexed in a single pass, row by row, and the tokens are listed in that
+ * order, which is the order in which the find methods of TextGrid used
+ * to return them.
+ *
+ * <p>The index describes the grid as it was when it was lexed. The
+ * positions of the arrowhead and point marker characters are also kept,
+ * so that the grids derived from it (by replacing the text on lines or
+ * removing the non-text) can be searched without scanning them again,
+ * see {@link TextGrid#findArrowheads(GridTokens)}.</p>
+ */
+public class GridTokens {
+
+    private final ArrayList<TextGrid.CellColorPair> colorCodes = new ArrayList<TextGrid.CellColorPair>();
+    private final ArrayList<TextGrid.CellTagPair> markupTags = new ArrayList<TextGrid.CellTagPair>();
+    private final ArrayList<TextGrid.Cell> arrowheads = new ArrayList<TextGrid.Cell>();
+    private final CellSet pointMarkersOnLine = new CellSet();
+
+    //the packed cells of every arrowhead and point marker character
+    private long[] arrowheadChars = new long[16];
+    private int arrowheadCharCount = 0;
+    private long[] pointMarkerChars = new long[16];
+    private int pointMarkerCharCount = 0;
+
+    public GridTokens(TextGrid grid) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                char c = grid.get(x, y);
+                switch (c) {
+                    case 'c':
+                        if (x < width - 3) lexColorCode(grid, x, y);
+                        break;
+                    case '{':
+                        if (x < width - 3) lexMarkupTag(grid, x, y);
+                        break;
+                    case '<':
+                    case '>':
+                    case '^':
+                    case 'v':
+                    case 'V':
+                        arrowheadChars = add(arrowheadChars, arrowheadCharCount++, x, y);
+                        if (grid.isArrowhead(x, y)) arrowheads.add(grid.new Cell(x, y));
+                        break;
+                    case '*':
+                        pointMarkerChars = add(pointMarkerChars, pointMarkerCharCount++, x, y);
+                        if (grid.isStarOnLine(x, y)) pointMarkersOnLine.add(x, y);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lexes a colour code (c followed by 3 hex digits in upper case) at
+     * x, y
+     */
+    private void lexColorCode(TextGrid grid, int x, int y) {
+        int r = hexDigit(grid.get(x + 1, y));
+        int g = hexDigit(grid.get(x + 2, y));
+        int b = hexDigit(grid.get(x + 3, y));
+        if (r < 0 || g < 0 || b < 0) return;
+        colorCodes.add(grid.new CellColorPair(grid.new Cell(x, y), new Color(r * 17, g * 17, b * 17)));
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Lexes a markup tag at x, y: the name is everything up to the first
+     * closing brace on the row, and must be one of the known tags
+     */
+    private void lexMarkupTag(TextGrid grid, int x, int y) {
+        int width = grid.getWidth();
+        for (int end = x + 2; end < width; end++) {
+            char c = grid.get(end, y);
+            if (isLineTerminator(grid.get(end - 1, y))) return;
+            if (c != '}') continue;
+            String tagName = grid.getStringAt(x + 1, y, end - x - 1);
+            if (TextGrid.isMarkupTag(tagName)) markupTags.add(grid.new CellTagPair(grid.new Cell(x, y), tagName));
+            return;
+        }
+    }
+
+    /**
+     * @return true for the characters that the . of a regular expression
+     * does not match
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static long[] add(long[] cells, int index, int x, int y) {
+        if (index == cells.length) cells = Arrays.copyOf(cells, index * 2);
+        cells[index] = TextGrid.packCell(x, y);
+        return cells;
+    }
+
+    public ArrayList<TextGrid.CellColorPair> getColorCodes() {
+        return colorCodes;
+    }
+
+    public ArrayList<TextGrid.CellTagPair> getMarkupTags() {
+        return markupTags;
+    }
+
+    public ArrayList<TextGrid.Cell> getArrowheads() {
+        return arrowheads;
+    }
+
+    public CellSet getPointMarkersOnLine() {
+        return pointMarkersOnLine;
+    }
+
+    /**
+     * @return the packed cells of all the arrowhead characters, whether
+     * they are arrowheads or not
+     */
+    long[] getArrowheadCharacters() {
+        return Arrays.copyOf(arrowheadChars, arrowheadCharCount);
+    }
+
+    /**
+     * @return the packed cells of all the point marker characters,
+     * whether they are on a line or not
+     */
+    long[] getPointMarkerCharacters() {
+        return Arrays.copyOf(pointMarkerChars, pointMarkerCharCount);
+    }
+}
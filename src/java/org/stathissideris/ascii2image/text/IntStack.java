@@ -0,0 +1,58 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.Arrays;
+
+/**
+ * A growable stack of ints, used by the flood fills of TextGrid to hold
+ * the cells that are still to be visited without boxing them or
+ * allocating a Cell for each one.
+ */
+final class IntStack {
+
+    private int[] elements;
+    private int size = 0;
+
+    IntStack() {
+        this(64);
+    }
+
+    IntStack(int initialCapacity) {
+        elements = new int[Math.max(initialCapacity, 1)];
+    }
+
+    void push(int value) {
+        if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = value;
+    }
+
+    int pop() {
+        if (size == 0) throw new IllegalStateException("The stack is empty");
+        return elements[--size];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
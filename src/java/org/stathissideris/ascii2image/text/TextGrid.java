@@ -18,8 +18,12 @@
  */
 package org.stathissideris.ascii2image.text;
 
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
 import org.stathissideris.ascii2image.core.FileUtils;
+import org.stathissideris.ascii2image.core.MetricsListener;
 import org.stathissideris.ascii2image.core.ProcessingOptions;
+import org.stathissideris.ascii2image.core.StageTimer;
 
 import java.awt.*;
 import java.io.FileInputStream;
@@ -27,8 +31,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 /**
@@ -78,13 +80,25 @@ public class TextGrid {
         markupTags.add("o");
     }
 
-    private ArrayList<StringBuilder> rows;
+    /**
+     * The cells of the grid, row by row. The cell (x, y) is at
+     * <code>offset + y * stride + x</code>. The array may be shared with
+     * copies and sub-grids of this grid, in which case
+     * <code>shared</code> is set, and whichever grid changes first takes
+     * a copy of its cells before changing them.
+     */
+    private char[] cells;
+    private int offset;
+    private int stride;
+    private int width;
+    private int height;
+    private boolean shared;
 
     /**
      * This is the base constructor which loads the string into rows
      */
     public TextGrid() {
-        rows = new ArrayList<StringBuilder>();
+        this(0, 0);
     }
 
     /**
@@ -93,21 +107,49 @@ public class TextGrid {
      * @param height Height of grid in characters
      */
     public TextGrid(int width, int height) {
-        String space = StringUtils.repeatString(" ", width);
-        rows = new ArrayList<StringBuilder>();
-        for (int i = 0; i < height; i++)
-            rows.add(new StringBuilder(space));
+        cells = new char[width * height];
+        Arrays.fill(cells, ' ');
+        this.width = width;
+        this.height = height;
+        stride = width;
     }
 
     /**
-     * This is the copy constructor
+     * This is the copy constructor. The copy shares the cells of
+     * <code>otherGrid</code> until either of them changes.
      * @param otherGrid
      */
     public TextGrid(TextGrid otherGrid) {
-        rows = new ArrayList<StringBuilder>();
-        for (StringBuilder row : otherGrid.getRows()) {
-            rows.add(new StringBuilder(row));
+        share(otherGrid, otherGrid.offset, otherGrid.width, otherGrid.height);
+        otherGrid.shared = true;
+    }
+
+    private void share(TextGrid otherGrid, int offset, int width, int height) {
+        cells = otherGrid.cells;
+        this.offset = offset;
+        stride = otherGrid.stride;
+        this.width = width;
+        this.height = height;
+        shared = true;
+    }
+
+    /**
+     * Takes a copy of the cells if they are shared with another grid, so
+     * that they can be changed
+     */
+    private void prepareForWrite() {
+        if (!shared) return;
+        char[] copy = new char[width * height];
+        if (stride == width) {
+            System.arraycopy(cells, offset, copy, 0, copy.length);
+        } else {
+            for (int y = 0; y < height; y++)
+                System.arraycopy(cells, offset + y * stride, copy, y * width, width);
         }
+        cells = copy;
+        offset = 0;
+        stride = width;
+        shared = false;
     }
 
     public static void main(String[] args) throws Exception {
@@ -150,44 +192,80 @@ public class TextGrid {
         markupTags.addAll(tags);
     }
 
+    static boolean isMarkupTag(String tagName) {
+        return markupTags.contains(tagName);
+    }
+
     /**
      * Replace this grid with a blank grid
      */
     public void clear() {
-        String blank = StringUtils.repeatString(" ", getWidth());
-        int height = getHeight();
-        rows.clear();
-        for (int i = 0; i < height; i++)
-            rows.add(new StringBuilder(blank));
+        cells = new char[width * height];
+        Arrays.fill(cells, ' ');
+        offset = 0;
+        stride = width;
+        shared = false;
     }
 
     //	duplicated code due to lots of hits to this function
     public char get(int x, int y) {
-        if (x > getWidth() - 1
-                || y > getHeight() - 1
+        if (x >= width
+                || y >= height
                 || x < 0
                 || y < 0) return 0;
-        return rows.get(y).charAt(x);
+        return cells[offset + y * stride + x];
     }
 
     //duplicated code due to lots of hits to this function
     public char get(Cell cell) {
-        if (cell.x > getWidth() - 1
-                || cell.y > getHeight() - 1
+        if (cell.x >= width
+                || cell.y >= height
                 || cell.x < 0
                 || cell.y < 0) return 0;
-        return rows.get(cell.y).charAt(cell.x);
+        return cells[offset + cell.y * stride + cell.x];
     }
 
+    /**
+     * @param y
+     * @return a copy of row <code>y</code>; changing it does not change
+     * the grid, use {@link #setRow(int, StringBuilder)} for that
+     */
     public StringBuilder getRow(int y) {
-        return rows.get(y);
+        return new StringBuilder(width).append(cells, rowStart(y), width);
+    }
+
+    private String getRowString(int y) {
+        return new String(cells, rowStart(y), width);
     }
 
+    private int rowStart(int y) {
+        if (y < 0 || y >= height) throw new IndexOutOfBoundsException("Row " + y + " of a grid of height " + height);
+        return offset + y * stride;
+    }
+
+    /**
+     * @return a grid with the cells of this one in the given area. It
+     * shares the cells of this grid until either of them changes.
+     */
     public TextGrid getSubGrid(int x, int y, int width, int height) {
-        TextGrid grid = new TextGrid(width, height);
-        for (int i = 0; i < height; i++) {
-            grid.setRow(i, new StringBuilder(getRow(y + i).subSequence(x, x + width)));
-        }
+        TextGrid grid = getSubGridView(x, y, width, height);
+        shared = true;
+        return grid;
+    }
+
+    /**
+     * Like {@link #getSubGrid(int, int, int, int)}, but does not protect
+     * the sub-grid from changes to this grid, so that short-lived
+     * sub-grids that are only read don't force this grid to copy its
+     * cells on its next change. The sub-grid must not be used after this
+     * grid changes.
+     */
+    TextGrid getSubGridView(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > this.width || y + height > this.height)
+            throw new IndexOutOfBoundsException("Sub-grid " + width + "x" + height + " at " + x + ", " + y
+                    + " of a grid of " + this.width + "x" + this.height);
+        TextGrid grid = new TextGrid(0, 0);
+        grid.share(this, offset + y * stride + x, width, height);
         return grid;
     }
 
@@ -206,7 +284,9 @@ public class TextGrid {
                 || y > getHeight() - 1
                 || x < 0
                 || y < 0) return null;
-        return rows.get(y).substring(x, x + length);
+        if (x + length > width) throw new IndexOutOfBoundsException("String of " + length + " at " + x + ", " + y
+                + " of a grid of width " + width);
+        return new String(cells, offset + y * stride + x, length);
     }
 
     public char getNorthOf(int x, int y) {
@@ -252,13 +332,15 @@ public class TextGrid {
     }
 
     /**
-     * Write a string to a particual cell
+     * Write a string to a particual cell. The part of the string that
+     * does not fit in the row is left out.
      * @param cell
      * @param str
      */
     public void writeStringTo(Cell cell, String str) {
         if (isOutOfBounds(cell)) return;
-        rows.get(cell.y).replace(cell.x, cell.x + str.length(), str);
+        prepareForWrite();
+        str.getChars(0, Math.min(str.length(), width - cell.x), cells, offset + cell.y * stride + cell.x);
     }
 
     public void set(Cell cell, char c) {
@@ -266,9 +348,10 @@ public class TextGrid {
     }
 
     public void set(int x, int y, char c) {
-        if (x > getWidth() - 1 || y > getHeight() - 1) return;
-        StringBuilder row = rows.get(y);
-        row.setCharAt(x, c);
+        if (x > width - 1 || y > height - 1) return;
+        if (x < 0 || y < 0) throw new IndexOutOfBoundsException("Cell " + x + ", " + y);
+        if (shared) prepareForWrite();
+        cells[offset + y * stride + x] = c;
     }
 
     /**
@@ -277,56 +360,51 @@ public class TextGrid {
      * @param row
      */
     public void setRow(int y, String row) {
-        if (y > getHeight() || row.length() != getWidth())
+        if (y >= getHeight() || row.length() != getWidth())
             throw new IllegalArgumentException("setRow out of bounds or string wrong size");
-        rows.set(y, new StringBuilder(row));
+        prepareForWrite();
+        row.getChars(0, width, cells, offset + y * stride);
     }
 
     public void setRow(int y, StringBuilder row) {
-        if (y > getHeight() || row.length() != getWidth())
+        if (y >= getHeight() || row.length() != getWidth())
             throw new IllegalArgumentException("setRow out of bounds or string wrong size");
-        rows.set(y, row);
+        prepareForWrite();
+        row.getChars(0, width, cells, offset + y * stride);
     }
 
     public int getWidth() {
-        if (rows.size() == 0) return 0; //empty buffer
-        return rows.get(0).length();
+        return width;
     }
 
     public int getHeight() {
-        return rows.size();
+        return height;
     }
 
     public void printDebug() {
-        Iterator<StringBuilder> it = rows.iterator();
-        int i = 0;
         System.out.println(
                 "    "
                         + StringUtils.repeatString("0123456789", (int) Math.floor(getWidth() / 10) + 1));
-        while (it.hasNext()) {
-            String row = it.next().toString();
+        for (int i = 0; i < height; i++) {
+            String row = getRowString(i);
             String index = new Integer(i).toString();
             if (i < 10) index = " " + index;
             System.out.println(index + " (" + row + ")");
-            i++;
         }
     }
 
     public String getDebugString() {
         StringBuilder buffer = new StringBuilder();
-        Iterator<StringBuilder> it = rows.iterator();
-        int i = 0;
         buffer.append(
                 "    "
                         + StringUtils.repeatString("0123456789", (int) Math.floor(getWidth() / 10) + 1) + "\n");
-        while (it.hasNext()) {
-            String row = it.next().toString();
+        for (int i = 0; i < height; i++) {
+            String row = getRowString(i);
             String index = new Integer(i).toString();
             if (i < 10) index = " " + index;
             row = row.replaceAll("\n", "\\\\n");
             row = row.replaceAll("\r", "\\\\r");
             buffer.append(index + " (" + row + ")\n");
-            i++;
         }
         return buffer.toString();
     }
@@ -346,11 +424,12 @@ public class TextGrid {
     public boolean add(TextGrid grid) {
         if (getWidth() != grid.getWidth()
                 || getHeight() != grid.getHeight()) return false;
-        int width = getWidth();
-        int height = getHeight();
+        prepareForWrite();
         for (int yi = 0; yi < height; yi++) {
+            int row = offset + yi * stride;
+            int otherRow = grid.offset + yi * grid.stride;
             for (int xi = 0; xi < width; xi++) {
-                if (get(xi, yi) == ' ') set(xi, yi, grid.get(xi, yi));
+                if (cells[row + xi] == ' ') cells[row + xi] = grid.cells[otherRow + xi];
             }
         }
         return true;
@@ -390,73 +469,83 @@ public class TextGrid {
      * Swap the point markers on a line
      */
     public void replacePointMarkersOnLine() {
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                Cell cell = new Cell(xi, yi);
-                if (StringUtils.isOneOf(c, pointMarkers)
-                        && isStarOnLine(cell)) {
-
-                    boolean isOnHorizontalLine = false;
-                    if (StringUtils.isOneOf(get(cell.getEast()), horizontalLines))
-                        isOnHorizontalLine = true;
-                    if (StringUtils.isOneOf(get(cell.getWest()), horizontalLines))
-                        isOnHorizontalLine = true;
-
-                    boolean isOnVerticalLine = false;
-                    if (StringUtils.isOneOf(get(cell.getNorth()), verticalLines))
-                        isOnVerticalLine = true;
-                    if (StringUtils.isOneOf(get(cell.getSouth()), verticalLines))
-                        isOnVerticalLine = true;
+        replacePointMarkersOnLine(new GridTokens(this));
+    }
 
-                    if (isOnHorizontalLine && isOnVerticalLine) {
-                        set(xi, yi, '+');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with +");
-                    } else if (isOnHorizontalLine) {
-                        set(xi, yi, '-');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with -");
-                    } else if (isOnVerticalLine) {
-                        set(xi, yi, '|');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with |");
-                    }
+    /**
+     * Swap the point markers on a line
+     *
+     * @param tokens the tokens of this grid, or of a grid this one was
+     *               derived from without adding any point markers
+     */
+    public void replacePointMarkersOnLine(GridTokens tokens) {
+        for (long marker : tokens.getPointMarkerCharacters()) {
+            int xi = cellX(marker);
+            int yi = cellY(marker);
+            char c = get(xi, yi);
+            if (StringUtils.isOneOf(c, pointMarkers)
+                    && isStarOnLine(xi, yi)) {
+
+                boolean isOnHorizontalLine = false;
+                if (StringUtils.isOneOf(get(xi + 1, yi), horizontalLines))
+                    isOnHorizontalLine = true;
+                if (StringUtils.isOneOf(get(xi - 1, yi), horizontalLines))
+                    isOnHorizontalLine = true;
+
+                boolean isOnVerticalLine = false;
+                if (StringUtils.isOneOf(get(xi, yi - 1), verticalLines))
+                    isOnVerticalLine = true;
+                if (StringUtils.isOneOf(get(xi, yi + 1), verticalLines))
+                    isOnVerticalLine = true;
+
+                if (isOnHorizontalLine && isOnVerticalLine) {
+                    set(xi, yi, '+');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with +");
+                } else if (isOnHorizontalLine) {
+                    set(xi, yi, '-');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with -");
+                } else if (isOnVerticalLine) {
+                    set(xi, yi, '|');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with |");
                 }
             }
         }
     }
 
     public CellSet getPointMarkersOnLine() {
-        CellSet result = new CellSet();
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                if (StringUtils.isOneOf(c, pointMarkers)
-                        && isStarOnLine(new Cell(xi, yi))) {
-                    result.add(new Cell(xi, yi));
-                }
+        return new GridTokens(this).getPointMarkersOnLine();
+    }
+
+    public void replaceHumanColorCodes() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width - 3; x++) {
+                if (get(x, y) == 'c') replaceHumanColorCodeAt(x, y);
             }
         }
-        return result;
     }
 
-    public void replaceHumanColorCodes() {
-        int height = getHeight();
+    /**
+     * Replaces the human colour code at x, y (such as cRED), if there is
+     * one, with the equivalent hex colour code
+     */
+    private void replaceHumanColorCodeAt(int x, int y) {
+        String hexCode = humanColorCodes.get(getStringAt(x + 1, y, 3));
+        if (hexCode != null) writeStringTo(x + 1, y, hexCode);
+    }
+
+    /**
+     * Does the job of {@link #replaceBullets()} and then
+     * {@link #replaceHumanColorCodes()} in a single pass over the grid.
+     * The two cannot affect each other, since bullets are replaced with
+     * blanks and bullet characters and colour codes with letters and
+     * digits.
+     */
+    public void replaceBulletsAndHumanColorCodes() {
         for (int y = 0; y < height; y++) {
-            String row = rows.get(y).toString();
-            Iterator it = humanColorCodes.keySet().iterator();
-            while (it.hasNext()) {
-                String humanCode = (String) it.next();
-                String hexCode = humanColorCodes.get(humanCode);
-                if (hexCode != null) {
-                    humanCode = "c" + humanCode;
-                    hexCode = "c" + hexCode;
-                    row = row.replaceAll(humanCode, hexCode);
-                    rows.set(y, new StringBuilder(row)); //TODO: this is not the most efficient way to do this
-                    row = rows.get(y).toString();
-                }
+            for (int x = 0; x < width; x++) {
+                char c = get(x, y);
+                if ((c == 'o' || c == '*') && isBullet(x, y)) replaceBulletAt(x, y);
+                else if (c == 'c' && x < width - 3) replaceHumanColorCodeAt(x, y);
             }
         }
     }
@@ -468,12 +557,11 @@ public class TextGrid {
      * @param c2
      */
     public void replaceAll(char c1, char c2) {
-        int width = getWidth();
-        int height = getHeight();
+        prepareForWrite();
         for (int yi = 0; yi < height; yi++) {
+            int row = offset + yi * stride;
             for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                if (c == c1) set(xi, yi, c2);
+                if (cells[row + xi] == c1) cells[row + xi] = c2;
             }
         }
     }
@@ -574,8 +662,11 @@ public class TextGrid {
      * @return
      */
     public boolean hasEntryPoint(Cell cell, int entryPointId) {
-        String result = "";
-        char c = get(cell);
+        return hasEntryPoint(cell.x, cell.y, entryPointId);
+    }
+
+    public boolean hasEntryPoint(int x, int y, int entryPointId) {
+        char c = get(x, y);
         if (entryPointId == 1) {
             return StringUtils.isOneOf(c, entryPoints1);
 
@@ -621,37 +712,51 @@ public class TextGrid {
      * elements.
      */
     public void removeNonText() {
+        removeNonText(new GridTokens(this));
+    }
+
+    /**
+     * Makes blank all the cells that contain non-text
+     * elements.
+     *
+     * @param tokens the tokens of this grid
+     */
+    public void removeNonText(GridTokens tokens) {
         //the following order is significant
         //since the south-pointing arrowheads
         //are determined based on the surrounding boundaries
-        removeArrowheads();
-        removeColorCodes();
+        removeArrowheads(tokens);
+        removeColorCodes(tokens);
         removeBoundaries();
-        removeMarkupTags();
+        removeMarkupTags(tokens);
     }
 
     public void removeArrowheads() {
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isArrowhead(cell)) set(cell, ' ');
-            }
+        removeArrowheads(new GridTokens(this));
+    }
+
+    /**
+     * @param tokens the tokens of this grid, or of a grid this one was
+     *               derived from without adding any arrowheads
+     */
+    public void removeArrowheads(GridTokens tokens) {
+        for (long arrowhead : tokens.getArrowheadCharacters()) {
+            if (isArrowhead(cellX(arrowhead), cellY(arrowhead)))
+                set(cellX(arrowhead), cellY(arrowhead), ' ');
         }
     }
 
     public void removeColorCodes() {
-        Iterator cells = findColorCodes().iterator();
-        while (cells.hasNext()) {
-            Cell cell = ((CellColorPair) cells.next()).cell;
-            set(cell, ' ');
-            cell = cell.getEast();
-            set(cell, ' ');
-            cell = cell.getEast();
-            set(cell, ' ');
-            cell = cell.getEast();
-            set(cell, ' ');
+        removeColorCodes(new GridTokens(this));
+    }
+
+    /**
+     * @param tokens the tokens of a grid with the same colour codes as
+     *               this one
+     */
+    public void removeColorCodes(GridTokens tokens) {
+        for (CellColorPair pair : tokens.getColorCodes()) {
+            writeStringTo(pair.cell, "    ");
         }
     }
 
@@ -678,74 +783,45 @@ public class TextGrid {
     }
 
     public ArrayList<Cell> findArrowheads() {
+        return new GridTokens(this).getArrowheads();
+    }
+
+    /**
+     * Finds the arrowheads without scanning the grid, by checking only
+     * the arrowhead characters of <code>tokens</code>
+     *
+     * @param tokens the tokens of this grid, or of a grid this one was
+     *               derived from without adding any arrowheads
+     * @return
+     */
+    public ArrayList<Cell> findArrowheads(GridTokens tokens) {
         ArrayList<Cell> result = new ArrayList<Cell>();
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isArrowhead(cell)) result.add(cell);
-            }
+        for (long arrowhead : tokens.getArrowheadCharacters()) {
+            if (isArrowhead(cellX(arrowhead), cellY(arrowhead)))
+                result.add(new Cell(cellX(arrowhead), cellY(arrowhead)));
         }
         if (DEBUG) System.out.println(result.size() + " arrowheads found");
         return result;
     }
 
     public ArrayList<CellColorPair> findColorCodes() {
-        Pattern colorCodePattern = Pattern.compile("c[A-F0-9]{3}");
-        ArrayList<CellColorPair> result = new ArrayList<CellColorPair>();
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width - 3; xi++) {
-                Cell cell = new Cell(xi, yi);
-                String s = getStringAt(cell, 4);
-                Matcher matcher = colorCodePattern.matcher(s);
-                if (matcher.matches()) {
-                    char cR = s.charAt(1);
-                    char cG = s.charAt(2);
-                    char cB = s.charAt(3);
-                    int r = Integer.valueOf(String.valueOf(cR), 16).intValue() * 17;
-                    int g = Integer.valueOf(String.valueOf(cG), 16).intValue() * 17;
-                    int b = Integer.valueOf(String.valueOf(cB), 16).intValue() * 17;
-                    result.add(new CellColorPair(cell, new Color(r, g, b)));
-                }
-            }
-        }
-        if (DEBUG) System.out.println(result.size() + " color codes found");
-        return result;
+        return new GridTokens(this).getColorCodes();
     }
 
     public ArrayList<CellTagPair> findMarkupTags() {
-        Pattern tagPattern = Pattern.compile("\\{(.+?)\\}");
-        ArrayList<CellTagPair> result = new ArrayList<CellTagPair>();
-
-        int width = getWidth();
-        int height = getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width - 3; x++) {
-                Cell cell = new Cell(x, y);
-                char c = get(cell);
-                if (c == '{') {
-                    String rowPart = rows.get(y).substring(x);
-                    Matcher matcher = tagPattern.matcher(rowPart);
-                    if (matcher.find()) {
-                        String tagName = matcher.group(1);
-                        if (markupTags.contains(tagName)) {
-                            if (DEBUG) System.out.println("found tag " + tagName + " at " + x + ", " + y);
-                            result.add(new CellTagPair(new Cell(x, y), tagName));
-                        }
-                    }
-                }
-            }
-        }
-        return result;
+        return new GridTokens(this).getMarkupTags();
     }
 
     public void removeMarkupTags() {
-        Iterator it = findMarkupTags().iterator();
-        while (it.hasNext()) {
-            CellTagPair pair = (CellTagPair) it.next();
+        removeMarkupTags(new GridTokens(this));
+    }
+
+    /**
+     * @param tokens the tokens of a grid with the same markup tags as
+     *               this one
+     */
+    public void removeMarkupTags(GridTokens tokens) {
+        for (CellTagPair pair : tokens.getMarkupTags()) {
             String tagName = pair.tag;
             if (tagName == null) continue;
             int length = 2 + tagName.length();
@@ -785,26 +861,30 @@ public class TextGrid {
         return isVerticalLine(c1) && isVerticalLine(c2);
     }
 
-    public boolean isBoundary(int x, int y) {
-        return isBoundary(new Cell(x, y));
+    public boolean isBoundary(Cell cell) {
+        return isBoundary(cell.x, cell.y);
     }
 
-    public boolean isBoundary(Cell cell) {
-        char c = get(cell.x, cell.y);
+    public boolean isBoundary(int x, int y) {
+        char c = get(x, y);
         if (0 == c) return false;
         if ('+' == c || '\\' == c || '/' == c) {
-            System.out.print("");
-            return isIntersection(cell)
-                    || isCorner(cell)
-                    || isStub(cell)
-                    || isCrossOnLine(cell);
+            return isIntersection(x, y)
+                    || isCorner(x, y)
+                    || isStub(x, y)
+                    || isCrossOnLine(x, y);
         }
         //return StringUtils.isOneOf(c, undisputableBoundaries);
-        return StringUtils.isOneOf(c, boundaries) && !isLoneDiagonal(cell);
+        return StringUtils.isOneOf(c, boundaries)
+                && !matchesAny(x, y, GridPatternGroup.loneDiagonalCriteria);
     }
 
     public boolean isLine(Cell cell) {
-        return isHorizontalLine(cell) || isVerticalLine(cell);
+        return isLine(cell.x, cell.y);
+    }
+
+    public boolean isLine(int x, int y) {
+        return isHorizontalLine(x, y) || isVerticalLine(x, y);
     }
 
     public boolean isHorizontalLine(Cell cell) {
@@ -828,7 +908,7 @@ public class TextGrid {
     }
 
     public boolean isLinesEnd(int x, int y) {
-        return isLinesEnd(new Cell(x, y));
+        return matchesAny(x, y, GridPatternGroup.linesEndCriteria);
     }
 
     /**
@@ -838,7 +918,7 @@ public class TextGrid {
      * @return
      */
     public boolean isLinesEnd(Cell cell) {
-        return matchesAny(cell, GridPatternGroup.linesEndCriteria);
+        return isLinesEnd(cell.x, cell.y);
     }
 
     public boolean isVerticalLinesEnd(Cell cell) {
@@ -893,11 +973,19 @@ public class TextGrid {
      */
 
     public boolean isStub(Cell cell) {
-        return matchesAny(cell, GridPatternGroup.stubCriteria);
+        return isStub(cell.x, cell.y);
+    }
+
+    public boolean isStub(int x, int y) {
+        return matchesAny(x, y, GridPatternGroup.stubCriteria);
     }
 
     public boolean isCrossOnLine(Cell cell) {
-        return matchesAny(cell, GridPatternGroup.crossOnLineCriteria);
+        return isCrossOnLine(cell.x, cell.y);
+    }
+
+    public boolean isCrossOnLine(int x, int y) {
+        return matchesAny(x, y, GridPatternGroup.crossOnLineCriteria);
     }
 
     public boolean isHorizontalCrossOnLine(Cell cell) {
@@ -909,7 +997,11 @@ public class TextGrid {
     }
 
     public boolean isStarOnLine(Cell cell) {
-        return matchesAny(cell, GridPatternGroup.starOnLineCriteria);
+        return isStarOnLine(cell.x, cell.y);
+    }
+
+    public boolean isStarOnLine(int x, int y) {
+        return matchesAny(x, y, GridPatternGroup.starOnLineCriteria);
     }
 
     public boolean isLoneDiagonal(Cell cell) {
@@ -926,10 +1018,13 @@ public class TextGrid {
     }
 
     public boolean isArrowhead(Cell cell) {
-        return (isNorthArrowhead(cell)
-                || isSouthArrowhead(cell)
-                || isWestArrowhead(cell)
-                || isEastArrowhead(cell));
+        return isArrowhead(cell.x, cell.y);
+    }
+
+    public boolean isArrowhead(int x, int y) {
+        char c = get(x, y);
+        if (c == '^' || c == '>' || c == '<') return true;
+        return (c == 'v' || c == 'V') && isVerticalLine(x, y - 1);
     }
 
     public boolean isNorthArrowhead(Cell cell) {
@@ -962,31 +1057,30 @@ public class TextGrid {
 
 
     public boolean isBullet(int x, int y) {
-        return isBullet(new Cell(x, y));
+        char c = get(x, y);
+        return (c == 'o' || c == '*')
+                && get(x + 1, y) == ' '
+                && get(x - 1, y) == ' '
+                && Character.isLetterOrDigit(get(x + 2, y));
     }
 
     public boolean isBullet(Cell cell) {
-        char c = get(cell);
-        return (c == 'o' || c == '*')
-                && isBlank(cell.getEast())
-                && isBlank(cell.getWest())
-                && Character.isLetterOrDigit(get(cell.getEast().getEast()));
+        return isBullet(cell.x, cell.y);
     }
 
     public void replaceBullets() {
-        int width = getWidth();
-        int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
             for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isBullet(cell)) {
-                    set(cell, ' ');
-                    set(cell.getEast(), '\u2022');
-                }
+                if (isBullet(xi, yi)) replaceBulletAt(xi, yi);
             }
         }
     }
 
+    private void replaceBulletAt(int x, int y) {
+        set(x, y, ' ');
+        set(x + 1, y, '\u2022');
+    }
+
     /**
      * true if the cell is not blank
      * but the previous (west) is
@@ -1046,6 +1140,67 @@ public class TextGrid {
     }
 
 
+    /**
+     * A packed cell that is not on any grid, used as the
+     * <code>blocked</code> argument of
+     * {@link #followCell(long, long, long[])} when no cell is blocked.
+     */
+    public static final long NO_CELL = Long.MIN_VALUE;
+
+    /**
+     * Packs the coordinates of a cell into a single long, so that paths
+     * can be followed without allocating a Cell for every step.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public static long packCell(int x, int y) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    public static int cellX(long cell) {
+        return (int) cell;
+    }
+
+    public static int cellY(long cell) {
+        return (int) (cell >> 32);
+    }
+
+    /**
+     * Finds the cells that a path passing through <code>cell</code>
+     * continues to. This is the primitive version of
+     * {@link #followCell(Cell, Cell)}: the cells are written to
+     * <code>next</code> packed with {@link #packCell(int, int)}, in the
+     * order the CellSet returned by {@link #followCell(Cell, Cell)}
+     * iterates them.
+     *
+     * @param cell    the packed cell to follow
+     * @param blocked the packed cell to leave out (usually the one the
+     *                path came from), or {@link #NO_CELL}
+     * @param next    receives the cells, it must have room for 4
+     * @return the number of cells written to <code>next</code>
+     */
+    public int followCell(long cell, long blocked, long[] next) {
+        int count = followCellUnordered(cell, blocked, next);
+        CellSet.sortInIterationOrder(next, count);
+        return count;
+    }
+
+    private int followCellUnordered(long cell, long blocked, long[] next) {
+        int x = cellX(cell);
+        int y = cellY(cell);
+        if (isIntersection(x, y)) return followIntersection(x, y, blocked, next);
+        if (isCorner(x, y)) return Math.max(followCorner(x, y, blocked, next), 0);
+        if (isLine(x, y)) return followLine(x, y, blocked, next);
+        if (isStub(x, y)) return followStub(x, y, blocked, next);
+        if (isCrossOnLine(x, y)) return followCrossOnLine(x, y, blocked, next);
+        System.err.println("Ambiguous input at position (" + x + ", " + y + "):");
+        TextGrid subGrid = getSubGridView(x - 1, y - 1, 3, 3);
+        subGrid.printDebug();
+        throw new RuntimeException("Cannot follow cell (" + x + ", " + y + "): cannot determine cell type");
+    }
+
     public CellSet followLine(int x, int y) {
         return followLine(new Cell(x, y));
     }
@@ -1055,18 +1210,8 @@ public class TextGrid {
     }
 
     public CellSet followIntersection(Cell cell, Cell blocked) {
-        if (!isIntersection(cell)) return null;
-        CellSet result = new CellSet();
-        Cell cN = cell.getNorth();
-        Cell cS = cell.getSouth();
-        Cell cE = cell.getEast();
-        Cell cW = cell.getWest();
-        if (hasEntryPoint(cN, 6)) result.add(cN);
-        if (hasEntryPoint(cS, 2)) result.add(cS);
-        if (hasEntryPoint(cE, 8)) result.add(cE);
-        if (hasEntryPoint(cW, 4)) result.add(cW);
-        if (result.contains(blocked)) result.remove(blocked);
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followIntersection(cell.x, cell.y, pack(blocked), next));
     }
 
     /**
@@ -1077,24 +1222,12 @@ public class TextGrid {
      * @return null if the cell is not a line
      */
     public CellSet followLine(Cell cell) {
-        if (isHorizontalLine(cell)) {
-            CellSet result = new CellSet();
-            if (isBoundary(cell.getEast())) result.add(cell.getEast());
-            if (isBoundary(cell.getWest())) result.add(cell.getWest());
-            return result;
-        } else if (isVerticalLine(cell)) {
-            CellSet result = new CellSet();
-            if (isBoundary(cell.getNorth())) result.add(cell.getNorth());
-            if (isBoundary(cell.getSouth())) result.add(cell.getSouth());
-            return result;
-        }
-        return null;
+        return followLine(cell, null);
     }
 
     public CellSet followLine(Cell cell, Cell blocked) {
-        CellSet nextCells = followLine(cell);
-        if (nextCells.contains(blocked)) nextCells.remove(blocked);
-        return nextCells;
+        long[] next = new long[4];
+        return toCellSet(next, followLine(cell.x, cell.y, pack(blocked), next));
     }
 
     public CellSet followCorner(Cell cell) {
@@ -1102,12 +1235,8 @@ public class TextGrid {
     }
 
     public CellSet followCorner(Cell cell, Cell blocked) {
-        if (!isCorner(cell)) return null;
-        if (isCorner1(cell)) return followCorner1(cell, blocked);
-        if (isCorner2(cell)) return followCorner2(cell, blocked);
-        if (isCorner3(cell)) return followCorner3(cell, blocked);
-        if (isCorner4(cell)) return followCorner4(cell, blocked);
-        return null;
+        long[] next = new long[4];
+        return toCellSet(next, followCorner(cell.x, cell.y, pack(blocked), next));
     }
 
     public CellSet followCorner1(Cell cell) {
@@ -1116,10 +1245,8 @@ public class TextGrid {
 
     public CellSet followCorner1(Cell cell, Cell blocked) {
         if (!isCorner1(cell)) return null;
-        CellSet result = new CellSet();
-        if (!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-        if (!cell.getEast().equals(blocked)) result.add(cell.getEast());
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followCorner(cell.x, cell.y, 1, pack(blocked), next));
     }
 
     public CellSet followCorner2(Cell cell) {
@@ -1128,10 +1255,8 @@ public class TextGrid {
 
     public CellSet followCorner2(Cell cell, Cell blocked) {
         if (!isCorner2(cell)) return null;
-        CellSet result = new CellSet();
-        if (!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-        if (!cell.getWest().equals(blocked)) result.add(cell.getWest());
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followCorner(cell.x, cell.y, 2, pack(blocked), next));
     }
 
     public CellSet followCorner3(Cell cell) {
@@ -1140,10 +1265,8 @@ public class TextGrid {
 
     public CellSet followCorner3(Cell cell, Cell blocked) {
         if (!isCorner3(cell)) return null;
-        CellSet result = new CellSet();
-        if (!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-        if (!cell.getWest().equals(blocked)) result.add(cell.getWest());
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followCorner(cell.x, cell.y, 3, pack(blocked), next));
     }
 
     public CellSet followCorner4(Cell cell) {
@@ -1152,10 +1275,8 @@ public class TextGrid {
 
     public CellSet followCorner4(Cell cell, Cell blocked) {
         if (!isCorner4(cell)) return null;
-        CellSet result = new CellSet();
-        if (!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-        if (!cell.getEast().equals(blocked)) result.add(cell.getEast());
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followCorner(cell.x, cell.y, 4, pack(blocked), next));
     }
 
 
@@ -1164,14 +1285,8 @@ public class TextGrid {
     }
 
     public CellSet followStub(Cell cell, Cell blocked) {
-        if (!isStub(cell)) return null;
-        CellSet result = new CellSet();
-        if (isBoundary(cell.getEast())) result.add(cell.getEast());
-        else if (isBoundary(cell.getWest())) result.add(cell.getWest());
-        else if (isBoundary(cell.getNorth())) result.add(cell.getNorth());
-        else if (isBoundary(cell.getSouth())) result.add(cell.getSouth());
-        if (result.contains(blocked)) result.remove(blocked);
-        return result;
+        long[] next = new long[4];
+        return toCellSet(next, followStub(cell.x, cell.y, pack(blocked), next));
     }
 
     public CellSet followCell(Cell cell) {
@@ -1179,15 +1294,8 @@ public class TextGrid {
     }
 
     public CellSet followCell(Cell cell, Cell blocked) {
-        if (isIntersection(cell)) return followIntersection(cell, blocked);
-        if (isCorner(cell)) return followCorner(cell, blocked);
-        if (isLine(cell)) return followLine(cell, blocked);
-        if (isStub(cell)) return followStub(cell, blocked);
-        if (isCrossOnLine(cell)) return followCrossOnLine(cell, blocked);
-        System.err.println("Ambiguous input at position " + cell + ":");
-        TextGrid subGrid = getTestingSubGrid(cell);
-        subGrid.printDebug();
-        throw new RuntimeException("Cannot follow cell " + cell + ": cannot determine cell type");
+        long[] next = new long[4];
+        return toCellSet(next, followCellUnordered(packCell(cell.x, cell.y), pack(blocked), next));
     }
 
     public String getCellTypeAsString(Cell cell) {
@@ -1206,16 +1314,103 @@ public class TextGrid {
     }
 
 
+
     public CellSet followCrossOnLine(Cell cell, Cell blocked) {
+        long[] next = new long[4];
+        return toCellSet(next, followCrossOnLine(cell.x, cell.y, pack(blocked), next));
+    }
+
+    // The primitive follow methods below write the next cells to an array
+    // in the order north, south, east, west (the order in which they used
+    // to be added to a CellSet), and return how many they wrote, or -1 if
+    // the cell is not of the type they follow.
+
+    private int followIntersection(int x, int y, long blocked, long[] next) {
+        if (!isIntersection(x, y)) return -1;
+        int count = 0;
+        if (hasEntryPoint(x, y - 1, 6)) count = addNext(next, count, x, y - 1, blocked);
+        if (hasEntryPoint(x, y + 1, 2)) count = addNext(next, count, x, y + 1, blocked);
+        if (hasEntryPoint(x + 1, y, 8)) count = addNext(next, count, x + 1, y, blocked);
+        if (hasEntryPoint(x - 1, y, 4)) count = addNext(next, count, x - 1, y, blocked);
+        return count;
+    }
+
+    private int followLine(int x, int y, long blocked, long[] next) {
+        int count = 0;
+        if (isHorizontalLine(x, y)) {
+            if (isBoundary(x + 1, y)) count = addNext(next, count, x + 1, y, blocked);
+            if (isBoundary(x - 1, y)) count = addNext(next, count, x - 1, y, blocked);
+            return count;
+        } else if (isVerticalLine(x, y)) {
+            if (isBoundary(x, y - 1)) count = addNext(next, count, x, y - 1, blocked);
+            if (isBoundary(x, y + 1)) count = addNext(next, count, x, y + 1, blocked);
+            return count;
+        }
+        return -1;
+    }
+
+    private int followCorner(int x, int y, long blocked, long[] next) {
+        if (!isCorner(x, y)) return -1;
+        if (matchesAny(x, y, GridPatternGroup.corner1Criteria)) return followCorner(x, y, 1, blocked, next);
+        if (matchesAny(x, y, GridPatternGroup.corner2Criteria)) return followCorner(x, y, 2, blocked, next);
+        if (matchesAny(x, y, GridPatternGroup.corner3Criteria)) return followCorner(x, y, 3, blocked, next);
+        if (matchesAny(x, y, GridPatternGroup.corner4Criteria)) return followCorner(x, y, 4, blocked, next);
+        return -1;
+    }
+
+    /**
+     * Follows a corner of the given type, see {@link #isCorner1(Cell)}
+     * to {@link #isCorner4(Cell)}
+     */
+    private int followCorner(int x, int y, int corner, long blocked, long[] next) {
+        int count = 0;
+        if (corner >= 3) count = addNext(next, count, x, y - 1, blocked);
+        if (corner <= 2) count = addNext(next, count, x, y + 1, blocked);
+        if (corner == 1 || corner == 4) count = addNext(next, count, x + 1, y, blocked);
+        if (corner == 2 || corner == 3) count = addNext(next, count, x - 1, y, blocked);
+        return count;
+    }
+
+    private int followStub(int x, int y, long blocked, long[] next) {
+        if (!isStub(x, y)) return -1;
+        if (isBoundary(x + 1, y)) return addNext(next, 0, x + 1, y, blocked);
+        if (isBoundary(x - 1, y)) return addNext(next, 0, x - 1, y, blocked);
+        if (isBoundary(x, y - 1)) return addNext(next, 0, x, y - 1, blocked);
+        if (isBoundary(x, y + 1)) return addNext(next, 0, x, y + 1, blocked);
+        return 0;
+    }
+
+    private int followCrossOnLine(int x, int y, long blocked, long[] next) {
+        int count = 0;
+        if (matchesAny(x, y, GridPatternGroup.horizontalCrossOnLineCriteria)) {
+            count = addNext(next, count, x + 1, y, blocked);
+            count = addNext(next, count, x - 1, y, blocked);
+        } else if (matchesAny(x, y, GridPatternGroup.verticalCrossOnLineCriteria)) {
+            count = addNext(next, count, x, y - 1, blocked);
+            count = addNext(next, count, x, y + 1, blocked);
+        }
+        return count;
+    }
+
+    private static int addNext(long[] next, int count, int x, int y, long blocked) {
+        long cell = packCell(x, y);
+        if (cell == blocked) return count;
+        next[count] = cell;
+        return count + 1;
+    }
+
+    private static long pack(Cell cell) {
+        return cell == null ? NO_CELL : packCell(cell.x, cell.y);
+    }
+
+    /**
+     * @return the first <code>count</code> cells of <code>next</code>, or
+     * null if <code>count</code> is negative
+     */
+    private CellSet toCellSet(long[] next, int count) {
+        if (count < 0) return null;
         CellSet result = new CellSet();
-        if (isHorizontalCrossOnLine(cell)) {
-            result.add(cell.getEast());
-            result.add(cell.getWest());
-        } else if (isVerticalCrossOnLine(cell)) {
-            result.add(cell.getNorth());
-            result.add(cell.getSouth());
-        }
-        if (result.contains(blocked)) result.remove(blocked);
+        for (int i = 0; i < count; i++) result.add(cellX(next[i]), cellY(next[i]));
         return result;
     }
 
@@ -1253,7 +1448,12 @@ public class TextGrid {
 
 
     public boolean matchesAny(Cell cell, GridPatternGroup criteria) {
-        TextGrid subGrid = getTestingSubGrid(cell);
+        return matchesAny(cell.x, cell.y, criteria);
+    }
+
+    public boolean matchesAny(int x, int y, GridPatternGroup criteria) {
+        if (criteria.isCompiled()) return GridPatternClassifier.matchesAny(this, x, y, criteria);
+        TextGrid subGrid = getSubGridView(x - 1, y - 1, 3, 3);
         return subGrid.matchesAny(criteria);
     }
 
@@ -1298,7 +1498,7 @@ public class TextGrid {
     }
 
     public boolean isNormalCorner(int x, int y) {
-        return isNormalCorner(new Cell(x, y));
+        return matchesAny(x, y, GridPatternGroup.normalCornerCriteria);
     }
 
     public boolean isRoundCorner(Cell cell) {
@@ -1306,7 +1506,7 @@ public class TextGrid {
     }
 
     public boolean isRoundCorner(int x, int y) {
-        return isRoundCorner(new Cell(x, y));
+        return matchesAny(x, y, GridPatternGroup.roundCornerCriteria);
     }
 
     public boolean isIntersection(Cell cell) {
@@ -1314,14 +1514,15 @@ public class TextGrid {
     }
 
     public boolean isIntersection(int x, int y) {
-        return isIntersection(new Cell(x, y));
+        return matchesAny(x, y, GridPatternGroup.intersectionCriteria);
     }
 
     public void copyCellsTo(CellSet cells, TextGrid grid) {
+        grid.prepareForWrite();
         Iterator it = cells.iterator();
         while (it.hasNext()) {
             Cell cell = (Cell) it.next();
-            grid.set(cell, this.get(cell));
+            grid.set(cell.x, cell.y, this.get(cell));
         }
     }
 
@@ -1331,11 +1532,13 @@ public class TextGrid {
                 ) {
             return false;
         }
-        int height = grid.getHeight();
+        if (grid.cells == cells && grid.offset == offset && grid.stride == stride) return true;
         for (int i = 0; i < height; i++) {
-            String row1 = this.getRow(i).toString();
-            String row2 = grid.getRow(i).toString();
-            if (!row1.equals(row2)) return false;
+            int row1 = offset + i * stride;
+            int row2 = grid.offset + i * grid.stride;
+            for (int x = 0; x < width; x++) {
+                if (cells[row1 + x] != grid.cells[row2 + x]) return false;
+            }
         }
         return true;
     }
@@ -1376,8 +1579,16 @@ public class TextGrid {
     }
 
     public CellSet fillContinuousArea(Cell cell, char c) {
+        return fillContinuousArea(cell, c, CancellationToken.NONE);
+    }
+
+    /**
+     * @throws ConversionAbortedException if <code>token</code> is
+     *                                    cancelled while filling
+     */
+    public CellSet fillContinuousArea(Cell cell, char c, CancellationToken token) {
         if (isOutOfBounds(cell)) throw new IllegalArgumentException("Attempted to fill area out of bounds: " + cell);
-        return seedFillOld(cell, c);
+        return seedFillOld(cell, c, token);
     }
 
     private CellSet seedFill(Cell seed, char newChar) {
@@ -1387,56 +1598,52 @@ public class TextGrid {
         if (oldChar == newChar) return cellsFilled;
         if (isOutOfBounds(seed)) return cellsFilled;
 
-        Stack<Cell> stack = new Stack<Cell>();
+        IntStack stack = new IntStack();
 
-        stack.push(seed);
+        stack.push(seed.y * width + seed.x);
 
         while (!stack.isEmpty()) {
-            Cell cell = stack.pop();
-
-            //set(cell, newChar);
-            cellsFilled.add(cell);
+            int index = stack.pop();
+            int x = index % width;
+            int y = index / width;
 
-            Cell nCell = cell.getNorth();
-            Cell sCell = cell.getSouth();
-            Cell eCell = cell.getEast();
-            Cell wCell = cell.getWest();
+            //set(x, y, newChar);
+            cellsFilled.add(x, y);
 
-            if (get(nCell) == oldChar && !cellsFilled.contains(nCell)) stack.push(nCell);
-            if (get(sCell) == oldChar && !cellsFilled.contains(sCell)) stack.push(sCell);
-            if (get(eCell) == oldChar && !cellsFilled.contains(eCell)) stack.push(eCell);
-            if (get(wCell) == oldChar && !cellsFilled.contains(wCell)) stack.push(wCell);
+            if (y > 0 && get(x, y - 1) == oldChar && !cellsFilled.contains(x, y - 1)) stack.push(index - width);
+            if (y < height - 1 && get(x, y + 1) == oldChar && !cellsFilled.contains(x, y + 1)) stack.push(index + width);
+            if (x < width - 1 && get(x + 1, y) == oldChar && !cellsFilled.contains(x + 1, y)) stack.push(index + 1);
+            if (x > 0 && get(x - 1, y) == oldChar && !cellsFilled.contains(x - 1, y)) stack.push(index - 1);
         }
 
         return cellsFilled;
     }
 
-    private CellSet seedFillOld(Cell seed, char newChar) {
+    private CellSet seedFillOld(Cell seed, char newChar, CancellationToken token) {
         CellSet cellsFilled = new CellSet();
         char oldChar = get(seed);
 
         if (oldChar == newChar) return cellsFilled;
         if (isOutOfBounds(seed)) return cellsFilled;
 
-        Stack<Cell> stack = new Stack<Cell>();
+        IntStack stack = new IntStack();
 
-        stack.push(seed);
+        stack.push(seed.y * width + seed.x);
 
+        int steps = 0;
         while (!stack.isEmpty()) {
-            Cell cell = stack.pop();
-
-            set(cell, newChar);
-            cellsFilled.add(cell);
+            if ((++steps & CancellationToken.CHECK_MASK) == 0) token.check();
+            int index = stack.pop();
+            int x = index % width;
+            int y = index / width;
 
-            Cell nCell = cell.getNorth();
-            Cell sCell = cell.getSouth();
-            Cell eCell = cell.getEast();
-            Cell wCell = cell.getWest();
+            set(x, y, newChar);
+            cellsFilled.add(x, y);
 
-            if (get(nCell) == oldChar) stack.push(nCell);
-            if (get(sCell) == oldChar) stack.push(sCell);
-            if (get(eCell) == oldChar) stack.push(eCell);
-            if (get(wCell) == oldChar) stack.push(wCell);
+            if (y > 0 && get(x, y - 1) == oldChar) stack.push(index - width);
+            if (y < height - 1 && get(x, y + 1) == oldChar) stack.push(index + width);
+            if (x < width - 1 && get(x + 1, y) == oldChar) stack.push(index + 1);
+            if (x > 0 && get(x - 1, y) == oldChar) stack.push(index - 1);
         }
 
         return cellsFilled;
@@ -1459,34 +1666,103 @@ public class TextGrid {
 
         char newChar = 1; //TODO: kludge
 
-        Stack<Cell> stack = new Stack<Cell>();
+        IntStack stack = new IntStack();
 
-        stack.push(seed);
+        stack.push(seed.y * width + seed.x);
 
         while (!stack.isEmpty()) {
-            Cell cell = stack.pop();
+            int index = stack.pop();
+            int x = index % width;
+            int y = index / width;
 
-            set(cell, newChar);
+            set(x, y, newChar);
+
+            if (y > 0) expandTo(x, y - 1, index - width, oldChar, stack, boundaries);
+            if (y < height - 1) expandTo(x, y + 1, index + width, oldChar, stack, boundaries);
+            if (x < width - 1) expandTo(x + 1, y, index + 1, oldChar, stack, boundaries);
+            if (x > 0) expandTo(x - 1, y, index - 1, oldChar, stack, boundaries);
+        }
 
-            Cell nCell = cell.getNorth();
-            Cell sCell = cell.getSouth();
-            Cell eCell = cell.getEast();
-            Cell wCell = cell.getWest();
+        return boundaries;
+    }
+
+    /**
+     * Pushes the cell at x, y (whose index is <code>index</code>) if it
+     * has to be filled, or adds it to <code>boundaries</code> if it is a
+     * boundary
+     */
+    private void expandTo(int x, int y, int index, char oldChar, IntStack stack, CellSet boundaries) {
+        char c = get(x, y);
+        if (c == oldChar) stack.push(index);
+        else if (c == '*') boundaries.add(x, y);
+    }
 
-            if (get(nCell) == oldChar) stack.push(nCell);
-            else if (get(nCell) == '*') boundaries.add(nCell);
 
-            if (get(sCell) == oldChar) stack.push(sCell);
-            else if (get(sCell) == '*') boundaries.add(sCell);
+    /**
+     *
+     * Locates the '*' boundaries of every area of the grid in a single
+     * pass. The result is the same as calling
+     * findBoundariesExpandingFrom() once for every area (continuous
+     * cells with the same character, other than '*'): the areas are
+     * visited in the order of their first cell, row by row, and areas
+     * that have no boundaries are left out. The grid is not modified.
+     *
+     * @return
+     */
+    public ArrayList<CellSet> findBoundariesOfAllAreas() {
+        return findBoundariesOfAllAreas(CancellationToken.NONE);
+    }
 
-            if (get(eCell) == oldChar) stack.push(eCell);
-            else if (get(eCell) == '*') boundaries.add(eCell);
+    /**
+     * @throws ConversionAbortedException if <code>token</code> is
+     *                                    cancelled while searching
+     */
+    public ArrayList<CellSet> findBoundariesOfAllAreas(CancellationToken token) {
+        ArrayList<CellSet> result = new ArrayList<CellSet>();
+        int width = getWidth();
+        int height = getHeight();
+        boolean[] visited = new boolean[width * height];
+        IntStack stack = new IntStack();
+        int steps = 0;
 
-            if (get(wCell) == oldChar) stack.push(wCell);
-            else if (get(wCell) == '*') boundaries.add(wCell);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (visited[y * width + x]) continue;
+                char areaChar = get(x, y);
+                if (areaChar == '*') continue;
+
+                CellSet boundaries = new CellSet();
+                stack.push(y * width + x);
+                visited[y * width + x] = true;
+                while (!stack.isEmpty()) {
+                    if ((++steps & CancellationToken.CHECK_MASK) == 0) token.check();
+                    int index = stack.pop();
+                    int cx = index % width;
+                    int cy = index / width;
+                    for (int direction = 0; direction < 4; direction++) {
+                        int nx = cx, ny = cy;
+                        switch (direction) {
+                            case 0: ny--; break;
+                            case 1: ny++; break;
+                            case 2: nx++; break;
+                            default: nx--; break;
+                        }
+                        if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+                        char c = get(nx, ny);
+                        if (c == areaChar) {
+                            int nIndex = ny * width + nx;
+                            if (visited[nIndex]) continue;
+                            visited[nIndex] = true;
+                            stack.push(nIndex);
+                        } else if (c == '*') {
+                            boundaries.add(nx, ny);
+                        }
+                    }
+                }
+                if (boundaries.size() > 0) result.add(boundaries);
+            }
         }
-
-        return boundaries;
+        return result;
     }
 
 
@@ -1563,6 +1839,7 @@ public class TextGrid {
     public boolean loadFrom(String filename, ProcessingOptions options)
             throws IOException {
 
+        StageTimer timer = new StageTimer(options == null ? null : options.getMetricsListener());
         String encoding = (options == null) ? null : options.getCharacterEncoding();
         ArrayList<StringBuilder> lines = new ArrayList<StringBuilder>();
         InputStream is;
@@ -1574,20 +1851,27 @@ public class TextGrid {
         for (int i = 0; i < linesArray.length; i++)
             lines.add(new StringBuilder(linesArray[i]));
 
-        return initialiseWithLines(lines, options);
+        return initialiseWithLines(lines, options, timer);
     }
 
     public boolean initialiseWithText(String text, ProcessingOptions options) throws UnsupportedEncodingException {
 
+        StageTimer timer = new StageTimer(options == null ? null : options.getMetricsListener());
         ArrayList<StringBuilder> lines = new ArrayList<StringBuilder>();
         String[] linesArray = text.split("(\r)?\n");
         for (int i = 0; i < linesArray.length; i++)
             lines.add(new StringBuilder(linesArray[i]));
 
-        return initialiseWithLines(lines, options);
+        return initialiseWithLines(lines, options, timer);
     }
 
     public boolean initialiseWithLines(ArrayList<StringBuilder> lines, ProcessingOptions options) throws UnsupportedEncodingException {
+        return initialiseWithLines(lines, options,
+                new StageTimer(options == null ? null : options.getMetricsListener()));
+    }
+
+    private boolean initialiseWithLines(ArrayList<StringBuilder> lines, ProcessingOptions options, StageTimer timer)
+            throws UnsupportedEncodingException {
 
         //remove blank rows at the bottom
         boolean done = false;
@@ -1596,10 +1880,12 @@ public class TextGrid {
             StringBuilder row = lines.get(i);
             if (!StringUtils.isBlank(row.toString())) done = true;
         }
-        rows = new ArrayList<StringBuilder>(lines.subList(0, i + 2));
+        ArrayList<StringBuilder> rows = new ArrayList<StringBuilder>(lines.subList(0, i + 2));
+        timer.report(MetricsListener.Stage.GRID_LOAD);
 
-        if (options != null) fixTabs(options.getTabSize());
-        else fixTabs(ProcessingOptions.DEFAULT_TAB_SIZE);
+        if (options != null) fixTabs(rows, options.getTabSize());
+        else fixTabs(rows, ProcessingOptions.DEFAULT_TAB_SIZE);
+        timer.report(MetricsListener.Stage.TAB_FIXING);
 
 
         // make all lines of equal length
@@ -1626,44 +1912,24 @@ public class TextGrid {
             index++;
         }
 
-        it = rows.iterator();
-        ArrayList<StringBuilder> newRows = new ArrayList<StringBuilder>();
-        //TODO: make the following depend on blankBorderSize
-
-        StringBuilder topBottomRow =
-                new StringBuilder(StringUtils.repeatString(" ", maxLength + blankBorderSize * 2));
-
-        newRows.add(topBottomRow);
-        newRows.add(topBottomRow);
-        while (it.hasNext()) {
-            StringBuilder row = it.next();
-
-            if (row.length() < maxLength) {
-                String borderString = StringUtils.repeatString(" ", blankBorderSize);
-                StringBuilder newRow = new StringBuilder();
-
-                newRow.append(borderString);
-                newRow.append(row);
-                newRow.append(StringUtils.repeatString(" ", maxLength - row.length()));
-                newRow.append(borderString);
-
-                newRows.add(newRow);
-            } else { //TODO: why is the following line like that?
-                newRows.add(new StringBuilder("  ").append(row).append("  "));
-            }
+        //the rows are copied into a blank grid, inside a border of
+        //blankBorderSize blank cells on every side
+        width = maxLength + blankBorderSize * 2;
+        height = rows.size() + blankBorderSize * 2;
+        clear();
+        for (int y = 0; y < rows.size(); y++) {
+            StringBuilder row = rows.get(y);
+            row.getChars(0, row.length(), cells, (y + blankBorderSize) * stride + blankBorderSize);
         }
-        //TODO: make the following depend on blankBorderSize
-        newRows.add(topBottomRow);
-        newRows.add(topBottomRow);
-        rows = newRows;
+        timer.report(MetricsListener.Stage.GRID_LOAD);
 
-        replaceBullets();
-        replaceHumanColorCodes();
+        replaceBulletsAndHumanColorCodes();
+        timer.report(MetricsListener.Stage.MARKUP_EXTRACTION);
 
         return true;
     }
 
-    private void fixTabs(int tabSize) {
+    private static void fixTabs(ArrayList<StringBuilder> rows, int tabSize) {
 
         int rowIndex = 0;
         Iterator<StringBuilder> it = rows.iterator();
@@ -1691,13 +1957,6 @@ public class TextGrid {
         }
     }
 
-    /**
-     * @return
-     */
-    protected ArrayList<StringBuilder> getRows() {
-        return rows;
-    }
-
     public class CellColorPair {
         public Color color;
         public Cell cell;
@@ -21,9 +21,11 @@
  */
 package se.ngm.ditaaeps;
 
+import org.stathissideris.ascii2image.core.MetricsListener;
 import org.stathissideris.ascii2image.core.RenderingOptions;
 import org.stathissideris.ascii2image.core.Shape3DOrderingComparator;
 import org.stathissideris.ascii2image.core.ShapeAreaComparator;
+import org.stathissideris.ascii2image.core.StageTimer;
 import org.stathissideris.ascii2image.graphics.*;
 
 import java.awt.*;
@@ -31,6 +33,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -61,6 +64,7 @@ public class EpsRenderer extends ImageRenderer {
      * @param options
      */
     private void renderToEps(Diagram diagram, PrintWriter out, RenderingOptions options) {
+        StageTimer timer = new StageTimer(options.getMetricsListener());
         //RenderedImage renderedImage = image;
         EpsGraphics2D g2 = new EpsGraphics2D(out, new Rectangle2D.Double(0, -diagram.getHeight(), diagram.getWidth(), diagram.getHeight()));
         g2.scale(1, -1); // g2 origo is top-left, eps is bottom-left
@@ -83,6 +87,8 @@ public class EpsRenderer extends ImageRenderer {
 
         renderObjects(diagram, g2);
         g2.dispose();
+        //the document is written as it is drawn
+        timer.report(MetricsListener.Stage.RENDERING);
     }
 
 
@@ -97,6 +103,13 @@ public class EpsRenderer extends ImageRenderer {
         }
     }
 
+    @Override
+    public void renderImage(Diagram d, OutputStream out) {
+        PrintWriter writer = new PrintWriter(out);
+        renderToEps(d, writer, getOptions());
+        writer.flush();
+    }
+
 
     @Override
     protected void renderCustomShape(DiagramShape shape, Graphics2D g2) {
@@ -0,0 +1,118 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.BatchConverter;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+
+public class BatchConverterTest {
+
+	private File dir;
+	private File art1;
+	private File art2;
+	private File nested;
+
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("ditaa").toFile();
+		new File(dir, "nested").mkdir();
+		art1 = copy("art1.txt", "art1.txt");
+		art2 = copy("art2.txt", "art2.txt");
+		nested = copy("art10.txt", "nested/art10.txt");
+		Files.write(new File(dir, "notes.md").toPath(), "not a diagram".getBytes("UTF-8"));
+	}
+
+	@After public void tearDown() throws IOException {
+		try (java.util.stream.Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test public void testDirectory() throws IOException {
+		List<File> inputs = BatchConverter.collectInputs(Arrays.asList(dir.getPath()));
+		assertEquals(Arrays.asList(art1, art2, nested), inputs);
+	}
+
+	@Test public void testGlob() throws IOException {
+		List<File> inputs = BatchConverter.collectInputs(Arrays.asList(dir.getPath() + "/art*.txt"));
+		assertEquals(Arrays.asList(art1, art2), inputs);
+
+		inputs = BatchConverter.collectInputs(Arrays.asList(dir.getPath() + "/**/*.txt"));
+		assertEquals(Arrays.asList(nested), inputs);
+	}
+
+	@Test public void testManifest() throws IOException {
+		File manifest = new File(dir, "manifest");
+		Files.write(manifest.toPath(), "# diagrams\nart2.txt\n\nnested\nart2.txt\n".getBytes("UTF-8"));
+		List<File> inputs = BatchConverter.collectInputs(Arrays.asList("@" + manifest.getPath()));
+		assertEquals(Arrays.asList(art2, nested), inputs);
+	}
+
+	@Test public void testConvert() throws IOException {
+		File missing = new File(dir, "missing.txt");
+		List<File> inputs = Arrays.asList(art1, missing, art2, nested);
+		List<BatchConverter.Result> results =
+			new BatchConverter(new ConversionOptions(), "png", 3).convert(inputs, null);
+
+		assertEquals(inputs.size(), results.size());
+		for(int i = 0; i < inputs.size(); i++){
+			BatchConverter.Result result = results.get(i);
+			assertEquals(inputs.get(i), result.getInput());
+			if(inputs.get(i) == missing){
+				assertFalse(result.succeeded());
+				assertNull(result.getOutput());
+			} else {
+				assertTrue(result.getError(), result.succeeded());
+				assertTrue(new File(result.getOutput()).length() > 0);
+			}
+		}
+	}
+
+	@Test public void testUnwritableOutputIsReported() throws IOException {
+		File output = new File(dir, "art1.png");
+		output.mkdir();
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setOverwriteFiles(true);
+		List<BatchConverter.Result> results =
+			new BatchConverter(options, "png", 1).convert(Arrays.asList(art1), null);
+
+		assertFalse(results.get(0).succeeded());
+		assertTrue(results.get(0).getError(), results.get(0).getError().contains(output.getPath()));
+	}
+
+	private File copy(String name, String target) throws IOException {
+		File file = new File(dir, target);
+		Files.copy(new File("test-resources/text", name).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+}
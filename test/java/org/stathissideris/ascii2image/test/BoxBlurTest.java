@@ -0,0 +1,85 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Kernel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.BoxBlur;
+
+/**
+ * Checks BoxBlur against the ConvolveOp that the shadows used to be
+ * blurred with.
+ */
+public class BoxBlurTest {
+
+	@Test public void testRandomImagesAgainstConvolveOp() {
+		Random random = new Random(11);
+		for(int i = 0; i < 50; i++){
+			int width = 1 + random.nextInt(40);
+			int height = 1 + random.nextInt(40);
+			int size = 1 + random.nextInt(8);
+			byte[] pixels = new byte[width * height];
+			if(i % 2 == 0){
+				random.nextBytes(pixels);
+			} else {
+				//blocks of solid colour, like the shadows
+				for(int y = height / 4; y < height * 3 / 4; y++){
+					Arrays.fill(pixels, y * width + width / 3, y * width + width, (byte) 255);
+				}
+			}
+
+			byte[] expected = convolve(pixels, width, height, size);
+			BoxBlur.blur(pixels, width, height, size);
+			for(int p = 0; p < pixels.length; p++){
+				assertTrue(
+					"pixel "+p+" of "+width+"x"+height+" with box "+size,
+					Math.abs((expected[p] & 0xff) - (pixels[p] & 0xff)) <= 1);
+			}
+		}
+	}
+
+	@Test public void testUniformImageIsUnchanged() {
+		byte[] pixels = new byte[20 * 10];
+		Arrays.fill(pixels, (byte) 150);
+		BoxBlur.blur(pixels, 20, 10, 6);
+		for(byte pixel : pixels) assertEquals(150, pixel & 0xff);
+	}
+
+	private static byte[] convolve(byte[] pixels, int width, int height, int size) {
+		BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] sourcePixels = ((DataBufferByte) source.getRaster().getDataBuffer()).getData();
+		System.arraycopy(pixels, 0, sourcePixels, 0, pixels.length);
+
+		float[] elements = new float[size * size];
+		Arrays.fill(elements, 1.0f / (size * size));
+		ConvolveOp op = new ConvolveOp(new Kernel(size, size, elements), ConvolveOp.EDGE_NO_OP, null);
+		BufferedImage destination = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		op.filter(source.getRaster(), destination.getRaster());
+		return ((DataBufferByte) destination.getRaster().getDataBuffer()).getData();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.core.ConversionAbortedException;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.MetricsListener.Stage;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class CancellationTest {
+
+	@Test public void testWithinBudgets() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		String text = boxes(3);
+		options.processingOptions.setMaxGridCells(gridCells(text));
+		options.processingOptions.setMaxDistinctShapes(9);
+		options.processingOptions.setMaxMillis(60000);
+		options.processingOptions.setCancellationToken(new CancellationToken());
+
+		Diagram diagram = new Diagram(grid(text, options), options);
+		Diagram unlimited = new Diagram(grid(text, new ConversionOptions()), new ConversionOptions());
+		assertEquals(unlimited.getAllDiagramShapes().size(), diagram.getAllDiagramShapes().size());
+	}
+
+	@Test public void testTooManyCells() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		String text = boxes(3);
+		options.processingOptions.setMaxGridCells(gridCells(text) - 1);
+		assertAborted(ConversionAbortedException.Reason.TOO_MANY_CELLS, text, options);
+	}
+
+	@Test public void testTooManyShapes() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setMaxDistinctShapes(8);
+		assertAborted(ConversionAbortedException.Reason.TOO_MANY_SHAPES, boxes(3), options);
+	}
+
+	@Test public void testCancelledBeforehand() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		CancellationToken token = new CancellationToken();
+		token.cancel();
+		options.processingOptions.setCancellationToken(token);
+		assertAborted(ConversionAbortedException.Reason.CANCELLED, boxes(3), options);
+	}
+
+	@Test public void testTimeout() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setMaxMillis(1);
+		assertAborted(ConversionAbortedException.Reason.TIMED_OUT, boxes(20), options);
+	}
+
+	@Test public void testCancelledWhileProcessing() throws Exception {
+		for(int threads : new int[]{1, 2}){
+			ConversionOptions options = new ConversionOptions();
+			options.processingOptions.setParallelism(threads);
+			CancellationToken token = new CancellationToken();
+			options.processingOptions.setCancellationToken(token);
+			TextGrid grid = grid(boxes(10), options);
+
+			//cancel from another thread once the shapes have been found
+			ExecutorService canceller = Executors.newSingleThreadExecutor();
+			List<Stage> completed = new CopyOnWriteArrayList<Stage>();
+			options.setMetricsListener((stage, nanos, allocatedBytes) -> {
+				completed.add(stage);
+				if(stage == Stage.ABSTRACTION){
+					try {
+						canceller.submit(token::cancel).get();
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			try {
+				new Diagram(grid, options);
+				fail("The diagram was not cancelled");
+			} catch (ConversionAbortedException e) {
+				assertEquals(ConversionAbortedException.Reason.CANCELLED, e.getReason());
+				assertEquals(Arrays.asList(Stage.ABSTRACTION), completed);
+			} finally {
+				canceller.shutdown();
+			}
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testNoneCannotBeCancelled() {
+		CancellationToken.NONE.cancel();
+	}
+
+	private static void assertAborted(ConversionAbortedException.Reason reason, String text, ConversionOptions options)
+			throws Exception {
+		TextGrid grid = grid(text, options);
+		try {
+			new Diagram(grid, options);
+			fail("Expected " + reason);
+		} catch (ConversionAbortedException e) {
+			assertEquals(reason, e.getReason());
+		}
+	}
+
+	private static TextGrid grid(String text, ConversionOptions options) throws Exception {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text, options.processingOptions);
+		return grid;
+	}
+
+	private static long gridCells(String text) throws Exception {
+		TextGrid grid = grid(text, new ConversionOptions());
+		return (long) grid.getWidth() * grid.getHeight();
+	}
+
+	/**
+	 * @return a square of <code>size</code> by <code>size</code> separate boxes
+	 */
+	private static String boxes(int size) {
+		StringBuilder text = new StringBuilder();
+		for(int row = 0; row < size; row++){
+			StringBuilder top = new StringBuilder(), middle = new StringBuilder();
+			for(int column = 0; column < size; column++){
+				top.append("+---+ ");
+				middle.append("|   | ");
+			}
+			text.append(top).append('\n').append(middle).append('\n').append(top).append("\n\n");
+		}
+		return text.toString();
+	}
+}
@@ -21,6 +21,11 @@ package org.stathissideris.ascii2image.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.CellSet;
@@ -45,4 +50,194 @@ public class CellSetTest {
 		assertTrue(cell1.equals(cell2));
 		assertTrue(set.contains(cell1));
 	}
+
+	@Test public void testIterationOrder() {
+		//the order of the HashSet that used to back CellSet
+		Iterator<TextGrid.Cell> it = set.iterator();
+		assertEquals(g.new Cell(10, 30), it.next());
+		assertEquals(g.new Cell(10, 60), it.next());
+		assertEquals(g.new Cell(60, 20), it.next());
+		assertEquals(g.new Cell(10, 20), it.next());
+		assertFalse(it.hasNext());
+	}
+
+	@Test public void testIterationOrderOfAHashSet() {
+		//all the cells of a diagonal have the same bucket
+		CellSet diagonal = new CellSet();
+		HashSet<TextGrid.Cell> expectedDiagonal = new HashSet<TextGrid.Cell>();
+		for(int j = 0; j < 30; j++){
+			for(TextGrid.Cell cell : new TextGrid.Cell[] {g.new Cell(j, j), g.new Cell(j + 3, j)}){
+				diagonal.add(cell);
+				expectedDiagonal.add(cell);
+			}
+			assertEquals(new ArrayList<TextGrid.Cell>(expectedDiagonal), toList(diagonal));
+		}
+
+		Random random = new Random(11);
+		for(int i = 0; i < 200; i++){
+			//small areas fill some buckets enough to be made into trees
+			int width = 1 + random.nextInt(i % 2 == 0 ? 300 : 40);
+			int height = 1 + random.nextInt(i % 2 == 0 ? 100 : 40);
+			int count = random.nextInt(i % 4 < 2 ? 2000 : 40);
+			CellSet cells = new CellSet();
+			HashSet<TextGrid.Cell> expected = new HashSet<TextGrid.Cell>();
+			for(int j = 0; j < count; j++){
+				TextGrid.Cell cell = g.new Cell(random.nextInt(width), random.nextInt(height));
+				cells.add(cell);
+				expected.add(cell);
+			}
+			assertEquals(new ArrayList<TextGrid.Cell>(expected), toList(cells));
+
+			CellSet copy = new CellSet(cells);
+			HashSet<TextGrid.Cell> expectedCopy = new HashSet<TextGrid.Cell>();
+			expectedCopy.addAll(expected);
+			assertEquals(new ArrayList<TextGrid.Cell>(expectedCopy), toList(copy));
+
+			if(count > 40) continue;
+			for(int j = 0; j < count; j++){
+				TextGrid.Cell cell = g.new Cell(random.nextInt(width), random.nextInt(height));
+				if(j % 2 == 0){
+					cells.remove(cell);
+					expected.remove(cell);
+				} else {
+					cells.add(cell);
+					expected.add(cell);
+				}
+			}
+			assertEquals(new ArrayList<TextGrid.Cell>(expected), toList(cells));
+			if(!expected.isEmpty()) assertEquals(expected.iterator().next(), cells.getFirst());
+		}
+	}
+
+	@Test public void testBounds() {
+		assertEquals(10, set.getMinX());
+		assertEquals(60, set.getMaxX());
+		assertEquals(20, set.getMinY());
+		assertEquals(60, set.getMaxY());
+		set.remove(g.new Cell(60, 20));
+		set.remove(g.new Cell(10, 60));
+		assertEquals(10, set.getMaxX());
+		assertEquals(30, set.getMaxY());
+		assertEquals(2, set.size());
+	}
+
+	@Test public void testNegativeCoordinates() {
+		CellSet other = new CellSet();
+		other.add(g.new Cell(-70, -3));
+		other.add(g.new Cell(130, 200));
+		other.add(g.new Cell(-1, 0));
+		assertTrue(other.contains(g.new Cell(-70, -3)));
+		assertTrue(other.contains(g.new Cell(-1, 0)));
+		assertFalse(other.contains(g.new Cell(-6, -3)));
+		assertEquals(-70, other.getMinX());
+		assertEquals(-3, other.getMinY());
+		other.translate(70, 3);
+		assertTrue(other.contains(g.new Cell(0, 0)));
+		assertTrue(other.contains(g.new Cell(200, 203)));
+		assertTrue(other.contains(g.new Cell(69, 3)));
+		assertEquals(3, other.size());
+	}
+
+	@Test public void testSetOperations() {
+		Random random = new Random(7);
+		for(int i = 0; i < 200; i++){
+			CellSet a = new CellSet();
+			CellSet b = new CellSet();
+			HashSet<TextGrid.Cell> expectedA = new HashSet<TextGrid.Cell>();
+			HashSet<TextGrid.Cell> expectedB = new HashSet<TextGrid.Cell>();
+			for(int j = 0; j < 50; j++){
+				TextGrid.Cell cell = g.new Cell(random.nextInt(150) - 20, random.nextInt(40) - 5);
+				a.add(cell);
+				expectedA.add(cell);
+				cell = g.new Cell(random.nextInt(150) - 20, random.nextInt(40) - 5);
+				b.add(cell);
+				expectedB.add(cell);
+			}
+			HashSet<TextGrid.Cell> common = new HashSet<TextGrid.Cell>(expectedA);
+			common.retainAll(expectedB);
+			assertEquals(!common.isEmpty(), a.hasCommonCells(b));
+
+			CellSet union = new CellSet(a);
+			union.addSet(b);
+			HashSet<TextGrid.Cell> expectedUnion = new HashSet<TextGrid.Cell>(expectedA);
+			expectedUnion.addAll(expectedB);
+			assertEquals(expectedUnion, toHashSet(union));
+
+			CellSet difference = new CellSet(a);
+			difference.subtractSet(b);
+			HashSet<TextGrid.Cell> expectedDifference = new HashSet<TextGrid.Cell>(expectedA);
+			expectedDifference.removeAll(expectedB);
+			assertEquals(expectedDifference, toHashSet(difference));
+
+			CellSet unionAgain = new CellSet(b);
+			unionAgain.addSet(a);
+			assertEquals(union, unionAgain);
+			assertEquals(union.hashCode(), unionAgain.hashCode());
+			assertEquals(common.isEmpty(), union.size() == expectedA.size() + expectedB.size());
+		}
+	}
+
+	@Test public void testFingerprint() {
+		CellSet other = new CellSet();
+		other.add(g.new Cell(60, 20));
+		other.add(g.new Cell(10, 30));
+		other.add(g.new Cell(10, 20));
+		other.add(g.new Cell(10, 60));
+		assertEquals(set.getFingerprint(), other.getFingerprint());
+
+		other.add(g.new Cell(11, 30));
+		assertTrue(set.getFingerprint() != other.getFingerprint());
+		assertFalse(set.equals(other));
+		other.remove(g.new Cell(11, 30));
+		assertEquals(set.getFingerprint(), other.getFingerprint());
+
+		CellSet rebuilt = new CellSet(set);
+		rebuilt.subtractSet(other);
+		assertEquals(0, rebuilt.size());
+		assertEquals(new CellSet().getFingerprint(), rebuilt.getFingerprint());
+		rebuilt.addSet(other);
+		rebuilt.translate(5, -5);
+		rebuilt.translate(-5, 5);
+		assertEquals(set.getFingerprint(), rebuilt.getFingerprint());
+	}
+
+	@Test public void testRemoveDuplicateSets() {
+		CellSet copy = new CellSet(set);
+		CellSet other = new CellSet();
+		other.add(g.new Cell(1, 1));
+		ArrayList<CellSet> list = new ArrayList<CellSet>();
+		list.add(set);
+		list.add(other);
+		list.add(copy);
+		list.add(new CellSet(other));
+		ArrayList<CellSet> unique = CellSet.removeDuplicateSets(list);
+		assertEquals(2, unique.size());
+		assertSame(set, unique.get(0));
+		assertSame(other, unique.get(1));
+	}
+
+	@Test public void testTypeIsReevaluatedAfterRemove() throws Exception {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText("+--+\n|  |\n+--+\n", null);
+		CellSet box = grid.getAllBoundaries();
+		assertEquals(CellSet.TYPE_CLOSED, box.getType(grid));
+		Iterator<TextGrid.Cell> it = box.iterator();
+		while(it.hasNext()){
+			if(it.next().equals(g.new Cell(3, 2))) it.remove();
+		}
+		assertEquals(CellSet.TYPE_OPEN, box.getType(grid));
+	}
+
+	private static ArrayList<TextGrid.Cell> toList(CellSet set) {
+		ArrayList<TextGrid.Cell> result = new ArrayList<TextGrid.Cell>();
+		for(TextGrid.Cell cell : set) result.add(cell);
+		return result;
+	}
+
+	private static HashSet<TextGrid.Cell> toHashSet(CellSet set) {
+		HashSet<TextGrid.Cell> result = new HashSet<TextGrid.Cell>();
+		for(TextGrid.Cell cell : set) result.add(cell);
+		assertEquals(set.size(), result.size());
+		return result;
+	}
 }
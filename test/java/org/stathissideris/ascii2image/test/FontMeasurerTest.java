@@ -0,0 +1,124 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.FontMeasurer;
+
+/**
+ * Checks the binary searches of FontMeasurer against the linear searches
+ * they replaced.
+ */
+public class FontMeasurerTest {
+
+	private static final String[] strings = {"a", "Hello", "iiiiiiii", "WWWWWWW", "a much longer string of text"};
+
+	@Test public void testFontForHeightIsTheLinearSearchResult() {
+		FontMeasurer measurer = new FontMeasurer();
+		for(int height = 0; height <= 120; height++){
+			assertEquals("height "+height, linearFontFor(measurer, height), measurer.getFontFor(height));
+		}
+	}
+
+	@Test public void testFontForWidthIsTheLinearSearchResult() {
+		FontMeasurer measurer = new FontMeasurer();
+		for(String string : strings){
+			for(int width = 0; width <= 400; width += 3){
+				assertEquals(string+" in "+width, linearFontFor(measurer, width, string), measurer.getFontFor(width, string));
+			}
+		}
+	}
+
+	@Test public void testFontsAreCached() {
+		FontMeasurer measurer = new FontMeasurer();
+		assertSame(measurer.getFontFor(14), measurer.getFontFor(14));
+		assertSame(measurer.getFontFor(50, "Hello"), measurer.getFontFor(50, "Hello"));
+	}
+
+	@Test public void testConcurrentCallsAgree() throws Exception {
+		final FontMeasurer measurer = new FontMeasurer();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<List<Font>>> results = new ArrayList<Future<List<Font>>>();
+			for(int i = 0; i < 8; i++){
+				results.add(pool.submit(new Callable<List<Font>>() {
+					public List<Font> call() {
+						List<Font> fonts = new ArrayList<Font>();
+						for(int height = 5; height < 60; height++) fonts.add(measurer.getFontFor(height));
+						for(String string : strings) fonts.add(measurer.getFontFor(40, string));
+						return fonts;
+					}
+				}));
+			}
+			List<Font> expected = results.get(0).get();
+			for(Future<List<Font>> result : results) assertEquals(expected, result.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static Font linearFontFor(FontMeasurer measurer, int pixelHeight) {
+		float size = 12;
+		Font currentFont = new Font("Dialog", Font.BOLD, (int) size);
+		int direction = measurer.getAscent(currentFont) > pixelHeight ? -1 : 1;
+		size += direction;
+		while(size > 0){
+			currentFont = currentFont.deriveFont(size);
+			int ascent = measurer.getAscent(currentFont);
+			if(direction == 1){
+				if(ascent > pixelHeight) return currentFont.deriveFont(size - 0.5f);
+				size += 0.5f;
+			} else {
+				if(ascent < pixelHeight) return currentFont;
+				size -= 0.5f;
+			}
+		}
+		return null;
+	}
+
+	private static Font linearFontFor(FontMeasurer measurer, int maxWidth, String string) {
+		float size = 12;
+		Font currentFont = new Font("Dialog", Font.BOLD, (int) size);
+		int direction = measurer.getWidthFor(string, currentFont) > maxWidth ? -1 : 1;
+		size += direction;
+		while(size > 0){
+			currentFont = currentFont.deriveFont(size);
+			int width = measurer.getWidthFor(string, currentFont);
+			if(direction == 1){
+				if(width > maxWidth) return currentFont.deriveFont(size - 1);
+				size += 1;
+			} else {
+				if(width < maxWidth) return currentFont;
+				size -= 1;
+			}
+		}
+		return null;
+	}
+}
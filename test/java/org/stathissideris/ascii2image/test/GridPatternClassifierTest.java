@@ -0,0 +1,174 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.text.GridPattern;
+import org.stathissideris.ascii2image.text.GridPatternClassifier;
+import org.stathissideris.ascii2image.text.GridPatternGroup;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Checks the compiled GridPatternClassifier against the regular
+ * expressions of GridPattern.
+ */
+public class GridPatternClassifierTest {
+
+	/**
+	 * At least one character of every class the pattern syntax can tell
+	 * apart, plus a few that it treats as "anything else".
+	 */
+	private static final String alphabet = " -=/\\+|:*ao<v\n\r";
+
+	@Test public void testAllCriteriaAreCompiled() throws Exception {
+		for(GridPatternGroup criteria : getAllCriteria()){
+			assertTrue(criteria.isCompiled());
+		}
+	}
+
+	/**
+	 * GridPattern and the classifier both accept a grid only if every
+	 * one of its rows is accepted, so comparing them on every possible
+	 * row (while the other two rows are accepted) is equivalent to
+	 * comparing them on every possible 3x3 combination.
+	 */
+	@Test public void testEveryRowOfEveryPattern() throws Exception {
+		ArrayList<String> rows = getAllRows();
+		for(GridPattern pattern : getAllPatterns()){
+			GridPatternGroup group = new GridPatternGroup();
+			group.add(pattern);
+			GridPatternClassifier.compile(group);
+
+			//find the rows accepted by the regular expressions, one row at a time
+			String[] witness = new String[3];
+			ArrayList<ArrayList<String>> accepted = new ArrayList<ArrayList<String>>();
+			for(int y = 0; y < 3; y++){
+				ArrayList<String> acceptedRows = new ArrayList<String>();
+				for(String row : rows){
+					witness[y] = row;
+					if(pattern.isMatchedBy(makeGrid(witness, y + 1))) acceptedRows.add(row);
+				}
+				accepted.add(acceptedRows);
+				if(acceptedRows.isEmpty()) break;
+				witness[y] = acceptedRows.get(0);
+			}
+
+			if(accepted.size() < 3 || accepted.get(2).isEmpty()){
+				//the pattern can never match
+				for(String row : rows){
+					TextGrid grid = makeGrid(new String[]{row, row, row}, 3);
+					assertFalse(GridPatternClassifier.matchesAny(grid, 1, 1, group));
+				}
+				continue;
+			}
+
+			for(int y = 0; y < 3; y++){
+				String[] gridRows = witness.clone();
+				for(String row : rows){
+					gridRows[y] = row;
+					TextGrid grid = makeGrid(gridRows, 3);
+					assertEquals(
+						"pattern "+pattern+" on "+grid,
+						accepted.get(y).contains(row),
+						GridPatternClassifier.matchesAny(grid, 1, 1, group));
+				}
+			}
+		}
+	}
+
+	@Test public void testRandomNeighbourhoodsAgainstAllCriteria() throws Exception {
+		Random random = new Random(42);
+		ArrayList<GridPatternGroup> allCriteria = getAllCriteria();
+		TextGrid grid = new TextGrid(3, 3);
+		for(int i = 0; i < 20000; i++){
+			for(int y = 0; y < 3; y++){
+				for(int x = 0; x < 3; x++){
+					grid.set(x, y, alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+			}
+			//make the interesting centres more likely
+			if(i % 2 == 0) grid.set(1, 1, "+/\\*|-".charAt(random.nextInt(6)));
+			for(GridPatternGroup criteria : allCriteria){
+				assertEquals(
+					criteria.isAnyMatchedBy(grid),
+					grid.matchesAny(grid.new Cell(1, 1), criteria));
+			}
+		}
+	}
+
+	@Test public void testCornerOfBox() {
+		TextGrid grid = new TextGrid(6, 4);
+		grid.setRow(0, "+----+");
+		grid.setRow(1, "|    |");
+		grid.setRow(2, "|    |");
+		grid.setRow(3, "+----+");
+		TextGrid padded = new TextGrid(8, 6);
+		for(int y = 0; y < 4; y++) padded.writeStringTo(1, y + 1, grid.getRow(y).toString());
+
+		assertTrue(padded.isCorner1(padded.new Cell(1, 1)));
+		assertTrue(padded.isCorner2(padded.new Cell(6, 1)));
+		assertTrue(padded.isCorner3(padded.new Cell(6, 4)));
+		assertTrue(padded.isCorner4(padded.new Cell(1, 4)));
+		assertFalse(padded.isIntersection(padded.new Cell(1, 1)));
+		assertFalse(padded.isCorner(padded.new Cell(3, 1)));
+	}
+
+	private static TextGrid makeGrid(String[] rows, int height) {
+		TextGrid grid = new TextGrid(3, height);
+		for(int y = 0; y < height; y++) grid.setRow(y, rows[y]);
+		return grid;
+	}
+
+	private static ArrayList<String> getAllRows() {
+		ArrayList<String> rows = new ArrayList<String>();
+		for(int i = 0; i < alphabet.length(); i++)
+			for(int j = 0; j < alphabet.length(); j++)
+				for(int k = 0; k < alphabet.length(); k++)
+					rows.add(""+alphabet.charAt(i)+alphabet.charAt(j)+alphabet.charAt(k));
+		return rows;
+	}
+
+	private static ArrayList<GridPatternGroup> getAllCriteria() throws IllegalAccessException {
+		ArrayList<GridPatternGroup> result = new ArrayList<GridPatternGroup>();
+		for(Field field : GridPatternGroup.class.getFields()){
+			if(Modifier.isStatic(field.getModifiers())
+					&& field.getType() == GridPatternGroup.class){
+				result.add((GridPatternGroup) field.get(null));
+			}
+		}
+		return result;
+	}
+
+	private static ArrayList<GridPattern> getAllPatterns() throws IllegalAccessException {
+		IdentityHashMap<GridPattern, Boolean> patterns = new IdentityHashMap<GridPattern, Boolean>();
+		for(GridPatternGroup criteria : getAllCriteria()){
+			for(GridPattern pattern : criteria) patterns.put(pattern, Boolean.TRUE);
+		}
+		return new ArrayList<GridPattern>(patterns.keySet());
+	}
+}
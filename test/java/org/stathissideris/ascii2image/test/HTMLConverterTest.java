@@ -0,0 +1,114 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.FileUtils;
+import org.stathissideris.ascii2image.core.HTMLConverter;
+
+public class HTMLConverterTest {
+
+	private static final String BOX = "+-----+\n| box |\n+-----+\n";
+	private static final String ARROW = "+---+   +---+\n| a |-->| b |\n+---+   +---+\n";
+
+	private File dir;
+
+	@Before public void setUp() throws IOException {
+		dir = Files.createTempDirectory("ditaa").toFile();
+	}
+
+	@After public void tearDown() throws IOException {
+		try (java.util.stream.Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test public void testIdenticalDiagramsAreRenderedOnce() throws IOException {
+		HTMLConverter converter = convert(BOX, ARROW, BOX);
+		assertEquals(2, converter.getRenderedCount());
+
+		String html = FileUtils.readFile(new File(dir, "out.html"));
+		assertEquals(2, count(html, "<img src=\"images/ditaa_diagram_1.png\" />"));
+		assertEquals(1, count(html, "<img src=\"images/ditaa_diagram_2.png\" />"));
+		assertEquals(1, count(html, "<img src=\"images/named.png\" />"));
+		assertFalse(html.contains("textdiagram"));
+
+		File images = new File(dir, "images");
+		byte[] shared = Files.readAllBytes(new File(images, "ditaa_diagram_1.png").toPath());
+		assertArrayEquals(shared, Files.readAllBytes(new File(images, "named.png").toPath()));
+		assertFalse(new File(images, "ditaa_diagram_3.png").exists());
+	}
+
+	@Test public void testUnchangedDiagramsAreSkipped() throws IOException {
+		convert(BOX, ARROW, BOX);
+		File image = new File(dir, "images/ditaa_diagram_2.png");
+		image.setLastModified(1000000000000L);
+
+		HTMLConverter converter = convert(BOX, ARROW, BOX);
+		assertEquals(0, converter.getRenderedCount());
+		assertEquals(3, converter.getSkippedCount());
+		assertEquals(1000000000000L, image.lastModified());
+
+		//only the named diagram changes, the blank line makes no difference
+		converter = convert(BOX, ARROW + "\n", ARROW);
+		assertEquals(1, converter.getRenderedCount());
+		assertEquals(2, converter.getSkippedCount());
+		assertEquals(1000000000000L, image.lastModified());
+	}
+
+	/**
+	 * Converts a document with two unnamed diagrams and a named one
+	 */
+	private HTMLConverter convert(String first, String second, String named) throws IOException {
+		String html = "<html><body>\n"
+				+ "<pre class=\"textdiagram\">\n" + first + "</pre>\n"
+				+ "<pre class=\"textdiagram\">\n" + second + "</pre>\n"
+				+ "<pre class=\"textdiagram\">\n" + first + "</pre>\n"
+				+ "<pre class=\"textdiagram\" id=\"named\">\n" + named + "</pre>\n"
+				+ "</body></html>\n";
+		File source = new File(dir, "in.html");
+		Files.write(source.toPath(), html.getBytes("UTF-8"));
+
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setOverwriteFiles(true);
+		HTMLConverter converter = new HTMLConverter();
+		converter.setWorkers(2);
+		assertTrue(converter.convertHTMLFile(source.getPath(), new File(dir, "out.html").getPath(),
+				"ditaa_diagram", "images", options));
+		return converter;
+	}
+
+	private static int count(String text, String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) count++;
+		return count;
+	}
+}
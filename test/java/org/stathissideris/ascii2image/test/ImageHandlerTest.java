@@ -0,0 +1,88 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.ImageHandler;
+import org.stathissideris.ascii2image.graphics.OffScreenSVGRenderer;
+
+public class ImageHandlerTest {
+
+	private static final String shape = "images/shapes/flowchart/circle.svg";
+	private static final String idRegex = "^.+_vfill$";
+
+	@Test public void testImagesAreCached() throws Exception {
+		ImageHandler handler = ImageHandler.instance();
+		BufferedImage image = handler.renderSVG(shape, 40, 30, false);
+		assertSame(image, handler.renderSVG(shape, 40, 30, false));
+		assertNotSame(image, handler.renderSVG(shape, 40, 30, true));
+		assertNotSame(image, handler.renderSVG(shape, 41, 30, false));
+
+		BufferedImage blue = handler.renderSVG(shape, 40, 30, false, idRegex, Color.blue);
+		assertSame(blue, handler.renderSVG(shape, 40, 30, false, idRegex, new Color(0, 0, 255)));
+		assertNotSame(blue, handler.renderSVG(shape, 40, 30, false, idRegex, Color.red));
+	}
+
+	@Test public void testCachedImagesAreTheRenderedOnes() throws Exception {
+		String uri = new File(shape).toURI().toString();
+		OffScreenSVGRenderer renderer = new OffScreenSVGRenderer();
+		//a coloured version first, to check that it does not leak into the others
+		assertSamePixels(
+			renderer.renderToImage(uri, 50, 20, true, idRegex, Color.green),
+			ImageHandler.instance().renderSVG(shape, 50, 20, true, idRegex, Color.green));
+		assertSamePixels(
+			renderer.renderToImage(uri, 50, 20, true, null, null),
+			ImageHandler.instance().renderSVG(shape, 50, 20, true));
+	}
+
+	@Test public void testModifiedFileIsRenderedAgain() throws Exception {
+		File file = File.createTempFile("shape", ".svg");
+		file.deleteOnExit();
+		Files.copy(new File(shape).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		file.setLastModified(1000000000000L);
+		BufferedImage image = ImageHandler.instance().renderSVG(file.getPath(), 30, 30, false);
+		assertSame(image, ImageHandler.instance().renderSVG(file.getPath(), 30, 30, false));
+
+		String content = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+		Files.write(file.toPath(), content.replace("#f1b955", "#000000").getBytes("UTF-8"));
+		file.setLastModified(1000000001000L);
+		BufferedImage modified = ImageHandler.instance().renderSVG(file.getPath(), 30, 30, false);
+		assertNotSame(image, modified);
+		assertSamePixels(new OffScreenSVGRenderer().renderToImage(file.toURI().toString(), 30, 30), modified);
+	}
+
+	private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for(int y = 0; y < expected.getHeight(); y++){
+			for(int x = 0; x < expected.getWidth(); x++){
+				assertEquals("pixel at "+x+", "+y, expected.getRGB(x, y), actual.getRGB(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.FileUtils;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.DiagramShape;
+import org.stathissideris.ascii2image.graphics.DiagramText;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Checks that updating the diagram of an edited grid gives the same
+ * diagram as processing the edited grid from scratch.
+ */
+public class IncrementalDiagramTest {
+
+	private static final String replacements = " -|+/\\:=*<>^vAbc";
+
+	@Test public void testEditsGiveIdenticalDiagrams() throws IOException {
+		File[] files = new File("test-resources/text").listFiles();
+		assertNotNull(files);
+		Random random = new Random(7);
+		ConversionOptions options = new ConversionOptions();
+		for(File file : files){
+			if(!file.getName().endsWith(".txt")) continue;
+			String text = FileUtils.readFile(file);
+			TextGrid grid = makeGrid(text, options);
+			Diagram diagram = new Diagram(grid, options);
+
+			for(int i = 0; i < 6; i++){
+				String edited = edit(text, random);
+				String expected;
+				try {
+					expected = describe(new Diagram(makeGrid(edited, options), options));
+				} catch(RuntimeException | StackOverflowError e){
+					//some edits make grids that cannot be processed at all
+					continue;
+				}
+				TextGrid editedGrid = makeGrid(edited, options);
+				Diagram updated = new Diagram(editedGrid, options, grid, diagram);
+				assertEquals(file.getName() + " edited to\n" + edited, expected, describe(updated));
+				text = edited;
+				grid = editedGrid;
+				diagram = updated;
+			}
+		}
+	}
+
+	@Test public void testUnchangedGrid() throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = makeGrid(FileUtils.readFile(new File("test-resources/text/art2.txt")), options);
+		Diagram diagram = new Diagram(grid, options);
+		assertEquals(describe(diagram), describe(new Diagram(grid, options, grid, diagram)));
+	}
+
+	/**
+	 * Replaces a character, or inserts a line
+	 */
+	private static String edit(String text, Random random) {
+		if(random.nextInt(5) == 0){
+			int at = text.indexOf('\n', random.nextInt(text.length()));
+			if(at == -1) return text + "\n   ---+";
+			return text.substring(0, at + 1) + "    ---+" + text.substring(at);
+		}
+		int at;
+		do {
+			at = random.nextInt(text.length());
+		} while(text.charAt(at) == '\n');
+		char c = replacements.charAt(random.nextInt(replacements.length()));
+		return text.substring(0, at) + c + text.substring(at + 1);
+	}
+
+	private static TextGrid makeGrid(String text, ConversionOptions options) throws IOException {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text, options.processingOptions);
+		return grid;
+	}
+
+	private static String describe(Diagram diagram) {
+		StringBuilder result = new StringBuilder();
+		for(DiagramShape shape : diagram.getAllDiagramShapes()){
+			result.append(shape.getType()).append(' ')
+				.append(shape.isClosed()).append(' ')
+				.append(shape.getFillColor()).append(' ')
+				.append(shape).append('\n');
+		}
+		for(DiagramText text : diagram.getTextObjects()){
+			result.append(text).append(' ')
+				.append(text.getColor()).append(' ')
+				.append(text.hasOutline()).append('\n');
+		}
+		return result.toString();
+	}
+}
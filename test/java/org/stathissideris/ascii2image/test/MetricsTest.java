@@ -0,0 +1,93 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.MetricsListener.Stage;
+import org.stathissideris.ascii2image.core.MetricsRecorder;
+import org.stathissideris.ascii2image.core.RenderCache;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class MetricsTest {
+
+	private static final String diagram =
+			"+--------+   +-------+\n" +
+			"| cBLU   +-->| {d}   |\n" +
+			"|  box   |   | text  |\n" +
+			"+--------+   +-------+\n";
+
+	@Test public void testAllStagesAreReported() throws Exception {
+		MetricsRecorder metrics = new MetricsRecorder();
+		ConversionOptions options = new ConversionOptions();
+		options.setMetricsListener(metrics);
+
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(diagram, options.processingOptions);
+		Diagram d = new Diagram(grid, options);
+		new BitmapRenderer(null, options.renderingOptions).renderImage(d, new ByteArrayOutputStream());
+
+		Map<Stage, Long> nanos = metrics.getNanos();
+		for(Stage stage : Stage.values()){
+			assertTrue(stage.getName(), nanos.containsKey(stage));
+			assertTrue(stage.getName(), nanos.get(stage) >= 0);
+		}
+		assertEquals(1, (long) metrics.getCounts().get(Stage.ABSTRACTION));
+		assertTrue(metrics.getAllocatedBytes().get(Stage.ABSTRACTION) != 0);
+
+		String json = metrics.toJSON();
+		assertTrue(json, json.startsWith("{\"stages\":{\"grid-load\":{\"millis\":"));
+		assertTrue(json, json.contains("\"encoding\":{\"millis\":"));
+		assertTrue(json, json.contains("},\"total\":{\"millis\":"));
+		assertFalse(json, json.contains("\n"));
+
+		metrics.reset();
+		assertEquals("{\"stages\":{},\"total\":{\"millis\":0.000,\"allocatedBytes\":0}}", metrics.toJSON());
+	}
+
+	@Test public void testUnknownAllocationsAreKeptUnknown() {
+		MetricsRecorder metrics = new MetricsRecorder();
+		metrics.stageCompleted(Stage.RENDERING, 1500000, 100);
+		metrics.stageCompleted(Stage.RENDERING, 500000, -1);
+		metrics.stageCompleted(Stage.ENCODING, 1000000, 50);
+
+		assertEquals(2000000, (long) metrics.getNanos().get(Stage.RENDERING));
+		assertEquals(-1, (long) metrics.getAllocatedBytes().get(Stage.RENDERING));
+		assertEquals(50, (long) metrics.getAllocatedBytes().get(Stage.ENCODING));
+		assertEquals("{\"stages\":{"
+				+ "\"rendering\":{\"millis\":2.000,\"allocatedBytes\":-1},"
+				+ "\"encoding\":{\"millis\":1.000,\"allocatedBytes\":50}},"
+				+ "\"total\":{\"millis\":3.000,\"allocatedBytes\":-1}}", metrics.toJSON());
+	}
+
+	@Test public void testListenerDoesNotAffectCacheKeys() {
+		ConversionOptions options = new ConversionOptions();
+		String key = RenderCache.keyFor(diagram, options, "png");
+		options.setMetricsListener(new MetricsRecorder());
+		assertEquals(key, RenderCache.keyFor(diagram, options, "png"));
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.DiagramShape;
+import org.stathissideris.ascii2image.graphics.DiagramText;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Checks that processing the shapes of a diagram in parallel gives the
+ * same diagram as processing them sequentially.
+ */
+public class ParallelDiagramTest {
+
+	@Test public void testParallelDiagramsAreIdentical() throws IOException {
+		File[] files = new File("test-resources/text").listFiles();
+		assertNotNull(files);
+		for(File file : files){
+			if(!file.getName().endsWith(".txt")) continue;
+			String sequential = describe(file, 1);
+			assertEquals(file.getName(), sequential, describe(file, 4));
+			assertEquals(file.getName(), sequential, describe(file, 0));
+		}
+	}
+
+	private static String describe(File file, int parallelism) throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setParallelism(parallelism);
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(file.toString());
+		Diagram diagram = new Diagram(grid, options);
+
+		StringBuilder result = new StringBuilder();
+		for(DiagramShape shape : diagram.getAllDiagramShapes()){
+			result.append(shape.getType()).append(' ')
+				.append(shape.isClosed()).append(' ')
+				.append(shape.getFillColor()).append(' ')
+				.append(shape).append('\n');
+		}
+		for(DiagramText text : diagram.getTextObjects()){
+			result.append(text).append('\n');
+		}
+		return result.toString();
+	}
+}
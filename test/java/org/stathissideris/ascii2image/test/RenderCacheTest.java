@@ -0,0 +1,121 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderCache;
+
+public class RenderCacheTest {
+
+	private static final String box = "+---+\n|   |\n+---+\n";
+	private static final String otherBox = "+----+\n|    |\n+----+\n";
+
+	@Test public void testKeys() {
+		ConversionOptions options = new ConversionOptions();
+		String key = RenderCache.keyFor(box, options, "png");
+
+		assertEquals(key, RenderCache.keyFor(box, new ConversionOptions(), "png"));
+		assertEquals(key, RenderCache.keyFor(box.replace("\n", "\r\n"), options, "png"));
+		assertEquals(key, RenderCache.keyFor(box + "  \n\n", options, "png"));
+
+		assertNotEquals(key, RenderCache.keyFor(otherBox, options, "png"));
+		assertNotEquals(key, RenderCache.keyFor(box, options, "svg"));
+
+		options.renderingOptions.setScale(2);
+		assertNotEquals(key, RenderCache.keyFor(box, options, "png"));
+
+		options = new ConversionOptions();
+		options.renderingOptions.setBackgroundColor(new Color(255, 255, 255, 0));
+		assertNotEquals(key, RenderCache.keyFor(box, options, "png"));
+
+		options = new ConversionOptions();
+		options.processingOptions.setAllCornersAreRound(true);
+		assertNotEquals(key, RenderCache.keyFor(box, options, "png"));
+
+		//the curves of tiled images are anti-aliased slightly differently
+		options = new ConversionOptions();
+		options.renderingOptions.setTileSize(256);
+		assertNotEquals(key, RenderCache.keyFor(box, options, "png"));
+
+		//does not affect the image
+		options = new ConversionOptions();
+		options.processingOptions.setVerbose(true);
+		assertEquals(key, RenderCache.keyFor(box, options, "png"));
+	}
+
+	@Test public void testMemory() throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		RenderCache cache = new RenderCache(RenderCache.DEFAULT_MEMORY_BYTES, null);
+
+		byte[] image = cache.render(box, options, "png");
+		assertArrayEquals(RenderCache.renderToBytes(box, options, "png"), image);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		assertSame(image, cache.render(box, new ConversionOptions(), "png"));
+		assertEquals(1, cache.getHits());
+		assertEquals(image.length, cache.getMemoryBytes());
+	}
+
+	@Test public void testLeastRecentlyUsedAreEvicted() throws IOException {
+		ConversionOptions options = new ConversionOptions();
+		int size = RenderCache.renderToBytes(box, options, "svg").length
+			+ RenderCache.renderToBytes(otherBox, options, "svg").length;
+		RenderCache cache = new RenderCache(size, null);
+
+		cache.render(box, options, "svg");
+		cache.render(otherBox, options, "svg");
+		cache.render(box, options, "svg");
+		assertEquals(1, cache.getHits());
+
+		//does not fit together with the other two
+		cache.render(box, options, "png");
+		assertTrue(cache.getMemoryBytes() <= size);
+		cache.render(box, options, "png");
+		assertEquals(2, cache.getHits());
+		cache.render(otherBox, options, "svg");
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test public void testDisk() throws IOException {
+		File dir = Files.createTempDirectory("ditaa").toFile();
+		try {
+			ConversionOptions options = new ConversionOptions();
+			byte[] image = new RenderCache(0, dir).render(box, options, "svg");
+			assertEquals(1, dir.list().length);
+
+			RenderCache cache = new RenderCache(0, dir);
+			assertArrayEquals(image, cache.render(box, options, "svg"));
+			assertEquals(1, cache.getHits());
+			assertEquals(0, cache.getMisses());
+		} finally {
+			for(File file : dir.listFiles()) file.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderDaemon;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGRenderer;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class RenderDaemonTest {
+
+	private static final String inputFilename = "test-resources/text/art10.txt";
+
+	private RenderDaemon daemon;
+	private Thread daemonThread;
+	private File outputFile;
+
+	@Before public void setUp() throws IOException {
+		daemon = new RenderDaemon(0);
+		daemonThread = new Thread(daemon::serve);
+		daemonThread.start();
+		outputFile = File.createTempFile("ditaa", ".svg");
+	}
+
+	@After public void tearDown() throws Exception {
+		daemon.close();
+		daemonThread.join(10000);
+		outputFile.delete();
+	}
+
+	@Test public void testRemoteConversionIsIdenticalToLocal() throws IOException {
+		String[] args = {"--client", "" + daemon.getPort(), "-r", inputFilename, outputFile.getPath()};
+		int status = RenderDaemon.convertRemotely(daemon.getPort(), args, inputFilename, outputFile.getPath());
+		assertEquals(RenderDaemon.STATUS_OK, status);
+
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setAllCornersAreRound(true);
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(inputFilename, options.processingOptions);
+		File localFile = File.createTempFile("ditaa", ".svg");
+		try {
+			new SVGRenderer(localFile.getPath(), options.renderingOptions).renderImage(new Diagram(grid, options));
+			assertArrayEquals(Files.readAllBytes(localFile.toPath()), Files.readAllBytes(outputFile.toPath()));
+		} finally {
+			localFile.delete();
+		}
+	}
+
+	@Test public void testInvalidArguments() throws IOException {
+		//sent without convertRemotely, which would print the error
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(1);
+			out.writeInt(2);
+			out.writeUTF("--scale");
+			out.writeUTF("x");
+			out.writeUTF(outputFile.getPath());
+			out.writeInt(0);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			assertEquals(RenderDaemon.STATUS_USAGE, in.readInt());
+			assertEquals("For input string: \"x\"", in.readUTF());
+			assertEquals(0, in.readInt());
+		}
+	}
+
+	@Test public void testInvalidLengthsAreRejected() throws IOException {
+		assertEquals(RenderDaemon.STATUS_ERROR, sendRequest(-1, 0));
+		assertEquals(RenderDaemon.STATUS_ERROR, sendRequest(Integer.MAX_VALUE, 0));
+		assertEquals(RenderDaemon.STATUS_ERROR, sendRequest(0, -1));
+		assertEquals(RenderDaemon.STATUS_ERROR, sendRequest(0, Integer.MAX_VALUE));
+
+		String[] args = {inputFilename, outputFile.getPath()};
+		int status = RenderDaemon.convertRemotely(daemon.getPort(), args, inputFilename, outputFile.getPath());
+		assertEquals(RenderDaemon.STATUS_OK, status);
+	}
+
+	private int sendRequest(int argCount, int inputLength) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(1);
+			out.writeInt(argCount);
+			if (argCount == 0) {
+				out.writeUTF(outputFile.getPath());
+				out.writeInt(inputLength);
+			}
+			out.flush();
+			return new DataInputStream(socket.getInputStream()).readInt();
+		}
+	}
+}
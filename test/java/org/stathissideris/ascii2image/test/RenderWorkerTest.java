@@ -0,0 +1,119 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderCache;
+import org.stathissideris.ascii2image.core.RenderDaemon;
+import org.stathissideris.ascii2image.core.RenderWorker;
+
+public class RenderWorkerTest {
+
+	private static final String inputFilename = "test-resources/text/art10.txt";
+
+	private DataOutputStream requests;
+	private DataInputStream responses;
+	private Thread workerThread;
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	@Before public void setUp() throws IOException {
+		PipedOutputStream requestsOut = new PipedOutputStream();
+		PipedInputStream requestsIn = new PipedInputStream(requestsOut, 1 << 16);
+		PipedInputStream responsesIn = new PipedInputStream(1 << 16);
+		PipedOutputStream responsesOut = new PipedOutputStream(responsesIn);
+		requests = new DataOutputStream(requestsOut);
+		responses = new DataInputStream(responsesIn);
+
+		RenderWorker worker = new RenderWorker(requestsIn, responsesOut, null);
+		workerThread = new Thread(() -> {
+			try {
+				worker.serve();
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		workerThread.start();
+	}
+
+	@After public void tearDown() throws Exception {
+		requests.close();
+		workerThread.join(10000);
+	}
+
+	@Test public void testRequestsAreServedInFrames() throws Exception {
+		byte[] input = Files.readAllBytes(new File(inputFilename).toPath());
+		String text = new String(input, "UTF-8");
+
+		sendRequest(new String[]{"--svg"}, input);
+		assertEquals(RenderDaemon.STATUS_OK, responses.readInt());
+		assertEquals("", responses.readUTF());
+		assertTrue(responses.readLong() >= 0);
+		byte[] image = new byte[responses.readInt()];
+		responses.readFully(image);
+		assertArrayEquals(RenderCache.renderToBytes(text, new ConversionOptions(), "svg"), image);
+
+		//the worker carries on after a request that fails
+		sendRequest(new String[]{"--scale", "x"}, input);
+		assertEquals(RenderDaemon.STATUS_USAGE, responses.readInt());
+		assertFalse(responses.readUTF().isEmpty());
+		responses.readLong();
+		assertEquals(0, responses.readInt());
+
+		sendRequest(new String[0], input);
+		assertEquals(RenderDaemon.STATUS_OK, responses.readInt());
+
+		//and stops once its input is closed
+		requests.close();
+		workerThread.join(10000);
+		assertFalse(workerThread.isAlive());
+		assertNull(failure.get());
+	}
+
+	@Test public void testUnsupportedVersion() throws Exception {
+		requests.writeInt(RenderWorker.PROTOCOL_VERSION + 1);
+		requests.flush();
+		workerThread.join(10000);
+		assertTrue(failure.get() instanceof IOException);
+	}
+
+	private void sendRequest(String[] args, byte[] input) throws IOException {
+		requests.writeInt(RenderWorker.PROTOCOL_VERSION);
+		requests.writeInt(args.length);
+		for (String arg : args) requests.writeUTF(arg);
+		requests.writeUTF("-");
+		requests.writeInt(input.length);
+		requests.write(input);
+		requests.flush();
+	}
+}
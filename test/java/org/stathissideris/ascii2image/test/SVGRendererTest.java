@@ -0,0 +1,99 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.SVGRenderer;
+import org.stathissideris.ascii2image.graphics.SpoolWriter;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class SVGRendererTest {
+
+	@Test public void testLayersAreInOrder() throws Exception {
+		String svg = new String(render("art2.txt", false), "UTF-8");
+		int background = svg.indexOf("<rect ");
+		int shadow = svg.indexOf("filter='url(#f2)'");
+		int lastShadow = svg.lastIndexOf("filter='url(#f2)'");
+		int shape = svg.indexOf("<path stroke='#");
+		int text = svg.indexOf("<text ");
+		assertTrue(background >= 0 && shadow >= 0 && shape >= 0 && text >= 0);
+		assertTrue(background < shadow);
+		assertTrue(lastShadow < shape);
+		assertTrue(svg.lastIndexOf("<path ") < text);
+		assertTrue(svg.endsWith("</svg>"));
+	}
+
+	@Test public void testTextIsWrittenInUTF8() throws Exception {
+		String svg = new String(render("art_text.txt", false), "UTF-8");
+		assertTrue(svg.contains("\u2022"));
+	}
+
+	@Test public void testCompressedOutput() throws Exception {
+		byte[] plain = render("art2.txt", false);
+		byte[] compressed = render("art2.txt", true);
+		assertTrue(compressed.length < plain.length);
+		assertArrayEquals(plain, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	@Test public void testSpool() throws Exception {
+		String content = "0123456789abcdefghij";
+		for(int limit : new int[]{1000, 25, 0}){
+			SpoolWriter spool = new SpoolWriter(limit);
+			for(int i = 0; i < 5; i++) spool.write(content);
+			spool.write(new char[]{'x', 'y'}, 0, 2);
+			assertEquals(limit < 102, spool.isSpilled());
+			StringWriter out = new StringWriter();
+			spool.writeTo(out);
+			spool.close();
+			assertEquals(content + content + content + content + content + "xy", out.toString());
+		}
+	}
+
+	private static byte[] render(String name, boolean compressed) throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(new File("test-resources/text", name).getPath(), options.processingOptions);
+		Diagram diagram = new Diagram(grid, options);
+		SVGRenderer renderer = new SVGRenderer(null, options.renderingOptions);
+		renderer.setCompressed(compressed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		renderer.renderImage(diagram, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = in.read(buffer)) >= 0) bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+}
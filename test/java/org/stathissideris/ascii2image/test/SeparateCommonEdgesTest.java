@@ -0,0 +1,153 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.CancellationToken;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.DiagramShape;
+import org.stathissideris.ascii2image.graphics.ShapeEdge;
+import org.stathissideris.ascii2image.graphics.ShapePoint;
+
+/**
+ * Checks Diagram.separateCommonEdges against testing all the pairs of
+ * edges, the way Diagram used to separate them.
+ */
+public class SeparateCommonEdgesTest {
+
+	private static final float OFFSET = 2;
+
+	@Test public void testRandomShapesAgainstAllPairs() {
+		Random random = new Random(7);
+		for(int i = 0; i < 2000; i++){
+			//a small grid, so that many edges are shared or overlap
+			int size = 3 + random.nextInt(12);
+			int count = 2 + random.nextInt(30);
+			boolean sloped = i % 4 == 3;
+			long seed = random.nextLong();
+			ArrayList<DiagramShape> expected = makeShapes(new Random(seed), count, size, sloped);
+			ArrayList<DiagramShape> actual = makeShapes(new Random(seed), count, size, sloped);
+
+			String expectedError = null;
+			try {
+				separateAllPairs(expected);
+			} catch(RuntimeException e) {
+				expectedError = e.getMessage();
+			}
+			String actualError = null;
+			try {
+				Diagram.separateCommonEdges(actual, OFFSET, CancellationToken.NONE);
+			} catch(RuntimeException e) {
+				actualError = e.getMessage();
+			}
+			assertEquals("shapes " + i, expectedError, actualError);
+			assertEquals("shapes " + i, pointsOf(expected), pointsOf(actual));
+		}
+	}
+
+	@Test public void testSharedEdgesAreSeparated() {
+		ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
+		shapes.add(makeBox(0, 0, 20, 20));
+		shapes.add(makeBox(20, 0, 20, 20));
+		Diagram.separateCommonEdges(shapes, OFFSET, CancellationToken.NONE);
+		assertEquals(18f, ((ShapePoint) shapes.get(0).getPoints().get(1)).x, 0);
+		assertEquals(22f, ((ShapePoint) shapes.get(1).getPoints().get(0)).x, 0);
+	}
+
+	/**
+	 * Boxes, L-shapes whose top is split into two collinear edges, boxes
+	 * with a repeated corner (a point edge) and, if <code>sloped</code>,
+	 * triangles, some of them repeated with their points reversed.
+	 */
+	private static ArrayList<DiagramShape> makeShapes(Random random, int count, int size, boolean sloped) {
+		ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
+		for(int s = 0; s < count; s++){
+			int x = 10 * random.nextInt(size);
+			int y = 10 * random.nextInt(size);
+			int width = 10 * (1 + random.nextInt(4));
+			int height = 10 * (1 + random.nextInt(4));
+			int kind = random.nextInt(sloped ? 5 : 4);
+			if(kind == 0){
+				shapes.add(makeShape(x, y, x + 10, y, x + width + 10, y, x + width + 10, y + height,
+						x + 10, y + height, x + 10, y + height + 10, x, y + height + 10));
+			} else if(kind == 1){
+				shapes.add(makeShape(x, y, x + width, y, x + width, y, x + width, y + height, x, y + height));
+			} else if(kind == 4){
+				shapes.add(makeShape(x, y, x + width, y + height, x, y + height));
+				if(random.nextBoolean()) shapes.add(makeShape(x, y + height, x + width, y + height, x, y));
+			} else {
+				shapes.add(makeBox(x, y, width, height));
+			}
+		}
+		return shapes;
+	}
+
+	private static DiagramShape makeBox(int x, int y, int width, int height) {
+		return makeShape(x, y, x + width, y, x + width, y + height, x, y + height);
+	}
+
+	private static DiagramShape makeShape(int... coordinates) {
+		DiagramShape shape = new DiagramShape();
+		for(int i = 0; i < coordinates.length; i += 2){
+			shape.addToPoints(new ShapePoint(coordinates[i], coordinates[i + 1]));
+		}
+		shape.setClosed(true);
+		return shape;
+	}
+
+	private static String pointsOf(ArrayList<DiagramShape> shapes) {
+		StringBuilder result = new StringBuilder();
+		for(DiagramShape shape : shapes){
+			for(Object point : shape.getPoints()) result.append(point).append(' ');
+			result.append('\n');
+		}
+		return result.toString();
+	}
+
+	/** The all-pairs separation that Diagram used before */
+	private static void separateAllPairs(ArrayList<DiagramShape> shapes) {
+		ArrayList<ShapeEdge> edges = new ArrayList<ShapeEdge>();
+		for(DiagramShape shape : shapes){
+			for(Object edge : shape.getEdges()) edges.add((ShapeEdge) edge);
+		}
+
+		ArrayList<ShapeEdge[]> pairs = new ArrayList<ShapeEdge[]>();
+		for(int i = 0; i < edges.size(); i++){
+			for(int k = i + 1; k < edges.size(); k++){
+				if(edges.get(i).touchesWith(edges.get(k))) pairs.add(new ShapeEdge[]{edges.get(i), edges.get(k)});
+			}
+		}
+
+		ArrayList<ShapeEdge> movedEdges = new ArrayList<ShapeEdge>();
+		for(ShapeEdge[] pair : pairs){
+			for(ShapeEdge edge : pair){
+				if(!movedEdges.contains(edge)){
+					edge.moveInwardsBy(OFFSET);
+					movedEdges.add(edge);
+				}
+			}
+		}
+	}
+}
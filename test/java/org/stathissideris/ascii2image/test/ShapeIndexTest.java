@@ -0,0 +1,99 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.graphics.DiagramShape;
+import org.stathissideris.ascii2image.graphics.ShapeIndex;
+import org.stathissideris.ascii2image.graphics.ShapePoint;
+
+/**
+ * Checks ShapeIndex against scanning all the shapes, the way Diagram
+ * used to find the shapes of colour codes, tags and text.
+ */
+public class ShapeIndexTest {
+
+	@Test public void testRandomShapesAgainstScan() {
+		Random random = new Random(5);
+		for(int i = 0; i < 20; i++){
+			ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
+			for(int s = 0; s < 1 + random.nextInt(40); s++){
+				//boxes of a few sizes, so that some have equal areas
+				int x = random.nextInt(300);
+				int y = random.nextInt(300);
+				int width = 10 * (1 + random.nextInt(8));
+				int height = 10 * (1 + random.nextInt(8));
+				shapes.add(makeBox(x, y, width, height));
+			}
+			//a shape with one point contains nothing
+			DiagramShape marker = new DiagramShape();
+			marker.addToPoints(new ShapePoint(50, 50));
+			shapes.add(marker);
+
+			ShapeIndex index = new ShapeIndex(shapes, 1 + random.nextInt(60));
+			for(int q = 0; q < 200; q++){
+				ShapePoint point = new ShapePoint(random.nextInt(420) - 10, random.nextInt(420) - 10);
+				assertSame(findSmallestContaining(shapes, point), index.findSmallestContaining(point));
+
+				Rectangle2D rect = new Rectangle2D.Double(
+						point.x, point.y, random.nextInt(50), 1 + random.nextInt(20));
+				assertSame(findSmallestIntersecting(shapes, rect), index.findSmallestIntersecting(rect));
+			}
+		}
+	}
+
+	@Test public void testEmptyIndex() {
+		ShapeIndex index = new ShapeIndex(new ArrayList<DiagramShape>(), 10);
+		assertNull(index.findSmallestContaining(new ShapePoint(5, 5)));
+		assertNull(index.findSmallestIntersecting(new Rectangle2D.Double(0, 0, 10, 10)));
+	}
+
+	private static DiagramShape makeBox(int x, int y, int width, int height) {
+		DiagramShape shape = new DiagramShape();
+		shape.addToPoints(new ShapePoint(x, y));
+		shape.addToPoints(new ShapePoint(x + width, y));
+		shape.addToPoints(new ShapePoint(x + width, y + height));
+		shape.addToPoints(new ShapePoint(x, y + height));
+		shape.setClosed(true);
+		return shape;
+	}
+
+	private static DiagramShape findSmallestContaining(ArrayList<DiagramShape> shapes, ShapePoint point) {
+		DiagramShape result = null;
+		for(DiagramShape shape : shapes){
+			if(shape.contains(point) && (result == null || shape.isSmallerThan(result))) result = shape;
+		}
+		return result;
+	}
+
+	private static DiagramShape findSmallestIntersecting(ArrayList<DiagramShape> shapes, Rectangle2D rect) {
+		DiagramShape result = null;
+		for(DiagramShape shape : shapes){
+			if(shape.intersects(rect) && (result == null || shape.isSmallerThan(result))) result = shape;
+		}
+		return result;
+	}
+}
@@ -21,13 +21,16 @@ package org.stathissideris.ascii2image.test;
 
 import static org.junit.Assert.*;
 
+import java.awt.Color;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.AbstractionGrid;
 import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.GridTokens;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 public class TextGridTest {
@@ -35,6 +38,102 @@ public class TextGridTest {
 	@Before public void setUp() {
 	}
 	
+	@Test public void testCopiesAndSubGridsAreIndependent() {
+		TextGrid grid = new TextGrid(5, 4);
+		grid.setRow(1, " +-+ ");
+		grid.setRow(2, " +-+ ");
+
+		TextGrid copy = new TextGrid(grid);
+		TextGrid sub = grid.getSubGrid(1, 1, 3, 2);
+		assertEquals("+-+", sub.getRow(0).toString());
+		assertEquals('+', sub.get(2, 1));
+		assertEquals(0, sub.get(3, 1));
+
+		grid.set(2, 1, '=');
+		assertEquals('-', copy.get(2, 1));
+		assertEquals('-', sub.get(1, 0));
+
+		sub.set(1, 1, '~');
+		copy.writeStringTo(3, 2, "*****");
+		assertEquals(" +=+ ", grid.getRow(1).toString());
+		assertEquals(" +-+ ", grid.getRow(2).toString());
+		assertEquals("+~+", sub.getRow(1).toString());
+		assertEquals(" +-**", copy.getRow(2).toString());
+		assertEquals(5, copy.getWidth());
+
+		assertTrue(new TextGrid(sub).equals(sub));
+		assertFalse(sub.equals(grid.getSubGrid(1, 1, 3, 2)));
+		sub.getRow(0).setCharAt(0, 'x');
+		assertEquals('+', sub.get(0, 0));
+
+		TextGrid other = new TextGrid(5, 4);
+		other.setRow(1, " +-+ ");
+		TextGrid testing = other.getTestingSubGrid(other.new Cell(2, 1));
+		other.set(2, 1, '#');
+		assertEquals("+-+", testing.getRow(1).toString());
+	}
+
+	@Test public void testTokensAreLexedInOnePass() throws IOException {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(
+				"+------+    \n" +
+				"|cRED  |--->\n" +
+				"|{d} x |  ^ \n" +
+				"+--*---+  | \n" +
+				" o item c1Z \n", null);
+
+		GridTokens tokens = new GridTokens(grid);
+		assertEquals(1, tokens.getColorCodes().size());
+		TextGrid.CellColorPair code = tokens.getColorCodes().get(0);
+		assertEquals("c", grid.getStringAt(code.cell, 1));
+		assertEquals(new Color(0xEE, 0x33, 0x22), code.color);
+
+		assertEquals(1, tokens.getMarkupTags().size());
+		assertEquals("d", tokens.getMarkupTags().get(0).tag);
+		assertEquals(2, tokens.getArrowheads().size());
+		assertEquals(1, tokens.getPointMarkersOnLine().size());
+
+		assertEquals(tokens.getColorCodes().size(), grid.findColorCodes().size());
+		assertEquals(tokens.getArrowheads().size(), grid.findArrowheads(tokens).size());
+
+		TextGrid text = new TextGrid(grid);
+		text.removeNonText(tokens);
+		ArrayList<String> rows = new ArrayList<String>();
+		for (int y = 0; y < text.getHeight(); y++) {
+			String row = text.getRow(y).toString().trim();
+			if (row.length() > 0) rows.add(row);
+		}
+		assertEquals(2, rows.size());
+		assertEquals("x", rows.get(0));
+		assertEquals("\u2022item c1Z", rows.get(1));
+	}
+
+	@Test public void testFollowPackedCellsMatchesFollowCells() {
+		TextGrid grid = new TextGrid(7, 5);
+		grid.setRow(1, " +-+-+ ");
+		grid.setRow(2, " | | | ");
+		grid.setRow(3, " +-+-+ ");
+
+		long[] next = new long[4];
+		for (TextGrid.Cell cell : grid.getAllBoundaries()) {
+			long packed = TextGrid.packCell(cell.x, cell.y);
+			assertEquals(cell.x, TextGrid.cellX(packed));
+			assertEquals(cell.y, TextGrid.cellY(packed));
+
+			CellSet expected = grid.followCell(cell);
+			int count = grid.followCell(packed, TextGrid.NO_CELL, next);
+			assertEquals(expected.size(), count);
+			int i = 0;
+			for (TextGrid.Cell nextCell : expected) {
+				assertEquals(TextGrid.packCell(nextCell.x, nextCell.y), next[i++]);
+			}
+
+			TextGrid.Cell blocked = expected.getFirst();
+			count = grid.followCell(packed, TextGrid.packCell(blocked.x, blocked.y), next);
+			assertEquals(expected.size() - 1, count);
+		}
+	}
+
 	@Test public void testFillContinuousAreaSquareOutside() throws IOException {
 		TextGrid squareGrid;
 		squareGrid = new TextGrid();
@@ -264,6 +363,30 @@ public class TextGridTest {
 	}
 
 	
+	@Test public void testFindBoundariesOfAllAreasU() throws IOException {
+		TextGrid grid;
+		grid = new TextGrid();
+		grid.loadFrom("test-resources/text/simple_U01.txt");
+
+		CellSet wholeGridSet = new CellSet();
+		addSquareToCellSet(grid, wholeGridSet, 0,0, grid.getWidth(),grid.getHeight());
+
+		TextGrid copyGrid = new AbstractionGrid(grid, wholeGridSet).getCopyOfInternalBuffer();
+		ArrayList<CellSet> allBoundaries = copyGrid.findBoundariesOfAllAreas();
+
+		//outside and inside of the U
+		assertEquals(2, allBoundaries.size());
+		TextGrid outsideGrid = new TextGrid(copyGrid);
+		assertEquals(
+				outsideGrid.findBoundariesExpandingFrom(outsideGrid.new Cell(0, 0)),
+				allBoundaries.get(0));
+		TextGrid insideGrid = new TextGrid(copyGrid);
+		assertEquals(
+				insideGrid.findBoundariesExpandingFrom(insideGrid.new Cell(10, 10)),
+				allBoundaries.get(1));
+		assertEquals(new AbstractionGrid(grid, wholeGridSet).getCopyOfInternalBuffer().toString(), copyGrid.toString());
+	}
+
 	@Test public void testCellSetFromCellsString(){
 		TextGrid grid;
 		grid = new TextGrid();
@@ -280,6 +403,25 @@ public class TextGridTest {
 		assertEquals(expectedCellSet, cellSet);
 	}
 	
+	@Test public void testCopyCellsTo(){
+		TextGrid source = new TextGrid(4, 3);
+		source.set(1, 1, 'a');
+		source.set(3, 2, 'b');
+		TextGrid target = new TextGrid(2, 2);
+		CellSet cells = new CellSet();
+		cells.add(1, 1);
+		cells.add(3, 2); //outside the target, skipped
+		source.copyCellsTo(cells, target);
+		assertEquals('a', target.get(1, 1));
+
+		cells.add(-1, 1);
+		try {
+			source.copyCellsTo(cells, target);
+			fail("A cell with a negative coordinate was copied");
+		} catch (IndexOutOfBoundsException expected) { }
+		assertEquals(' ', target.get(1, 0));
+	}
+	
 	private void addSquareToCellSet(TextGrid grid, CellSet cellSet, int x, int y, int width, int height) {
 		for(int xx = 0; xx < width; xx++){
 			for(int yy = 0; yy < height; yy++){
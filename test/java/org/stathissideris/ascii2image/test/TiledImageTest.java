@@ -0,0 +1,134 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ *
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.stathissideris.ascii2image.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.graphics.TiledImage;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class TiledImageTest {
+
+	/**
+	 * Only straight lines, which are drawn exactly the same on tiles
+	 */
+	private static final String STRAIGHT_DIAGRAM =
+			"+--------+   +-------+\n" +
+			"| cBLU   +-->| text  |\n" +
+			"|  box   |   +---+---+\n" +
+			"+---+----+       :\n" +
+			"    |            v\n" +
+			"    |   +-----------+\n" +
+			"    +-->| cPNK    * |\n" +
+			"        +-----------+\n";
+
+	@Test public void testTilesAreAssembled() throws Exception {
+		AtomicInteger renders = new AtomicInteger();
+		try(TiledImage image = new TiledImage(50, 33, BufferedImage.TYPE_INT_RGB, 16, 2, area -> {
+			renders.incrementAndGet();
+			BufferedImage tile = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+			for(int y = 0; y < area.height; y++)
+				for(int x = 0; x < area.width; x++)
+					tile.setRGB(x, y, valueAt(area.x + x, area.y + y));
+			return tile;
+		})){
+			assertEquals(4, image.getNumXTiles());
+			assertEquals(3, image.getNumYTiles());
+
+			//read row by row, like the PNG encoder does
+			for(int y = 0; y < 33; y++){
+				Raster row = image.getData(new Rectangle(0, y, 50, 1));
+				for(int x = 0; x < 50; x++)
+					assertEquals(valueAt(x, y), pixel(row, x, y));
+			}
+			assertEquals(12, renders.get());
+
+			Raster block = image.getData(new Rectangle(10, 5, 30, 25));
+			for(int y = 5; y < 30; y++)
+				for(int x = 10; x < 40; x++)
+					assertEquals(valueAt(x, y), pixel(block, x, y));
+		}
+	}
+
+	@Test public void testTiledRenderingOfStraightLines() throws Exception {
+		for(boolean transparent : new boolean[]{false, true}){
+			ConversionOptions options = new ConversionOptions();
+			options.renderingOptions.setScale(2);
+			if(transparent) options.renderingOptions.setBackgroundColor(new Color(0, 0, 0, 0));
+			TextGrid grid = new TextGrid();
+			grid.initialiseWithText(STRAIGHT_DIAGRAM, options.processingOptions);
+			Diagram diagram = new Diagram(grid, options);
+
+			byte[] whole = renderPNG(diagram, options);
+			for(int tileSize : new int[]{7, 64, 1000}){
+				options.renderingOptions.setTileSize(tileSize);
+				assertArrayEquals("tiles of " + tileSize, whole, renderPNG(diagram, options));
+			}
+		}
+	}
+
+	@Test public void testTiledRenderingOfCurves() throws Exception {
+		ConversionOptions options = new ConversionOptions();
+		TextGrid grid = new TextGrid();
+		grid.loadFrom(new File("test-resources/text", "art10.txt").getPath(), options.processingOptions);
+		Diagram diagram = new Diagram(grid, options);
+		BitmapRenderer renderer = new BitmapRenderer(null, options.renderingOptions);
+
+		Raster whole = renderer.renderToImage(diagram, options.renderingOptions).getData();
+		Raster tiled;
+		try(TiledImage image = renderer.renderToTiledImage(diagram, options.renderingOptions, 64)){
+			tiled = image.getData();
+		}
+		//curves that cross the edges of tiles are clipped, which may
+		//change their anti-aliasing a little
+		int different = 0;
+		for(int y = 0; y < whole.getHeight(); y++)
+			for(int x = 0; x < whole.getWidth(); x++)
+				if(pixel(whole, x, y) != pixel(tiled, x, y))
+					different++;
+		assertTrue(different < whole.getWidth() * whole.getHeight() / 100);
+	}
+
+	private static int valueAt(int x, int y) {
+		return x * 1000 + y;
+	}
+
+	private static int pixel(Raster raster, int x, int y) {
+		return ((int[]) raster.getDataElements(x, y, null))[0] & 0xffffff;
+	}
+
+	private static byte[] renderPNG(Diagram diagram, ConversionOptions options) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BitmapRenderer(null, options.renderingOptions).renderImage(diagram, out);
+		return out.toByteArray();
+	}
+}